@@ -23,4 +23,20 @@ is_bob() {
 
 can_be_accessed_by_bob() {
     input.action.operation in ["ImpersonateUser", "FilterCatalogs", "AccessCatalog", "ExecuteQuery"]
-}
\ No newline at end of file
+}
+
+batch[i] {
+	some i
+	resource := input.action.filterResources[i]
+	allow with input.action.resource as resource
+}
+
+micro_batch[i] {
+	some i
+	query := input.queries[i]
+	allow with input as query
+}
+
+coarse {
+	is_admin
+}
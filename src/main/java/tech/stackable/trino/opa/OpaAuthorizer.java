@@ -1,18 +1,39 @@
 package tech.stackable.trino.opa;
 
+import java.io.IOException;
 import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.Principal;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.type.TypeFactory;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import io.trino.spi.QueryId;
 import io.trino.spi.connector.CatalogSchemaName;
 import io.trino.spi.connector.CatalogSchemaRoutineName;
 import io.trino.spi.connector.CatalogSchemaTableName;
@@ -23,73 +44,1080 @@ import io.trino.spi.security.*;
 import io.trino.spi.type.Type;
 
 public class OpaAuthorizer implements SystemAccessControl {
-    private final HttpClient httpClient = HttpClient.newHttpClient();
-    private final ObjectMapper json;
+    // metrics of the requests sent by the micro-batcher are recorded under this operation
+    static final String MICRO_BATCH_OPERATION = "MicroBatch";
+    private static final long MICRO_BATCH_NOT_FOUND_RETRY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // metrics of the requests to OPA's Compile API are recorded under this operation
+    static final String COMPILE_OPERATION = "Compile";
+    // metrics of the requests for the policy revision are recorded under this operation
+    static final String REVISION_OPERATION = "Revision";
+    // operation the permissions rule is asked with, its requests are recorded under it as well
+    static final String PERMISSIONS_OPERATION = "PermissionSnapshot";
+    // the revision rule is asked without input
+    private static final byte[] EMPTY_QUERY = "{}".getBytes(StandardCharsets.UTF_8);
+    // operations whose decisions are kept in the column decision store, if enabled
+    private static final Set<String> COLUMN_OPERATIONS = Set.of("FilterColumns", "SelectFromColumns");
+    private static final String DATA_API_PATH = "/v1/data/";
+    private static final String COMPILE_API_PATH = "/v1/compile";
+    private static final List<String> COMPILE_UNKNOWNS = List.of("input.action.resource");
+    private static final JavaType JSON_NODE_TYPE = TypeFactory.defaultInstance().constructType(JsonNode.class);
+    // results of the batch and micro-batch policies (indices of the allowed resources or queries),
+    // the row filters policy and the column masks policy (column name -> mask)
+    private static final JavaType INDICES_TYPE = TypeFactory.defaultInstance().constructCollectionType(List.class, Integer.class);
+    private static final JavaType ROW_FILTERS_TYPE = TypeFactory.defaultInstance().constructCollectionType(List.class, OpaViewExpression.class);
+    private static final JavaType COLUMN_MASKS_TYPE = TypeFactory.defaultInstance().constructMapType(Map.class, String.class, OpaViewExpression.class);
+
+    private final OpaTransport transport;
+    private final Duration callTimeout;
+    private final OpaResultParser resultParser;
+    private final OpaQuerySerializer serializer;
+    // used for building cache keys, must produce the same output for equivalent inputs
+    private final ObjectMapper keyJson;
     private final URI opaPolicyUri;
+    private final Optional<URI> opaBatchPolicyUri;
+    private final Optional<URI> opaCoarsePolicyUri;
+    private final Optional<URI> opaRowFiltersPolicyUri;
+    private final Optional<URI> opaColumnMasksPolicyUri;
+    // sends queries to opa.policy.uri that arrive close together as one request, null if disabled
+    private final OpaMicroBatcher<OpaQueryInput, OpaDecision> microBatcher;
+    // until when the micro-batch policy is taken not to exist
+    private volatile long microBatchNotFoundUntilNanos = System.nanoTime();
+    private final OpaDecisionCache decisionCache;
+    // decisions of FilterColumns and SelectFromColumns as bitsets per identity and table, null if disabled
+    private final OpaColumnDecisionStore columnDecisions;
+    // decisions per query ID, released when the query completes, null if disabled
+    private final OpaQueryMemo queryMemo;
+    private final OpaSingleFlight<OpaQueryKey, OpaDecision> singleFlight;
+    // row filters per (identity, table) and column masks per (identity, table), keyed by column name
+    private final OpaExpressionCache<List<ViewExpression>> rowFilterCache;
+    private final OpaExpressionCache<Map<String, ViewExpression>> columnMaskCache;
+    private final OpaSingleFlight<OpaQueryKey, List<ViewExpression>> rowFilterSingleFlight;
+    private final OpaSingleFlight<OpaQueryKey, Map<String, ViewExpression>> columnMaskSingleFlight;
+    // Compile API and the query that partially evaluates opa.policy.uri, empty if partial evaluation is disabled
+    private final Optional<URI> opaCompileUri;
+    private final String opaCompileQuery;
+    // residual predicate per (identity, filter operation), empty if the residual cannot be evaluated locally
+    private final OpaExpressionCache<Optional<OpaResidualPredicate>> residualCache;
+    private final OpaSingleFlight<OpaQueryKey, Optional<OpaResidualPredicate>> residualSingleFlight;
+    // file the decision cache is kept in across restarts, empty if disabled
+    private final Optional<Path> decisionCacheSnapshotFile;
+    // writes the snapshots, null if snapshots are disabled
+    private final ScheduledExecutorService snapshotScheduler;
+    // rule that returns the revision of the policy (e.g. of its bundle), decisions of other revisions are discarded
+    private final Optional<URI> opaRevisionPolicyUri;
+    // revision the cached decisions were made with, null until it could be queried, only used by the
+    // constructor and the snapshot thread
+    private String policyRevision;
+    // rule that returns everything a user is granted, empty if permission snapshots are disabled
+    private final Optional<URI> opaPermissionsPolicyUri;
+    // permission snapshot per identity, empty if the rule has none for the identity
+    private final OpaExpressionCache<Optional<OpaPermissionSnapshot>> permissionSnapshotCache;
+    private final OpaSingleFlight<OpaQueryKey, Optional<OpaPermissionSnapshot>> permissionSnapshotSingleFlight;
+    private final OpaCircuitBreaker circuitBreaker;
+    // decision for queries without a cached decision while the circuit breaker is open
+    private final boolean circuitBreakerFailOpen;
+    private final OpaMetrics metrics = new OpaMetrics();
 
     public OpaAuthorizer(URI opaPolicyUri) {
-        this.opaPolicyUri = opaPolicyUri;
-        this.json = new ObjectMapper()
+        this(new OpaAuthorizerConfig.Builder(opaPolicyUri).build());
+    }
+
+    public OpaAuthorizer(OpaAuthorizerConfig config) {
+        this(config, System::nanoTime);
+    }
+
+    // the ticker drives the expiry of the decision cache and the open duration of the circuit breaker
+    OpaAuthorizer(OpaAuthorizerConfig config, LongSupplier ticker) {
+        this.opaPolicyUri = config.opaPolicyUri;
+        try {
+            this.serializer = new OpaQuerySerializer(OpaInputProjection.of(config.inputProjection));
+        } catch (IllegalArgumentException e) {
+            throw new OpaConfigException.ValueInvalid(OpaAuthorizerPlugin.CONFIG_OPA_INPUT_PROJECTION_PREFIX + "*",
+                    config.inputProjection.toString(), e);
+        }
+        this.opaBatchPolicyUri = config.opaBatchPolicyUri;
+        this.opaCoarsePolicyUri = config.opaCoarsePolicyUri;
+        this.opaRowFiltersPolicyUri = config.opaRowFiltersPolicyUri;
+        this.opaColumnMasksPolicyUri = config.opaColumnMasksPolicyUri;
+        this.microBatcher = config.opaMicroBatchPolicyUri
+                .map(uri -> new OpaMicroBatcher<OpaQueryInput, OpaDecision>(config.microBatchWindow, config.microBatchMaxSize,
+                        (inputs, deadline) -> queryOpaMicroBatch(uri, inputs, deadline)))
+                .orElse(null);
+        OpaTransport baseTransport;
+        OpaLoadBalancedTransport loadBalancer = null;
+        List<OpaConcurrencyLimiter> concurrencyLimiters = new ArrayList<>();
+        if (config.wasmPolicyFile.isPresent()) {
+            baseTransport = loadWasmTransport(config);
+        } else {
+            OpaTransport httpTransport = loadNetworkTransport(config);
+            // limits the requests actually sent, including hedged ones, to each endpoint separately
+            UnaryOperator<OpaTransport> limit = transport -> {
+                if (!config.concurrencyLimitEnabled) {
+                    return transport;
+                }
+                OpaConcurrencyLimiter concurrencyLimiter = new OpaConcurrencyLimiter(transport, config.concurrencyLimitInitialLimit,
+                        config.concurrencyLimitMinLimit, config.httpMaxInFlightRequests,
+                        config.concurrencyLimitMaxQueueSize, config.concurrencyLimitMaxQueueWait);
+                concurrencyLimiters.add(concurrencyLimiter);
+                return concurrencyLimiter;
+            };
+            if (!config.endpoints.isEmpty()) {
+                loadBalancer = new OpaLoadBalancedTransport(httpTransport, limit,
+                        config.endpoints, config.endpointEjectionFailures, config.endpointEjectionDuration,
+                        config.hedgingEnabled, config.hedgingPercentile, config.hedgingMinDelay);
+                baseTransport = loadBalancer;
+            } else {
+                baseTransport = limit.apply(httpTransport);
+            }
+        }
+        this.circuitBreaker = config.circuitBreakerEnabled
+                ? new OpaCircuitBreaker(baseTransport, config.circuitBreakerFailureThreshold, config.circuitBreakerOpenDuration, ticker)
+                : null;
+        this.circuitBreakerFailOpen = config.circuitBreakerFailOpen;
+        this.transport = circuitBreaker != null ? circuitBreaker : baseTransport;
+        this.callTimeout = config.callTimeout;
+        OpaOffHeapDecisionCache offHeapDecisionCache = null;
+        if (config.decisionCacheEnabled && config.decisionCacheOffHeapMaxEntries > 0) {
+            try {
+                offHeapDecisionCache = new OpaOffHeapDecisionCache(config.decisionCacheOffHeapMaxEntries);
+            } catch (IllegalArgumentException e) {
+                throw new OpaConfigException.ValueInvalid(OpaAuthorizerPlugin.CONFIG_OPA_CACHE_OFF_HEAP_MAX_ENTRIES,
+                        String.valueOf(config.decisionCacheOffHeapMaxEntries), e);
+            }
+        }
+        this.decisionCache = config.decisionCacheEnabled
+                ? new OpaDecisionCache(config.decisionCacheMaxEntries, config.decisionCacheAllowTtl, config.decisionCacheDenyTtl,
+                        // stale decisions are only ever used while the circuit breaker is open
+                        config.circuitBreakerEnabled ? config.decisionCacheStaleGrace : Duration.ZERO, offHeapDecisionCache, ticker)
+                : null;
+        this.columnDecisions = config.decisionCacheEnabled && config.columnDecisionStoreEnabled
+                ? new OpaColumnDecisionStore(config.decisionCacheMaxEntries, config.decisionCacheAllowTtl, config.decisionCacheDenyTtl)
+                : null;
+        this.queryMemo = config.queryMemoEnabled
+                ? new OpaQueryMemo(config.queryMemoMaxEntriesPerQuery, config.queryMemoMaxQueries)
+                : null;
+        this.singleFlight = config.requestCoalescingEnabled ? new OpaSingleFlight<>() : null;
+        this.rowFilterCache = config.decisionCacheEnabled
+                ? new OpaExpressionCache<>(config.decisionCacheMaxEntries, config.expressionCacheTtl)
+                : null;
+        this.columnMaskCache = config.decisionCacheEnabled
+                ? new OpaExpressionCache<>(config.decisionCacheMaxEntries, config.expressionCacheTtl)
+                : null;
+        this.rowFilterSingleFlight = config.requestCoalescingEnabled ? new OpaSingleFlight<>() : null;
+        this.columnMaskSingleFlight = config.requestCoalescingEnabled ? new OpaSingleFlight<>() : null;
+        String policyPath = opaPolicyUri.getPath();
+        // the data API may be below a prefix, such as the socket of a unix:// URI
+        int dataApiStart = policyPath == null ? -1 : policyPath.indexOf(DATA_API_PATH);
+        if (config.partialEvaluationEnabled && config.wasmPolicyFile.isEmpty() && dataApiStart >= 0
+                && policyPath.length() > dataApiStart + DATA_API_PATH.length()) {
+            this.opaCompileUri = Optional.of(compileUri(opaPolicyUri, policyPath.substring(0, dataApiStart)));
+            this.opaCompileQuery = compileQuery(policyPath.substring(dataApiStart + DATA_API_PATH.length()));
+            this.residualCache = new OpaExpressionCache<>(config.decisionCacheMaxEntries, config.partialEvaluationTtl);
+            this.residualSingleFlight = config.requestCoalescingEnabled ? new OpaSingleFlight<>() : null;
+        } else {
+            this.opaCompileUri = Optional.empty();
+            this.opaCompileQuery = null;
+            this.residualCache = null;
+            this.residualSingleFlight = null;
+        }
+        this.opaPermissionsPolicyUri = config.opaPermissionsPolicyUri;
+        this.permissionSnapshotCache = opaPermissionsPolicyUri.isPresent()
+                ? new OpaExpressionCache<>(config.permissionSnapshotMaxUsers, config.permissionSnapshotTtl)
+                : null;
+        this.permissionSnapshotSingleFlight = opaPermissionsPolicyUri.isPresent() && config.requestCoalescingEnabled
+                ? new OpaSingleFlight<>()
+                : null;
+        this.keyJson = new ObjectMapper()
+                .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .registerModule(new Jdk8Module());
+        this.resultParser = new OpaResultParser(new ObjectMapper()
                 // https://github.com/stackabletech/trino-opa-authorizer/issues/24
                 // OPA server can send other fields, such as `decision_id`` when enabling decision logs
                 // We could add all the fields we *currently* know, but it's more future-proof to ignore any unknown fields.
-                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
-                // do not include null values
-                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
-                // deal with Optional<T> values
-                .registerModule(new Jdk8Module());
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false));
+        metrics.exportGlobal(new OpaAuthorizerStats(decisionCache, singleFlight, loadBalancer, circuitBreaker, microBatcher,
+                concurrencyLimiters, queryMemo, offHeapDecisionCache));
+        this.opaRevisionPolicyUri = config.opaRevisionPolicyUri;
+        this.decisionCacheSnapshotFile = decisionCache == null ? Optional.empty() : config.decisionCacheSnapshotFile;
+        if (decisionCacheSnapshotFile.isPresent()) {
+            if (opaRevisionPolicyUri.isEmpty()) {
+                // a snapshot could not be told apart from one taken before the policy changed
+                throw new OpaConfigException.RevisionUriRequired();
+            }
+            // before the authorizer is handed to Trino, so that the first queries already hit the cache
+            restoreDecisionCache();
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "opa-authorizer-cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long intervalNanos = config.decisionCacheSnapshotInterval.toNanos();
+            snapshotScheduler.scheduleWithFixedDelay(this::snapshotDecisionCache, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+        } else {
+            snapshotScheduler = null;
+        }
+    }
+
+    /**
+     * Stops writing decision cache snapshots, the authorizer can still be used afterwards
+     *
+     * Trino never calls this, as access control has no lifecycle in the SPI, so within Trino the
+     * snapshot thread (a daemon thread) runs until the coordinator exits.
+     */
+    public void shutdown() {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the revision of the policy, or empty if it could not be queried or is undefined
+     */
+    private Optional<String> queryPolicyRevision() {
+        long deadline = System.nanoTime() + callTimeout.toNanos();
+        try {
+            JsonNode revision = await(queryOpaPolicy(opaRevisionPolicyUri.get(), metrics.operation(REVISION_OPERATION),
+                    () -> EMPTY_QUERY, body -> resultParser.<JsonNode>readResult(body, JSON_NODE_TYPE), deadline), deadline);
+            return Optional.ofNullable(revision).map(node -> node.isTextual() ? node.textValue() : node.toString());
+        } catch (OpaQueryException e) {
+            return Optional.empty();
+        }
     }
 
-    private static class OpaQuery {
-        public OpaQueryInput input;
+    private void restoreDecisionCache() {
+        Optional<String> revision = queryPolicyRevision();
+        if (revision.isEmpty()) {
+            // without the revision there is no telling whether the snapshot still holds
+            return;
+        }
+        policyRevision = revision.get();
+        try {
+            OpaDecisionCacheSnapshot.load(decisionCacheSnapshotFile.get(), policyRevision, decisionCache);
+        } catch (IOException e) {
+            // a broken snapshot only means starting with an empty cache, it is replaced by the next one
+        }
+    }
 
-        public OpaQuery(OpaQueryInput input) {
-            this.input = input;
+    /**
+     * Drops all cached decisions if the policy revision changed, then writes the decision cache to
+     * the snapshot file
+     */
+    private void snapshotDecisionCache() {
+        try {
+            Optional<String> revision = queryPolicyRevision();
+            if (revision.isEmpty()) {
+                // keep the previous snapshot, it is checked against the revision when it is loaded
+                return;
+            }
+            if (policyRevision == null) {
+                // OPA was unavailable on startup, the decisions cached since were made with this revision
+                policyRevision = revision.get();
+            } else if (!revision.get().equals(policyRevision)) {
+                invalidateCaches(List.of());
+                policyRevision = revision.get();
+            }
+            OpaDecisionCacheSnapshot.write(decisionCacheSnapshotFile.get(), policyRevision, decisionCache);
+        } catch (IOException | RuntimeException e) {
+            // tried again at the next interval, an exception would cancel the schedule
+        }
+    }
+
+    /**
+     * Writes the decision cache to the snapshot file right away, does nothing if snapshots are disabled
+     */
+    void snapshotNow() {
+        if (decisionCacheSnapshotFile.isPresent()) {
+            snapshotDecisionCache();
+        }
+    }
+
+    private static URI compileUri(URI policyUri, String pathPrefix) {
+        try {
+            return new URI(policyUri.getScheme(), policyUri.getAuthority(), pathPrefix + COMPILE_API_PATH, null, null);
+        } catch (URISyntaxException e) {
+            throw new OpaConfigException.UriInvalid(policyUri.toString(), e);
+        }
+    }
+
+    /**
+     * Returns the Rego query for the rule at the given path below /v1/data/, e.g. data["trino"]["allow"] == true
+     */
+    private static String compileQuery(String rulePath) {
+        StringBuilder query = new StringBuilder("data");
+        for (String element : rulePath.split("/")) {
+            if (!element.isEmpty()) {
+                query.append("[\"").append(element.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"]");
+            }
+        }
+        return query.append(" == true").toString();
+    }
+
+    /**
+     * Returns the transport for the schemes of the policy URIs, which sends each request over HTTP
+     * or a Unix domain socket according to its URI if both are used
+     */
+    private static OpaTransport loadNetworkTransport(OpaAuthorizerConfig config) {
+        List<URI> policyUris = new ArrayList<>();
+        policyUris.add(config.opaPolicyUri);
+        for (Optional<URI> policyUri : List.of(config.opaBatchPolicyUri, config.opaCoarsePolicyUri, config.opaRowFiltersPolicyUri,
+                config.opaColumnMasksPolicyUri, config.opaMicroBatchPolicyUri, config.opaRevisionPolicyUri,
+                config.opaPermissionsPolicyUri)) {
+            policyUri.ifPresent(policyUris::add);
+        }
+        // with several endpoints, the policy URIs only provide the path and the endpoints are always HTTP
+        boolean unixSocket = config.endpoints.isEmpty() && policyUris.stream().anyMatch(OpaUnixSocketTransport::isUnixSocketUri);
+        boolean http = !config.endpoints.isEmpty() || !policyUris.stream().allMatch(OpaUnixSocketTransport::isUnixSocketUri);
+        OpaTransport unixSocketTransport = unixSocket
+                ? new OpaUnixSocketTransport(config.httpExecutorThreads, config.httpMaxInFlightRequests)
+                : null;
+        // each endpoint's concurrency limiter goes up to the maximum by itself, so the shared slots must
+        // not make their requests wait, which the limiters would take for slow responses
+        int httpMaxInFlightRequests = config.concurrencyLimitEnabled && !config.endpoints.isEmpty()
+                ? (int) Math.min(Integer.MAX_VALUE, (long) config.httpMaxInFlightRequests * config.endpoints.size())
+                : config.httpMaxInFlightRequests;
+        OpaTransport httpTransport = http
+                ? new OpaHttpTransport(config.httpExecutorThreads, httpMaxInFlightRequests)
+                : null;
+        if (unixSocketTransport == null || httpTransport == null) {
+            return unixSocketTransport == null ? httpTransport : unixSocketTransport;
+        }
+        return (policyUri, body, deadlineNanos) -> OpaUnixSocketTransport.isUnixSocketUri(policyUri)
+                ? unixSocketTransport.send(policyUri, body, deadlineNanos)
+                : httpTransport.send(policyUri, body, deadlineNanos);
+    }
+
+    private static OpaTransport loadWasmTransport(OpaAuthorizerConfig config) {
+        Path policyFile = config.wasmPolicyFile.get();
+        try {
+            return new OpaWasmTransport(policyFile, config.wasmDataFile, config.wasmDataRefreshInterval,
+                    config.wasmInstances);
+        } catch (Exception e) {
+            throw new OpaConfigException.WasmPolicyInvalid(policyFile.toString(), e);
         }
     }
 
-    private static class OpaQueryResult {
-        // boxed Boolean to detect not-present vs explicitly false
-        public Boolean result;
+    static class OpaViewExpression {
+        public String expression;
+        // user whose privileges the expression is evaluated with, the querying user if null
+        public String identity;
     }
 
-    private boolean queryOpa(OpaQueryInput input) {
-        byte[] queryJson;
-        OpaQuery query = new OpaQuery(input);
+    /**
+     * Returns the decision cache statistics, or empty if the decision cache is disabled
+     */
+    public Optional<OpaDecisionCache.Stats> getDecisionCacheStats() {
+        return Optional.ofNullable(decisionCache).map(OpaDecisionCache::getStats);
+    }
+
+    /**
+     * Returns how many queries were answered by an identical query that was already in flight
+     */
+    public long getCoalescedQueryCount() {
+        return singleFlight == null ? 0 : singleFlight.getCollapsedCount();
+    }
+
+    /**
+     * Returns the statistics of every operation that has been authorized so far, keyed by operation name
+     */
+    public Map<String, OpaOperationStats> getOperationStats() {
+        return metrics.getOperations();
+    }
 
+    private OpaQueryKey queryKey(URI policyUri, OpaQueryInput input) {
+        String policy = policyUri.equals(opaPolicyUri) ? "" : policyUri.getPath();
+        List<String> objectPath = input.action.resource == null ? List.of() : input.action.resource.objectPath();
+        if (serializer.isProjected(input.action.operation)) {
+            // inputs that only differ in fields that are not sent get the same decision
+            try {
+                return new OpaQueryKey(policy, OpaQueryKey.digestIdentity(serializer.serializeProjectedIdentity(input)),
+                        serializer.serializeProjectedAction(input), objectPath);
+            } catch (IOException e) {
+                throw new OpaQueryException.SerializeFailed(e);
+            }
+        }
+        Identity identity = input.context.getIdentity();
+        Map<String, Object> canonicalIdentity = new TreeMap<>();
+        canonicalIdentity.put("user", identity.getUser());
+        canonicalIdentity.put("groups", new TreeSet<>(identity.getGroups()));
+        canonicalIdentity.put("principal", identity.getPrincipal().orElse(null));
+        canonicalIdentity.put("enabledRoles", new TreeSet<>(identity.getEnabledRoles()));
+        canonicalIdentity.put("catalogRoles", identity.getCatalogRoles());
+        canonicalIdentity.put("extraCredentials", identity.getExtraCredentials());
         try {
-            queryJson = json.writeValueAsBytes(query);
+            return new OpaQueryKey(policy, OpaQueryKey.digestIdentity(keyJson.writeValueAsString(canonicalIdentity)),
+                    keyJson.writeValueAsString(input.action), objectPath);
         } catch (JsonProcessingException e) {
             throw new OpaQueryException.SerializeFailed(e);
         }
-        HttpResponse<String> response;
+    }
+
+    /**
+     * Waits for an OPA query to finish, but no longer than until the deadline
+     */
+    private static <T> T await(CompletableFuture<T> future, long deadlineNanos) {
         try {
-            response = httpClient.send(
-                    HttpRequest.newBuilder(opaPolicyUri).header("Content-Type", "application/json")
-                            .POST(HttpRequest.BodyPublishers.ofByteArray(queryJson)).build(),
-                    HttpResponse.BodyHandlers.ofString());
-        } catch (Exception e) {
+            return future.get(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OpaQueryException) {
+                throw (OpaQueryException) e.getCause();
+            }
+            throw new OpaQueryException.QueryFailed(e.getCause());
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new OpaQueryException.QueryFailed(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
             throw new OpaQueryException.QueryFailed(e);
         }
-        switch (response.statusCode()) {
-            case 200:
-                break;
-            case 404:
-                throw new OpaQueryException.PolicyNotFound(opaPolicyUri.toString());
-            default:
-                throw new OpaQueryException.OpaServerError(opaPolicyUri.toString(), response);
+    }
+
+    private boolean queryOpa(OpaQueryInput input) {
+        return queryOpa(input, null);
+    }
+
+    /**
+     * Decides the input, unless the coarse policy already allows everything below the resource
+     * of coarseInput (which may be null)
+     */
+    private boolean queryOpa(OpaQueryInput input, OpaQueryInput coarseInput) {
+        return queryOpaDecision(input, coarseInput).allowed;
+    }
+
+    /**
+     * Decides the input like queryOpa, with the cache directives of the decision
+     */
+    private OpaDecision queryOpaDecision(OpaQueryInput input, OpaQueryInput coarseInput) {
+        OpaOperationStats stats = metrics.operation(input.action.operation);
+        long start = System.nanoTime();
+        long deadline = start + callTimeout.toNanos();
+        try {
+            OpaDecision decision = coarseInput == null ? OpaDecision.DENY : await(queryOpaCoarseDecisionAsync(coarseInput, deadline), deadline);
+            if (!decision.allowed) {
+                decision = await(queryOpaDecisionAsync(opaPolicyUri, input, deadline), deadline);
+            }
+            stats.recordDecisions(decision.allowed ? 1 : 0, decision.allowed ? 0 : 1);
+            return decision;
+        } catch (OpaQueryException e) {
+            stats.recordError(e);
+            throw e;
+        } finally {
+            stats.recordCall(System.nanoTime() - start);
         }
-        String responseBody = response.body();
-        OpaQueryResult result;
+    }
+
+    private CompletableFuture<Boolean> queryOpaAsync(OpaQueryInput input, long deadlineNanos) {
+        return queryOpaAsync(opaPolicyUri, input, deadlineNanos);
+    }
+
+    private CompletableFuture<Boolean> queryOpaAsync(URI policyUri, OpaQueryInput input, long deadlineNanos) {
+        return queryOpaDecisionAsync(policyUri, input, deadlineNanos).thenApply(decision -> decision.allowed);
+    }
+
+    /**
+     * Decides the input like queryOpaAsync, with the cache directives of decisions that were made
+     * by OPA, decisions of an open circuit breaker are marked no_cache
+     */
+    private CompletableFuture<OpaDecision> queryOpaDecisionAsync(URI policyUri, OpaQueryInput input, long deadlineNanos) {
+        Optional<String> queryId = queryMemo == null ? Optional.empty() : input.context.getQueryId().map(QueryId::getId);
+        // column decisions are kept in the column decision store instead
+        OpaDecisionCache decisionCache = columnDecisions != null && policyUri.equals(opaPolicyUri)
+                && COLUMN_OPERATIONS.contains(input.action.operation) ? null : this.decisionCache;
+        if (decisionCache == null && singleFlight == null && queryId.isEmpty()) {
+            return withCircuitBreakerFallback(queryOpaUncached(policyUri, input, deadlineNanos), null, Set.of());
+        }
+        OpaQueryKey key;
         try {
-            result = json.readValue(responseBody, OpaQueryResult.class);
-        } catch (Exception e) {
-            throw new OpaQueryException.DeserializeFailed(e);
+            key = queryKey(policyUri, input);
+        } catch (OpaQueryException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (queryId.isPresent()) {
+            Optional<Boolean> memoized = queryMemo.get(queryId.get(), key);
+            if (memoized.isPresent()) {
+                return CompletableFuture.completedFuture(OpaDecision.of(memoized.get()));
+            }
+        }
+        Set<String> groups = input.context.getIdentity().getGroups();
+        if (decisionCache != null) {
+            Optional<Boolean> cached = decisionCache.get(key, groups);
+            if (cached.isPresent()) {
+                queryId.ifPresent(id -> queryMemo.put(id, key, cached.get()));
+                return CompletableFuture.completedFuture(OpaDecision.of(cached.get()));
+            }
+        }
+        Supplier<CompletableFuture<OpaDecision>> query = () -> {
+            // decisions asked for before an invalidation are not cached
+            long stamp = decisionCache == null ? 0 : decisionCache.currentStamp();
+            return queryOpaUncached(policyUri, input, deadlineNanos).thenApply(decision -> {
+                if (decisionCache != null) {
+                    decisionCache.put(key, decision, groups, stamp);
+                }
+                return decision;
+            });
+        };
+        CompletableFuture<OpaDecision> decision = singleFlight == null ? query.get() : singleFlight.execute(key, query);
+        // fallback decisions of an open circuit breaker are not memoized
+        return withCircuitBreakerFallback(decision.thenApply(result -> {
+            if (queryId.isPresent() && !result.noCache) {
+                queryMemo.put(queryId.get(), key, result.allowed);
+            }
+            return result;
+        }), key, groups);
+    }
+
+    /**
+     * Decides queries that were not sent because the circuit breaker is open, with the cached
+     * decision if there is a (possibly stale) one, otherwise according to circuitBreakerFailOpen
+     */
+    private CompletableFuture<OpaDecision> withCircuitBreakerFallback(CompletableFuture<OpaDecision> decision, OpaQueryKey key,
+                                                                      Set<String> groups) {
+        if (circuitBreaker == null) {
+            return decision;
+        }
+        return decision.handle((result, error) -> {
+            if (error == null) {
+                return result;
+            }
+            if (!(unwrap(error) instanceof OpaQueryException.CircuitOpen)) {
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            Optional<Boolean> stale = key == null || decisionCache == null ? Optional.empty() : decisionCache.getStale(key, groups);
+            circuitBreaker.recordFallbackDecision(stale.isPresent());
+            return new OpaDecision(stale.orElse(circuitBreakerFailOpen), Optional.empty(), OpaDecision.CacheScope.IDENTITY,
+                    Optional.empty(), true);
+        });
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private CompletableFuture<OpaDecision> queryOpaUncached(URI policyUri, OpaQueryInput input, long deadlineNanos) {
+        if (microBatcher != null && policyUri.equals(opaPolicyUri) && System.nanoTime() - microBatchNotFoundUntilNanos >= 0) {
+            return microBatcher.submit(input, deadlineNanos);
+        }
+        return queryOpaSingle(policyUri, input, deadlineNanos);
+    }
+
+    private CompletableFuture<OpaDecision> queryOpaSingle(URI policyUri, OpaQueryInput input, long deadlineNanos) {
+        // null if the rule is undefined
+        return queryOpaPolicy(policyUri, input, resultParser::readDecisionWithDirectives, deadlineNanos)
+                .thenApply(result -> result == null ? OpaDecision.DENY : result);
+    }
+
+    /**
+     * Decides queries collected by the micro-batcher with a single request to the micro-batch policy
+     *
+     * The policy gets the queries in input.queries and returns either the indices of the allowed
+     * ones, or one decision per query, in the same order and with the same cache directives as
+     * opa.policy.uri. If it does not exist or is undefined, the queries are sent to opa.policy.uri
+     * one by one. A policy that does not exist is not asked again for a minute, queries are not
+     * batched in the meantime.
+     */
+    private CompletableFuture<List<OpaDecision>> queryOpaMicroBatch(URI microBatchPolicyUri, List<OpaQueryInput> inputs, long deadlineNanos) {
+        if (inputs.size() == 1) {
+            return queryOpaSingle(opaPolicyUri, inputs.get(0), deadlineNanos).thenApply(List::of);
+        }
+        CompletableFuture<List<OpaDecision>> batch = queryOpaPolicy(microBatchPolicyUri, metrics.operation(MICRO_BATCH_OPERATION),
+                () -> serializer.serializeBatch(inputs), body -> resultParser.<JsonNode>readResult(body, JSON_NODE_TYPE),
+                deadlineNanos).thenApply(result -> result == null ? null : microBatchDecisions(result, inputs.size()));
+        return batch.handle((decisions, error) -> {
+            if (error == null && decisions != null) {
+                return CompletableFuture.completedFuture(decisions);
+            }
+            if (error != null && !(unwrap(error) instanceof OpaQueryException.PolicyNotFound)) {
+                return CompletableFuture.<List<OpaDecision>>failedFuture(unwrap(error));
+            }
+            if (error != null) {
+                microBatchNotFoundUntilNanos = System.nanoTime() + MICRO_BATCH_NOT_FOUND_RETRY_NANOS;
+            }
+            List<CompletableFuture<OpaDecision>> singles = new ArrayList<>(inputs.size());
+            for (OpaQueryInput input : inputs) {
+                singles.add(queryOpaSingle(opaPolicyUri, input, deadlineNanos));
+            }
+            return CompletableFuture.allOf(singles.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                List<OpaDecision> single = new ArrayList<>(singles.size());
+                for (CompletableFuture<OpaDecision> decision : singles) {
+                    single.add(decision.join());
+                }
+                return single;
+            });
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Reads the result of the micro-batch policy, an array of indices of the allowed queries or an
+     * array with one decision (a boolean or a decision object) per query
+     */
+    private static List<OpaDecision> microBatchDecisions(JsonNode result, int queryCount) {
+        if (!result.isArray()) {
+            throw new OpaQueryException.DeserializeFailed(new IllegalArgumentException(
+                    "Micro-batch policy must return an array: " + result));
+        }
+        boolean indices = true;
+        for (JsonNode element : result) {
+            indices &= element.isIntegralNumber();
+        }
+        if (!indices) {
+            if (result.size() != queryCount) {
+                throw new OpaQueryException.DeserializeFailed(new IllegalArgumentException(
+                        "Micro-batch policy returned " + result.size() + " decisions for " + queryCount + " queries"));
+            }
+            List<OpaDecision> decisions = new ArrayList<>(queryCount);
+            for (JsonNode element : result) {
+                if (element.isBoolean()) {
+                    decisions.add(OpaDecision.of(element.booleanValue()));
+                } else if (element.isObject()) {
+                    try {
+                        decisions.add(OpaDecision.fromObject(element));
+                    } catch (IllegalArgumentException e) {
+                        throw new OpaQueryException.DeserializeFailed(e);
+                    }
+                } else {
+                    throw new OpaQueryException.DeserializeFailed(new IllegalArgumentException(
+                            "Micro-batch policy returned an invalid decision: " + element));
+                }
+            }
+            return decisions;
+        }
+        List<OpaDecision> decisions = new ArrayList<>(Collections.nCopies(queryCount, OpaDecision.DENY));
+        for (JsonNode element : result) {
+            int index = element.asInt();
+            if (!element.canConvertToInt() || index < 0 || index >= queryCount) {
+                throw new OpaQueryException.DeserializeFailed(new IndexOutOfBoundsException(
+                        "Micro-batch policy returned index " + element + " for " + queryCount + " queries"));
+            }
+            decisions.set(index, OpaDecision.ALLOW);
+        }
+        return decisions;
+    }
+
+    /**
+     * Asks the coarse policy whether everything below the resource of the input is allowed, e.g.
+     * all columns of a table for FilterColumns
+     *
+     * Completes with false if no coarse policy is configured, it does not exist or its rule is
+     * undefined, in which case the caller must check the resources below separately. Coarse
+     * decisions are cached and coalesced like the ones of opa.policy.uri.
+     */
+    private CompletableFuture<Boolean> queryOpaCoarseAsync(OpaQueryInput input, long deadlineNanos) {
+        return queryOpaCoarseDecisionAsync(input, deadlineNanos).thenApply(decision -> decision.allowed);
+    }
+
+    private CompletableFuture<OpaDecision> queryOpaCoarseDecisionAsync(OpaQueryInput input, long deadlineNanos) {
+        if (opaCoarsePolicyUri.isEmpty()) {
+            return CompletableFuture.completedFuture(OpaDecision.DENY);
+        }
+        return queryOpaDecisionAsync(opaCoarsePolicyUri.get(), input, deadlineNanos).handle((decision, error) -> {
+            if (error == null) {
+                return decision;
+            }
+            if (unwrap(error) instanceof OpaQueryException.PolicyNotFound) {
+                return OpaDecision.DENY;
+            }
+            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+        });
+    }
+
+    private <T> CompletableFuture<T> queryOpaPolicy(URI policyUri, OpaQueryInput input, ResultReader<T> resultReader, long deadlineNanos) {
+        return queryOpaPolicy(policyUri, metrics.operation(input.action.operation), () -> serializer.serialize(input),
+                resultReader, deadlineNanos);
+    }
+
+    private interface QueryDocument {
+        byte[] serialize() throws IOException;
+    }
+
+    private interface ResultReader<T> {
+        // returns null if the rule is undefined
+        T read(byte[] body) throws IOException;
+    }
+
+    private <T> CompletableFuture<T> queryOpaPolicy(URI policyUri, OpaOperationStats stats, QueryDocument query,
+                                                    ResultReader<T> resultReader, long deadlineNanos) {
+        long serializeStart = System.nanoTime();
+        byte[] queryJson;
+        try {
+            queryJson = query.serialize();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new OpaQueryException.SerializeFailed(e));
+        }
+        long sendStart = System.nanoTime();
+        stats.recordSerialization(sendStart - serializeStart);
+        return transport.send(policyUri, queryJson, deadlineNanos).thenApply(response -> {
+            long deserializeStart = System.nanoTime();
+            stats.recordNetwork(deserializeStart - sendStart);
+            switch (response.statusCode) {
+                case 200:
+                    break;
+                case 404:
+                    throw new OpaQueryException.PolicyNotFound(policyUri.toString());
+                default:
+                    throw new OpaQueryException.OpaServerError(policyUri.toString(), response.statusCode, response.body);
+            }
+            try {
+                return resultReader.read(response.body);
+            } catch (Exception e) {
+                throw new OpaQueryException.DeserializeFailed(e);
+            } finally {
+                stats.recordDeserialization(System.nanoTime() - deserializeStart);
+            }
+        });
+    }
+
+    /**
+     * Asks policyUri for the row filters or column masks of a table, from the expression cache if
+     * they have been asked for recently
+     */
+    private <R, T> T queryOpaExpressions(URI policyUri, OpaQueryInput input, JavaType resultType, Function<R, T> toValue,
+                                         OpaExpressionCache<T> cache, OpaSingleFlight<OpaQueryKey, T> expressionSingleFlight) {
+        OpaOperationStats stats = metrics.operation(input.action.operation);
+        long start = System.nanoTime();
+        long deadline = start + callTimeout.toNanos();
+        try {
+            OpaQueryKey key = cache == null && expressionSingleFlight == null ? null : queryKey(policyUri, input);
+            if (cache != null) {
+                Optional<T> cached = cache.get(key);
+                if (cached.isPresent()) {
+                    return cached.get();
+                }
+            }
+            Supplier<CompletableFuture<T>> query = () -> {
+                long stamp = cache == null ? 0 : cache.currentStamp();
+                return queryOpaPolicy(policyUri, input, body -> resultParser.<R>readResult(body, resultType), deadline).thenApply(result -> {
+                    T value = toValue.apply(result);
+                    if (cache != null) {
+                        cache.put(key, value, stamp);
+                    }
+                    return value;
+                });
+            };
+            return await(expressionSingleFlight == null ? query.get() : expressionSingleFlight.execute(key, query), deadline);
+        } catch (OpaQueryException e) {
+            stats.recordError(e);
+            throw e;
+        } finally {
+            stats.recordCall(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Converts an expression returned by OPA, unqualified names in it refer to the schema of the table
+     */
+    private static ViewExpression toViewExpression(OpaViewExpression expression, CatalogSchemaTableName table) {
+        if (expression == null || expression.expression == null) {
+            throw new OpaQueryException.DeserializeFailed(new IllegalArgumentException(
+                    "Policy returned a row filter or column mask without expression for " + table));
+        }
+        return new ViewExpression(Optional.ofNullable(expression.identity), Optional.of(table.getCatalogName()),
+                Optional.of(table.getSchemaTableName().getSchemaName()), expression.expression);
+    }
+
+    /**
+     * Asks the batch policy which of the resources in action.filterResources are allowed
+     *
+     * Returns empty if the batch policy does not define a result for this operation, in which case
+     * the caller must fall back to querying each resource separately.
+     */
+    private Optional<List<Integer>> queryOpaBatch(URI batchPolicyUri, OpaQueryInput input, long deadlineNanos) {
+        List<Integer> result;
+        try {
+            result = await(queryOpaPolicy(batchPolicyUri, input, body -> resultParser.<List<Integer>>readResult(body, INDICES_TYPE),
+                    deadlineNanos), deadlineNanos);
+        } catch (OpaQueryException.PolicyNotFound | OpaQueryException.CircuitOpen e) {
+            // while the circuit breaker is open, the separate queries are decided from the cache
+            return Optional.empty();
+        }
+        return Optional.ofNullable(result);
+    }
+
+    /**
+     * Returns the subset of items that the policy allows for the given filter operation
+     *
+     * If a batch policy is configured the whole collection is sent to OPA in one request, otherwise
+     * (or if the batch policy does not handle the operation) each item is checked separately. The
+     * separate checks run concurrently on the transport's executor, all of them have to finish
+     * before the call timeout.
+     */
+    private <T> Set<T> filterResources(SystemSecurityContext context, String operation, Collection<T> items,
+                                       Function<T, OpaQueryInputResource> toResource) {
+        return filterResources(context, operation, items, toResource, null, null);
+    }
+
+    /**
+     * Returns the subset of items that the policy allows for the given filter operation, first
+     * asking the coarse policy for each distinct parent of the items (the schema of a table, the
+     * table of a column, ...) and only checking the items of parents it does not allow entirely
+     */
+    private <T, P> Set<T> filterResources(SystemSecurityContext context, String operation, Collection<T> items,
+                                          Function<T, OpaQueryInputResource> toResource, Function<T, P> parentOf,
+                                          Function<P, OpaQueryInputResource> toParentResource) {
+        return filterResources(context, operation, items, toResource, parentOf, toParentResource, null);
+    }
+
+    /**
+     * Returns the subset of items that the policy allows like the other filterResources, and
+     * passes the decision of every item to decisions (which may be null)
+     *
+     * Only the decisions made by opa.policy.uri one item at a time come with cache directives.
+     */
+    private <T, P> Set<T> filterResources(SystemSecurityContext context, String operation, Collection<T> items,
+                                          Function<T, OpaQueryInputResource> toResource, Function<T, P> parentOf,
+                                          Function<P, OpaQueryInputResource> toParentResource,
+                                          BiConsumer<T, OpaDecision> decisions) {
+        if (items.isEmpty()) {
+            return new HashSet<>();
+        }
+        OpaOperationStats stats = metrics.operation(operation);
+        long start = System.nanoTime();
+        try {
+            long deadline = start + callTimeout.toNanos();
+            Optional<OpaResidualPredicate> predicate = residualPredicate(context, operation, deadline);
+            Set<T> allowed;
+            if (predicate.isPresent()) {
+                allowed = new HashSet<>();
+                for (T item : items) {
+                    boolean itemAllowed = predicate.get().test(serializer.toTree(toResource.apply(item)));
+                    if (itemAllowed) {
+                        allowed.add(item);
+                    }
+                    if (decisions != null) {
+                        decisions.accept(item, OpaDecision.of(itemAllowed));
+                    }
+                }
+            } else if (parentOf == null || opaCoarsePolicyUri.isEmpty()) {
+                allowed = filterResources(context, operation, items, toResource, decisions, deadline);
+            } else {
+                allowed = filterResourcesHierarchically(context, operation, items, toResource, parentOf, toParentResource,
+                        decisions, deadline);
+            }
+            stats.recordDecisions(allowed.size(), items.size() - allowed.size());
+            return allowed;
+        } catch (OpaQueryException e) {
+            stats.recordError(e);
+            throw e;
+        } finally {
+            stats.recordCall(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns a predicate that decides the resources of a filter operation locally, built from the
+     * residual that OPA's Compile API returns for opa.policy.uri with the resource left unknown
+     *
+     * Returns empty if partial evaluation is disabled, the residual cannot be evaluated locally or
+     * the Compile API fails, in which case the resources have to be decided by OPA. Residuals are
+     * cached per identity and operation.
+     */
+    private Optional<OpaResidualPredicate> residualPredicate(SystemSecurityContext context, String operation, long deadline) {
+        if (opaCompileUri.isEmpty()) {
+            return Optional.empty();
+        }
+        URI compileUri = opaCompileUri.get();
+        OpaQueryInput input = new OpaQueryInput(context, new OpaQueryInputAction(operation));
+        try {
+            OpaQueryKey key = queryKey(compileUri, input);
+            Optional<Optional<OpaResidualPredicate>> cached = residualCache.get(key);
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+            Supplier<CompletableFuture<Optional<OpaResidualPredicate>>> query = () -> {
+                long stamp = residualCache.currentStamp();
+                return queryOpaPolicy(compileUri,
+                        metrics.operation(COMPILE_OPERATION), () -> serializer.serializeCompile(opaCompileQuery, input, COMPILE_UNKNOWNS),
+                        body -> OpaResidualPredicate.fromCompileResult(resultParser.readResult(body, JSON_NODE_TYPE)), deadline)
+                        .handle((predicate, error) -> {
+                            if (error != null) {
+                                Throwable cause = unwrap(error);
+                                boolean unsupported = cause instanceof OpaQueryException.PolicyNotFound
+                                        || cause instanceof OpaQueryException.OpaServerError
+                                        && ((OpaQueryException.OpaServerError) cause).getStatusCode() < 500;
+                                if (!unsupported) {
+                                    throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                                }
+                                // e.g. an OPA that rejects the query, do not ask again for every call
+                                predicate = Optional.empty();
+                            }
+                            residualCache.put(key, predicate, stamp);
+                            return predicate;
+                        });
+            };
+            return await(residualSingleFlight == null ? query.get() : residualSingleFlight.execute(key, query), deadline);
+        } catch (OpaQueryException e) {
+            // OPA is asked for the resources themselves, which fails as well if OPA is unavailable
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Fetches the permission snapshot of the identity from the permissions rule, unless it is
+     * already cached
+     *
+     * Completes with empty if permission snapshots are disabled or the rule has no snapshot for the
+     * identity. Snapshots are cached per identity, empty ones as well, so that the rule is asked at
+     * most once per identity and TTL.
+     */
+    private CompletableFuture<Optional<OpaPermissionSnapshot>> fetchPermissionSnapshot(SystemSecurityContext context, long deadline) {
+        if (opaPermissionsPolicyUri.isEmpty()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        URI permissionsUri = opaPermissionsPolicyUri.get();
+        OpaQueryInput input = new OpaQueryInput(context, new OpaQueryInputAction(PERMISSIONS_OPERATION));
+        OpaQueryKey key;
+        try {
+            key = queryKey(permissionsUri, input);
+        } catch (OpaQueryException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Optional<Optional<OpaPermissionSnapshot>> cached = permissionSnapshotCache.get(key);
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(cached.get());
+        }
+        Supplier<CompletableFuture<Optional<OpaPermissionSnapshot>>> query = () -> {
+            long stamp = permissionSnapshotCache.currentStamp();
+            return queryOpaPolicy(permissionsUri, input,
+                    body -> Optional.ofNullable(resultParser.<JsonNode>readResult(body, JSON_NODE_TYPE)).map(OpaPermissionSnapshot::fromResult),
+                    deadline).handle((snapshot, error) -> {
+                        if (error != null) {
+                            Throwable cause = unwrap(error);
+                            if (!(cause instanceof OpaQueryException.PolicyNotFound || cause instanceof OpaQueryException.DeserializeFailed)) {
+                                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                            }
+                            // e.g. a malformed snapshot, do not ask again for every query
+                            snapshot = Optional.empty();
+                        }
+                        permissionSnapshotCache.put(key, snapshot, stamp);
+                        return snapshot;
+                    });
+        };
+        return permissionSnapshotSingleFlight == null ? query.get() : permissionSnapshotSingleFlight.execute(key, query);
+    }
+
+    /**
+     * Returns the cached permission snapshot of the identity, without asking OPA
+     */
+    private Optional<OpaPermissionSnapshot> permissionSnapshot(SystemSecurityContext context) {
+        if (opaPermissionsPolicyUri.isEmpty()) {
+            return Optional.empty();
+        }
+        try {
+            OpaQueryKey key = queryKey(opaPermissionsPolicyUri.get(),
+                    new OpaQueryInput(context, new OpaQueryInputAction(PERMISSIONS_OPERATION)));
+            return permissionSnapshotCache.get(key).flatMap(Function.identity());
+        } catch (OpaQueryException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Decides an operation from a permission snapshot, recording the decision like one made by OPA
+     */
+    private boolean decideLocally(String operation, BooleanSupplier decision) {
+        OpaOperationStats stats = metrics.operation(operation);
+        long start = System.nanoTime();
+        boolean allowed = decision.getAsBoolean();
+        stats.recordDecisions(allowed ? 1 : 0, allowed ? 0 : 1);
+        stats.recordCall(System.nanoTime() - start);
+        return allowed;
+    }
+
+    /**
+     * Filters items with a permission snapshot, recording the decisions like ones made by OPA
+     */
+    private <T> Set<T> filterLocally(String operation, Collection<T> items, Predicate<T> isAllowed) {
+        OpaOperationStats stats = metrics.operation(operation);
+        long start = System.nanoTime();
+        Set<T> allowed = new HashSet<>();
+        for (T item : items) {
+            if (isAllowed.test(item)) {
+                allowed.add(item);
+            }
+        }
+        stats.recordDecisions(allowed.size(), items.size() - allowed.size());
+        stats.recordCall(System.nanoTime() - start);
+        return allowed;
+    }
+
+    private <T, P> Set<T> filterResourcesHierarchically(SystemSecurityContext context, String operation, Collection<T> items,
+                                                        Function<T, OpaQueryInputResource> toResource, Function<T, P> parentOf,
+                                                        Function<P, OpaQueryInputResource> toParentResource,
+                                                        BiConsumer<T, OpaDecision> decisions, long deadline) {
+        Map<P, List<T>> itemsByParent = new LinkedHashMap<>();
+        for (T item : items) {
+            itemsByParent.computeIfAbsent(parentOf.apply(item), parent -> new ArrayList<>()).add(item);
+        }
+        Map<P, CompletableFuture<OpaDecision>> grants = new LinkedHashMap<>();
+        for (P parent : itemsByParent.keySet()) {
+            grants.put(parent, queryOpaCoarseDecisionAsync(
+                    new OpaQueryInput(context, new OpaQueryInputAction(operation, toParentResource.apply(parent))), deadline));
+        }
+        await(CompletableFuture.allOf(grants.values().toArray(new CompletableFuture<?>[0])), deadline);
+        Set<T> allowed = new HashSet<>();
+        List<T> remaining = new ArrayList<>();
+        for (Map.Entry<P, List<T>> entry : itemsByParent.entrySet()) {
+            OpaDecision grant = grants.get(entry.getKey()).join();
+            if (grant.allowed) {
+                allowed.addAll(entry.getValue());
+                if (decisions != null) {
+                    entry.getValue().forEach(item -> decisions.accept(item, grant));
+                }
+            } else {
+                remaining.addAll(entry.getValue());
+            }
+        }
+        if (!remaining.isEmpty()) {
+            allowed.addAll(filterResources(context, operation, remaining, toResource, decisions, deadline));
+        }
+        return allowed;
+    }
+
+    private <T> Set<T> filterResources(SystemSecurityContext context, String operation, Collection<T> items,
+                                       Function<T, OpaQueryInputResource> toResource, BiConsumer<T, OpaDecision> decisions,
+                                       long deadline) {
+        List<T> itemList = new ArrayList<>(items);
+        if (opaBatchPolicyUri.isPresent()) {
+            List<OpaQueryInputResource> resources = itemList.stream().map(toResource).collect(Collectors.toList());
+            Optional<List<Integer>> allowedIndices = queryOpaBatch(opaBatchPolicyUri.get(),
+                    new OpaQueryInput(context, new OpaQueryInputAction(operation, resources)), deadline);
+            if (allowedIndices.isPresent()) {
+                Set<T> allowed = new HashSet<>();
+                for (Integer index : allowedIndices.get()) {
+                    if (index == null || index < 0 || index >= itemList.size()) {
+                        throw new OpaQueryException.DeserializeFailed(new IndexOutOfBoundsException(
+                                "Batch policy returned index " + index + " for " + itemList.size() + " resources"));
+                    }
+                    allowed.add(itemList.get(index));
+                }
+                if (decisions != null) {
+                    itemList.forEach(item -> decisions.accept(item, OpaDecision.of(allowed.contains(item))));
+                }
+                return allowed;
+            }
+        }
+        List<CompletableFuture<OpaDecision>> itemDecisions = new ArrayList<>(itemList.size());
+        for (T item : itemList) {
+            CompletableFuture<OpaDecision> decision = queryOpaDecisionAsync(opaPolicyUri,
+                    new OpaQueryInput(context, new OpaQueryInputAction(operation, toResource.apply(item))), deadline);
+            itemDecisions.add(decision);
+            if (decision.isCompletedExceptionally()) {
+                // no point in sending the remaining requests
+                break;
+            }
         }
-        if (result.result == null) {
-            return false;
+        await(CompletableFuture.allOf(itemDecisions.toArray(new CompletableFuture<?>[0])), deadline);
+        Set<T> allowed = new HashSet<>();
+        for (int i = 0; i < itemList.size(); i++) {
+            OpaDecision decision = itemDecisions.get(i).join();
+            if (decision.allowed) {
+                allowed.add(itemList.get(i));
+            }
+            if (decisions != null) {
+                decisions.accept(itemList.get(i), decision);
+            }
         }
-        return result.result;
+        return allowed;
     }
 
     @Override
@@ -123,10 +1151,18 @@ public class OpaAuthorizer implements SystemAccessControl {
     public void checkCanExecuteQuery(SystemSecurityContext context) {
         OpaQueryInputAction action = new OpaQueryInputAction("ExecuteQuery");
         OpaQueryInput input = new OpaQueryInput(context, action);
+        // the checks that follow for the query are answered from the snapshot, fetched while OPA decides this one
+        long deadline = System.nanoTime() + callTimeout.toNanos();
+        CompletableFuture<Optional<OpaPermissionSnapshot>> snapshot = fetchPermissionSnapshot(context, deadline);
 
         if (!queryOpa(input)) {
             SystemAccessControl.super.checkCanExecuteQuery(context);
         }
+        try {
+            await(snapshot, deadline);
+        } catch (OpaQueryException e) {
+            // without a snapshot, the checks that follow are sent to OPA
+        }
     }
 
     @Override
@@ -142,11 +1178,8 @@ public class OpaAuthorizer implements SystemAccessControl {
 
     @Override
     public Collection<Identity> filterViewQueryOwnedBy(SystemSecurityContext context, Collection<Identity> queryOwners) {
-        return queryOwners.parallelStream().filter(queryOwner -> queryOpa(
-                        new OpaQueryInput(context,
-                                new OpaQueryInputAction("FilterViewQueryOwnedBy", new OpaQueryInputResource.Builder()
-                                        .query(new OpaQueryInputResource.Query(queryOwner)).build()))))
-                .collect(Collectors.toSet());
+        return filterResources(context, "FilterViewQueryOwnedBy", queryOwners, queryOwner ->
+                new OpaQueryInputResource.Builder().query(new OpaQueryInputResource.Query(queryOwner)).build());
     }
 
     @Override
@@ -196,8 +1229,11 @@ public class OpaAuthorizer implements SystemAccessControl {
         OpaQueryInputResource resource = new OpaQueryInputResource.Builder().catalog(new OpaQueryInputResource.Catalog(catalogName)).build();
         OpaQueryInputAction action = new OpaQueryInputAction("AccessCatalog", resource);
         OpaQueryInput input = new OpaQueryInput(context, action);
+        Optional<OpaPermissionSnapshot> snapshot = permissionSnapshot(context);
 
-        if (!queryOpa(input)) {
+        if (snapshot.isPresent()
+                ? !decideLocally("AccessCatalog", () -> snapshot.get().canAccessCatalog(catalogName))
+                : !queryOpa(input)) {
             SystemAccessControl.super.checkCanAccessCatalog(context, catalogName);
         }
     }
@@ -226,11 +1262,12 @@ public class OpaAuthorizer implements SystemAccessControl {
 
     @Override
     public Set<String> filterCatalogs(SystemSecurityContext context, Set<String> catalogs) {
-        return catalogs.parallelStream().filter(catalog -> queryOpa(
-                        new OpaQueryInput(context,
-                                new OpaQueryInputAction("FilterCatalogs", new OpaQueryInputResource.Builder()
-                                        .catalog(new OpaQueryInputResource.Catalog(catalog)).build()))))
-                .collect(Collectors.toSet());
+        Optional<OpaPermissionSnapshot> snapshot = permissionSnapshot(context);
+        if (snapshot.isPresent()) {
+            return filterLocally("FilterCatalogs", catalogs, snapshot.get()::canAccessCatalog);
+        }
+        return filterResources(context, "FilterCatalogs", catalogs, catalog ->
+                new OpaQueryInputResource.Builder().catalog(new OpaQueryInputResource.Catalog(catalog)).build());
     }
 
     @Override
@@ -290,11 +1327,14 @@ public class OpaAuthorizer implements SystemAccessControl {
 
     @Override
     public Set<String> filterSchemas(SystemSecurityContext context, String catalogName, Set<String> schemaNames) {
-        return schemaNames.parallelStream().filter(schemaName -> queryOpa(
-                        new OpaQueryInput(context,
-                                new OpaQueryInputAction("FilterSchemas", new OpaQueryInputResource.Builder()
-                                        .schema(new OpaQueryInputResource.CatalogSchema(new CatalogSchemaName(catalogName, schemaName))).build()))))
-                .collect(Collectors.toSet());
+        Optional<OpaPermissionSnapshot> snapshot = permissionSnapshot(context);
+        if (snapshot.isPresent()) {
+            return filterLocally("FilterSchemas", schemaNames, schemaName -> snapshot.get().canAccessSchema(catalogName, schemaName));
+        }
+        return filterResources(context, "FilterSchemas", schemaNames, schemaName ->
+                new OpaQueryInputResource.Builder().schema(new OpaQueryInputResource.CatalogSchema(new CatalogSchemaName(catalogName, schemaName))).build(),
+                schemaName -> catalogName,
+                catalog -> new OpaQueryInputResource.Builder().catalog(new OpaQueryInputResource.Catalog(catalog)).build());
     }
 
     @Override
@@ -403,11 +1443,15 @@ public class OpaAuthorizer implements SystemAccessControl {
 
     @Override
     public Set<SchemaTableName> filterTables(SystemSecurityContext context, String catalogName, Set<SchemaTableName> tableNames) {
-        return tableNames.parallelStream().filter(tableName -> queryOpa(
-                        new OpaQueryInput(context,
-                                new OpaQueryInputAction("FilterTables", new OpaQueryInputResource.Builder()
-                                        .table(new OpaQueryInputResource.Table(catalogName, tableName)).build()))))
-                .collect(Collectors.toSet());
+        Optional<OpaPermissionSnapshot> snapshot = permissionSnapshot(context);
+        if (snapshot.isPresent()) {
+            return filterLocally("FilterTables", tableNames, tableName -> snapshot.get().canAccessTable(catalogName,
+                    tableName.getSchemaName(), tableName.getTableName()));
+        }
+        return filterResources(context, "FilterTables", tableNames, tableName ->
+                new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(catalogName, tableName)).build(),
+                tableName -> new CatalogSchemaName(catalogName, tableName.getSchemaName()),
+                schema -> new OpaQueryInputResource.Builder().schema(new OpaQueryInputResource.CatalogSchema(schema)).build());
     }
 
     @Override
@@ -423,11 +1467,50 @@ public class OpaAuthorizer implements SystemAccessControl {
 
     @Override
     public Set<String> filterColumns(SystemSecurityContext context, CatalogSchemaTableName table, Set<String> columns) {
-        return columns.parallelStream().filter(column -> queryOpa(
-                        new OpaQueryInput(context,
-                                new OpaQueryInputAction("FilterColumns", new OpaQueryInputResource.Builder()
-                                        .table(new OpaQueryInputResource.Table(table, column)).build()))))
-                .collect(Collectors.toSet());
+        OpaQueryKey key = columnDecisionKey(context, "FilterColumns", table);
+        if (key == null) {
+            return queryFilterColumns(context, table, columns, null);
+        }
+        long start = System.nanoTime();
+        List<String> undecided = new ArrayList<>();
+        Set<String> allowed = columnDecisions.filter(key, columns, undecided);
+        OpaOperationStats stats = metrics.operation("FilterColumns");
+        stats.recordDecisions(allowed.size(), columns.size() - undecided.size() - allowed.size());
+        if (undecided.isEmpty()) {
+            stats.recordCall(System.nanoTime() - start);
+            return allowed;
+        }
+        Map<String, OpaDecision> decisions = new HashMap<>();
+        long stamp = columnDecisions.currentStamp();
+        allowed.addAll(queryFilterColumns(context, table, undecided, decisions::put));
+        columnDecisions.put(key, decisions, stamp);
+        return allowed;
+    }
+
+    private Set<String> queryFilterColumns(SystemSecurityContext context, CatalogSchemaTableName table, Collection<String> columns,
+                                           BiConsumer<String, OpaDecision> decisions) {
+        return filterResources(context, "FilterColumns", columns, column ->
+                new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(table, column)).build(),
+                column -> table,
+                parent -> new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(parent)).build(),
+                decisions);
+    }
+
+    /**
+     * Returns the key of the column decisions of the table for the operation, or null if the column
+     * decision store is disabled
+     */
+    private OpaQueryKey columnDecisionKey(SystemSecurityContext context, String operation, CatalogSchemaTableName table) {
+        if (columnDecisions == null) {
+            return null;
+        }
+        OpaQueryInputResource resource = new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(table)).build();
+        try {
+            return queryKey(opaPolicyUri, new OpaQueryInput(context, new OpaQueryInputAction(operation, resource)));
+        } catch (OpaQueryException e) {
+            // the columns are sent to OPA, which fails the same way
+            return null;
+        }
     }
 
     @Override
@@ -490,12 +1573,44 @@ public class OpaAuthorizer implements SystemAccessControl {
         OpaQueryInputResource resource = new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(table, columns)).build();
         OpaQueryInputAction action = new OpaQueryInputAction("SelectFromColumns", resource);
         OpaQueryInput input = new OpaQueryInput(context, action);
-
-        if (!queryOpa(input)) {
+        OpaQueryInputResource tableResource = new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(table)).build();
+        OpaQueryInput coarseInput = new OpaQueryInput(context, new OpaQueryInputAction("SelectFromColumns", tableResource));
+        Optional<OpaPermissionSnapshot> snapshot = permissionSnapshot(context);
+
+        if (snapshot.isPresent()
+                ? !decideLocally("SelectFromColumns", () -> snapshot.get().canSelectFromColumns(table.getCatalogName(),
+                        table.getSchemaTableName().getSchemaName(), table.getSchemaTableName().getTableName(), columns))
+                : !selectFromColumns(context, table, columns, input, coarseInput)) {
             SystemAccessControl.super.checkCanSelectFromColumns(context, table, columns);
         }
     }
 
+    /**
+     * Decides SelectFromColumns from the column decision store if the columns are a subset of a set
+     * that has been allowed before or any of them has been denied before, otherwise asks OPA
+     *
+     * Denying a set of columns only tells which column is denied if there is only one.
+     */
+    private boolean selectFromColumns(SystemSecurityContext context, CatalogSchemaTableName table, Set<String> columns,
+                                      OpaQueryInput input, OpaQueryInput coarseInput) {
+        OpaQueryKey key = columnDecisionKey(context, "SelectFromColumns", table);
+        if (key == null) {
+            return queryOpa(input, coarseInput);
+        }
+        Optional<Boolean> stored = columnDecisions.allowsAll(key, columns);
+        if (stored.isPresent()) {
+            return decideLocally("SelectFromColumns", stored::get);
+        }
+        long stamp = columnDecisions.currentStamp();
+        OpaDecision decision = queryOpaDecision(input, coarseInput);
+        if (decision.allowed) {
+            columnDecisions.putAllowed(key, columns, decision, stamp);
+        } else if (columns.size() == 1) {
+            columnDecisions.put(key, Map.of(columns.iterator().next(), decision), stamp);
+        }
+        return decision.allowed;
+    }
+
     @Override
     public void checkCanInsertIntoTable(SystemSecurityContext context, CatalogSchemaTableName table) {
         OpaQueryInputResource resource = new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(table)).build();
@@ -894,16 +2009,87 @@ public class OpaAuthorizer implements SystemAccessControl {
 
     @Override
     public List<ViewExpression> getRowFilters(SystemSecurityContext context, CatalogSchemaTableName tableName) {
-        return SystemAccessControl.super.getRowFilters(context, tableName);
+        if (opaRowFiltersPolicyUri.isEmpty()) {
+            return SystemAccessControl.super.getRowFilters(context, tableName);
+        }
+        OpaQueryInputResource resource = new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(tableName)).build();
+        OpaQueryInputAction action = new OpaQueryInputAction("GetRowFilters", resource);
+        OpaQueryInput input = new OpaQueryInput(context, action);
+
+        return queryOpaExpressions(opaRowFiltersPolicyUri.get(), input, ROW_FILTERS_TYPE, (List<OpaViewExpression> result) -> {
+            // null if there are no row filters for the table
+            if (result == null) {
+                return List.of();
+            }
+            List<ViewExpression> filters = new ArrayList<>(result.size());
+            for (OpaViewExpression filter : result) {
+                filters.add(toViewExpression(filter, tableName));
+            }
+            return List.copyOf(filters);
+        }, rowFilterCache, rowFilterSingleFlight);
     }
 
     @Override
     public Optional<ViewExpression> getColumnMask(SystemSecurityContext context, CatalogSchemaTableName tableName, String columnName, Type type) {
-        return SystemAccessControl.super.getColumnMask(context, tableName, columnName, type);
+        if (opaColumnMasksPolicyUri.isEmpty()) {
+            return SystemAccessControl.super.getColumnMask(context, tableName, columnName, type);
+        }
+        // Trino asks for one column at a time, the masks of all columns are fetched with the first one
+        OpaQueryInputResource resource = new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(tableName)).build();
+        OpaQueryInputAction action = new OpaQueryInputAction("GetColumnMasks", resource);
+        OpaQueryInput input = new OpaQueryInput(context, action);
+
+        Map<String, ViewExpression> masks = queryOpaExpressions(opaColumnMasksPolicyUri.get(), input, COLUMN_MASKS_TYPE, (Map<String, OpaViewExpression> result) -> {
+            // column name -> mask, null if there are no column masks for the table
+            if (result == null) {
+                return Map.of();
+            }
+            Map<String, ViewExpression> columnMasks = new HashMap<>();
+            for (Map.Entry<String, OpaViewExpression> mask : result.entrySet()) {
+                columnMasks.put(mask.getKey(), toViewExpression(mask.getValue(), tableName));
+            }
+            return Map.copyOf(columnMasks);
+        }, columnMaskCache, columnMaskSingleFlight);
+        return Optional.ofNullable(masks.get(columnName));
     }
 
     @Override
     public Iterable<EventListener> getEventListeners() {
-        return SystemAccessControl.super.getEventListeners();
+        List<EventListener> listeners = new ArrayList<>();
+        // the row filter and column mask caches only exist along with the decision cache
+        if (decisionCache != null || residualCache != null || permissionSnapshotCache != null) {
+            listeners.add(new OpaCacheInvalidationListener(this::invalidateCaches));
+        }
+        if (queryMemo != null) {
+            listeners.add(queryMemo);
+        }
+        return listeners.isEmpty() ? SystemAccessControl.super.getEventListeners() : List.copyOf(listeners);
+    }
+
+    /**
+     * Drops everything cached about the given catalog, schema or table, an empty path drops
+     * everything
+     */
+    public void invalidateCaches(List<String> objectPath) {
+        if (decisionCache != null) {
+            decisionCache.invalidate(objectPath);
+        }
+        if (rowFilterCache != null) {
+            rowFilterCache.invalidate(objectPath);
+        }
+        if (columnMaskCache != null) {
+            columnMaskCache.invalidate(objectPath);
+        }
+        if (columnDecisions != null) {
+            columnDecisions.invalidate(objectPath);
+        }
+        if (residualCache != null) {
+            // a residual covers all objects, any change may affect it
+            residualCache.invalidate(List.of());
+        }
+        if (permissionSnapshotCache != null) {
+            // so is a permission snapshot
+            permissionSnapshotCache.invalidate(List.of());
+        }
     }
 }
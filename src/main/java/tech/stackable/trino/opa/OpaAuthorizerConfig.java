@@ -0,0 +1,432 @@
+package tech.stackable.trino.opa;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+public class OpaAuthorizerConfig {
+    public final URI opaPolicyUri;
+    public final Optional<URI> opaBatchPolicyUri;
+    public final Optional<URI> opaCoarsePolicyUri;
+    public final Optional<URI> opaRowFiltersPolicyUri;
+    public final Optional<URI> opaColumnMasksPolicyUri;
+    public final Optional<URI> opaMicroBatchPolicyUri;
+    public final Duration microBatchWindow;
+    public final int microBatchMaxSize;
+    public final boolean decisionCacheEnabled;
+    public final int decisionCacheMaxEntries;
+    public final Duration decisionCacheAllowTtl;
+    public final Duration decisionCacheDenyTtl;
+    public final Duration expressionCacheTtl;
+    public final boolean columnDecisionStoreEnabled;
+    // 0 if the decision cache has no off-heap second level
+    public final int decisionCacheOffHeapMaxEntries;
+    public final boolean requestCoalescingEnabled;
+    public final int httpExecutorThreads;
+    public final int httpMaxInFlightRequests;
+    public final Duration callTimeout;
+    public final Optional<Path> wasmPolicyFile;
+    public final Optional<Path> wasmDataFile;
+    public final Duration wasmDataRefreshInterval;
+    public final int wasmInstances;
+    public final List<URI> endpoints;
+    public final int endpointEjectionFailures;
+    public final Duration endpointEjectionDuration;
+    public final boolean hedgingEnabled;
+    public final double hedgingPercentile;
+    public final Duration hedgingMinDelay;
+    public final boolean circuitBreakerEnabled;
+    public final int circuitBreakerFailureThreshold;
+    public final Duration circuitBreakerOpenDuration;
+    public final Duration decisionCacheStaleGrace;
+    public final boolean circuitBreakerFailOpen;
+    public final boolean partialEvaluationEnabled;
+    public final Duration partialEvaluationTtl;
+    public final boolean concurrencyLimitEnabled;
+    public final int concurrencyLimitInitialLimit;
+    public final int concurrencyLimitMinLimit;
+    public final int concurrencyLimitMaxQueueSize;
+    public final Duration concurrencyLimitMaxQueueWait;
+    public final Optional<Path> decisionCacheSnapshotFile;
+    public final Duration decisionCacheSnapshotInterval;
+    public final Optional<URI> opaRevisionPolicyUri;
+    // fields of the input sent to OPA per operation, see OpaInputProjection
+    public final Map<String, List<String>> inputProjection;
+    public final boolean queryMemoEnabled;
+    public final int queryMemoMaxEntriesPerQuery;
+    public final int queryMemoMaxQueries;
+    // rule that returns everything a user is granted, see OpaPermissionSnapshot
+    public final Optional<URI> opaPermissionsPolicyUri;
+    public final Duration permissionSnapshotTtl;
+    public final int permissionSnapshotMaxUsers;
+
+    public OpaAuthorizerConfig(OpaAuthorizerConfig.Builder builder) {
+        this.opaPolicyUri = builder.opaPolicyUri;
+        this.opaBatchPolicyUri = Optional.ofNullable(builder.opaBatchPolicyUri);
+        this.opaCoarsePolicyUri = Optional.ofNullable(builder.opaCoarsePolicyUri);
+        this.opaRowFiltersPolicyUri = Optional.ofNullable(builder.opaRowFiltersPolicyUri);
+        this.opaColumnMasksPolicyUri = Optional.ofNullable(builder.opaColumnMasksPolicyUri);
+        this.opaMicroBatchPolicyUri = Optional.ofNullable(builder.opaMicroBatchPolicyUri);
+        this.microBatchWindow = builder.microBatchWindow;
+        this.microBatchMaxSize = builder.microBatchMaxSize;
+        this.decisionCacheEnabled = builder.decisionCacheEnabled;
+        this.decisionCacheMaxEntries = builder.decisionCacheMaxEntries;
+        this.decisionCacheAllowTtl = builder.decisionCacheAllowTtl;
+        this.decisionCacheDenyTtl = builder.decisionCacheDenyTtl;
+        this.expressionCacheTtl = builder.expressionCacheTtl;
+        this.columnDecisionStoreEnabled = builder.columnDecisionStoreEnabled;
+        this.decisionCacheOffHeapMaxEntries = builder.decisionCacheOffHeapMaxEntries;
+        this.requestCoalescingEnabled = builder.requestCoalescingEnabled;
+        this.httpExecutorThreads = builder.httpExecutorThreads;
+        this.httpMaxInFlightRequests = builder.httpMaxInFlightRequests;
+        this.callTimeout = builder.callTimeout;
+        this.wasmPolicyFile = Optional.ofNullable(builder.wasmPolicyFile);
+        this.wasmDataFile = Optional.ofNullable(builder.wasmDataFile);
+        this.wasmDataRefreshInterval = builder.wasmDataRefreshInterval;
+        this.wasmInstances = builder.wasmInstances;
+        this.endpoints = List.copyOf(builder.endpoints);
+        this.endpointEjectionFailures = builder.endpointEjectionFailures;
+        this.endpointEjectionDuration = builder.endpointEjectionDuration;
+        this.hedgingEnabled = builder.hedgingEnabled;
+        this.hedgingPercentile = builder.hedgingPercentile;
+        this.hedgingMinDelay = builder.hedgingMinDelay;
+        this.circuitBreakerEnabled = builder.circuitBreakerEnabled;
+        this.circuitBreakerFailureThreshold = builder.circuitBreakerFailureThreshold;
+        this.circuitBreakerOpenDuration = builder.circuitBreakerOpenDuration;
+        this.decisionCacheStaleGrace = builder.decisionCacheStaleGrace;
+        this.circuitBreakerFailOpen = builder.circuitBreakerFailOpen;
+        this.partialEvaluationEnabled = builder.partialEvaluationEnabled;
+        this.partialEvaluationTtl = builder.partialEvaluationTtl;
+        this.concurrencyLimitEnabled = builder.concurrencyLimitEnabled;
+        this.concurrencyLimitInitialLimit = builder.concurrencyLimitInitialLimit;
+        this.concurrencyLimitMinLimit = builder.concurrencyLimitMinLimit;
+        this.concurrencyLimitMaxQueueSize = builder.concurrencyLimitMaxQueueSize;
+        this.concurrencyLimitMaxQueueWait = builder.concurrencyLimitMaxQueueWait;
+        this.decisionCacheSnapshotFile = Optional.ofNullable(builder.decisionCacheSnapshotFile);
+        this.decisionCacheSnapshotInterval = builder.decisionCacheSnapshotInterval;
+        this.opaRevisionPolicyUri = Optional.ofNullable(builder.opaRevisionPolicyUri);
+        this.inputProjection = Map.copyOf(builder.inputProjection);
+        this.queryMemoEnabled = builder.queryMemoEnabled;
+        this.queryMemoMaxEntriesPerQuery = builder.queryMemoMaxEntriesPerQuery;
+        this.queryMemoMaxQueries = builder.queryMemoMaxQueries;
+        this.opaPermissionsPolicyUri = Optional.ofNullable(builder.opaPermissionsPolicyUri);
+        this.permissionSnapshotTtl = builder.permissionSnapshotTtl;
+        this.permissionSnapshotMaxUsers = builder.permissionSnapshotMaxUsers;
+    }
+
+    public static class Builder {
+        private URI opaPolicyUri;
+        private URI opaBatchPolicyUri;
+        private URI opaCoarsePolicyUri;
+        private URI opaRowFiltersPolicyUri;
+        private URI opaColumnMasksPolicyUri;
+        private URI opaMicroBatchPolicyUri;
+        private Duration microBatchWindow = Duration.ofNanos(500_000);
+        private int microBatchMaxSize = 64;
+        private boolean decisionCacheEnabled = false;
+        private int decisionCacheMaxEntries = 10_000;
+        private Duration decisionCacheAllowTtl = Duration.ofSeconds(60);
+        private Duration decisionCacheDenyTtl = Duration.ofSeconds(60);
+        private Duration expressionCacheTtl = Duration.ofSeconds(60);
+        private boolean columnDecisionStoreEnabled = false;
+        private int decisionCacheOffHeapMaxEntries = 0;
+        private boolean requestCoalescingEnabled = true;
+        private int httpExecutorThreads = 8;
+        private int httpMaxInFlightRequests = 64;
+        private Duration callTimeout = Duration.ofSeconds(30);
+        private Path wasmPolicyFile;
+        private Path wasmDataFile;
+        private Duration wasmDataRefreshInterval = Duration.ofSeconds(10);
+        private int wasmInstances = Runtime.getRuntime().availableProcessors();
+        private List<URI> endpoints = List.of();
+        private int endpointEjectionFailures = 3;
+        private Duration endpointEjectionDuration = Duration.ofSeconds(30);
+        private boolean hedgingEnabled = false;
+        private double hedgingPercentile = 95;
+        private Duration hedgingMinDelay = Duration.ofMillis(10);
+        private boolean circuitBreakerEnabled = false;
+        private int circuitBreakerFailureThreshold = 5;
+        private Duration circuitBreakerOpenDuration = Duration.ofSeconds(10);
+        private Duration decisionCacheStaleGrace = Duration.ofMinutes(5);
+        private boolean circuitBreakerFailOpen = false;
+        private boolean partialEvaluationEnabled = false;
+        private Duration partialEvaluationTtl = Duration.ofSeconds(60);
+        private boolean concurrencyLimitEnabled = false;
+        private int concurrencyLimitInitialLimit = 16;
+        private int concurrencyLimitMinLimit = 4;
+        private int concurrencyLimitMaxQueueSize = 1000;
+        private Duration concurrencyLimitMaxQueueWait = Duration.ofSeconds(1);
+        private Path decisionCacheSnapshotFile;
+        private Duration decisionCacheSnapshotInterval = Duration.ofMinutes(1);
+        private URI opaRevisionPolicyUri;
+        private final Map<String, List<String>> inputProjection = new HashMap<>();
+        private boolean queryMemoEnabled = false;
+        private int queryMemoMaxEntriesPerQuery = 1000;
+        private int queryMemoMaxQueries = 1000;
+        private URI opaPermissionsPolicyUri;
+        private Duration permissionSnapshotTtl = Duration.ofMinutes(1);
+        private int permissionSnapshotMaxUsers = 1000;
+
+        public Builder(URI opaPolicyUri) {
+            this.opaPolicyUri = opaPolicyUri;
+        }
+
+        public Builder opaBatchPolicyUri(URI opaBatchPolicyUri) {
+            this.opaBatchPolicyUri = opaBatchPolicyUri;
+            return this;
+        }
+
+        public Builder opaCoarsePolicyUri(URI opaCoarsePolicyUri) {
+            this.opaCoarsePolicyUri = opaCoarsePolicyUri;
+            return this;
+        }
+
+        public Builder opaRowFiltersPolicyUri(URI opaRowFiltersPolicyUri) {
+            this.opaRowFiltersPolicyUri = opaRowFiltersPolicyUri;
+            return this;
+        }
+
+        public Builder opaColumnMasksPolicyUri(URI opaColumnMasksPolicyUri) {
+            this.opaColumnMasksPolicyUri = opaColumnMasksPolicyUri;
+            return this;
+        }
+
+        public Builder opaMicroBatchPolicyUri(URI opaMicroBatchPolicyUri) {
+            this.opaMicroBatchPolicyUri = opaMicroBatchPolicyUri;
+            return this;
+        }
+
+        public Builder microBatchWindow(Duration microBatchWindow) {
+            this.microBatchWindow = microBatchWindow;
+            return this;
+        }
+
+        public Builder microBatchMaxSize(int microBatchMaxSize) {
+            this.microBatchMaxSize = microBatchMaxSize;
+            return this;
+        }
+
+        public Builder decisionCacheEnabled(boolean decisionCacheEnabled) {
+            this.decisionCacheEnabled = decisionCacheEnabled;
+            return this;
+        }
+
+        public Builder decisionCacheMaxEntries(int decisionCacheMaxEntries) {
+            this.decisionCacheMaxEntries = decisionCacheMaxEntries;
+            return this;
+        }
+
+        public Builder decisionCacheAllowTtl(Duration decisionCacheAllowTtl) {
+            this.decisionCacheAllowTtl = decisionCacheAllowTtl;
+            return this;
+        }
+
+        public Builder decisionCacheDenyTtl(Duration decisionCacheDenyTtl) {
+            this.decisionCacheDenyTtl = decisionCacheDenyTtl;
+            return this;
+        }
+
+        public Builder expressionCacheTtl(Duration expressionCacheTtl) {
+            this.expressionCacheTtl = expressionCacheTtl;
+            return this;
+        }
+
+        public Builder columnDecisionStoreEnabled(boolean columnDecisionStoreEnabled) {
+            this.columnDecisionStoreEnabled = columnDecisionStoreEnabled;
+            return this;
+        }
+
+        public Builder decisionCacheOffHeapMaxEntries(int decisionCacheOffHeapMaxEntries) {
+            this.decisionCacheOffHeapMaxEntries = decisionCacheOffHeapMaxEntries;
+            return this;
+        }
+
+        public Builder requestCoalescingEnabled(boolean requestCoalescingEnabled) {
+            this.requestCoalescingEnabled = requestCoalescingEnabled;
+            return this;
+        }
+
+        public Builder httpExecutorThreads(int httpExecutorThreads) {
+            this.httpExecutorThreads = httpExecutorThreads;
+            return this;
+        }
+
+        public Builder httpMaxInFlightRequests(int httpMaxInFlightRequests) {
+            this.httpMaxInFlightRequests = httpMaxInFlightRequests;
+            return this;
+        }
+
+        public Builder callTimeout(Duration callTimeout) {
+            this.callTimeout = callTimeout;
+            return this;
+        }
+
+        public Builder wasmPolicyFile(Path wasmPolicyFile) {
+            this.wasmPolicyFile = wasmPolicyFile;
+            return this;
+        }
+
+        public Builder wasmDataFile(Path wasmDataFile) {
+            this.wasmDataFile = wasmDataFile;
+            return this;
+        }
+
+        public Builder wasmDataRefreshInterval(Duration wasmDataRefreshInterval) {
+            this.wasmDataRefreshInterval = wasmDataRefreshInterval;
+            return this;
+        }
+
+        public Builder wasmInstances(int wasmInstances) {
+            this.wasmInstances = wasmInstances;
+            return this;
+        }
+
+        public Builder endpoints(List<URI> endpoints) {
+            this.endpoints = endpoints;
+            return this;
+        }
+
+        public Builder endpointEjectionFailures(int endpointEjectionFailures) {
+            this.endpointEjectionFailures = endpointEjectionFailures;
+            return this;
+        }
+
+        public Builder endpointEjectionDuration(Duration endpointEjectionDuration) {
+            this.endpointEjectionDuration = endpointEjectionDuration;
+            return this;
+        }
+
+        public Builder hedgingEnabled(boolean hedgingEnabled) {
+            this.hedgingEnabled = hedgingEnabled;
+            return this;
+        }
+
+        public Builder hedgingPercentile(double hedgingPercentile) {
+            this.hedgingPercentile = hedgingPercentile;
+            return this;
+        }
+
+        public Builder hedgingMinDelay(Duration hedgingMinDelay) {
+            this.hedgingMinDelay = hedgingMinDelay;
+            return this;
+        }
+
+        public Builder circuitBreakerEnabled(boolean circuitBreakerEnabled) {
+            this.circuitBreakerEnabled = circuitBreakerEnabled;
+            return this;
+        }
+
+        public Builder circuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+            this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+            return this;
+        }
+
+        public Builder circuitBreakerOpenDuration(Duration circuitBreakerOpenDuration) {
+            this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+            return this;
+        }
+
+        public Builder decisionCacheStaleGrace(Duration decisionCacheStaleGrace) {
+            this.decisionCacheStaleGrace = decisionCacheStaleGrace;
+            return this;
+        }
+
+        public Builder circuitBreakerFailOpen(boolean circuitBreakerFailOpen) {
+            this.circuitBreakerFailOpen = circuitBreakerFailOpen;
+            return this;
+        }
+
+        public Builder partialEvaluationEnabled(boolean partialEvaluationEnabled) {
+            this.partialEvaluationEnabled = partialEvaluationEnabled;
+            return this;
+        }
+
+        public Builder partialEvaluationTtl(Duration partialEvaluationTtl) {
+            this.partialEvaluationTtl = partialEvaluationTtl;
+            return this;
+        }
+
+        public Builder concurrencyLimitEnabled(boolean concurrencyLimitEnabled) {
+            this.concurrencyLimitEnabled = concurrencyLimitEnabled;
+            return this;
+        }
+
+        public Builder concurrencyLimitInitialLimit(int concurrencyLimitInitialLimit) {
+            this.concurrencyLimitInitialLimit = concurrencyLimitInitialLimit;
+            return this;
+        }
+
+        public Builder concurrencyLimitMinLimit(int concurrencyLimitMinLimit) {
+            this.concurrencyLimitMinLimit = concurrencyLimitMinLimit;
+            return this;
+        }
+
+        public Builder concurrencyLimitMaxQueueSize(int concurrencyLimitMaxQueueSize) {
+            this.concurrencyLimitMaxQueueSize = concurrencyLimitMaxQueueSize;
+            return this;
+        }
+
+        public Builder concurrencyLimitMaxQueueWait(Duration concurrencyLimitMaxQueueWait) {
+            this.concurrencyLimitMaxQueueWait = concurrencyLimitMaxQueueWait;
+            return this;
+        }
+
+        public Builder decisionCacheSnapshotFile(Path decisionCacheSnapshotFile) {
+            this.decisionCacheSnapshotFile = decisionCacheSnapshotFile;
+            return this;
+        }
+
+        public Builder decisionCacheSnapshotInterval(Duration decisionCacheSnapshotInterval) {
+            this.decisionCacheSnapshotInterval = decisionCacheSnapshotInterval;
+            return this;
+        }
+
+        public Builder opaRevisionPolicyUri(URI opaRevisionPolicyUri) {
+            this.opaRevisionPolicyUri = opaRevisionPolicyUri;
+            return this;
+        }
+
+        public Builder inputProjection(String operation, List<String> fields) {
+            this.inputProjection.put(operation, List.copyOf(fields));
+            return this;
+        }
+
+        public Builder queryMemoEnabled(boolean queryMemoEnabled) {
+            this.queryMemoEnabled = queryMemoEnabled;
+            return this;
+        }
+
+        public Builder queryMemoMaxEntriesPerQuery(int queryMemoMaxEntriesPerQuery) {
+            this.queryMemoMaxEntriesPerQuery = queryMemoMaxEntriesPerQuery;
+            return this;
+        }
+
+        public Builder queryMemoMaxQueries(int queryMemoMaxQueries) {
+            this.queryMemoMaxQueries = queryMemoMaxQueries;
+            return this;
+        }
+
+        public Builder opaPermissionsPolicyUri(URI opaPermissionsPolicyUri) {
+            this.opaPermissionsPolicyUri = opaPermissionsPolicyUri;
+            return this;
+        }
+
+        public Builder permissionSnapshotTtl(Duration permissionSnapshotTtl) {
+            this.permissionSnapshotTtl = permissionSnapshotTtl;
+            return this;
+        }
+
+        public Builder permissionSnapshotMaxUsers(int permissionSnapshotMaxUsers) {
+            this.permissionSnapshotMaxUsers = permissionSnapshotMaxUsers;
+            return this;
+        }
+
+        public OpaAuthorizerConfig build() {
+            return new OpaAuthorizerConfig(this);
+        }
+    }
+}
@@ -1,8 +1,18 @@
 package tech.stackable.trino.opa;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.net.URI;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import io.trino.spi.Plugin;
 import io.trino.spi.security.SystemAccessControl;
@@ -10,6 +20,95 @@ import io.trino.spi.security.SystemAccessControlFactory;
 
 public class OpaAuthorizerPlugin implements Plugin {
     static final String CONFIG_OPA_POLICY_URI = "opa.policy.uri";
+    // optional rule that filters a whole collection in one request, see OpaAuthorizer.filterResources
+    static final String CONFIG_OPA_POLICY_BATCHED_URI = "opa.policy.batched-uri";
+    // optional rule that allows everything below a catalog, schema or table at once, see OpaAuthorizer.queryOpaCoarseAsync
+    static final String CONFIG_OPA_POLICY_COARSE_URI = "opa.policy.coarse-uri";
+    // optional rules that return row filter and column mask expressions, see OpaAuthorizer.getRowFilters
+    static final String CONFIG_OPA_POLICY_ROW_FILTERS_URI = "opa.policy.row-filters-uri";
+    static final String CONFIG_OPA_POLICY_COLUMN_MASKS_URI = "opa.policy.column-masks-uri";
+    // optional rule that decides several unrelated queries at once, queries arriving within the window are sent together
+    static final String CONFIG_OPA_POLICY_MICRO_BATCH_URI = "opa.policy.micro-batch-uri";
+    static final String CONFIG_OPA_MICRO_BATCHING_WINDOW = "opa.micro-batching.window";
+    static final String CONFIG_OPA_MICRO_BATCHING_MAX_SIZE = "opa.micro-batching.max-size";
+    static final String CONFIG_OPA_CACHE_ENABLED = "opa.cache.enabled";
+    static final String CONFIG_OPA_CACHE_MAX_ENTRIES = "opa.cache.max-entries";
+    // sets both the allow and deny TTL, which can be overridden individually
+    static final String CONFIG_OPA_CACHE_TTL = "opa.cache.ttl";
+    static final String CONFIG_OPA_CACHE_ALLOW_TTL = "opa.cache.allow-ttl";
+    static final String CONFIG_OPA_CACHE_DENY_TTL = "opa.cache.deny-ttl";
+    static final String CONFIG_OPA_CACHE_EXPRESSION_TTL = "opa.cache.expression-ttl";
+    // keep column decisions as bitsets per identity and table instead of one cache entry per column
+    static final String CONFIG_OPA_CACHE_COLUMNS_ENABLED = "opa.cache.columns.enabled";
+    // size of the second level of the decision cache outside of the Java heap, 0 disables it
+    static final String CONFIG_OPA_CACHE_OFF_HEAP_MAX_ENTRIES = "opa.cache.off-heap.max-entries";
+
+    // share the result of an identical query that is already in flight instead of sending another one
+    static final String CONFIG_OPA_REQUEST_COALESCING_ENABLED = "opa.request-coalescing.enabled";
+    static final String CONFIG_OPA_HTTP_EXECUTOR_THREADS = "opa.http.executor-threads";
+    static final String CONFIG_OPA_HTTP_MAX_IN_FLIGHT_REQUESTS = "opa.http.max-in-flight-requests";
+    // deadline for a single authorization call, including all requests a filter call fans out to
+    static final String CONFIG_OPA_CALL_TIMEOUT = "opa.call-timeout";
+
+    // evaluate the policy in-process from a module built with `opa build -t wasm` instead of asking an OPA server
+    static final String CONFIG_OPA_WASM_POLICY_FILE = "opa.wasm.policy-file";
+    static final String CONFIG_OPA_WASM_DATA_FILE = "opa.wasm.data-file";
+    static final String CONFIG_OPA_WASM_DATA_REFRESH_INTERVAL = "opa.wasm.data-refresh-interval";
+    static final String CONFIG_OPA_WASM_INSTANCES = "opa.wasm.instances";
+
+    // comma separated base URIs of OPA replicas, the host of the policy URIs is replaced by one of them per request
+    static final String CONFIG_OPA_ENDPOINTS = "opa.endpoints";
+    static final String CONFIG_OPA_ENDPOINTS_EJECTION_FAILURES = "opa.endpoints.ejection-failures";
+    static final String CONFIG_OPA_ENDPOINTS_EJECTION_DURATION = "opa.endpoints.ejection-duration";
+    static final String CONFIG_OPA_HEDGING_ENABLED = "opa.hedging.enabled";
+    static final String CONFIG_OPA_HEDGING_PERCENTILE = "opa.hedging.percentile";
+    static final String CONFIG_OPA_HEDGING_MIN_DELAY = "opa.hedging.min-delay";
+
+    // stop querying OPA after failures in a row, decisions then come from the (stale) cache or the fail-open setting
+    static final String CONFIG_OPA_CIRCUIT_BREAKER_ENABLED = "opa.circuit-breaker.enabled";
+    static final String CONFIG_OPA_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "opa.circuit-breaker.failure-threshold";
+    static final String CONFIG_OPA_CIRCUIT_BREAKER_OPEN_DURATION = "opa.circuit-breaker.open-duration";
+    static final String CONFIG_OPA_CIRCUIT_BREAKER_FAIL_OPEN = "opa.circuit-breaker.fail-open";
+    static final String CONFIG_OPA_CACHE_STALE_GRACE = "opa.cache.stale-grace";
+
+    // decide filter operations locally from the residual of OPA's Compile API, see OpaAuthorizer.residualPredicate
+    static final String CONFIG_OPA_PARTIAL_EVALUATION_ENABLED = "opa.partial-evaluation.enabled";
+    static final String CONFIG_OPA_PARTIAL_EVALUATION_TTL = "opa.partial-evaluation.ttl";
+
+    // adapt the number of requests in flight to OPA's response times, up to opa.http.max-in-flight-requests
+    static final String CONFIG_OPA_CONCURRENCY_LIMIT_ENABLED = "opa.concurrency-limit.enabled";
+    static final String CONFIG_OPA_CONCURRENCY_LIMIT_INITIAL_LIMIT = "opa.concurrency-limit.initial-limit";
+    static final String CONFIG_OPA_CONCURRENCY_LIMIT_MIN_LIMIT = "opa.concurrency-limit.min-limit";
+    static final String CONFIG_OPA_CONCURRENCY_LIMIT_MAX_QUEUE_SIZE = "opa.concurrency-limit.max-queue-size";
+    static final String CONFIG_OPA_CONCURRENCY_LIMIT_MAX_QUEUE_WAIT = "opa.concurrency-limit.max-queue-wait";
+
+    // keep the decision cache in a file across restarts, discarded when the result of the revision rule changes
+    static final String CONFIG_OPA_CACHE_SNAPSHOT_FILE = "opa.cache.snapshot-file";
+    static final String CONFIG_OPA_CACHE_SNAPSHOT_INTERVAL = "opa.cache.snapshot-interval";
+    static final String CONFIG_OPA_POLICY_REVISION_URI = "opa.policy.revision-uri";
+    // prefix of the comma separated input fields sent for an operation, e.g. opa.input-projection.ExecuteQuery=context.identity.user
+    static final String CONFIG_OPA_INPUT_PROJECTION_PREFIX = "opa.input-projection.";
+
+    // remember decisions per query until Trino reports the query completed
+    static final String CONFIG_OPA_QUERY_MEMO_ENABLED = "opa.query-memo.enabled";
+    static final String CONFIG_OPA_QUERY_MEMO_MAX_ENTRIES_PER_QUERY = "opa.query-memo.max-entries-per-query";
+    static final String CONFIG_OPA_QUERY_MEMO_MAX_QUERIES = "opa.query-memo.max-queries";
+
+    // fetch everything a user is granted when a query starts, and decide catalog, schema, table and column access from it
+    static final String CONFIG_OPA_POLICY_PERMISSIONS_URI = "opa.policy.permissions-uri";
+    static final String CONFIG_OPA_PERMISSIONS_TTL = "opa.permissions.ttl";
+    static final String CONFIG_OPA_PERMISSIONS_MAX_USERS = "opa.permissions.max-users";
+
+    // like the durations of Trino's own configuration, e.g. 1.5s or 100ms
+    private static final Pattern DURATION_PATTERN = Pattern.compile("^(\\d+(?:\\.\\d+)?)\\s*(ns|us|ms|s|m|h|d)$");
+    private static final Map<String, TimeUnit> DURATION_UNITS = Map.of(
+            "ns", TimeUnit.NANOSECONDS,
+            "us", TimeUnit.MICROSECONDS,
+            "ms", TimeUnit.MILLISECONDS,
+            "s", TimeUnit.SECONDS,
+            "m", TimeUnit.MINUTES,
+            "h", TimeUnit.HOURS,
+            "d", TimeUnit.DAYS);
 
     @Override
     public Iterable<SystemAccessControlFactory> getSystemAccessControlFactories() {
@@ -31,8 +130,286 @@ public class OpaAuthorizerPlugin implements Plugin {
                 } catch (Exception e) {
                     throw new OpaConfigException.UriInvalid(opaUriStr, e);
                 }
-                return new OpaAuthorizer(opaUri);
+                OpaAuthorizerConfig.Builder builder = new OpaAuthorizerConfig.Builder(opaUri);
+                if (config.containsKey(CONFIG_OPA_POLICY_BATCHED_URI)) {
+                    builder.opaBatchPolicyUri(getUri(config, CONFIG_OPA_POLICY_BATCHED_URI));
+                }
+                if (config.containsKey(CONFIG_OPA_POLICY_COARSE_URI)) {
+                    builder.opaCoarsePolicyUri(getUri(config, CONFIG_OPA_POLICY_COARSE_URI));
+                }
+                if (config.containsKey(CONFIG_OPA_POLICY_ROW_FILTERS_URI)) {
+                    builder.opaRowFiltersPolicyUri(getUri(config, CONFIG_OPA_POLICY_ROW_FILTERS_URI));
+                }
+                if (config.containsKey(CONFIG_OPA_POLICY_COLUMN_MASKS_URI)) {
+                    builder.opaColumnMasksPolicyUri(getUri(config, CONFIG_OPA_POLICY_COLUMN_MASKS_URI));
+                }
+                if (config.containsKey(CONFIG_OPA_POLICY_MICRO_BATCH_URI)) {
+                    builder.opaMicroBatchPolicyUri(getUri(config, CONFIG_OPA_POLICY_MICRO_BATCH_URI));
+                }
+                if (config.containsKey(CONFIG_OPA_MICRO_BATCHING_WINDOW)) {
+                    builder.microBatchWindow(getDuration(config, CONFIG_OPA_MICRO_BATCHING_WINDOW));
+                }
+                if (config.containsKey(CONFIG_OPA_MICRO_BATCHING_MAX_SIZE)) {
+                    builder.microBatchMaxSize(getPositiveInt(config, CONFIG_OPA_MICRO_BATCHING_MAX_SIZE));
+                }
+                if (config.containsKey(CONFIG_OPA_CACHE_ENABLED)) {
+                    builder.decisionCacheEnabled(getBoolean(config, CONFIG_OPA_CACHE_ENABLED));
+                }
+                if (config.containsKey(CONFIG_OPA_CACHE_MAX_ENTRIES)) {
+                    builder.decisionCacheMaxEntries(getInt(config, CONFIG_OPA_CACHE_MAX_ENTRIES));
+                }
+                if (config.containsKey(CONFIG_OPA_CACHE_TTL)) {
+                    Duration ttl = getDuration(config, CONFIG_OPA_CACHE_TTL);
+                    builder.decisionCacheAllowTtl(ttl).decisionCacheDenyTtl(ttl);
+                }
+                if (config.containsKey(CONFIG_OPA_CACHE_ALLOW_TTL)) {
+                    builder.decisionCacheAllowTtl(getDuration(config, CONFIG_OPA_CACHE_ALLOW_TTL));
+                }
+                if (config.containsKey(CONFIG_OPA_CACHE_DENY_TTL)) {
+                    builder.decisionCacheDenyTtl(getDuration(config, CONFIG_OPA_CACHE_DENY_TTL));
+                }
+                if (config.containsKey(CONFIG_OPA_CACHE_EXPRESSION_TTL)) {
+                    builder.expressionCacheTtl(getDuration(config, CONFIG_OPA_CACHE_EXPRESSION_TTL));
+                }
+                if (config.containsKey(CONFIG_OPA_CACHE_COLUMNS_ENABLED)) {
+                    builder.columnDecisionStoreEnabled(getBoolean(config, CONFIG_OPA_CACHE_COLUMNS_ENABLED));
+                }
+                if (config.containsKey(CONFIG_OPA_CACHE_OFF_HEAP_MAX_ENTRIES)) {
+                    builder.decisionCacheOffHeapMaxEntries(getInt(config, CONFIG_OPA_CACHE_OFF_HEAP_MAX_ENTRIES));
+                }
+                if (config.containsKey(CONFIG_OPA_REQUEST_COALESCING_ENABLED)) {
+                    builder.requestCoalescingEnabled(getBoolean(config, CONFIG_OPA_REQUEST_COALESCING_ENABLED));
+                }
+                if (config.containsKey(CONFIG_OPA_HTTP_EXECUTOR_THREADS)) {
+                    builder.httpExecutorThreads(getPositiveInt(config, CONFIG_OPA_HTTP_EXECUTOR_THREADS));
+                }
+                if (config.containsKey(CONFIG_OPA_HTTP_MAX_IN_FLIGHT_REQUESTS)) {
+                    builder.httpMaxInFlightRequests(getPositiveInt(config, CONFIG_OPA_HTTP_MAX_IN_FLIGHT_REQUESTS));
+                }
+                if (config.containsKey(CONFIG_OPA_CALL_TIMEOUT)) {
+                    builder.callTimeout(getDuration(config, CONFIG_OPA_CALL_TIMEOUT));
+                }
+                if (config.containsKey(CONFIG_OPA_WASM_POLICY_FILE)) {
+                    builder.wasmPolicyFile(getPath(config, CONFIG_OPA_WASM_POLICY_FILE));
+                }
+                if (config.containsKey(CONFIG_OPA_WASM_DATA_FILE)) {
+                    builder.wasmDataFile(getPath(config, CONFIG_OPA_WASM_DATA_FILE));
+                }
+                if (config.containsKey(CONFIG_OPA_WASM_DATA_REFRESH_INTERVAL)) {
+                    builder.wasmDataRefreshInterval(getDuration(config, CONFIG_OPA_WASM_DATA_REFRESH_INTERVAL));
+                }
+                if (config.containsKey(CONFIG_OPA_WASM_INSTANCES)) {
+                    builder.wasmInstances(getPositiveInt(config, CONFIG_OPA_WASM_INSTANCES));
+                }
+                if (config.containsKey(CONFIG_OPA_ENDPOINTS)) {
+                    builder.endpoints(getUris(config, CONFIG_OPA_ENDPOINTS));
+                }
+                if (config.containsKey(CONFIG_OPA_ENDPOINTS_EJECTION_FAILURES)) {
+                    builder.endpointEjectionFailures(getPositiveInt(config, CONFIG_OPA_ENDPOINTS_EJECTION_FAILURES));
+                }
+                if (config.containsKey(CONFIG_OPA_ENDPOINTS_EJECTION_DURATION)) {
+                    builder.endpointEjectionDuration(getDuration(config, CONFIG_OPA_ENDPOINTS_EJECTION_DURATION));
+                }
+                if (config.containsKey(CONFIG_OPA_HEDGING_ENABLED)) {
+                    builder.hedgingEnabled(getBoolean(config, CONFIG_OPA_HEDGING_ENABLED));
+                }
+                if (config.containsKey(CONFIG_OPA_HEDGING_PERCENTILE)) {
+                    builder.hedgingPercentile(getPercentile(config, CONFIG_OPA_HEDGING_PERCENTILE));
+                }
+                if (config.containsKey(CONFIG_OPA_HEDGING_MIN_DELAY)) {
+                    builder.hedgingMinDelay(getDuration(config, CONFIG_OPA_HEDGING_MIN_DELAY));
+                }
+                if (config.containsKey(CONFIG_OPA_CIRCUIT_BREAKER_ENABLED)) {
+                    builder.circuitBreakerEnabled(getBoolean(config, CONFIG_OPA_CIRCUIT_BREAKER_ENABLED));
+                }
+                if (config.containsKey(CONFIG_OPA_CIRCUIT_BREAKER_FAILURE_THRESHOLD)) {
+                    builder.circuitBreakerFailureThreshold(getPositiveInt(config, CONFIG_OPA_CIRCUIT_BREAKER_FAILURE_THRESHOLD));
+                }
+                if (config.containsKey(CONFIG_OPA_CIRCUIT_BREAKER_OPEN_DURATION)) {
+                    builder.circuitBreakerOpenDuration(getDuration(config, CONFIG_OPA_CIRCUIT_BREAKER_OPEN_DURATION));
+                }
+                if (config.containsKey(CONFIG_OPA_CIRCUIT_BREAKER_FAIL_OPEN)) {
+                    builder.circuitBreakerFailOpen(getBoolean(config, CONFIG_OPA_CIRCUIT_BREAKER_FAIL_OPEN));
+                }
+                if (config.containsKey(CONFIG_OPA_CACHE_STALE_GRACE)) {
+                    builder.decisionCacheStaleGrace(getDuration(config, CONFIG_OPA_CACHE_STALE_GRACE));
+                }
+                if (config.containsKey(CONFIG_OPA_PARTIAL_EVALUATION_ENABLED)) {
+                    builder.partialEvaluationEnabled(getBoolean(config, CONFIG_OPA_PARTIAL_EVALUATION_ENABLED));
+                }
+                if (config.containsKey(CONFIG_OPA_PARTIAL_EVALUATION_TTL)) {
+                    builder.partialEvaluationTtl(getDuration(config, CONFIG_OPA_PARTIAL_EVALUATION_TTL));
+                }
+                if (config.containsKey(CONFIG_OPA_CONCURRENCY_LIMIT_ENABLED)) {
+                    builder.concurrencyLimitEnabled(getBoolean(config, CONFIG_OPA_CONCURRENCY_LIMIT_ENABLED));
+                }
+                if (config.containsKey(CONFIG_OPA_CONCURRENCY_LIMIT_INITIAL_LIMIT)) {
+                    builder.concurrencyLimitInitialLimit(getPositiveInt(config, CONFIG_OPA_CONCURRENCY_LIMIT_INITIAL_LIMIT));
+                }
+                if (config.containsKey(CONFIG_OPA_CONCURRENCY_LIMIT_MIN_LIMIT)) {
+                    builder.concurrencyLimitMinLimit(getPositiveInt(config, CONFIG_OPA_CONCURRENCY_LIMIT_MIN_LIMIT));
+                }
+                if (config.containsKey(CONFIG_OPA_CONCURRENCY_LIMIT_MAX_QUEUE_SIZE)) {
+                    builder.concurrencyLimitMaxQueueSize(getInt(config, CONFIG_OPA_CONCURRENCY_LIMIT_MAX_QUEUE_SIZE));
+                }
+                if (config.containsKey(CONFIG_OPA_CONCURRENCY_LIMIT_MAX_QUEUE_WAIT)) {
+                    builder.concurrencyLimitMaxQueueWait(getDuration(config, CONFIG_OPA_CONCURRENCY_LIMIT_MAX_QUEUE_WAIT));
+                }
+                if (config.containsKey(CONFIG_OPA_CACHE_SNAPSHOT_FILE)) {
+                    builder.decisionCacheSnapshotFile(getPath(config, CONFIG_OPA_CACHE_SNAPSHOT_FILE));
+                }
+                if (config.containsKey(CONFIG_OPA_CACHE_SNAPSHOT_INTERVAL)) {
+                    builder.decisionCacheSnapshotInterval(getDuration(config, CONFIG_OPA_CACHE_SNAPSHOT_INTERVAL));
+                }
+                if (config.containsKey(CONFIG_OPA_POLICY_REVISION_URI)) {
+                    builder.opaRevisionPolicyUri(getUri(config, CONFIG_OPA_POLICY_REVISION_URI));
+                }
+                if (config.containsKey(CONFIG_OPA_QUERY_MEMO_ENABLED)) {
+                    builder.queryMemoEnabled(getBoolean(config, CONFIG_OPA_QUERY_MEMO_ENABLED));
+                }
+                if (config.containsKey(CONFIG_OPA_QUERY_MEMO_MAX_ENTRIES_PER_QUERY)) {
+                    builder.queryMemoMaxEntriesPerQuery(getPositiveInt(config, CONFIG_OPA_QUERY_MEMO_MAX_ENTRIES_PER_QUERY));
+                }
+                if (config.containsKey(CONFIG_OPA_QUERY_MEMO_MAX_QUERIES)) {
+                    builder.queryMemoMaxQueries(getPositiveInt(config, CONFIG_OPA_QUERY_MEMO_MAX_QUERIES));
+                }
+                if (config.containsKey(CONFIG_OPA_POLICY_PERMISSIONS_URI)) {
+                    builder.opaPermissionsPolicyUri(getUri(config, CONFIG_OPA_POLICY_PERMISSIONS_URI));
+                }
+                if (config.containsKey(CONFIG_OPA_PERMISSIONS_TTL)) {
+                    builder.permissionSnapshotTtl(getDuration(config, CONFIG_OPA_PERMISSIONS_TTL));
+                }
+                if (config.containsKey(CONFIG_OPA_PERMISSIONS_MAX_USERS)) {
+                    builder.permissionSnapshotMaxUsers(getPositiveInt(config, CONFIG_OPA_PERMISSIONS_MAX_USERS));
+                }
+                for (String property : config.keySet()) {
+                    if (property.startsWith(CONFIG_OPA_INPUT_PROJECTION_PREFIX)) {
+                        builder.inputProjection(property.substring(CONFIG_OPA_INPUT_PROJECTION_PREFIX.length()),
+                                getInputFields(config, property));
+                    }
+                }
+                return new OpaAuthorizer(builder.build());
             }
         });
     }
+
+    private static URI getUri(Map<String, String> config, String property) {
+        String value = config.get(property);
+        try {
+            return URI.create(value);
+        } catch (Exception e) {
+            throw new OpaConfigException.UriInvalid(property, value, e);
+        }
+    }
+
+    private static List<URI> getUris(Map<String, String> config, String property) {
+        List<URI> uris = new ArrayList<>();
+        for (String value : config.get(property).split(",")) {
+            if (value.isBlank()) {
+                continue;
+            }
+            try {
+                URI uri = URI.create(value.trim());
+                if (uri.getScheme() == null || uri.getAuthority() == null) {
+                    throw new OpaConfigException.UriInvalid(property, value, null);
+                }
+                uris.add(uri);
+            } catch (IllegalArgumentException e) {
+                throw new OpaConfigException.UriInvalid(property, value, e);
+            }
+        }
+        if (uris.isEmpty()) {
+            throw new OpaConfigException.ValueInvalid(property, config.get(property), null);
+        }
+        return uris;
+    }
+
+    private static List<String> getInputFields(Map<String, String> config, String property) {
+        List<String> fields = new ArrayList<>();
+        for (String value : config.get(property).split(",")) {
+            if (!value.isBlank()) {
+                fields.add(value.trim());
+            }
+        }
+        try {
+            // fails on fields outside of the input
+            OpaInputProjection.of(Map.of("", fields));
+        } catch (IllegalArgumentException e) {
+            throw new OpaConfigException.ValueInvalid(property, config.get(property), e);
+        }
+        return fields;
+    }
+
+    private static Path getPath(Map<String, String> config, String property) {
+        String value = config.get(property);
+        try {
+            return Path.of(value.trim());
+        } catch (InvalidPathException e) {
+            throw new OpaConfigException.ValueInvalid(property, value, e);
+        }
+    }
+
+    private static boolean getBoolean(Map<String, String> config, String property) {
+        String value = config.get(property).trim();
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new OpaConfigException.ValueInvalid(property, value, null);
+    }
+
+    private static int getInt(Map<String, String> config, String property) {
+        String value = config.get(property);
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < 0) {
+                throw new OpaConfigException.ValueInvalid(property, value, null);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new OpaConfigException.ValueInvalid(property, value, e);
+        }
+    }
+
+    private static double getPercentile(Map<String, String> config, String property) {
+        String value = config.get(property);
+        try {
+            double parsed = Double.parseDouble(value.trim());
+            if (!(parsed > 0 && parsed < 100)) {
+                throw new OpaConfigException.ValueInvalid(property, value, null);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new OpaConfigException.ValueInvalid(property, value, e);
+        }
+    }
+
+    private static int getPositiveInt(Map<String, String> config, String property) {
+        int value = getInt(config, property);
+        if (value == 0) {
+            throw new OpaConfigException.ValueInvalid(property, config.get(property), null);
+        }
+        return value;
+    }
+
+    /**
+     * Parses durations in the same format as other Trino properties, such as `500us`, `30s`, `5m`
+     */
+    static Duration getDuration(Map<String, String> config, String property) {
+        String value = config.get(property);
+        Matcher matcher = DURATION_PATTERN.matcher(value.trim());
+        if (!matcher.matches()) {
+            throw new OpaConfigException.ValueInvalid(property, value, null);
+        }
+        BigDecimal nanos = new BigDecimal(matcher.group(1))
+                .multiply(BigDecimal.valueOf(DURATION_UNITS.get(matcher.group(2)).toNanos(1)));
+        try {
+            // durations are used as nanoseconds, e.g. for deadlines, so longer ones (about 292 years) are rejected
+            return Duration.ofNanos(nanos.setScale(0, RoundingMode.HALF_UP).longValueExact());
+        } catch (ArithmeticException e) {
+            throw new OpaConfigException.ValueInvalid(property, value, e);
+        }
+    }
 }
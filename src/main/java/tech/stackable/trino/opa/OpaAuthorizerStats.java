@@ -0,0 +1,194 @@
+package tech.stackable.trino.opa;
+
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Statistics of the decision cache (and its off-heap second level), request coalescing, load
+ * balancing, circuit breaker, micro-batching, concurrency limit and query memo of an authorizer
+ *
+ * All of them may be disabled, in which case the respective values stay at zero. With several OPA
+ * endpoints, each has a concurrency limiter of its own, and their values are summed up.
+ */
+public class OpaAuthorizerStats implements OpaAuthorizerStatsMBean {
+    private final OpaDecisionCache decisionCache;
+    private final OpaSingleFlight<?, ?> singleFlight;
+    private final OpaLoadBalancedTransport loadBalancer;
+    private final OpaCircuitBreaker circuitBreaker;
+    private final OpaMicroBatcher<?, ?> microBatcher;
+    private final List<OpaConcurrencyLimiter> concurrencyLimiters;
+    private final OpaQueryMemo queryMemo;
+    private final OpaOffHeapDecisionCache offHeapDecisionCache;
+
+    public OpaAuthorizerStats(OpaDecisionCache decisionCache, OpaSingleFlight<?, ?> singleFlight,
+                              OpaLoadBalancedTransport loadBalancer, OpaCircuitBreaker circuitBreaker,
+                              OpaMicroBatcher<?, ?> microBatcher, List<OpaConcurrencyLimiter> concurrencyLimiters,
+                              OpaQueryMemo queryMemo, OpaOffHeapDecisionCache offHeapDecisionCache) {
+        this.decisionCache = decisionCache;
+        this.singleFlight = singleFlight;
+        this.loadBalancer = loadBalancer;
+        this.circuitBreaker = circuitBreaker;
+        this.microBatcher = microBatcher;
+        this.concurrencyLimiters = List.copyOf(concurrencyLimiters);
+        this.queryMemo = queryMemo;
+        this.offHeapDecisionCache = offHeapDecisionCache;
+    }
+
+    private OpaDecisionCache.Stats cacheStats() {
+        return decisionCache == null ? new OpaDecisionCache.Stats(0, 0, 0, 0, 0) : decisionCache.getStats();
+    }
+
+    @Override
+    public boolean isDecisionCacheEnabled() {
+        return decisionCache != null;
+    }
+
+    @Override
+    public long getDecisionCacheHits() {
+        return cacheStats().hitCount;
+    }
+
+    @Override
+    public long getDecisionCacheMisses() {
+        return cacheStats().missCount;
+    }
+
+    @Override
+    public long getDecisionCacheEvictions() {
+        return cacheStats().evictionCount;
+    }
+
+    @Override
+    public long getDecisionCacheExpirations() {
+        return cacheStats().expirationCount;
+    }
+
+    @Override
+    public long getDecisionCacheInvalidations() {
+        return decisionCache == null ? 0 : decisionCache.getInvalidationCount();
+    }
+
+    @Override
+    public int getDecisionCacheSize() {
+        return decisionCache == null ? 0 : decisionCache.size();
+    }
+
+    @Override
+    public long getCoalescedQueries() {
+        return singleFlight == null ? 0 : singleFlight.getCollapsedCount();
+    }
+
+    @Override
+    public int getInFlightQueries() {
+        return singleFlight == null ? 0 : singleFlight.getInFlightCount();
+    }
+
+    @Override
+    public long getHedgedRequests() {
+        return loadBalancer == null ? 0 : loadBalancer.getHedgedRequestCount();
+    }
+
+    @Override
+    public long getEndpointEjections() {
+        return loadBalancer == null ? 0 : loadBalancer.getEjectionCount();
+    }
+
+    @Override
+    public long getMicroBatches() {
+        return microBatcher == null ? 0 : microBatcher.getBatchCount();
+    }
+
+    @Override
+    public long getMicroBatchedQueries() {
+        return microBatcher == null ? 0 : microBatcher.getBatchedQueryCount();
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        return circuitBreaker == null ? "DISABLED" : circuitBreaker.getState().name();
+    }
+
+    @Override
+    public long getCircuitBreakerTrips() {
+        return circuitBreaker == null ? 0 : circuitBreaker.getTripCount();
+    }
+
+    @Override
+    public long getCircuitBreakerRejectedRequests() {
+        return circuitBreaker == null ? 0 : circuitBreaker.getRejectedCount();
+    }
+
+    @Override
+    public long getStaleDecisions() {
+        return circuitBreaker == null ? 0 : circuitBreaker.getStaleDecisionCount();
+    }
+
+    @Override
+    public long getFallbackDecisions() {
+        return circuitBreaker == null ? 0 : circuitBreaker.getFallbackDecisionCount();
+    }
+
+    private long sumOfLimiters(ToLongFunction<OpaConcurrencyLimiter> value) {
+        return concurrencyLimiters.stream().mapToLong(value).sum();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return (int) sumOfLimiters(OpaConcurrencyLimiter::getLimit);
+    }
+
+    @Override
+    public int getConcurrencyLimitInFlightRequests() {
+        return (int) sumOfLimiters(OpaConcurrencyLimiter::getInFlightCount);
+    }
+
+    @Override
+    public int getConcurrencyLimitQueueDepth() {
+        return (int) sumOfLimiters(OpaConcurrencyLimiter::getQueueDepth);
+    }
+
+    @Override
+    public long getConcurrencyLimitRejectedRequests() {
+        return sumOfLimiters(OpaConcurrencyLimiter::getRejectedCount);
+    }
+
+    @Override
+    public long getQueryMemoHits() {
+        return queryMemo == null ? 0 : queryMemo.getHitCount();
+    }
+
+    @Override
+    public long getQueryMemoMisses() {
+        return queryMemo == null ? 0 : queryMemo.getMissCount();
+    }
+
+    @Override
+    public int getQueryMemoQueries() {
+        return queryMemo == null ? 0 : queryMemo.getQueryCount();
+    }
+
+    @Override
+    public long getOffHeapDecisionCacheHits() {
+        return offHeapDecisionCache == null ? 0 : offHeapDecisionCache.getHitCount();
+    }
+
+    @Override
+    public long getOffHeapDecisionCacheMisses() {
+        return offHeapDecisionCache == null ? 0 : offHeapDecisionCache.getMissCount();
+    }
+
+    @Override
+    public long getOffHeapDecisionCacheEvictions() {
+        return offHeapDecisionCache == null ? 0 : offHeapDecisionCache.getEvictionCount();
+    }
+
+    @Override
+    public long getOffHeapDecisionCacheSize() {
+        return offHeapDecisionCache == null ? 0 : offHeapDecisionCache.size();
+    }
+
+    @Override
+    public long getOffHeapDecisionCacheMemoryBytes() {
+        return offHeapDecisionCache == null ? 0 : offHeapDecisionCache.getMemoryBytes();
+    }
+}
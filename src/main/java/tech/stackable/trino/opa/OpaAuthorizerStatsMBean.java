@@ -0,0 +1,66 @@
+package tech.stackable.trino.opa;
+
+/**
+ * JMX view of the statistics that are not tied to a single operation, see {@link OpaAuthorizerStats}
+ */
+public interface OpaAuthorizerStatsMBean {
+    boolean isDecisionCacheEnabled();
+
+    long getDecisionCacheHits();
+
+    long getDecisionCacheMisses();
+
+    long getDecisionCacheEvictions();
+
+    long getDecisionCacheExpirations();
+
+    long getDecisionCacheInvalidations();
+
+    int getDecisionCacheSize();
+
+    long getCoalescedQueries();
+
+    int getInFlightQueries();
+
+    long getHedgedRequests();
+
+    long getEndpointEjections();
+
+    long getMicroBatches();
+
+    long getMicroBatchedQueries();
+
+    String getCircuitBreakerState();
+
+    long getCircuitBreakerTrips();
+
+    long getCircuitBreakerRejectedRequests();
+
+    long getStaleDecisions();
+
+    long getFallbackDecisions();
+
+    int getConcurrencyLimit();
+
+    int getConcurrencyLimitInFlightRequests();
+
+    int getConcurrencyLimitQueueDepth();
+
+    long getConcurrencyLimitRejectedRequests();
+
+    long getQueryMemoHits();
+
+    long getQueryMemoMisses();
+
+    int getQueryMemoQueries();
+
+    long getOffHeapDecisionCacheHits();
+
+    long getOffHeapDecisionCacheMisses();
+
+    long getOffHeapDecisionCacheEvictions();
+
+    long getOffHeapDecisionCacheSize();
+
+    long getOffHeapDecisionCacheMemoryBytes();
+}
@@ -0,0 +1,149 @@
+package tech.stackable.trino.opa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.trino.spi.eventlistener.EventListener;
+import io.trino.spi.eventlistener.QueryCompletedEvent;
+
+/**
+ * Invalidates cached decisions after statements that change schemas, tables, views or privileges
+ *
+ * Trino only reports the kind of statement (its update type) and the SQL text of a completed
+ * query, so the affected object is taken from the statement: DROP TABLE sales.orders invalidates
+ * everything cached about hive.sales.orders (with hive being the session catalog), DROP SCHEMA
+ * sales everything about hive.sales. Role statements, and statements whose object cannot be
+ * determined, invalidate everything.
+ */
+public class OpaCacheInvalidationListener implements EventListener {
+    // first words of the update types of statements that can change what a policy decides
+    private static final Set<String> INVALIDATING_STATEMENTS = Set.of(
+            "CREATE", "DROP", "ALTER", "RENAME", "ADD", "SET", "GRANT", "REVOKE", "DENY");
+
+    private static final String IDENTIFIER = "(?:\"(?:[^\"]|\"\")+\"|[\\w$@]+)";
+    private static final String QUALIFIED_NAME = "(" + IDENTIFIER + "(?:\\s*\\.\\s*" + IDENTIFIER + ")*)";
+    private static final String IF_EXISTS = "(?:IF\\s+(?:NOT\\s+)?EXISTS\\s+)?";
+    private static final Pattern TABLE_NAME = Pattern.compile(
+            "\\b(?:TABLE|VIEW)\\s+" + IF_EXISTS + QUALIFIED_NAME, Pattern.CASE_INSENSITIVE);
+    private static final Pattern SCHEMA_NAME = Pattern.compile(
+            "\\bSCHEMA\\s+" + IF_EXISTS + QUALIFIED_NAME, Pattern.CASE_INSENSITIVE);
+    private static final Pattern PRIVILEGE_OBJECT = Pattern.compile(
+            "\\bON\\s+(?:(SCHEMA|TABLE)\\s+)?" + QUALIFIED_NAME, Pattern.CASE_INSENSITIVE);
+    private static final Pattern RENAME_TARGET = Pattern.compile(
+            "\\bRENAME\\s+TO\\s+" + QUALIFIED_NAME, Pattern.CASE_INSENSITIVE);
+    private static final Pattern NAME_PART = Pattern.compile(IDENTIFIER);
+
+    private final Consumer<List<String>> invalidator;
+
+    public OpaCacheInvalidationListener(Consumer<List<String>> invalidator) {
+        this.invalidator = invalidator;
+    }
+
+    @Override
+    public void queryCompleted(QueryCompletedEvent event) {
+        Optional<String> updateType = event.getMetadata().getUpdateType();
+        if (updateType.isEmpty() || event.getFailureInfo().isPresent()) {
+            return;
+        }
+        String statement = event.getMetadata().getPreparedQuery().orElse(event.getMetadata().getQuery());
+        for (List<String> objectPath : affectedObjects(updateType.get(), statement,
+                event.getContext().getCatalog(), event.getContext().getSchema())) {
+            invalidator.accept(objectPath);
+        }
+    }
+
+    /**
+     * Returns the catalogs, schemas or tables whose cached decisions a statement invalidates, an
+     * empty path stands for everything
+     */
+    static List<List<String>> affectedObjects(String updateType, String statement, Optional<String> sessionCatalog,
+                                             Optional<String> sessionSchema) {
+        String kind = updateType.toUpperCase(Locale.ENGLISH);
+        int space = kind.indexOf(' ');
+        if (!INVALIDATING_STATEMENTS.contains(space < 0 ? kind : kind.substring(0, space))) {
+            return List.of();
+        }
+        if (kind.startsWith("SET") && !kind.contains("AUTHORIZATION")) {
+            // SET SESSION, SET ROLE, SET PATH, ... do not change any object
+            return List.of();
+        }
+        if (kind.contains("ROLE")) {
+            return List.of(List.of());
+        }
+
+        Matcher matcher;
+        boolean isSchema;
+        int nameGroup = 1;
+        if (kind.startsWith("GRANT") || kind.startsWith("REVOKE") || kind.startsWith("DENY")) {
+            matcher = PRIVILEGE_OBJECT.matcher(statement);
+            if (!matcher.find()) {
+                return List.of(List.of());
+            }
+            isSchema = "SCHEMA".equalsIgnoreCase(matcher.group(1));
+            nameGroup = 2;
+        } else {
+            isSchema = kind.contains("SCHEMA");
+            matcher = (isSchema ? SCHEMA_NAME : TABLE_NAME).matcher(statement);
+            if (!matcher.find()) {
+                return List.of(List.of());
+            }
+        }
+
+        List<List<String>> objects = new ArrayList<>();
+        Optional<List<String>> object = resolve(matcher.group(nameGroup), isSchema, sessionCatalog, sessionSchema);
+        if (object.isEmpty()) {
+            return List.of(List.of());
+        }
+        objects.add(object.get());
+        Matcher renameTarget = RENAME_TARGET.matcher(statement);
+        if (renameTarget.find(matcher.end())) {
+            // the new name may still have decisions cached from an object that was dropped before
+            Optional<List<String>> target = resolve(renameTarget.group(1), isSchema, sessionCatalog, sessionSchema);
+            if (target.isEmpty()) {
+                return List.of(List.of());
+            }
+            objects.add(target.get());
+        }
+        return objects;
+    }
+
+    /**
+     * Qualifies a schema or table name with the session catalog and schema
+     */
+    private static Optional<List<String>> resolve(String qualifiedName, boolean isSchema, Optional<String> sessionCatalog,
+                                                  Optional<String> sessionSchema) {
+        List<String> parts = new ArrayList<>();
+        Matcher part = NAME_PART.matcher(qualifiedName);
+        while (part.find()) {
+            String name = part.group();
+            if (name.startsWith("\"")) {
+                name = name.substring(1, name.length() - 1).replace("\"\"", "\"");
+            }
+            // Trino matches names of catalogs, schemas and tables case-insensitively
+            parts.add(name.toLowerCase(Locale.ENGLISH));
+        }
+        int expected = isSchema ? 2 : 3;
+        if (parts.size() > expected) {
+            return Optional.empty();
+        }
+        if (!isSchema && parts.size() == 1) {
+            if (sessionSchema.isEmpty()) {
+                return Optional.empty();
+            }
+            parts.add(0, sessionSchema.get());
+        }
+        if (parts.size() < expected) {
+            if (sessionCatalog.isEmpty()) {
+                return Optional.empty();
+            }
+            parts.add(0, sessionCatalog.get());
+        }
+        return Optional.of(List.copyOf(parts));
+    }
+}
@@ -0,0 +1,162 @@
+package tech.stackable.trino.opa;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops sending requests to OPA after a number of failures in a row
+ *
+ * Connection errors, timeouts and 5xx responses count as failures. Once the breaker is open,
+ * requests fail right away with {@link OpaQueryException.CircuitOpen}, so that callers can fall
+ * back to stale decisions instead of piling up on an OPA that is restarting. After the open
+ * duration a single probe request is let through: if it succeeds the breaker closes again,
+ * otherwise it stays open for another open duration.
+ */
+public class OpaCircuitBreaker implements OpaTransport {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final OpaTransport delegate;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final LongSupplier ticker;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile State state = State.CLOSED;
+    // guarded by this
+    private long openedAtNanos;
+    private boolean probeInFlight;
+
+    private final LongAdder trips = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder staleDecisions = new LongAdder();
+    private final LongAdder fallbackDecisions = new LongAdder();
+
+    public OpaCircuitBreaker(OpaTransport delegate, int failureThreshold, Duration openDuration) {
+        this(delegate, failureThreshold, openDuration, System::nanoTime);
+    }
+
+    OpaCircuitBreaker(OpaTransport delegate, int failureThreshold, Duration openDuration, LongSupplier ticker) {
+        this.delegate = delegate;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+        this.ticker = ticker;
+    }
+
+    @Override
+    public CompletableFuture<Response> send(URI policyUri, byte[] body, long deadlineNanos) {
+        if (!allowRequest()) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(new OpaQueryException.CircuitOpen());
+        }
+        return delegate.send(policyUri, body, deadlineNanos).whenComplete((response, error) -> {
+            if (OpaQueryException.Rejected.isRejection(error)) {
+                // never reached OPA, so it tells nothing about it
+                onRejected();
+            } else if (error == null && response.statusCode < 500) {
+                onSuccess();
+            } else {
+                onFailure();
+            }
+        });
+    }
+
+    private boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == State.OPEN && ticker.getAsLong() - openedAtNanos >= openNanos) {
+                state = State.HALF_OPEN;
+                probeInFlight = false;
+            }
+            if (state == State.HALF_OPEN && !probeInFlight) {
+                probeInFlight = true;
+                return true;
+            }
+            return state == State.CLOSED;
+        }
+    }
+
+    private void onSuccess() {
+        if (state == State.CLOSED) {
+            if (consecutiveFailures.get() != 0) {
+                consecutiveFailures.set(0);
+            }
+            return;
+        }
+        synchronized (this) {
+            state = State.CLOSED;
+            consecutiveFailures.set(0);
+            probeInFlight = false;
+        }
+    }
+
+    private void onRejected() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        synchronized (this) {
+            // let another request probe
+            if (state == State.HALF_OPEN) {
+                probeInFlight = false;
+            }
+        }
+    }
+
+    private void onFailure() {
+        if (state == State.CLOSED && consecutiveFailures.incrementAndGet() < failureThreshold) {
+            return;
+        }
+        synchronized (this) {
+            if (state != State.OPEN) {
+                state = State.OPEN;
+                openedAtNanos = ticker.getAsLong();
+                trips.increment();
+            }
+            probeInFlight = false;
+        }
+    }
+
+    /**
+     * Records that a rejected query was decided by a stale cached decision, or otherwise by the
+     * fail-open/fail-closed fallback
+     */
+    public void recordFallbackDecision(boolean stale) {
+        if (stale) {
+            staleDecisions.increment();
+        } else {
+            fallbackDecisions.increment();
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns how often the breaker opened
+     */
+    public long getTripCount() {
+        return trips.sum();
+    }
+
+    /**
+     * Returns how many requests were not sent because the breaker was open
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getStaleDecisionCount() {
+        return staleDecisions.sum();
+    }
+
+    public long getFallbackDecisionCount() {
+        return fallbackDecisions.sum();
+    }
+}
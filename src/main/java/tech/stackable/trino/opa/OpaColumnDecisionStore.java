@@ -0,0 +1,388 @@
+package tech.stackable.trino.opa;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Column decisions of FilterColumns and SelectFromColumns, one pair of bitsets per identity and
+ * table instead of one decision cache entry per column
+ *
+ * The column names of a table are numbered once, in the order they are first decided, and shared
+ * by all identities. Each (identity, table) entry holds a bitset of the columns that were allowed
+ * and one of the columns that were denied, so that checking a set of columns is a containment
+ * test. Entries are keyed like the decision cache, by the query for the table without columns.
+ *
+ * SelectFromColumns decides a set of columns at once. An allowed set is kept as a bitset of its
+ * own, and only a subset of a single allowed set counts as allowed, as the policy may not allow
+ * the union of two allowed sets (e.g. when it forbids certain columns together). This assumes
+ * that the policy allows every subset of an allowed set, and so denies every superset of a
+ * denied column.
+ *
+ * Allowed and denied columns expire separately, after the allow or deny TTL or the TTL the policy
+ * returned with the decision, see {@link OpaDecision}. A bitset expires as a whole, at the earliest
+ * expiry of the decisions it holds. Decisions the policy marked no_cache are not kept.
+ */
+public class OpaColumnDecisionStore {
+    // allowed column sets kept per entry, the oldest one is dropped first
+    private static final int MAX_ALLOWED_SETS = 16;
+
+    private final int maxEntries;
+    private final long allowTtlNanos;
+    private final long denyTtlNanos;
+    private final LongSupplier ticker;
+    // guarded by itself, access-ordered so that the least recently used entry is evicted first
+    private final LinkedHashMap<OpaQueryKey, Entry> entries;
+    // guarded by entries
+    private final OpaResourceIndex index = new OpaResourceIndex();
+    // column numbers per table, guarded by entries
+    private final Map<List<String>, ColumnIndex> tables = new HashMap<>();
+    // counts the invalidations, only changed while holding the lock on entries
+    private volatile long invalidationStamp;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public OpaColumnDecisionStore(int maxEntries, Duration allowTtl, Duration denyTtl) {
+        this(maxEntries, allowTtl, denyTtl, System::nanoTime);
+    }
+
+    OpaColumnDecisionStore(int maxEntries, Duration allowTtl, Duration denyTtl, LongSupplier ticker) {
+        this.maxEntries = maxEntries;
+        this.allowTtlNanos = allowTtl.toNanos();
+        this.denyTtlNanos = denyTtl.toNanos();
+        this.ticker = ticker;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<OpaQueryKey, Entry> eldest) {
+                if (size() > OpaColumnDecisionStore.this.maxEntries) {
+                    index.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Numbers of the column names of a table, only ever grows
+     */
+    private static final class ColumnIndex {
+        private final Map<String, Integer> numbers = new HashMap<>();
+
+        // -1 if the column has not been numbered
+        int numberOf(String column) {
+            Integer number = numbers.get(column);
+            return number == null ? -1 : number;
+        }
+
+        int intern(String column) {
+            return numbers.computeIfAbsent(column, c -> numbers.size());
+        }
+    }
+
+    /**
+     * Columns with the same decision, and when the earliest of these decisions expires
+     */
+    private static final class ColumnSet {
+        long[] bits = new long[1];
+        long expiresAtNanos;
+        boolean empty = true;
+
+        boolean contains(int number) {
+            return number >= 0 && number < bits.length * 64 && (bits[number >>> 6] & (1L << number)) != 0;
+        }
+
+        boolean containsAll(ColumnSet other) {
+            for (int word = 0; word < other.bits.length; word++) {
+                long bits = word < this.bits.length ? this.bits[word] : 0;
+                if ((other.bits[word] & ~bits) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(int number, long expiresAtNanos) {
+            int word = number >>> 6;
+            if (word >= bits.length) {
+                bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+            }
+            bits[word] |= 1L << number;
+            if (empty || expiresAtNanos - this.expiresAtNanos < 0) {
+                this.expiresAtNanos = expiresAtNanos;
+            }
+            empty = false;
+        }
+
+        void remove(int number) {
+            if (number < bits.length * 64) {
+                bits[number >>> 6] &= ~(1L << number);
+            }
+        }
+
+        // returns whether the set is empty afterwards
+        boolean expire(long now) {
+            if (!empty && now - expiresAtNanos >= 0) {
+                Arrays.fill(bits, 0);
+                empty = true;
+            }
+            return empty;
+        }
+    }
+
+    private static final class Entry {
+        // the index is kept by the entry, so that its numbers stay valid if the table's index is dropped
+        final ColumnIndex columns;
+        final ColumnSet allowed = new ColumnSet();
+        final ColumnSet denied = new ColumnSet();
+        // allowed sets of columns of SelectFromColumns, oldest first
+        final List<ColumnSet> allowedSets = new ArrayList<>(1);
+
+        Entry(ColumnIndex columns) {
+            this.columns = columns;
+        }
+
+        /**
+         * Returns whether the column was allowed, or null if it has not been decided
+         */
+        Boolean decision(String column) {
+            int number = columns.numberOf(column);
+            if (number < 0) {
+                return null;
+            }
+            if (allowed.contains(number)) {
+                return true;
+            }
+            return denied.contains(number) ? false : null;
+        }
+
+        void set(String column, boolean isAllowed, long expiresAtNanos) {
+            int number = columns.intern(column);
+            (isAllowed ? allowed : denied).add(number, expiresAtNanos);
+            (isAllowed ? denied : allowed).remove(number);
+        }
+    }
+
+    // must hold the lock of entries
+    private Entry liveEntry(OpaQueryKey key, long now) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.allowedSets.removeIf(allowedSet -> allowedSet.expire(now));
+        // not &&, both sets drop their expired columns
+        if (entry.allowed.expire(now) & entry.denied.expire(now) && entry.allowedSets.isEmpty()) {
+            entries.remove(key);
+            index.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns true if the columns are a subset of a set of columns that was allowed, false if any of
+     * them was denied, or empty if that cannot be told from the stored decisions
+     */
+    public Optional<Boolean> allowsAll(OpaQueryKey key, Collection<String> columns) {
+        long now = ticker.getAsLong();
+        synchronized (entries) {
+            Entry entry = liveEntry(key, now);
+            if (entry != null) {
+                ColumnSet requested = new ColumnSet();
+                for (String column : columns) {
+                    int number = entry.columns.numberOf(column);
+                    if (entry.denied.contains(number)) {
+                        hits.increment();
+                        return Optional.of(false);
+                    }
+                    if (requested != null && number >= 0) {
+                        requested.add(number, 0);
+                    } else {
+                        // a column that was never decided is in no allowed set
+                        requested = null;
+                    }
+                }
+                if (requested != null) {
+                    for (ColumnSet allowedSet : entry.allowedSets) {
+                        if (allowedSet.containsAll(requested)) {
+                            hits.increment();
+                            return Optional.of(true);
+                        }
+                    }
+                }
+            }
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the decided columns that were allowed, and adds the columns that have not been decided
+     * to undecided
+     */
+    public Set<String> filter(OpaQueryKey key, Collection<String> columns, Collection<String> undecided) {
+        long now = ticker.getAsLong();
+        Set<String> allowed = new HashSet<>();
+        synchronized (entries) {
+            Entry entry = liveEntry(key, now);
+            for (String column : columns) {
+                Boolean decision = entry == null ? null : entry.decision(column);
+                if (decision == null) {
+                    undecided.add(column);
+                } else if (decision) {
+                    allowed.add(column);
+                }
+            }
+        }
+        hits.add(columns.size() - undecided.size());
+        misses.add(undecided.size());
+        return allowed;
+    }
+
+    /**
+     * Returns the stamp to pass to {@link #put} or {@link #putAllowed} for decisions that is asked for now, so that it is
+     * not kept if anything is invalidated before it is put
+     */
+    public long currentStamp() {
+        return invalidationStamp;
+    }
+
+    public void put(OpaQueryKey key, Map<String, OpaDecision> decisions) {
+        put(key, decisions, currentStamp());
+    }
+
+    /**
+     * Records the decisions of columns of the table of the key, unless anything was invalidated
+     * since the stamp was taken
+     */
+    public void put(OpaQueryKey key, Map<String, OpaDecision> decisions, long stamp) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        long now = ticker.getAsLong();
+        synchronized (entries) {
+            if (stamp != invalidationStamp) {
+                return;
+            }
+            Entry entry = null;
+            for (Map.Entry<String, OpaDecision> decision : decisions.entrySet()) {
+                long ttlNanos = ttlNanos(decision.getValue());
+                if (ttlNanos <= 0) {
+                    continue;
+                }
+                if (entry == null) {
+                    entry = entry(key, now);
+                }
+                entry.set(decision.getKey(), decision.getValue().allowed, now + ttlNanos);
+            }
+        }
+    }
+
+    /**
+     * Records that a set of columns of the table of the key was allowed together
+     */
+    public void putAllowed(OpaQueryKey key, Collection<String> columns, OpaDecision decision) {
+        putAllowed(key, columns, decision, currentStamp());
+    }
+
+    public void putAllowed(OpaQueryKey key, Collection<String> columns, OpaDecision decision, long stamp) {
+        long ttlNanos = ttlNanos(decision);
+        if (maxEntries <= 0 || ttlNanos <= 0 || !decision.allowed) {
+            return;
+        }
+        long now = ticker.getAsLong();
+        synchronized (entries) {
+            if (stamp != invalidationStamp) {
+                return;
+            }
+            Entry entry = entry(key, now);
+            ColumnSet allowedSet = new ColumnSet();
+            for (String column : columns) {
+                allowedSet.add(entry.columns.intern(column), now + ttlNanos);
+            }
+            // sets within the new one are not needed anymore
+            entry.allowedSets.removeIf(allowedSet::containsAll);
+            if (entry.allowedSets.size() >= MAX_ALLOWED_SETS) {
+                entry.allowedSets.remove(0);
+            }
+            entry.allowedSets.add(allowedSet);
+        }
+    }
+
+    private long ttlNanos(OpaDecision decision) {
+        if (decision.noCache) {
+            return 0;
+        }
+        return decision.ttl.map(Duration::toNanos).orElse(decision.allowed ? allowTtlNanos : denyTtlNanos);
+    }
+
+    // must hold the lock of entries, returns the live entry of the key or a new one
+    private Entry entry(OpaQueryKey key, long now) {
+        Entry entry = liveEntry(key, now);
+        if (entry == null) {
+            ColumnIndex columns = tables.get(key.objectPath);
+            if (columns == null) {
+                if (tables.size() >= maxEntries) {
+                    // entries keep the indices they use
+                    tables.clear();
+                }
+                columns = new ColumnIndex();
+                tables.put(key.objectPath, columns);
+            }
+            entry = new Entry(columns);
+            entries.put(key, entry);
+            index.add(key);
+        }
+        return entry;
+    }
+
+    /**
+     * Drops the decisions about the given catalog, schema or table (and everything in it), an empty
+     * path drops all decisions
+     */
+    public void invalidate(List<String> objectPath) {
+        synchronized (entries) {
+            invalidationStamp++;
+            for (OpaQueryKey key : index.removePrefix(objectPath)) {
+                entries.remove(key);
+            }
+            // columns may have been renamed or dropped
+            Iterator<List<String>> tablePaths = tables.keySet().iterator();
+            while (tablePaths.hasNext()) {
+                List<String> tablePath = tablePaths.next();
+                if (tablePath.size() >= objectPath.size() && tablePath.subList(0, objectPath.size()).equals(objectPath)) {
+                    tablePaths.remove();
+                }
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Returns how many columns (or sets of columns, for allowsAll) were decided from the store
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+}
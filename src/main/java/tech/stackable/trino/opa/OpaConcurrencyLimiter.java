@@ -0,0 +1,210 @@
+package tech.stackable.trino.opa;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of requests in flight to OPA, adapting the limit to OPA's response times
+ *
+ * The limit follows AIMD: it grows by one for every limit-many fast responses while it is being
+ * used, and shrinks by 10% when a response takes more than twice the minimum round trip time
+ * (which is re-measured every 10 seconds), when a request fails or when OPA answers with 429 or
+ * 5xx. It shrinks at most once per round trip, so that a single slow burst does not collapse it.
+ *
+ * Requests over the limit wait in a bounded queue, until a slot frees up, the maximum queue wait
+ * has passed or their deadline is reached. The time spent waiting is not part of the round trip.
+ * A request that waited is sent from the common pool, not by the thread that completed the
+ * request whose slot it got.
+ */
+public class OpaConcurrencyLimiter implements OpaTransport {
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double RTT_TOLERANCE = 2.0;
+    private static final long MIN_RTT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final OpaTransport delegate;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueueSize;
+    private final long maxQueueWaitNanos;
+    private final LongSupplier ticker;
+    private final Executor queuedExecutor;
+    // guarded by this
+    private double limit;
+    private int inFlight;
+    private final ArrayDeque<CompletableFuture<Void>> queue = new ArrayDeque<>();
+    private long minRttNanos = Long.MAX_VALUE;
+    private long windowMinRttNanos = Long.MAX_VALUE;
+    private long windowStartNanos;
+    private long lastDecreaseNanos;
+
+    private final LongAdder rejected = new LongAdder();
+
+    public OpaConcurrencyLimiter(OpaTransport delegate, int initialLimit, int minLimit, int maxLimit, int maxQueueSize,
+                                 Duration maxQueueWait) {
+        this(delegate, initialLimit, minLimit, maxLimit, maxQueueSize, maxQueueWait, System::nanoTime,
+                ForkJoinPool.commonPool());
+    }
+
+    OpaConcurrencyLimiter(OpaTransport delegate, int initialLimit, int minLimit, int maxLimit, int maxQueueSize,
+                          Duration maxQueueWait, LongSupplier ticker, Executor queuedExecutor) {
+        this.delegate = delegate;
+        this.minLimit = minLimit;
+        this.maxLimit = Math.max(minLimit, maxLimit);
+        this.limit = Math.min(Math.max(initialLimit, minLimit), this.maxLimit);
+        this.maxQueueSize = maxQueueSize;
+        this.maxQueueWaitNanos = maxQueueWait.toNanos();
+        this.ticker = ticker;
+        this.queuedExecutor = queuedExecutor;
+        this.windowStartNanos = ticker.getAsLong();
+        this.lastDecreaseNanos = windowStartNanos;
+    }
+
+    @Override
+    public CompletableFuture<Response> send(URI policyUri, byte[] body, long deadlineNanos) {
+        CompletableFuture<Void> slot = null;
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+            } else if (queue.size() < maxQueueSize) {
+                slot = new CompletableFuture<>();
+                queue.add(slot);
+            } else {
+                rejected.increment();
+                return CompletableFuture.failedFuture(new OpaQueryException.Rejected(
+                        "too many requests waiting for the OPA concurrency limit"));
+            }
+        }
+        if (slot == null) {
+            return sendNow(policyUri, body, deadlineNanos);
+        }
+        CompletableFuture<Void> queued = slot;
+        long waitNanos = Math.max(Math.min(maxQueueWaitNanos, deadlineNanos - ticker.getAsLong()), 0);
+        return queued.orTimeout(waitNanos, TimeUnit.NANOSECONDS).handle((ignored, error) -> {
+            if (error != null) {
+                synchronized (this) {
+                    queue.remove(queued);
+                }
+                rejected.increment();
+                throw new OpaQueryException.Rejected("timed out waiting for the OPA concurrency limit");
+            }
+            return null;
+        }).thenComposeAsync(ignored -> sendNow(policyUri, body, deadlineNanos), queuedExecutor);
+    }
+
+    private CompletableFuture<Response> sendNow(URI policyUri, byte[] body, long deadlineNanos) {
+        long start = ticker.getAsLong();
+        CompletableFuture<Response> response;
+        try {
+            response = delegate.send(policyUri, body, deadlineNanos);
+        } catch (RuntimeException e) {
+            onComplete(0, false);
+            throw e;
+        }
+        return response.whenComplete((result, error) -> {
+            if (OpaQueryException.Rejected.isRejection(error)) {
+                // never reached OPA, only give back the slot
+                onComplete(-1, true);
+                return;
+            }
+            onComplete(ticker.getAsLong() - start, error == null && result.statusCode != 429 && result.statusCode < 500);
+        });
+    }
+
+    // a negative round trip time leaves the limit as it is
+    private void onComplete(long rttNanos, boolean succeeded) {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        synchronized (this) {
+            long now = ticker.getAsLong();
+            if (rttNanos < 0) {
+                // only free the slot
+            } else if (!succeeded) {
+                decrease(now, rttNanos);
+            } else {
+                if (now - windowStartNanos >= MIN_RTT_WINDOW_NANOS) {
+                    // forget the minimum of older windows, OPA may have become slower for good
+                    if (windowMinRttNanos != Long.MAX_VALUE) {
+                        minRttNanos = windowMinRttNanos;
+                    }
+                    windowMinRttNanos = Long.MAX_VALUE;
+                    windowStartNanos = now;
+                }
+                windowMinRttNanos = Math.min(windowMinRttNanos, rttNanos);
+                minRttNanos = Math.min(minRttNanos, rttNanos);
+                if (rttNanos > minRttNanos * RTT_TOLERANCE) {
+                    decrease(now, rttNanos);
+                } else if (inFlight >= limit / 2) {
+                    // only grow a limit that is actually used
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+            inFlight--;
+            while (inFlight < (int) limit && !queue.isEmpty()) {
+                granted.add(queue.poll());
+                inFlight++;
+            }
+        }
+        // outside the lock, completing a slot hands the waiting request to the common pool
+        for (CompletableFuture<Void> slot : granted) {
+            if (!slot.complete(null)) {
+                // timed out in the meantime, pass the slot on
+                onSlotUnused();
+            }
+        }
+    }
+
+    private void onSlotUnused() {
+        CompletableFuture<Void> next;
+        synchronized (this) {
+            next = inFlight <= (int) limit ? queue.poll() : null;
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+        }
+        if (!next.complete(null)) {
+            onSlotUnused();
+        }
+    }
+
+    // must be called while holding the lock on this
+    private void decrease(long now, long rttNanos) {
+        if (now - lastDecreaseNanos >= rttNanos) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            lastDecreaseNanos = now;
+        }
+    }
+
+    /**
+     * Returns the current limit of requests in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * Returns how many requests are waiting for a slot
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns how many requests were not sent because the queue was full or they waited too long
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -16,12 +16,42 @@ public abstract class OpaConfigException extends RuntimeException {
         }
     }
 
+    public static final class RevisionUriRequired extends OpaConfigException {
+        private static final long serialVersionUID = -4381958327614402611L;
+
+        public RevisionUriRequired() {
+            super("Decision cache snapshots require the policy revision (must be set in access control property "
+                    + OpaAuthorizerPlugin.CONFIG_OPA_POLICY_REVISION_URI + ")", null);
+        }
+    }
+
     public static final class UriInvalid extends OpaConfigException {
         private static final long serialVersionUID = 2753800944632029653L;
 
         public UriInvalid(String uri, Throwable cause) {
+            this(OpaAuthorizerPlugin.CONFIG_OPA_POLICY_URI, uri, cause);
+        }
+
+        public UriInvalid(String property, String uri, Throwable cause) {
             super("Open Policy Agent URI is invalid (see access control property "
-                    + OpaAuthorizerPlugin.CONFIG_OPA_POLICY_URI + "): " + uri, cause);
+                    + property + "): " + uri, cause);
+        }
+    }
+
+    public static final class ValueInvalid extends OpaConfigException {
+        private static final long serialVersionUID = -6325312440285733946L;
+
+        public ValueInvalid(String property, String value, Throwable cause) {
+            super("Value of access control property " + property + " is invalid: " + value, cause);
+        }
+    }
+
+    public static final class WasmPolicyInvalid extends OpaConfigException {
+        private static final long serialVersionUID = -1742630394726335071L;
+
+        public WasmPolicyInvalid(String file, Throwable cause) {
+            super("Failed to load Open Policy Agent Wasm policy (see access control property "
+                    + OpaAuthorizerPlugin.CONFIG_OPA_WASM_POLICY_FILE + "): " + file, cause);
         }
     }
 }
@@ -0,0 +1,91 @@
+package tech.stackable.trino.opa;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Decision of opa.policy.uri, with the cache directives the policy returned along with it
+ *
+ * A rule can return a plain boolean, or an object such as
+ * {"allow": true, "ttl_seconds": 3600, "cache_scope": "group", "cache_group": "analysts"} to tell
+ * the decision cache how long and for whom the decision holds:
+ * - ttl_seconds replaces the allow or deny TTL of the cache for this decision, up to MAX_TTL
+ * - cache_scope is identity (the default, the decision is only reused for the same identity),
+ *   group (reused for every member of cache_group) or global (reused for everybody)
+ * - no_cache keeps the decision out of the decision cache and the query memo
+ */
+public final class OpaDecision {
+    public static final OpaDecision ALLOW = new OpaDecision(true, Optional.empty(), CacheScope.IDENTITY, Optional.empty(), false);
+    public static final OpaDecision DENY = new OpaDecision(false, Optional.empty(), CacheScope.IDENTITY, Optional.empty(), false);
+    // longer TTLs would overflow the nanosecond deadlines of the caches
+    public static final Duration MAX_TTL = Duration.ofDays(365);
+
+    public enum CacheScope {
+        IDENTITY, GROUP, GLOBAL
+    }
+
+    public final boolean allowed;
+    public final Optional<Duration> ttl;
+    public final CacheScope cacheScope;
+    // only set for the group scope
+    public final Optional<String> cacheGroup;
+    public final boolean noCache;
+
+    public OpaDecision(boolean allowed, Optional<Duration> ttl, CacheScope cacheScope, Optional<String> cacheGroup,
+                       boolean noCache) {
+        this.allowed = allowed;
+        this.ttl = ttl;
+        this.cacheScope = cacheScope;
+        this.cacheGroup = cacheGroup;
+        this.noCache = noCache;
+    }
+
+    public static OpaDecision of(boolean allowed) {
+        return allowed ? ALLOW : DENY;
+    }
+
+    /**
+     * Reads a decision object, throws IllegalArgumentException if it has no boolean allow field or
+     * invalid directives
+     */
+    public static OpaDecision fromObject(JsonNode result) {
+        JsonNode allow = result.get("allow");
+        if (allow == null || !allow.isBoolean()) {
+            throw new IllegalArgumentException("Decision object without boolean allow field: " + result);
+        }
+        Optional<Duration> ttl = Optional.empty();
+        JsonNode ttlSeconds = result.get("ttl_seconds");
+        if (ttlSeconds != null && !ttlSeconds.isNull()) {
+            if (!ttlSeconds.isNumber() || ttlSeconds.asDouble() < 0) {
+                throw new IllegalArgumentException("Invalid ttl_seconds: " + ttlSeconds);
+            }
+            ttl = Optional.of(ttlSeconds.asDouble() >= MAX_TTL.toSeconds()
+                    ? MAX_TTL
+                    : Duration.ofMillis(Math.round(ttlSeconds.asDouble() * 1000)));
+        }
+        CacheScope scope = CacheScope.IDENTITY;
+        JsonNode cacheScope = result.get("cache_scope");
+        if (cacheScope != null && !cacheScope.isNull()) {
+            try {
+                scope = CacheScope.valueOf(cacheScope.asText().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid cache_scope: " + cacheScope, e);
+            }
+        }
+        Optional<String> group = Optional.ofNullable(result.get("cache_group"))
+                .filter(JsonNode::isTextual)
+                .map(JsonNode::textValue);
+        if (scope == CacheScope.GROUP && group.isEmpty()) {
+            // nothing to share the decision with
+            scope = CacheScope.IDENTITY;
+        }
+        boolean noCache = result.path("no_cache").asBoolean(false);
+        if (ttl.isEmpty() && scope == CacheScope.IDENTITY && !noCache) {
+            return of(allow.booleanValue());
+        }
+        return new OpaDecision(allow.booleanValue(), ttl, scope, scope == CacheScope.GROUP ? group : Optional.empty(), noCache);
+    }
+}
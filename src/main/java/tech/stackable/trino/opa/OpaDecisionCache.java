@@ -0,0 +1,446 @@
+package tech.stackable.trino.opa;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Size-bounded, time-limited cache of OPA decisions
+ *
+ * Entries are kept in least-recently-used order, once the cache is full the least recently used
+ * entry is evicted. Expired entries are dropped lazily, when they are looked up or reach the
+ * eviction end of the LRU order.
+ *
+ * Allowed and denied decisions have separate TTLs, a TTL of zero means that decisions of that kind
+ * are never cached. Decisions can also come with directives of the policy, which set a TTL of their
+ * own or share them with all users or the members of a group, see {@link OpaDecision}. Expired
+ * decisions are kept for a further stale grace period, during which they are only returned by
+ * {@link #getStale}, for when OPA cannot be reached.
+ *
+ * Decisions about a catalog, schema or table can be invalidated together, e.g. after the table was
+ * dropped, see {@link #invalidate}.
+ *
+ * The decisions can be exported with {@link #snapshot} and put back with {@link #restore}, e.g. by
+ * a new cache after a restart, see {@link OpaDecisionCacheSnapshot}.
+ *
+ * With a second level, decisions that are evicted before they expire are moved there, and looked
+ * up there if this cache has no entry for a key, see {@link OpaOffHeapDecisionCache}. The second
+ * level is only called after the lock of this cache has been released. Stale decisions and
+ * snapshots only cover this cache.
+ */
+public class OpaDecisionCache {
+    // identities of the keys of shared decisions, identities of users are hex digests and never look like these
+    static final String GLOBAL_IDENTITY = "*";
+    static final String GROUP_IDENTITY_PREFIX = "group:";
+
+    private final int maxEntries;
+    private final long allowTtlNanos;
+    private final long denyTtlNanos;
+    private final long staleGraceNanos;
+    private final LongSupplier ticker;
+    // null if there is no second level
+    private final OpaOffHeapDecisionCache secondLevel;
+    // guarded by itself, access-ordered so that iteration starts at the least recently used entry
+    private final LinkedHashMap<OpaQueryKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // guarded by entries
+    private final OpaResourceIndex index = new OpaResourceIndex();
+    // guarded by entries, whether decisions shared with everybody or a group were ever cached
+    private boolean hasSharedEntries;
+    // counts the invalidations, only changed while holding the lock on entries
+    private volatile long invalidationStamp;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public OpaDecisionCache(int maxEntries, Duration allowTtl, Duration denyTtl) {
+        this(maxEntries, allowTtl, denyTtl, Duration.ZERO);
+    }
+
+    public OpaDecisionCache(int maxEntries, Duration allowTtl, Duration denyTtl, Duration staleGrace) {
+        this(maxEntries, allowTtl, denyTtl, staleGrace, (OpaOffHeapDecisionCache) null);
+    }
+
+    public OpaDecisionCache(int maxEntries, Duration allowTtl, Duration denyTtl, Duration staleGrace,
+                            OpaOffHeapDecisionCache secondLevel) {
+        this(maxEntries, allowTtl, denyTtl, staleGrace, secondLevel, System::nanoTime);
+    }
+
+    OpaDecisionCache(int maxEntries, Duration allowTtl, Duration denyTtl, LongSupplier ticker) {
+        this(maxEntries, allowTtl, denyTtl, Duration.ZERO, null, ticker);
+    }
+
+    OpaDecisionCache(int maxEntries, Duration allowTtl, Duration denyTtl, Duration staleGrace, LongSupplier ticker) {
+        this(maxEntries, allowTtl, denyTtl, staleGrace, null, ticker);
+    }
+
+    OpaDecisionCache(int maxEntries, Duration allowTtl, Duration denyTtl, Duration staleGrace,
+                     OpaOffHeapDecisionCache secondLevel, LongSupplier ticker) {
+        this.maxEntries = maxEntries;
+        this.allowTtlNanos = allowTtl.toNanos();
+        this.denyTtlNanos = denyTtl.toNanos();
+        this.staleGraceNanos = staleGrace.toNanos();
+        this.secondLevel = secondLevel;
+        this.ticker = ticker;
+    }
+
+    private static class Entry {
+        final boolean allowed;
+        final long expiresAtNanos;
+        final long staleUntilNanos;
+
+        Entry(boolean allowed, long expiresAtNanos, long staleUntilNanos) {
+            this.allowed = allowed;
+            this.expiresAtNanos = expiresAtNanos;
+            this.staleUntilNanos = staleUntilNanos;
+        }
+    }
+
+    public Optional<Boolean> get(OpaQueryKey key) {
+        return get(key, Set.of());
+    }
+
+    /**
+     * Returns the decision for the key, or else a decision that the policy shared with everybody
+     * or with one of the given groups, see {@link OpaDecision.CacheScope}
+     *
+     * If the groups have conflicting decisions, none of them is used.
+     */
+    public Optional<Boolean> get(OpaQueryKey key, Set<String> groups) {
+        long now = ticker.getAsLong();
+        Boolean allowed;
+        // decisions of the keys that were looked up, and the keys this cache has no entry for
+        Map<OpaQueryKey, Boolean> found = new HashMap<>();
+        Set<OpaQueryKey> missing = new HashSet<>();
+        boolean shared;
+        synchronized (entries) {
+            shared = hasSharedEntries;
+            allowed = lookupShared(key, groups, shared, scopedKey -> {
+                Boolean scopedAllowed = lookup(scopedKey, now, missing);
+                found.put(scopedKey, scopedAllowed);
+                return scopedAllowed;
+            });
+        }
+        if (secondLevel != null && !missing.isEmpty()) {
+            // a missing key may take precedence over a key that was found, so look up again
+            allowed = lookupShared(key, groups, shared,
+                    scopedKey -> missing.contains(scopedKey) || !found.containsKey(scopedKey)
+                            ? secondLevel.get(scopedKey, now)
+                            : found.get(scopedKey));
+        }
+        if (allowed != null) {
+            hits.increment();
+            return Optional.of(allowed);
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    // looks up the key and then, if there are shared decisions, the keys of decisions shared with
+    // everybody or one of the groups, returns null if there is no decision
+    private static Boolean lookupShared(OpaQueryKey key, Set<String> groups, boolean shared,
+                                        Function<OpaQueryKey, Boolean> lookup) {
+        Boolean allowed = lookup.apply(key);
+        if (allowed != null || !shared) {
+            return allowed;
+        }
+        allowed = lookup.apply(key.withIdentity(GLOBAL_IDENTITY));
+        if (allowed != null) {
+            return allowed;
+        }
+        for (String group : groups) {
+            Boolean groupAllowed = lookup.apply(key.withIdentity(GROUP_IDENTITY_PREFIX + group));
+            if (groupAllowed != null && allowed != null && !groupAllowed.equals(allowed)) {
+                return null;
+            }
+            if (groupAllowed != null) {
+                allowed = groupAllowed;
+            }
+        }
+        return allowed;
+    }
+
+    // must be called while holding the lock on entries, returns null if there is no valid decision
+    // and adds the key to missing if there is no entry at all
+    private Boolean lookup(OpaQueryKey key, long now, Set<OpaQueryKey> missing) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missing.add(key);
+            return null;
+        }
+        if (now - entry.expiresAtNanos < 0) {
+            return entry.allowed;
+        }
+        if (now - entry.staleUntilNanos >= 0) {
+            entries.remove(key);
+            index.remove(key);
+            expirations.increment();
+        }
+        return null;
+    }
+
+    static boolean isShared(OpaQueryKey key) {
+        return key.identity.equals(GLOBAL_IDENTITY) || key.identity.startsWith(GROUP_IDENTITY_PREFIX);
+    }
+
+    /**
+     * Returns the cached decision even if it has expired, as long as it is within the stale grace
+     * period
+     */
+    public Optional<Boolean> getStale(OpaQueryKey key) {
+        return getStale(key, Set.of());
+    }
+
+    /**
+     * Returns the cached decision even if it has expired, as long as it is within the stale grace
+     * period, or else such a decision shared with everybody or one of the groups, like {@link #get}
+     */
+    public Optional<Boolean> getStale(OpaQueryKey key, Set<String> groups) {
+        long now = ticker.getAsLong();
+        synchronized (entries) {
+            return Optional.ofNullable(lookupShared(key, groups, hasSharedEntries, scopedKey -> {
+                Entry entry = entries.get(scopedKey);
+                return entry != null && now - entry.staleUntilNanos < 0 ? entry.allowed : null;
+            }));
+        }
+    }
+
+    /**
+     * Returns the stamp to pass to {@link #put} for a decision that is asked for now, so that it is
+     * not cached if anything is invalidated before it is put
+     */
+    public long currentStamp() {
+        return invalidationStamp;
+    }
+
+    public void put(OpaQueryKey key, boolean allowed) {
+        put(key, allowed, allowed ? allowTtlNanos : denyTtlNanos, currentStamp());
+    }
+
+    private void put(OpaQueryKey key, boolean allowed, long ttlNanos, long stamp) {
+        if (ttlNanos <= 0 || maxEntries <= 0) {
+            return;
+        }
+        long now = ticker.getAsLong();
+        List<Demotion> demotions;
+        synchronized (entries) {
+            if (stamp != invalidationStamp) {
+                return;
+            }
+            hasSharedEntries |= isShared(key);
+            if (entries.put(key, new Entry(allowed, now + ttlNanos, now + ttlNanos + staleGraceNanos)) == null) {
+                index.add(key);
+            }
+            demotions = evict(now);
+        }
+        demote(demotions, now);
+    }
+
+    /**
+     * Returns the decisions that have not gone stale yet, least recently used first
+     */
+    public List<SnapshotEntry> snapshot() {
+        long now = ticker.getAsLong();
+        synchronized (entries) {
+            List<SnapshotEntry> snapshot = new ArrayList<>(entries.size());
+            for (Map.Entry<OpaQueryKey, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                if (now - value.staleUntilNanos < 0) {
+                    snapshot.add(new SnapshotEntry(entry.getKey(), value.allowed, value.expiresAtNanos - now,
+                            value.staleUntilNanos - now));
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Puts back a decision from a snapshot, with the time it had left (which may come from a TTL of
+     * the policy, see {@link OpaDecision}), but kept stale no longer than the stale grace period of
+     * this cache
+     */
+    public void restore(SnapshotEntry snapshotEntry) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        long expiresInNanos = snapshotEntry.expiresInNanos;
+        long staleInNanos = Math.min(snapshotEntry.staleInNanos, expiresInNanos + staleGraceNanos);
+        if (staleInNanos <= 0) {
+            return;
+        }
+        long now = ticker.getAsLong();
+        List<Demotion> demotions;
+        synchronized (entries) {
+            hasSharedEntries |= isShared(snapshotEntry.key);
+            if (entries.put(snapshotEntry.key, new Entry(snapshotEntry.allowed, now + expiresInNanos, now + staleInNanos)) == null) {
+                index.add(snapshotEntry.key);
+            }
+            demotions = evict(now);
+        }
+        demote(demotions, now);
+    }
+
+    /**
+     * Decision of a snapshot, with the time left until it expires and until it goes stale
+     */
+    public static final class SnapshotEntry {
+        public final OpaQueryKey key;
+        public final boolean allowed;
+        // negative if the decision has already expired and is only kept for the stale grace period
+        public final long expiresInNanos;
+        public final long staleInNanos;
+
+        public SnapshotEntry(OpaQueryKey key, boolean allowed, long expiresInNanos, long staleInNanos) {
+            this.key = key;
+            this.allowed = allowed;
+            this.expiresInNanos = expiresInNanos;
+            this.staleInNanos = staleInNanos;
+        }
+    }
+
+    /**
+     * Caches a decision according to the directives of the policy: for its own TTL if it has one,
+     * and shared with everybody or one of the given groups (the groups of the identity) if the
+     * policy asked for it. Group-scoped decisions for a group the identity is not in are only
+     * cached for the identity.
+     */
+    public void put(OpaQueryKey key, OpaDecision decision, Set<String> groups) {
+        put(key, decision, groups, currentStamp());
+    }
+
+    /**
+     * Caches a decision like {@link #put(OpaQueryKey, OpaDecision, Set)}, unless anything was
+     * invalidated since the stamp was taken
+     */
+    public void put(OpaQueryKey key, OpaDecision decision, Set<String> groups, long stamp) {
+        if (decision.noCache) {
+            return;
+        }
+        long ttlNanos = decision.ttl.map(Duration::toNanos).orElse(decision.allowed ? allowTtlNanos : denyTtlNanos);
+        OpaQueryKey scopedKey = key;
+        if (decision.cacheScope == OpaDecision.CacheScope.GLOBAL) {
+            scopedKey = key.withIdentity(GLOBAL_IDENTITY);
+        } else if (decision.cacheScope == OpaDecision.CacheScope.GROUP && groups.contains(decision.cacheGroup.orElse(null))) {
+            scopedKey = key.withIdentity(GROUP_IDENTITY_PREFIX + decision.cacheGroup.get());
+        }
+        put(scopedKey, decision.allowed, ttlNanos, stamp);
+    }
+
+    /**
+     * Decision evicted before it expired, to be moved to the second level
+     */
+    private static final class Demotion {
+        final OpaQueryKey key;
+        final boolean allowed;
+        final long expiresAtNanos;
+        // of the second level when the decision was evicted, so that an invalidation in between drops it
+        final long stamp;
+
+        Demotion(OpaQueryKey key, boolean allowed, long expiresAtNanos, long stamp) {
+            this.key = key;
+            this.allowed = allowed;
+            this.expiresAtNanos = expiresAtNanos;
+            this.stamp = stamp;
+        }
+    }
+
+    // must be called while holding the lock on entries, returns the decisions to move to the second level
+    private List<Demotion> evict(long now) {
+        List<Demotion> demotions = List.of();
+        Iterator<Map.Entry<OpaQueryKey, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            Map.Entry<OpaQueryKey, Entry> eldestEntry = it.next();
+            Entry eldest = eldestEntry.getValue();
+            it.remove();
+            index.remove(eldestEntry.getKey());
+            if (now - eldest.staleUntilNanos >= 0) {
+                expirations.increment();
+            } else {
+                evictions.increment();
+                if (secondLevel != null && now - eldest.expiresAtNanos < 0) {
+                    if (demotions.isEmpty()) {
+                        demotions = new ArrayList<>(1);
+                    }
+                    demotions.add(new Demotion(eldestEntry.getKey(), eldest.allowed, eldest.expiresAtNanos,
+                            secondLevel.currentStamp()));
+                }
+            }
+        }
+        return demotions;
+    }
+
+    // must be called without holding the lock on entries
+    private void demote(List<Demotion> demotions, long now) {
+        for (Demotion demotion : demotions) {
+            secondLevel.put(demotion.key, demotion.allowed, demotion.expiresAtNanos, now, demotion.stamp);
+        }
+    }
+
+    /**
+     * Drops all decisions about the given catalog, schema or table (and everything in it), an
+     * empty path drops all decisions
+     */
+    public void invalidate(List<String> objectPath) {
+        synchronized (entries) {
+            invalidationStamp++;
+            for (OpaQueryKey key : index.removePrefix(objectPath)) {
+                entries.remove(key);
+                invalidations.increment();
+            }
+        }
+        if (secondLevel != null) {
+            secondLevel.invalidate(objectPath);
+        }
+    }
+
+    /**
+     * Returns how many decisions were dropped by {@link #invalidate}
+     */
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), expirations.sum(), size());
+    }
+
+    public static final class Stats {
+        public final long hitCount;
+        public final long missCount;
+        public final long evictionCount;
+        public final long expirationCount;
+        public final int size;
+
+        public Stats(long hitCount, long missCount, long evictionCount, long expirationCount, int size) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.expirationCount = expirationCount;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return "OpaDecisionCache.Stats{hits=" + hitCount + ", misses=" + missCount + ", evictions="
+                    + evictionCount + ", expirations=" + expirationCount + ", size=" + size + "}";
+        }
+    }
+}
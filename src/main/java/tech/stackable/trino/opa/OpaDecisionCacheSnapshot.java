@@ -0,0 +1,166 @@
+package tech.stackable.trino.opa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary snapshot of an {@link OpaDecisionCache}, so that a restarted coordinator starts with the
+ * decisions of the previous one instead of an empty cache
+ *
+ * A snapshot starts with a magic number, the format version, the wall clock time it was written
+ * at and the policy revision its decisions were made with, followed by the decisions. Each
+ * decision has its key, the decision and the wall clock times at which it expires and goes stale,
+ * so that the time the coordinator was down counts against the TTL. All numbers are big-endian,
+ * strings are UTF-8 prefixed with their length in bytes.
+ *
+ * Snapshots are written to a temporary file that then replaces the previous snapshot, and are read
+ * by mapping the file into memory. Snapshots of another revision are ignored.
+ *
+ * Identities are only written as the digests the keys hold, decisions whose key has a raw identity
+ * are left out. The file is created readable by its owner only.
+ */
+public final class OpaDecisionCacheSnapshot {
+    private static final int MAGIC = 0x4f504143; // OPAC
+    private static final int VERSION = 1;
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final FileAttribute<Set<PosixFilePermission>> OWNER_ONLY =
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+
+    private OpaDecisionCacheSnapshot() {
+    }
+
+    /**
+     * Writes the decisions of the cache, made with the given policy revision, to the file
+     */
+    public static void write(Path file, String revision, OpaDecisionCache cache) throws IOException {
+        write(file, revision, cache.snapshot(), System.currentTimeMillis());
+    }
+
+    static void write(Path file, String revision, List<OpaDecisionCache.SnapshotEntry> entries, long nowMillis)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(nowMillis);
+            writeString(out, revision);
+            List<OpaDecisionCache.SnapshotEntry> written = new ArrayList<>(entries.size());
+            for (OpaDecisionCache.SnapshotEntry entry : entries) {
+                if (entry.key.hasDigestIdentity() || OpaDecisionCache.isShared(entry.key)) {
+                    written.add(entry);
+                }
+            }
+            out.writeInt(written.size());
+            for (OpaDecisionCache.SnapshotEntry entry : written) {
+                writeString(out, entry.key.policy);
+                writeString(out, entry.key.identity);
+                writeString(out, entry.key.action);
+                out.writeInt(entry.key.objectPath.size());
+                for (String name : entry.key.objectPath) {
+                    writeString(out, name);
+                }
+                out.writeBoolean(entry.allowed);
+                out.writeLong(nowMillis + TimeUnit.NANOSECONDS.toMillis(entry.expiresInNanos));
+                out.writeLong(nowMillis + TimeUnit.NANOSECONDS.toMillis(entry.staleInNanos));
+            }
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + TEMPORARY_SUFFIX);
+        // a leftover of an earlier attempt could have other permissions
+        Files.deleteIfExists(temporary);
+        if (temporary.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temporary, OWNER_ONLY);
+        } else {
+            Files.createFile(temporary);
+        }
+        Files.write(temporary, bytes.toByteArray());
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Puts the decisions of the snapshot back into the cache and returns how many there were, none
+     * if the file does not exist or its decisions were made with another policy revision
+     */
+    public static int load(Path file, String revision, OpaDecisionCache cache) throws IOException {
+        return load(file, revision, cache, System.currentTimeMillis());
+    }
+
+    static int load(Path file, String revision, OpaDecisionCache cache, long nowMillis) throws IOException {
+        List<OpaDecisionCache.SnapshotEntry> entries = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a decision cache snapshot: " + file);
+            }
+            buffer.getLong();
+            if (!readString(buffer).equals(revision)) {
+                return 0;
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String policy = readString(buffer);
+                String identity = readString(buffer);
+                String action = readString(buffer);
+                int objectPathLength = buffer.getInt();
+                List<String> objectPath = new ArrayList<>(Math.min(objectPathLength, 3));
+                for (int j = 0; j < objectPathLength; j++) {
+                    objectPath.add(readString(buffer));
+                }
+                boolean allowed = buffer.get() != 0;
+                long expiresAtMillis = buffer.getLong();
+                long staleAtMillis = buffer.getLong();
+                entries.add(new OpaDecisionCache.SnapshotEntry(
+                        new OpaQueryKey(policy, identity, action, List.copyOf(objectPath)), allowed,
+                        TimeUnit.MILLISECONDS.toNanos(expiresAtMillis - nowMillis),
+                        TimeUnit.MILLISECONDS.toNanos(staleAtMillis - nowMillis)));
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated decision cache snapshot: " + file, e);
+        }
+        // only restore a complete snapshot, in the order it was taken
+        for (OpaDecisionCache.SnapshotEntry entry : entries) {
+            cache.restore(entry);
+        }
+        return entries.size();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
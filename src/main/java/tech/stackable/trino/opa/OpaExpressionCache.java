@@ -0,0 +1,131 @@
+package tech.stackable.trino.opa;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Size-bounded, time-limited cache of the row filters and column masks OPA returned for a table
+ *
+ * Works like {@link OpaDecisionCache}, but holds any value and has a single TTL. The cached values
+ * are handed out as they are, so they must be immutable.
+ */
+public class OpaExpressionCache<V> {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LongSupplier ticker;
+    // guarded by itself, access-ordered so that the least recently used entry is evicted first
+    private final LinkedHashMap<OpaQueryKey, Entry<V>> entries;
+    // guarded by entries
+    private final OpaResourceIndex index = new OpaResourceIndex();
+    // counts the invalidations, only changed while holding the lock on entries
+    private volatile long invalidationStamp;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public OpaExpressionCache(int maxEntries, Duration ttl) {
+        this(maxEntries, ttl, System::nanoTime);
+    }
+
+    OpaExpressionCache(int maxEntries, Duration ttl, LongSupplier ticker) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+        this.ticker = ticker;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<OpaQueryKey, Entry<V>> eldest) {
+                if (size() > OpaExpressionCache.this.maxEntries) {
+                    index.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAtNanos;
+
+        Entry(V value, long expiresAtNanos) {
+            this.value = value;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    public Optional<V> get(OpaQueryKey key) {
+        long now = ticker.getAsLong();
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                if (now - entry.expiresAtNanos < 0) {
+                    hits.increment();
+                    return Optional.of(entry.value);
+                }
+                entries.remove(key);
+                index.remove(key);
+            }
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the stamp to pass to {@link #put} for a value that is asked for now, so that it is
+     * not cached if anything is invalidated before it is put
+     */
+    public long currentStamp() {
+        return invalidationStamp;
+    }
+
+    public void put(OpaQueryKey key, V value) {
+        put(key, value, currentStamp());
+    }
+
+    public void put(OpaQueryKey key, V value, long stamp) {
+        if (ttlNanos <= 0 || maxEntries <= 0) {
+            return;
+        }
+        long now = ticker.getAsLong();
+        synchronized (entries) {
+            if (stamp != invalidationStamp) {
+                return;
+            }
+            if (entries.put(key, new Entry<>(value, now + ttlNanos)) == null) {
+                index.add(key);
+            }
+        }
+    }
+
+    /**
+     * Drops the expressions of the given catalog, schema or table (and everything in it), an empty
+     * path drops all expressions
+     */
+    public void invalidate(List<String> objectPath) {
+        synchronized (entries) {
+            invalidationStamp++;
+            for (OpaQueryKey key : index.removePrefix(objectPath)) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,74 @@
+package tech.stackable.trino.opa;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends policy queries to OPA over HTTP
+ *
+ * All requests are sent asynchronously on an executor owned by the transport, so that waiting for
+ * OPA never blocks threads of the shared common pool. The number of requests in flight is bounded,
+ * requests over the limit wait for a free slot until their deadline passes, without blocking the
+ * caller, see {@link OpaRequestSlots}.
+ */
+public class OpaHttpTransport implements OpaTransport {
+    private final ExecutorService executor;
+    private final HttpClient httpClient;
+    private final OpaRequestSlots inFlightSlots;
+
+    public OpaHttpTransport(int executorThreads, int maxInFlightRequests) {
+        this.executor = Executors.newFixedThreadPool(executorThreads, new DaemonThreadFactory());
+        this.httpClient = HttpClient.newBuilder().executor(executor).build();
+        this.inFlightSlots = new OpaRequestSlots(maxInFlightRequests);
+    }
+
+    @Override
+    public CompletableFuture<Response> send(URI policyUri, byte[] body, long deadlineNanos) {
+        return inFlightSlots.acquire(deadlineNanos).thenCompose(ignored -> sendInSlot(policyUri, body, deadlineNanos));
+    }
+
+    // must hold a slot, which is released once the response arrives
+    private CompletableFuture<Response> sendInSlot(URI policyUri, byte[] body, long deadlineNanos) {
+        CompletableFuture<HttpResponse<byte[]>> response;
+        try {
+            long remainingNanos = Math.max(deadlineNanos - System.nanoTime(), 1);
+            response = httpClient.sendAsync(
+                    HttpRequest.newBuilder(policyUri).header("Content-Type", "application/json")
+                            .timeout(Duration.ofNanos(remainingNanos))
+                            .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(),
+                    HttpResponse.BodyHandlers.ofByteArray());
+        } catch (Exception e) {
+            inFlightSlots.release();
+            return CompletableFuture.failedFuture(new OpaQueryException.QueryFailed(e));
+        }
+        return response.handle((httpResponse, error) -> {
+            inFlightSlots.release();
+            if (error != null) {
+                throw new OpaQueryException.QueryFailed(
+                        error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+            return new Response(httpResponse.statusCode(), httpResponse.body());
+        });
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "opa-authorizer-" + threadCount.incrementAndGet());
+            // Trino does not tell access control plugins when it shuts down
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
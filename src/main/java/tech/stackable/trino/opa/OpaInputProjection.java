@@ -0,0 +1,116 @@
+package tech.stackable.trino.opa;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.filter.TokenFilter;
+
+/**
+ * Fields of the input that are sent to OPA, per operation
+ *
+ * Fields are given as dotted paths relative to the input, such as context.identity.user or
+ * action.resource.table.schemaTableName. A field includes everything below it, arrays are
+ * transparent, i.e. action.filterResources.table selects the table of every filtered resource.
+ * action.operation is always included. Operations without fields of their own use the default
+ * fields if there are any, otherwise their input is sent in full.
+ */
+public final class OpaInputProjection {
+    public static final OpaInputProjection NONE = new OpaInputProjection(Map.of(), null);
+    // operation whose fields apply to all operations without fields of their own
+    public static final String DEFAULT_OPERATION = "default";
+    private static final String OPERATION_FIELD = "action.operation";
+
+    private final Map<String, FieldFilter> filters;
+    private final FieldFilter defaultFilter;
+
+    private OpaInputProjection(Map<String, FieldFilter> filters, FieldFilter defaultFilter) {
+        this.filters = filters;
+        this.defaultFilter = defaultFilter;
+    }
+
+    /**
+     * Builds the projection from the fields per operation, fields must be below context or action
+     */
+    public static OpaInputProjection of(Map<String, List<String>> fieldsByOperation) {
+        Map<String, FieldFilter> filters = new HashMap<>();
+        FieldFilter defaultFilter = null;
+        for (Map.Entry<String, List<String>> operation : fieldsByOperation.entrySet()) {
+            FieldFilter filter = new FieldFilter();
+            filter.add(OPERATION_FIELD.split("\\."), 0);
+            for (String field : operation.getValue()) {
+                String[] path = field.trim().split("\\.");
+                if (!path[0].equals("context") && !path[0].equals("action")) {
+                    throw new IllegalArgumentException("Input field must be below context or action: " + field);
+                }
+                for (String name : path) {
+                    if (name.isEmpty()) {
+                        throw new IllegalArgumentException("Input field has an empty name: " + field);
+                    }
+                }
+                filter.add(path, 0);
+            }
+            if (operation.getKey().equals(DEFAULT_OPERATION)) {
+                defaultFilter = filter;
+            } else {
+                filters.put(operation.getKey(), filter);
+            }
+        }
+        return new OpaInputProjection(Map.copyOf(filters), defaultFilter);
+    }
+
+    /**
+     * Returns the filter for the input of the operation, or null if it is sent in full
+     */
+    public TokenFilter filter(String operation) {
+        return filters.getOrDefault(operation, defaultFilter);
+    }
+
+    public boolean isEmpty() {
+        return filters.isEmpty() && defaultFilter == null;
+    }
+
+    /**
+     * Node of the tree of included fields, a leaf includes everything below it
+     */
+    private static final class FieldFilter extends TokenFilter {
+        private final Map<String, FieldFilter> children = new HashMap<>();
+
+        void add(String[] path, int depth) {
+            if (depth == path.length) {
+                // everything below is included, even if longer paths were added before
+                children.clear();
+                return;
+            }
+            FieldFilter child = children.get(path[depth]);
+            if (child == null) {
+                child = new FieldFilter();
+                children.put(path[depth], child);
+            } else if (child.children.isEmpty()) {
+                // a shorter path already includes everything below
+                return;
+            }
+            child.add(path, depth + 1);
+        }
+
+        @Override
+        public TokenFilter includeProperty(String name) {
+            FieldFilter child = children.get(name);
+            if (child == null) {
+                return null;
+            }
+            return child.children.isEmpty() ? TokenFilter.INCLUDE_ALL : child;
+        }
+
+        @Override
+        public TokenFilter includeElement(int index) {
+            return this;
+        }
+
+        @Override
+        protected boolean _includeScalar() {
+            // a scalar where an object with selected fields was expected
+            return false;
+        }
+    }
+}
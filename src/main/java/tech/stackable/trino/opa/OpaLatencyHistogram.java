@@ -0,0 +1,95 @@
+package tech.stackable.trino.opa;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds
+ *
+ * Values are counted in log-linear buckets: every power of two is split into 8 equally wide
+ * buckets, so reported percentiles are within ~6% of the actual value. Counts accumulate from the
+ * moment the histogram is created (or last reset).
+ */
+public class OpaLatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below this are counted exactly
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketIndex(Math.max(nanos, 0)));
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the value below which the given fraction (0.0 to 1.0) of recorded values fall, in
+     * milliseconds, or NaN if nothing has been recorded
+     */
+    public double getPercentileMillis(double fraction) {
+        return getPercentileMillis(List.of(this), fraction);
+    }
+
+    /**
+     * Returns the percentile of the values recorded in all the given histograms together, like
+     * {@link #getPercentileMillis(double)}
+     */
+    static double getPercentileMillis(List<OpaLatencyHistogram> histograms, double fraction) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (OpaLatencyHistogram histogram : histograms) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                long count = histogram.counts.get(i);
+                snapshot[i] += count;
+                total += count;
+            }
+        }
+        if (total == 0) {
+            return Double.NaN;
+        }
+        long rank = Math.max((long) Math.ceil(fraction * total), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return bucketMidpoint(i) / 1_000_000.0;
+            }
+        }
+        return bucketMidpoint(BUCKET_COUNT - 1) / 1_000_000.0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (highestBit - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    static double bucketMidpoint(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int highestBit = (index - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+        int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+        long width = 1L << (highestBit - SUB_BUCKET_BITS);
+        long lowerBound = (SUB_BUCKETS + subBucket) * width;
+        return lowerBound + width / 2.0;
+    }
+}
@@ -0,0 +1,270 @@
+package tech.stackable.trino.opa;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * Spreads policy queries over several OPA endpoints that serve the same policies
+ *
+ * Each query goes to the less busy of two randomly chosen endpoints (power of two choices, by
+ * number of outstanding requests). An endpoint that fails several requests in a row (connection
+ * errors, timeouts or 5xx responses) is ejected for a while, if all endpoints are ejected they are
+ * used anyway rather than failing every query. The transport of each endpoint can be wrapped, e.g.
+ * to limit the requests in flight to each endpoint separately.
+ *
+ * With hedging enabled, a query that has not been answered after the configured percentile of
+ * recent response times is sent to a second endpoint as well, and whichever successful response
+ * arrives first is used. The hedging thread only keeps time, hedged requests are sent from the
+ * common pool so that a slow send does not hold up the hedges of other queries.
+ */
+public class OpaLoadBalancedTransport implements OpaTransport {
+    // the hedging delay is recomputed from the latencies of every this many requests
+    private static final int LATENCY_WINDOW = 1000;
+
+    private final List<Endpoint> endpoints;
+    private final int ejectionFailures;
+    private final long ejectionNanos;
+    private final boolean hedgingEnabled;
+    private final double hedgingPercentile;
+    private final long hedgingMinDelayNanos;
+    private final ScheduledThreadPoolExecutor hedgeScheduler;
+    private final OpaLatencyHistogram latencies = new OpaLatencyHistogram();
+    private final AtomicInteger latencySamples = new AtomicInteger();
+    private volatile long hedgingDelayNanos;
+    private final LongAdder hedgedRequests = new LongAdder();
+    private final LongAdder ejections = new LongAdder();
+
+    public OpaLoadBalancedTransport(OpaTransport delegate, List<URI> endpoints, int ejectionFailures,
+                                    Duration ejectionDuration, boolean hedgingEnabled, double hedgingPercentile,
+                                    Duration hedgingMinDelay) {
+        this(delegate, UnaryOperator.identity(), endpoints, ejectionFailures, ejectionDuration, hedgingEnabled,
+                hedgingPercentile, hedgingMinDelay);
+    }
+
+    /**
+     * Sends the requests to each endpoint through the transport that endpointTransport wraps the
+     * delegate in, called once per endpoint
+     */
+    public OpaLoadBalancedTransport(OpaTransport delegate, UnaryOperator<OpaTransport> endpointTransport,
+                                    List<URI> endpoints, int ejectionFailures, Duration ejectionDuration,
+                                    boolean hedgingEnabled, double hedgingPercentile, Duration hedgingMinDelay) {
+        List<Endpoint> endpointList = new ArrayList<>();
+        for (URI endpoint : endpoints) {
+            endpointList.add(new Endpoint(endpoint, endpointTransport.apply(delegate)));
+        }
+        this.endpoints = List.copyOf(endpointList);
+        this.ejectionFailures = ejectionFailures;
+        this.ejectionNanos = ejectionDuration.toNanos();
+        this.hedgingEnabled = hedgingEnabled;
+        this.hedgingPercentile = hedgingPercentile;
+        this.hedgingMinDelayNanos = hedgingMinDelay.toNanos();
+        this.hedgingDelayNanos = hedgingMinDelayNanos;
+        if (hedgingEnabled) {
+            this.hedgeScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "opa-authorizer-hedging");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // most queries are answered before their hedge is due, do not keep the cancelled hedges around
+            hedgeScheduler.setRemoveOnCancelPolicy(true);
+        } else {
+            this.hedgeScheduler = null;
+        }
+    }
+
+    private static class Endpoint {
+        final URI baseUri;
+        final OpaTransport transport;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        volatile long ejectedUntilNanos;
+        // policy URI -> the same policy on this endpoint
+        final Map<URI, URI> policyUris = new ConcurrentHashMap<>();
+
+        Endpoint(URI baseUri, OpaTransport transport) {
+            this.baseUri = baseUri;
+            this.transport = transport;
+            this.ejectedUntilNanos = System.nanoTime();
+        }
+
+        boolean isEjected(long now) {
+            return now - ejectedUntilNanos < 0;
+        }
+
+        URI resolve(URI policyUri) {
+            return policyUris.computeIfAbsent(policyUri, uri -> {
+                try {
+                    return new URI(baseUri.getScheme(), baseUri.getAuthority(), uri.getPath(), uri.getQuery(), null);
+                } catch (URISyntaxException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Tracks the outcome of a query that may have been sent to more than one endpoint
+     */
+    private static class HedgedQuery {
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        final AtomicInteger pendingAttempts = new AtomicInteger(1);
+
+        /**
+         * Counts another attempt, returns false if every attempt has already failed
+         */
+        boolean tryAddAttempt() {
+            while (true) {
+                int pending = pendingAttempts.get();
+                if (pending == 0) {
+                    return false;
+                }
+                if (pendingAttempts.compareAndSet(pending, pending + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void onAttemptComplete(Response response, Throwable error) {
+            if (error == null && response.statusCode < 500) {
+                result.complete(response);
+            } else if (pendingAttempts.decrementAndGet() == 0) {
+                // every attempt failed, report the last failure
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(response);
+                }
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Response> send(URI policyUri, byte[] body, long deadlineNanos) {
+        Endpoint primary = choose(null);
+        if (!hedgingEnabled || endpoints.size() < 2) {
+            return sendTo(primary, policyUri, body, deadlineNanos);
+        }
+        HedgedQuery query = new HedgedQuery();
+        sendTo(primary, policyUri, body, deadlineNanos).whenComplete(query::onAttemptComplete);
+        long delayNanos = hedgingDelayNanos;
+        if (System.nanoTime() + delayNanos - deadlineNanos < 0) {
+            ScheduledFuture<?> hedge = hedgeScheduler.schedule(() -> ForkJoinPool.commonPool().execute(() -> {
+                if (query.result.isDone()) {
+                    return;
+                }
+                Endpoint secondary = choose(primary);
+                // the result may have failed in the meantime, or be about to
+                if (secondary == null || !query.tryAddAttempt()) {
+                    return;
+                }
+                hedgedRequests.increment();
+                try {
+                    sendTo(secondary, policyUri, body, deadlineNanos).whenComplete(query::onAttemptComplete);
+                } catch (RuntimeException e) {
+                    query.onAttemptComplete(null, e);
+                }
+            }), delayNanos, TimeUnit.NANOSECONDS);
+            query.result.whenComplete((response, error) -> hedge.cancel(false));
+        }
+        return query.result;
+    }
+
+    private CompletableFuture<Response> sendTo(Endpoint endpoint, URI policyUri, byte[] body, long deadlineNanos) {
+        URI uri;
+        try {
+            uri = endpoint.resolve(policyUri);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new OpaQueryException.QueryFailed(e));
+        }
+        endpoint.outstanding.incrementAndGet();
+        long start = System.nanoTime();
+        return endpoint.transport.send(uri, body, deadlineNanos).whenComplete((response, error) -> {
+            endpoint.outstanding.decrementAndGet();
+            if (OpaQueryException.Rejected.isRejection(error)) {
+                // shed by the authorizer before it reached the endpoint
+                return;
+            }
+            if (error == null && response.statusCode < 500) {
+                endpoint.consecutiveFailures.set(0);
+                recordLatency(System.nanoTime() - start);
+            } else if (endpoint.consecutiveFailures.incrementAndGet() >= ejectionFailures) {
+                endpoint.consecutiveFailures.set(0);
+                endpoint.ejectedUntilNanos = System.nanoTime() + ejectionNanos;
+                ejections.increment();
+            }
+        });
+    }
+
+    /**
+     * Picks the endpoint with fewer outstanding requests out of two random healthy ones
+     *
+     * Returns null if there is no endpoint other than the excluded one.
+     */
+    private Endpoint choose(Endpoint excluded) {
+        long now = System.nanoTime();
+        List<Endpoint> candidates = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint != excluded && !endpoint.isEjected(now)) {
+                candidates.add(endpoint);
+            }
+        }
+        if (candidates.isEmpty()) {
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint != excluded) {
+                    candidates.add(endpoint);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        Endpoint a = candidates.get(first);
+        Endpoint b = candidates.get(second);
+        return a.outstanding.get() <= b.outstanding.get() ? a : b;
+    }
+
+    private void recordLatency(long nanos) {
+        if (!hedgingEnabled) {
+            return;
+        }
+        latencies.record(nanos);
+        if (latencySamples.incrementAndGet() == LATENCY_WINDOW) {
+            // until the first window is full the minimum delay is used
+            double percentileMillis = latencies.getPercentileMillis(hedgingPercentile / 100);
+            hedgingDelayNanos = Math.max(hedgingMinDelayNanos, (long) (percentileMillis * 1_000_000));
+            latencies.reset();
+            latencySamples.set(0);
+        }
+    }
+
+    public long getHedgedRequestCount() {
+        return hedgedRequests.sum();
+    }
+
+    public long getEjectionCount() {
+        return ejections.sum();
+    }
+}
@@ -0,0 +1,71 @@
+package tech.stackable.trino.opa;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-operation statistics of an authorizer, exported as MBeans on the platform MBean server
+ *
+ * Every operation gets its own MBean named
+ * {@code tech.stackable.trino.opa:type=OpaAuthorizer,operation=<operation>} the first time it is
+ * used, the statistics that are not tied to an operation are exported as
+ * {@code tech.stackable.trino.opa:type=OpaAuthorizer,name=global}. Trino creates a new authorizer
+ * when its access control is reloaded, the MBeans of the new instance replace the old ones.
+ */
+public class OpaMetrics {
+    static final String JMX_DOMAIN = "tech.stackable.trino.opa";
+
+    private final MBeanServer mBeanServer;
+    private final Map<String, OpaOperationStats> operations = new ConcurrentHashMap<>();
+
+    public OpaMetrics() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    OpaMetrics(MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+    }
+
+    public OpaOperationStats operation(String operation) {
+        OpaOperationStats stats = operations.get(operation);
+        if (stats != null) {
+            return stats;
+        }
+        return operations.computeIfAbsent(operation, name -> {
+            OpaOperationStats created = new OpaOperationStats();
+            export(JMX_DOMAIN + ":type=OpaAuthorizer,operation=" + ObjectName.quote(name), created);
+            return created;
+        });
+    }
+
+    public Map<String, OpaOperationStats> getOperations() {
+        return Map.copyOf(operations);
+    }
+
+    public void exportGlobal(OpaAuthorizerStatsMBean stats) {
+        export(JMX_DOMAIN + ":type=OpaAuthorizer,name=global", stats);
+    }
+
+    private void export(String name, Object mBean) {
+        if (mBeanServer == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(name);
+            try {
+                mBeanServer.unregisterMBean(objectName);
+            } catch (InstanceNotFoundException e) {
+                // nothing to replace
+            }
+            mBeanServer.registerMBean(mBean, objectName);
+        } catch (JMException e) {
+            // metrics are best effort, they must never fail an authorization call
+        }
+    }
+}
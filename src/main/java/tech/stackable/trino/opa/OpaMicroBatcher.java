@@ -0,0 +1,142 @@
+package tech.stackable.trino.opa;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Collects single queries that arrive close together and sends them as one request
+ *
+ * The first query of a batch starts a timer. The batch is sent when the window has passed or
+ * when it holds the maximum number of queries, whichever comes first. The sender gets the queries
+ * of the batch and the earliest deadline among them, and completes with one decision D per query,
+ * in the same order.
+ *
+ * Batches that fill up are sent by the thread that added the last query. Batches whose window has
+ * passed are sent from the common pool, the batching thread only keeps time.
+ */
+public class OpaMicroBatcher<Q, D> {
+    private final long windowNanos;
+    private final int maxSize;
+    private final BiFunction<List<Q>, Long, CompletableFuture<List<D>>> sender;
+    private final ScheduledThreadPoolExecutor scheduler;
+    // guarded by this
+    private List<Pending<Q, D>> pending = new ArrayList<>();
+    private ScheduledFuture<?> flushTimer;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedQueries = new LongAdder();
+
+    public OpaMicroBatcher(Duration window, int maxSize, BiFunction<List<Q>, Long, CompletableFuture<List<D>>> sender) {
+        this.windowNanos = window.toNanos();
+        this.maxSize = maxSize;
+        this.sender = sender;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "opa-authorizer-micro-batching");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // batches that fill up before their window has passed cancel their timer
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    private static class Pending<Q, D> {
+        final Q query;
+        final long deadlineNanos;
+        final CompletableFuture<D> decision = new CompletableFuture<>();
+
+        Pending(Q query, long deadlineNanos) {
+            this.query = query;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    public CompletableFuture<D> submit(Q query, long deadlineNanos) {
+        Pending<Q, D> entry = new Pending<>(query, deadlineNanos);
+        List<Pending<Q, D>> full = null;
+        synchronized (this) {
+            pending.add(entry);
+            if (pending.size() >= maxSize) {
+                full = takePending();
+            } else if (pending.size() == 1) {
+                flushTimer = scheduler.schedule(() -> ForkJoinPool.commonPool().execute(this::flush), windowNanos,
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return entry.decision;
+    }
+
+    private void flush() {
+        List<Pending<Q, D>> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = takePending();
+        }
+        send(batch);
+    }
+
+    // must be called while holding the lock on this
+    private List<Pending<Q, D>> takePending() {
+        List<Pending<Q, D>> batch = pending;
+        pending = new ArrayList<>();
+        if (flushTimer != null) {
+            flushTimer.cancel(false);
+            flushTimer = null;
+        }
+        return batch;
+    }
+
+    private void send(List<Pending<Q, D>> batch) {
+        batches.increment();
+        batchedQueries.add(batch.size());
+        List<Q> queries = new ArrayList<>(batch.size());
+        long deadlineNanos = batch.get(0).deadlineNanos;
+        for (Pending<Q, D> entry : batch) {
+            queries.add(entry.query);
+            if (entry.deadlineNanos - deadlineNanos < 0) {
+                deadlineNanos = entry.deadlineNanos;
+            }
+        }
+        CompletableFuture<List<D>> decisions;
+        try {
+            decisions = sender.apply(queries, deadlineNanos);
+        } catch (RuntimeException e) {
+            decisions = CompletableFuture.failedFuture(e);
+        }
+        decisions.whenComplete((allowed, error) -> {
+            for (int i = 0; i < batch.size(); i++) {
+                if (error != null) {
+                    batch.get(i).decision.completeExceptionally(error);
+                } else {
+                    batch.get(i).decision.complete(allowed.get(i));
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns how many batches were sent
+     */
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * Returns how many queries were sent as part of a batch
+     */
+    public long getBatchedQueryCount() {
+        return batchedQueries.sum();
+    }
+}
@@ -0,0 +1,317 @@
+package tech.stackable.trino.opa;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Second level of the decision cache, kept in direct buffers outside of the Java heap
+ *
+ * Decisions evicted from {@link OpaDecisionCache} while still valid are moved here, and looked up
+ * here when the decision cache has no entry of its own. A decision takes a fixed-size slot: the
+ * 128-bit MD5 hash of its key instead of the key itself, the time it expires, a flags byte with
+ * whether it was allowed, hashes of the catalog, schema and table it is about and the invalidation
+ * stamp it was written at. Two keys with the same hash are taken to be the same key.
+ *
+ * Invalidation does not go through the slots: it records a new stamp for the hash of the path,
+ * and a decision written before the latest stamp of its catalog, schema or table is treated as
+ * gone and dropped when it is next come across. Once too many paths have stamps, they are
+ * replaced by a single stamp for all decisions.
+ *
+ * The slots are split into segments, each with a lock of its own. Within a segment, a key is
+ * looked for in a fixed number of slots starting at its hash (open addressing with linear
+ * probing). If none of them is free, the decision that expires first is dropped.
+ */
+public class OpaOffHeapDecisionCache {
+    private static final int SLOT_SIZE = 48;
+    private static final int HASH_HIGH = 0;
+    private static final int HASH_LOW = 8;
+    private static final int EXPIRES_AT = 16;
+    // catalog, schema and table, 0 if the path is shorter
+    private static final int PATH_HASHES = 24;
+    private static final int PATH_LEVELS = 3;
+    private static final int FLAGS = 36;
+    private static final byte OCCUPIED = 1;
+    private static final byte ALLOWED = 2;
+    private static final int WRITTEN_AT = 40;
+    private static final int MAX_PROBES = 8;
+    private static final int MAX_SEGMENTS = 64;
+    // so that the slots of a segment fit into a ByteBuffer
+    private static final int MAX_ENTRIES = 1 << 30;
+    private static final int MAX_INVALIDATED_PATHS = 4096;
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required to be supported by every JVM", e);
+        }
+    });
+
+    private final Segment[] segments;
+    private final int segmentSlots;
+
+    private final AtomicLong stamps = new AtomicLong();
+    // latest invalidation stamp per path level and hash, see pathStampKey, only changed while holding its lock
+    private final ConcurrentHashMap<Long, Long> invalidatedPaths = new ConcurrentHashMap<>();
+    private volatile long allInvalidatedAt;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    private static final class Segment {
+        // guarded by this segment
+        final ByteBuffer slots;
+        int size;
+
+        Segment(int slotCount) {
+            slots = ByteBuffer.allocateDirect(slotCount * SLOT_SIZE);
+        }
+    }
+
+    /**
+     * Creates a cache with room for at least maxEntries decisions, rounded up to a power of two
+     */
+    public OpaOffHeapDecisionCache(int maxEntries) {
+        if (maxEntries <= 0 || maxEntries > MAX_ENTRIES) {
+            throw new IllegalArgumentException("Off-heap decision cache must hold between 1 and " + MAX_ENTRIES
+                    + " entries: " + maxEntries);
+        }
+        int slotCount = Math.max(MAX_PROBES, Integer.highestOneBit(maxEntries - 1) << 1);
+        // segments of at least 16 probe sequences, so that probing rarely runs out of free slots
+        int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, slotCount / (16 * MAX_PROBES)));
+        this.segmentSlots = slotCount / segmentCount;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentSlots);
+        }
+    }
+
+    /**
+     * Returns whether the decision of the key was allowed, or null if there is no decision that
+     * is valid at the given time
+     */
+    public Boolean get(OpaQueryKey key, long nowNanos) {
+        long[] hash = hash(key);
+        Segment segment = segment(hash);
+        synchronized (segment) {
+            int slot = find(segment, hash);
+            if (slot >= 0) {
+                int offset = slot * SLOT_SIZE;
+                if (isLive(segment, offset, nowNanos)) {
+                    hits.increment();
+                    return (segment.slots.get(offset + FLAGS) & ALLOWED) != 0;
+                }
+                clear(segment, offset);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Returns the stamp to pass to {@link #put} for a decision that is read now, so that it is
+     * dropped if it is invalidated before it is put
+     */
+    public long currentStamp() {
+        return stamps.get();
+    }
+
+    public void put(OpaQueryKey key, boolean allowed, long expiresAtNanos, long nowNanos) {
+        put(key, allowed, expiresAtNanos, nowNanos, currentStamp());
+    }
+
+    public void put(OpaQueryKey key, boolean allowed, long expiresAtNanos, long nowNanos, long stamp) {
+        long[] hash = hash(key);
+        Segment segment = segment(hash);
+        synchronized (segment) {
+            int slot = find(segment, hash);
+            if (slot < 0) {
+                slot = freeSlot(segment, hash, nowNanos);
+            }
+            int offset = slot * SLOT_SIZE;
+            ByteBuffer slots = segment.slots;
+            slots.putLong(offset + HASH_HIGH, hash[0]);
+            slots.putLong(offset + HASH_LOW, hash[1]);
+            slots.putLong(offset + EXPIRES_AT, expiresAtNanos);
+            slots.putLong(offset + WRITTEN_AT, stamp);
+            for (int level = 0; level < PATH_LEVELS; level++) {
+                slots.putInt(offset + PATH_HASHES + 4 * level,
+                        level < key.objectPath.size() ? pathHash(key.objectPath.subList(0, level + 1)) : 0);
+            }
+            slots.put(offset + FLAGS, (byte) (OCCUPIED | (allowed ? ALLOWED : 0)));
+        }
+    }
+
+    // must hold the lock of the segment, returns the slot of the hash or -1
+    private int find(Segment segment, long[] hash) {
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int offset = slot(hash, probe) * SLOT_SIZE;
+            if ((segment.slots.get(offset + FLAGS) & OCCUPIED) != 0
+                    && segment.slots.getLong(offset + HASH_HIGH) == hash[0]
+                    && segment.slots.getLong(offset + HASH_LOW) == hash[1]) {
+                return slot(hash, probe);
+            }
+        }
+        return -1;
+    }
+
+    // must hold the lock of the segment, whether the slot holds a decision that has neither expired
+    // nor been invalidated
+    private boolean isLive(Segment segment, int offset, long nowNanos) {
+        ByteBuffer slots = segment.slots;
+        if (nowNanos - slots.getLong(offset + EXPIRES_AT) >= 0) {
+            return false;
+        }
+        long writtenAt = slots.getLong(offset + WRITTEN_AT);
+        boolean invalidated = writtenAt < allInvalidatedAt;
+        for (int level = 0; level < PATH_LEVELS && !invalidated; level++) {
+            int pathHash = slots.getInt(offset + PATH_HASHES + 4 * level);
+            if (pathHash == 0) {
+                break;
+            }
+            Long invalidatedAt = invalidatedPaths.get(pathStampKey(level, pathHash));
+            invalidated = invalidatedAt != null && writtenAt < invalidatedAt;
+        }
+        if (invalidated) {
+            invalidations.increment();
+        }
+        return !invalidated;
+    }
+
+    // must hold the lock of the segment, returns an empty, expired or invalidated slot, or else the
+    // one that expires first
+    private int freeSlot(Segment segment, long[] hash, long nowNanos) {
+        int victim = -1;
+        long victimExpiresAt = 0;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = slot(hash, probe);
+            int offset = slot * SLOT_SIZE;
+            if ((segment.slots.get(offset + FLAGS) & OCCUPIED) == 0) {
+                segment.size++;
+                return slot;
+            }
+            if (!isLive(segment, offset, nowNanos)) {
+                return slot;
+            }
+            long expiresAt = segment.slots.getLong(offset + EXPIRES_AT);
+            if (victim < 0 || expiresAt - victimExpiresAt < 0) {
+                victim = slot;
+                victimExpiresAt = expiresAt;
+            }
+        }
+        evictions.increment();
+        return victim;
+    }
+
+    // must hold the lock of the segment
+    private static void clear(Segment segment, int offset) {
+        segment.slots.put(offset + FLAGS, (byte) 0);
+        segment.size--;
+    }
+
+    private Segment segment(long[] hash) {
+        return segments[(int) (hash[0] >>> 32) & (segments.length - 1)];
+    }
+
+    private int slot(long[] hash, int probe) {
+        return ((int) hash[1] + probe) & (segmentSlots - 1);
+    }
+
+    private static long[] hash(OpaQueryKey key) {
+        MessageDigest md5 = MD5.get();
+        md5.update(key.policy.getBytes(StandardCharsets.UTF_8));
+        md5.update((byte) 0);
+        md5.update(key.identity.getBytes(StandardCharsets.UTF_8));
+        md5.update((byte) 0);
+        ByteBuffer digest = ByteBuffer.wrap(md5.digest(key.action.getBytes(StandardCharsets.UTF_8)));
+        return new long[] {digest.getLong(), digest.getLong()};
+    }
+
+    private static long pathStampKey(int level, int pathHash) {
+        return ((long) level << 32) | (pathHash & 0xffffffffL);
+    }
+
+    // never 0, which marks a path that is shorter
+    private static int pathHash(List<String> path) {
+        int hash = path.hashCode();
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Drops all decisions about the given catalog, schema or table (and everything in it), an
+     * empty path drops all decisions
+     *
+     * Takes constant time, the slots are only freed when they are next looked at. May drop decisions
+     * about other objects whose names have the same hash.
+     */
+    public void invalidate(List<String> objectPath) {
+        int level = Math.min(objectPath.size(), PATH_LEVELS) - 1;
+        synchronized (invalidatedPaths) {
+            long stamp = stamps.incrementAndGet();
+            if (level < 0 || invalidatedPaths.size() >= MAX_INVALIDATED_PATHS) {
+                allInvalidatedAt = stamp;
+                invalidatedPaths.clear();
+            } else {
+                invalidatedPaths.put(pathStampKey(level, pathHash(objectPath.subList(0, level + 1))), stamp);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of decisions, including expired and invalidated ones that have not been
+     * dropped yet
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of decisions the cache has room for
+     */
+    public long capacity() {
+        return (long) segments.length * segmentSlots;
+    }
+
+    /**
+     * Returns the off-heap memory taken by the slots
+     */
+    public long getMemoryBytes() {
+        return capacity() * SLOT_SIZE;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns how many valid decisions were dropped for lack of a free slot
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns how many decisions were dropped after they were invalidated
+     */
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+}
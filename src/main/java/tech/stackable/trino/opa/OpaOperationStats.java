@@ -0,0 +1,267 @@
+package tech.stackable.trino.opa;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics for one authorization operation (such as "SelectFromColumns" or "FilterTables")
+ *
+ * A call is one invocation of the authorizer, the latency of a call includes cache lookups and
+ * waiting for all OPA requests it needed. Filter calls count one decision per filtered element.
+ * The serialization, network and deserialization times are measured per OPA request, which is
+ * why they are counted separately from calls.
+ *
+ * Counters accumulate from the start (or the last reset), percentiles are those of the last one
+ * and five minutes, see {@link OpaRollingLatencyHistogram}.
+ */
+public class OpaOperationStats implements OpaOperationStatsMBean {
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+    private final LongAdder queryFailedErrors = new LongAdder();
+    private final LongAdder serializeFailedErrors = new LongAdder();
+    private final LongAdder deserializeFailedErrors = new LongAdder();
+    private final LongAdder policyNotFoundErrors = new LongAdder();
+    private final LongAdder opaServerErrors = new LongAdder();
+    private final LongAdder circuitOpenErrors = new LongAdder();
+    private final LongAdder rejectedErrors = new LongAdder();
+    private final LongAdder opaRequests = new LongAdder();
+    private final OpaRollingLatencyHistogram latency = new OpaRollingLatencyHistogram();
+    private final OpaRollingLatencyHistogram serialization = new OpaRollingLatencyHistogram();
+    private final OpaRollingLatencyHistogram network = new OpaRollingLatencyHistogram();
+    private final OpaRollingLatencyHistogram deserialization = new OpaRollingLatencyHistogram();
+
+    public void recordCall(long nanos) {
+        calls.increment();
+        latency.record(nanos);
+    }
+
+    public void recordDecisions(long allowedCount, long deniedCount) {
+        allowed.add(allowedCount);
+        denied.add(deniedCount);
+    }
+
+    public void recordError(OpaQueryException error) {
+        if (error instanceof OpaQueryException.QueryFailed) {
+            queryFailedErrors.increment();
+        } else if (error instanceof OpaQueryException.SerializeFailed) {
+            serializeFailedErrors.increment();
+        } else if (error instanceof OpaQueryException.DeserializeFailed) {
+            deserializeFailedErrors.increment();
+        } else if (error instanceof OpaQueryException.PolicyNotFound) {
+            policyNotFoundErrors.increment();
+        } else if (error instanceof OpaQueryException.OpaServerError) {
+            opaServerErrors.increment();
+        } else if (error instanceof OpaQueryException.CircuitOpen) {
+            circuitOpenErrors.increment();
+        } else if (error instanceof OpaQueryException.Rejected) {
+            rejectedErrors.increment();
+        }
+    }
+
+    public void recordSerialization(long nanos) {
+        serialization.record(nanos);
+    }
+
+    public void recordNetwork(long nanos) {
+        opaRequests.increment();
+        network.record(nanos);
+    }
+
+    public void recordDeserialization(long nanos) {
+        deserialization.record(nanos);
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getAllowed() {
+        return allowed.sum();
+    }
+
+    @Override
+    public long getDenied() {
+        return denied.sum();
+    }
+
+    @Override
+    public long getQueryFailedErrors() {
+        return queryFailedErrors.sum();
+    }
+
+    @Override
+    public long getSerializeFailedErrors() {
+        return serializeFailedErrors.sum();
+    }
+
+    @Override
+    public long getDeserializeFailedErrors() {
+        return deserializeFailedErrors.sum();
+    }
+
+    @Override
+    public long getPolicyNotFoundErrors() {
+        return policyNotFoundErrors.sum();
+    }
+
+    @Override
+    public long getOpaServerErrors() {
+        return opaServerErrors.sum();
+    }
+
+    @Override
+    public long getCircuitOpenErrors() {
+        return circuitOpenErrors.sum();
+    }
+
+    @Override
+    public long getRejectedErrors() {
+        return rejectedErrors.sum();
+    }
+
+    @Override
+    public double getLatencyOneMinuteP50() {
+        return latency.getPercentileMillis(0.5, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getLatencyOneMinuteP99() {
+        return latency.getPercentileMillis(0.99, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getLatencyOneMinuteP999() {
+        return latency.getPercentileMillis(0.999, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getLatencyFiveMinutesP50() {
+        return latency.getPercentileMillis(0.5, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public double getLatencyFiveMinutesP99() {
+        return latency.getPercentileMillis(0.99, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public double getLatencyFiveMinutesP999() {
+        return latency.getPercentileMillis(0.999, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public long getOpaRequests() {
+        return opaRequests.sum();
+    }
+
+    @Override
+    public double getSerializationOneMinuteP50() {
+        return serialization.getPercentileMillis(0.5, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getSerializationOneMinuteP99() {
+        return serialization.getPercentileMillis(0.99, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getSerializationOneMinuteP999() {
+        return serialization.getPercentileMillis(0.999, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getSerializationFiveMinutesP50() {
+        return serialization.getPercentileMillis(0.5, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public double getSerializationFiveMinutesP99() {
+        return serialization.getPercentileMillis(0.99, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public double getSerializationFiveMinutesP999() {
+        return serialization.getPercentileMillis(0.999, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public double getNetworkOneMinuteP50() {
+        return network.getPercentileMillis(0.5, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getNetworkOneMinuteP99() {
+        return network.getPercentileMillis(0.99, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getNetworkOneMinuteP999() {
+        return network.getPercentileMillis(0.999, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getNetworkFiveMinutesP50() {
+        return network.getPercentileMillis(0.5, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public double getNetworkFiveMinutesP99() {
+        return network.getPercentileMillis(0.99, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public double getNetworkFiveMinutesP999() {
+        return network.getPercentileMillis(0.999, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public double getDeserializationOneMinuteP50() {
+        return deserialization.getPercentileMillis(0.5, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getDeserializationOneMinuteP99() {
+        return deserialization.getPercentileMillis(0.99, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getDeserializationOneMinuteP999() {
+        return deserialization.getPercentileMillis(0.999, OpaRollingLatencyHistogram.ONE_MINUTE);
+    }
+
+    @Override
+    public double getDeserializationFiveMinutesP50() {
+        return deserialization.getPercentileMillis(0.5, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public double getDeserializationFiveMinutesP99() {
+        return deserialization.getPercentileMillis(0.99, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public double getDeserializationFiveMinutesP999() {
+        return deserialization.getPercentileMillis(0.999, OpaRollingLatencyHistogram.FIVE_MINUTES);
+    }
+
+    @Override
+    public void reset() {
+        calls.reset();
+        allowed.reset();
+        denied.reset();
+        queryFailedErrors.reset();
+        serializeFailedErrors.reset();
+        deserializeFailedErrors.reset();
+        policyNotFoundErrors.reset();
+        opaServerErrors.reset();
+        circuitOpenErrors.reset();
+        rejectedErrors.reset();
+        opaRequests.reset();
+        latency.reset();
+        serialization.reset();
+        network.reset();
+        deserialization.reset();
+    }
+}
@@ -0,0 +1,80 @@
+package tech.stackable.trino.opa;
+
+/**
+ * JMX view of the statistics for one authorization operation, see {@link OpaOperationStats}
+ *
+ * Latencies are in milliseconds, over the last one or five minutes.
+ */
+public interface OpaOperationStatsMBean {
+    long getCalls();
+
+    long getAllowed();
+
+    long getDenied();
+
+    long getQueryFailedErrors();
+
+    long getSerializeFailedErrors();
+
+    long getDeserializeFailedErrors();
+
+    long getPolicyNotFoundErrors();
+
+    long getOpaServerErrors();
+
+    long getCircuitOpenErrors();
+
+    long getRejectedErrors();
+
+    double getLatencyOneMinuteP50();
+
+    double getLatencyOneMinuteP99();
+
+    double getLatencyOneMinuteP999();
+
+    double getLatencyFiveMinutesP50();
+
+    double getLatencyFiveMinutesP99();
+
+    double getLatencyFiveMinutesP999();
+
+    long getOpaRequests();
+
+    double getSerializationOneMinuteP50();
+
+    double getSerializationOneMinuteP99();
+
+    double getSerializationOneMinuteP999();
+
+    double getSerializationFiveMinutesP50();
+
+    double getSerializationFiveMinutesP99();
+
+    double getSerializationFiveMinutesP999();
+
+    double getNetworkOneMinuteP50();
+
+    double getNetworkOneMinuteP99();
+
+    double getNetworkOneMinuteP999();
+
+    double getNetworkFiveMinutesP50();
+
+    double getNetworkFiveMinutesP99();
+
+    double getNetworkFiveMinutesP999();
+
+    double getDeserializationOneMinuteP50();
+
+    double getDeserializationOneMinuteP99();
+
+    double getDeserializationOneMinuteP999();
+
+    double getDeserializationFiveMinutesP50();
+
+    double getDeserializationFiveMinutesP99();
+
+    double getDeserializationFiveMinutesP999();
+
+    void reset();
+}
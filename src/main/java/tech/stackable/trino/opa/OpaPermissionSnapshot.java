@@ -0,0 +1,162 @@
+package tech.stackable.trino.opa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Everything a user is granted, as returned by opa.policy.permissions-uri, indexed for deciding
+ * catalog, schema, table and column access without asking OPA
+ *
+ * The policy returns an object such as
+ * {"catalogs": ["hive"], "tables": [{"catalog": "hive", "schema": "sales", "table": "*"}],
+ *  "column_denials": [{"catalog": "hive", "schema": "sales", "table": "orders", "columns": ["ssn"]}]}
+ * where every name can be * to match any name. Catalogs are granted by catalogs, tables by
+ * tables, and a schema is granted if any table pattern matches a table in it. Columns of a granted
+ * table are granted unless a matching column denial lists them.
+ *
+ * The patterns are kept in a tree with one level per catalog, schema and table, wildcards are
+ * children named *. Immutable once built.
+ */
+public final class OpaPermissionSnapshot {
+    static final String WILDCARD = "*";
+
+    private static final class Node {
+        Map<String, Node> children = Map.of();
+        // catalog access for catalogs, table access for tables
+        boolean granted;
+        // whether a table below is granted, only used for catalogs and schemas
+        boolean grantsBelow;
+        Set<String> deniedColumns = Set.of();
+
+        Node child(String name) {
+            if (children.isEmpty()) {
+                children = new HashMap<>();
+            }
+            return children.computeIfAbsent(name, n -> new Node());
+        }
+
+        /**
+         * Adds the children matching name, by name and by wildcard, to the list
+         */
+        void match(String name, List<Node> into) {
+            Node exact = children.get(name);
+            if (exact != null) {
+                into.add(exact);
+            }
+            Node wildcard = children.get(WILDCARD);
+            if (wildcard != null && wildcard != exact) {
+                into.add(wildcard);
+            }
+        }
+    }
+
+    private final Node root;
+
+    private OpaPermissionSnapshot(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Builds the snapshot from the result of the permissions rule, throws IllegalArgumentException
+     * if it is malformed
+     */
+    public static OpaPermissionSnapshot fromResult(JsonNode result) {
+        if (result == null || !result.isObject()) {
+            throw new IllegalArgumentException("Permission snapshot must be an object: " + result);
+        }
+        Node root = new Node();
+        for (JsonNode catalog : array(result, "catalogs")) {
+            root.child(name(catalog, "catalogs")).granted = true;
+        }
+        for (JsonNode table : array(result, "tables")) {
+            Node catalog = root.child(field(table, "catalog"));
+            Node schema = catalog.child(field(table, "schema"));
+            schema.child(field(table, "table")).granted = true;
+            catalog.grantsBelow = true;
+            schema.grantsBelow = true;
+        }
+        for (JsonNode denial : array(result, "column_denials")) {
+            Node table = root.child(field(denial, "catalog")).child(field(denial, "schema")).child(field(denial, "table"));
+            Set<String> columns = new HashSet<>(table.deniedColumns);
+            for (JsonNode column : array(denial, "columns")) {
+                columns.add(name(column, "columns"));
+            }
+            table.deniedColumns = Set.copyOf(columns);
+        }
+        return new OpaPermissionSnapshot(root);
+    }
+
+    private static Iterable<JsonNode> array(JsonNode object, String field) {
+        JsonNode array = object.get(field);
+        if (array == null || array.isNull()) {
+            return List.of();
+        }
+        if (!array.isArray()) {
+            throw new IllegalArgumentException("Permission snapshot field " + field + " must be an array: " + array);
+        }
+        return array;
+    }
+
+    private static String field(JsonNode object, String field) {
+        if (!object.isObject()) {
+            throw new IllegalArgumentException("Permission snapshot pattern must be an object: " + object);
+        }
+        return name(object.get(field), field);
+    }
+
+    private static String name(JsonNode name, String field) {
+        if (name == null || !name.isTextual()) {
+            throw new IllegalArgumentException("Permission snapshot field " + field + " must be a string: " + name);
+        }
+        return name.textValue();
+    }
+
+    private List<Node> match(String... path) {
+        List<Node> nodes = List.of(root);
+        for (String name : path) {
+            List<Node> matched = new ArrayList<>(2);
+            for (Node node : nodes) {
+                node.match(name, matched);
+            }
+            if (matched.isEmpty()) {
+                return matched;
+            }
+            nodes = matched;
+        }
+        return nodes;
+    }
+
+    public boolean canAccessCatalog(String catalog) {
+        return match(catalog).stream().anyMatch(node -> node.granted);
+    }
+
+    public boolean canAccessSchema(String catalog, String schema) {
+        return match(catalog, schema).stream().anyMatch(node -> node.grantsBelow);
+    }
+
+    public boolean canAccessTable(String catalog, String schema, String table) {
+        return match(catalog, schema, table).stream().anyMatch(node -> node.granted);
+    }
+
+    /**
+     * Returns whether the table is granted and no matching column denial lists any of the columns
+     */
+    public boolean canSelectFromColumns(String catalog, String schema, String table, Set<String> columns) {
+        boolean granted = false;
+        for (Node node : match(catalog, schema, table)) {
+            granted |= node.granted;
+            for (String column : node.deniedColumns) {
+                if (columns.contains(column)) {
+                    return false;
+                }
+            }
+        }
+        return granted;
+    }
+}
@@ -1,6 +1,7 @@
 package tech.stackable.trino.opa;
 
-import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletionException;
 
 public abstract class OpaQueryException extends RuntimeException {
     private static final long serialVersionUID = -289639728596358946L;
@@ -44,10 +45,68 @@ public abstract class OpaQueryException extends RuntimeException {
 
     public static final class OpaServerError extends OpaQueryException {
         private static final long serialVersionUID = 3141599137357908279L;
+        // longer bodies are cut off in the message
+        private static final int MAX_BODY_LENGTH = 4096;
 
-        public <T> OpaServerError(String policyName, HttpResponse<T> response) {
-            super("OPA server returned status " + response.statusCode() + " when processing policy "
-                    + policyName + ": " + response.body(), null);
+        private final String policyName;
+        private final int statusCode;
+        // decoded into the message only when it is asked for, errors are often only counted
+        private final byte[] body;
+        private String message;
+
+        public OpaServerError(String policyName, int statusCode, String body) {
+            this(policyName, statusCode, body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public OpaServerError(String policyName, int statusCode, byte[] body) {
+            super(null, null);
+            this.policyName = policyName;
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        @Override
+        public synchronized String getMessage() {
+            if (message == null) {
+                String text = new String(body, 0, Math.min(body.length, MAX_BODY_LENGTH), StandardCharsets.UTF_8);
+                message = "OPA server returned status " + statusCode + " when processing policy "
+                        + policyName + ": " + text + (body.length > MAX_BODY_LENGTH ? "..." : "");
+            }
+            return message;
+        }
+    }
+
+    /**
+     * The request was not sent because the authorizer itself had no room for it (a full queue or no
+     * free slot in time), which says nothing about the health of OPA
+     */
+    public static final class Rejected extends OpaQueryException {
+        private static final long serialVersionUID = 6059215381537219735L;
+
+        public Rejected(String message) {
+            super("Not querying OPA backend: " + message, null);
+        }
+
+        /**
+         * Returns whether the error, possibly wrapped by a completion stage, is a rejection
+         */
+        public static boolean isRejection(Throwable error) {
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            return error instanceof Rejected;
+        }
+    }
+
+    public static final class CircuitOpen extends OpaQueryException {
+        private static final long serialVersionUID = -3416735520194725867L;
+
+        public CircuitOpen() {
+            super("Not querying OPA backend, it failed too many requests in a row (circuit breaker is open)", null);
         }
     }
 }
@@ -1,14 +1,25 @@
 package tech.stackable.trino.opa;
 
+import java.util.List;
+
 public class OpaQueryInputAction {
     public final String operation;
     public final OpaQueryInputResource resource;
+    // only set for batched filter queries, the policy answers with the indices of the allowed resources
+    public final List<OpaQueryInputResource> filterResources;
     public OpaQueryInputAction(String operation) {
         this.operation = operation;
         this.resource = null;
+        this.filterResources = null;
     }
     public OpaQueryInputAction(String operation, OpaQueryInputResource resource) {
         this.operation = operation;
         this.resource = resource;
+        this.filterResources = null;
+    }
+    public OpaQueryInputAction(String operation, List<OpaQueryInputResource> filterResources) {
+        this.operation = operation;
+        this.resource = null;
+        this.filterResources = filterResources;
     }
 }
@@ -8,6 +8,7 @@ import io.trino.spi.function.FunctionKind;
 import io.trino.spi.security.Identity;
 import io.trino.spi.security.TrinoPrincipal;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -86,6 +87,8 @@ public class OpaQueryInputResource {
         public String column;
         public TrinoPrincipal principal;
         public Set<String> columns;
+        // not sent to OPA, only used to find cached decisions of the table
+        private String schemaTableCatalogName;
 
         public Table(CatalogSchemaTableName catalogSchemaTableName) {
             this.catalogSchemaTableName = catalogSchemaTableName;
@@ -103,6 +106,7 @@ public class OpaQueryInputResource {
 
         public Table(String catalogName, SchemaTableName schemaTableName) {
             this.schemaTableName = schemaTableName;
+            this.schemaTableCatalogName = catalogName;
         }
 
         public Table(CatalogSchemaTableName catalogSchemaTableName, String column) {
@@ -251,6 +255,59 @@ public class OpaQueryInputResource {
         }
     }
 
+    /**
+     * Returns the catalog, schema and table (as far as known) the resource belongs to, or an empty
+     * list if it does not belong to any catalog
+     */
+    List<String> objectPath() {
+        if (catalog != null) {
+            return List.of(catalog.name);
+        }
+        if (schema != null) {
+            if (schema.catalogSchemaName != null) {
+                return path(schema.catalogSchemaName);
+            }
+            return schema.catalogName != null ? List.of(schema.catalogName) : List.of();
+        }
+        if (table != null) {
+            if (table.catalogSchemaTableName != null) {
+                return path(table.catalogSchemaTableName);
+            }
+            if (table.schemaTableName != null && table.schemaTableCatalogName != null) {
+                return List.of(table.schemaTableCatalogName, table.schemaTableName.getSchemaName(),
+                        table.schemaTableName.getTableName());
+            }
+            return List.of();
+        }
+        if (view != null && view.view != null) {
+            return path(view.view);
+        }
+        if (authorization != null) {
+            if (authorization.table != null) {
+                return path(authorization.table);
+            }
+            return authorization.schema != null ? path(authorization.schema) : List.of();
+        }
+        if (execution != null) {
+            if (execution.table != null) {
+                return path(execution.table);
+            }
+            if (execution.routine != null) {
+                return List.of(execution.routine.getCatalogName(), execution.routine.getSchemaName());
+            }
+        }
+        return List.of();
+    }
+
+    private static List<String> path(CatalogSchemaName schema) {
+        return List.of(schema.getCatalogName(), schema.getSchemaName());
+    }
+
+    private static List<String> path(CatalogSchemaTableName table) {
+        return List.of(table.getCatalogName(), table.getSchemaTableName().getSchemaName(),
+                table.getSchemaTableName().getTableName());
+    }
+
     public OpaQueryInputResource(OpaQueryInputResource.Builder builder) {
         this.user = builder.user;
         this.query = builder.query;
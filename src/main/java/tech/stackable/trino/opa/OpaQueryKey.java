@@ -0,0 +1,103 @@
+package tech.stackable.trino.opa;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Canonical form of an {@link OpaQueryInput}, used to recognize identical OPA questions
+ *
+ * Only the parts of the input that can influence a policy decision are part of the key: the
+ * identity of the caller and the action (operation and resource). The query ID is deliberately
+ * left out, so that the same question asked by two queries maps to the same key. Questions asked
+ * to another rule than opa.policy.uri are told apart by the path of that rule.
+ *
+ * The identity is kept as a digest, see {@link #digestIdentity}, so that its credentials are not
+ * held by caches or written to snapshots.
+ */
+public final class OpaQueryKey {
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported by every JVM", e);
+        }
+    });
+    private static final int DIGEST_LENGTH = 64;
+
+    // empty for opa.policy.uri
+    public final String policy;
+    public final String identity;
+    public final String action;
+    // catalog, schema and table the action is about, derived from the action and therefore not
+    // part of equality, see OpaQueryInputResource.objectPath
+    public final List<String> objectPath;
+    private final int hash;
+
+    public OpaQueryKey(String identity, String action) {
+        this("", identity, action, List.of());
+    }
+
+    public OpaQueryKey(String policy, String identity, String action, List<String> objectPath) {
+        this.policy = policy;
+        this.identity = identity;
+        this.action = action;
+        this.objectPath = objectPath;
+        this.hash = Objects.hash(policy, identity, action);
+    }
+
+    /**
+     * Returns the hex-encoded SHA-256 digest of a canonical identity
+     */
+    public static String digestIdentity(String identity) {
+        return HexFormat.of().formatHex(SHA256.get().digest(identity.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Returns whether the identity of the key is a digest, as opposed to a raw identity
+     */
+    public boolean hasDigestIdentity() {
+        if (identity.length() != DIGEST_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            if (Character.digit(identity.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the key of the same question asked by another identity
+     */
+    public OpaQueryKey withIdentity(String identity) {
+        return new OpaQueryKey(policy, identity, action, objectPath);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof OpaQueryKey)) {
+            return false;
+        }
+        OpaQueryKey that = (OpaQueryKey) other;
+        return hash == that.hash && identity.equals(that.identity) && action.equals(that.action)
+                && policy.equals(that.policy);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "OpaQueryKey{policy=" + policy + ", identity=" + identity + ", action=" + action + "}";
+    }
+}
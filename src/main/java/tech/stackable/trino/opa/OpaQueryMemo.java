@@ -0,0 +1,135 @@
+package tech.stackable.trino.opa;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.trino.spi.eventlistener.EventListener;
+import io.trino.spi.eventlistener.QueryCompletedEvent;
+
+/**
+ * Decisions made for a query, kept until the query completes
+ *
+ * Trino asks the same questions many times while analyzing a query, e.g. for every reference to
+ * a view or CTE. Within a query, these are answered from the memo instead of by OPA, without the
+ * risk of a shared cache to answer with a decision that is no longer valid: the memo of a query
+ * is dropped as soon as Trino reports it completed.
+ *
+ * Each query keeps at most a fixed number of decisions, the least recently used one is dropped
+ * first. The number of queries is bounded as well, in case a completion is never reported, the
+ * memo of the oldest query is then dropped. The IDs of the last released queries are remembered,
+ * so that decisions that arrive after a query completed do not create a new memo for it.
+ */
+public class OpaQueryMemo implements EventListener {
+    private final int maxEntriesPerQuery;
+    private final int maxQueries;
+    private final Map<String, Memo> memos = new ConcurrentHashMap<>();
+    // query IDs of the memos in the order they were created, guarded by itself, which also guards
+    // creating and removing memos
+    private final LinkedHashSet<String> creationOrder = new LinkedHashSet<>();
+    // guarded by creationOrder, the last maxQueries released queries, oldest first
+    private final LinkedHashSet<String> released = new LinkedHashSet<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public OpaQueryMemo(int maxEntriesPerQuery, int maxQueries) {
+        this.maxEntriesPerQuery = maxEntriesPerQuery;
+        this.maxQueries = maxQueries;
+    }
+
+    // guarded by itself, access-ordered so that the least recently used decision is dropped first
+    private final class Memo extends LinkedHashMap<OpaQueryKey, Boolean> {
+        private static final long serialVersionUID = -1771535052451287425L;
+
+        Memo() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<OpaQueryKey, Boolean> eldest) {
+            return size() > maxEntriesPerQuery;
+        }
+    }
+
+    public Optional<Boolean> get(String queryId, OpaQueryKey key) {
+        Memo memo = memos.get(queryId);
+        if (memo != null) {
+            Boolean allowed;
+            synchronized (memo) {
+                allowed = memo.get(key);
+            }
+            if (allowed != null) {
+                hits.increment();
+                return Optional.of(allowed);
+            }
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    public void put(String queryId, OpaQueryKey key, boolean allowed) {
+        if (maxEntriesPerQuery <= 0 || maxQueries <= 0) {
+            return;
+        }
+        Memo memo = memos.get(queryId);
+        if (memo == null) {
+            synchronized (creationOrder) {
+                if (released.contains(queryId)) {
+                    return;
+                }
+                memo = memos.computeIfAbsent(queryId, id -> new Memo());
+                if (creationOrder.add(queryId) && creationOrder.size() > maxQueries) {
+                    Iterator<String> oldest = creationOrder.iterator();
+                    memos.remove(oldest.next());
+                    oldest.remove();
+                }
+            }
+        }
+        synchronized (memo) {
+            memo.put(key, allowed);
+        }
+    }
+
+    /**
+     * Drops the decisions of the query
+     */
+    public void release(String queryId) {
+        synchronized (creationOrder) {
+            memos.remove(queryId);
+            creationOrder.remove(queryId);
+            if (released.add(queryId) && released.size() > maxQueries) {
+                Iterator<String> oldest = released.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+
+    @Override
+    public void queryCompleted(QueryCompletedEvent event) {
+        release(event.getMetadata().getQueryId());
+    }
+
+    /**
+     * Returns how many decisions were answered from the memo
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns how many queries currently have decisions in the memo
+     */
+    public int getQueryCount() {
+        return memos.size();
+    }
+}
@@ -0,0 +1,368 @@
+package tech.stackable.trino.opa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.filter.FilteringGeneratorDelegate;
+import com.fasterxml.jackson.core.filter.TokenFilter;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import io.trino.spi.QueryId;
+import io.trino.spi.connector.CatalogSchemaName;
+import io.trino.spi.connector.CatalogSchemaTableName;
+import io.trino.spi.connector.SchemaTableName;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SelectedRole;
+import io.trino.spi.security.TrinoPrincipal;
+
+/**
+ * Writes OPA query documents ({"input": {"context": ..., "action": ...}}) with as little
+ * per-request work as possible
+ *
+ * The output is byte-for-byte the same as serializing the query with a plain ObjectMapper, but:
+ * - the identity, which can be large for users with many groups, is serialized once per Identity
+ *   instance and spliced into later requests as raw JSON
+ * - the SPI types that show up in every request have dedicated serializers instead of going
+ *   through bean introspection
+ * - the output buffer is reused per thread, only the final byte[] is allocated per request
+ *
+ * Unless the operation has an {@link OpaInputProjection}, which leaves out the fields the policy
+ * does not use. The identity of a projected input is serialized field by field.
+ */
+public class OpaQuerySerializer {
+    // buffers that grew larger than this (e.g. for a huge batch query) are not kept around
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final ObjectMapper json;
+    private final OpaInputProjection projection;
+    private final Map<Identity, IdentityFragment> identityFragments = Collections.synchronizedMap(new WeakHashMap<>());
+    private final ThreadLocal<ReusableByteArrayOutputStream> buffers =
+            ThreadLocal.withInitial(ReusableByteArrayOutputStream::new);
+
+    public OpaQuerySerializer() {
+        this(OpaInputProjection.NONE);
+    }
+
+    public OpaQuerySerializer(OpaInputProjection projection) {
+        this.projection = projection;
+        SimpleModule spiTypes = new SimpleModule()
+                .addSerializer(Identity.class, new IdentitySerializer())
+                .addSerializer(CatalogSchemaTableName.class, new CatalogSchemaTableNameSerializer())
+                .addSerializer(CatalogSchemaName.class, new CatalogSchemaNameSerializer())
+                .addSerializer(TrinoPrincipal.class, new TrinoPrincipalSerializer());
+        this.json = new ObjectMapper()
+                // do not include null values
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                // deal with Optional<T> values
+                .registerModule(new Jdk8Module())
+                .registerModule(spiTypes);
+    }
+
+    private static class IdentityFragment {
+        // Identity.equals ignores some fields (such as extra credentials), so only reuse the
+        // fragment for the very same instance
+        final WeakReference<Identity> identity;
+        final SerializedString json;
+
+        IdentityFragment(Identity identity, SerializedString json) {
+            this.identity = new WeakReference<>(identity);
+            this.json = json;
+        }
+    }
+
+    public byte[] serialize(OpaQueryInput input) throws IOException {
+        ReusableByteArrayOutputStream buffer = buffers.get();
+        buffer.reset();
+        try (JsonGenerator generator = json.getFactory().createGenerator(buffer)) {
+            generator.writeStartObject();
+            generator.writeFieldName("input");
+            writeInput(generator, input);
+            generator.writeEndObject();
+        }
+        return toByteArray(buffer);
+    }
+
+    /**
+     * Writes several queries as one document, {"input": {"queries": [{"context": ..., "action": ...}, ...]}}
+     */
+    public byte[] serializeBatch(List<OpaQueryInput> inputs) throws IOException {
+        ReusableByteArrayOutputStream buffer = buffers.get();
+        buffer.reset();
+        try (JsonGenerator generator = json.getFactory().createGenerator(buffer)) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("input");
+            generator.writeArrayFieldStart("queries");
+            for (OpaQueryInput input : inputs) {
+                writeInput(generator, input);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        return toByteArray(buffer);
+    }
+
+    /**
+     * Writes a request for OPA's Compile API, {"query": ..., "input": {...}, "unknowns": [...]},
+     * which partially evaluates the query with the given parts of the input left unknown
+     */
+    public byte[] serializeCompile(String query, OpaQueryInput input, List<String> unknowns) throws IOException {
+        ReusableByteArrayOutputStream buffer = buffers.get();
+        buffer.reset();
+        try (JsonGenerator generator = json.getFactory().createGenerator(buffer)) {
+            generator.writeStartObject();
+            generator.writeStringField("query", query);
+            generator.writeFieldName("input");
+            writeInput(generator, input);
+            generator.writeArrayFieldStart("unknowns");
+            for (String unknown : unknowns) {
+                generator.writeString(unknown);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return toByteArray(buffer);
+    }
+
+    /**
+     * Returns the JSON tree of a part of the input, as it would be sent to OPA
+     */
+    public JsonNode toTree(Object value) {
+        return json.valueToTree(value);
+    }
+
+    /**
+     * Returns whether only some fields of the input of the operation are sent
+     */
+    public boolean isProjected(String operation) {
+        return projection.filter(operation) != null;
+    }
+
+    /**
+     * Returns the projected context of the input without the query ID, {"context": {"identity": ...}},
+     * for keying the cache on what OPA actually gets to see
+     */
+    public String serializeProjectedIdentity(OpaQueryInput input) throws IOException {
+        ReusableByteArrayOutputStream buffer = buffers.get();
+        buffer.reset();
+        try (JsonGenerator generator = projected(json.getFactory().createGenerator(buffer), input)) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("context");
+            generator.writeFieldName("identity");
+            json.writeValue(generator, input.context.getIdentity());
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the projected action of the input, {"action": ...}, see {@link #serializeProjectedIdentity}
+     */
+    public String serializeProjectedAction(OpaQueryInput input) throws IOException {
+        ReusableByteArrayOutputStream buffer = buffers.get();
+        buffer.reset();
+        try (JsonGenerator generator = projected(json.getFactory().createGenerator(buffer), input)) {
+            generator.writeStartObject();
+            generator.writeFieldName("action");
+            json.writeValue(generator, input.action);
+            generator.writeEndObject();
+        }
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+    private JsonGenerator projected(JsonGenerator generator, OpaQueryInput input) {
+        TokenFilter filter = projection.filter(input.action.operation);
+        if (filter == null) {
+            return generator;
+        }
+        return new FilteringGeneratorDelegate(generator, filter, TokenFilter.Inclusion.INCLUDE_ALL_AND_PATH, true);
+    }
+
+    private void writeInput(JsonGenerator generator, OpaQueryInput input) throws IOException {
+        JsonGenerator projected = projected(generator, input);
+        if (projected != generator) {
+            // the filter does not look into raw values, so the identity is written field by field
+            writeInput(projected, input, false);
+        } else {
+            writeInput(generator, input, true);
+        }
+    }
+
+    private void writeInput(JsonGenerator generator, OpaQueryInput input, boolean rawIdentity) throws IOException {
+        generator.writeStartObject();
+
+        generator.writeFieldName("context");
+        generator.writeStartObject();
+        generator.writeFieldName("identity");
+        if (rawIdentity) {
+            generator.writeRawValue(identityFragment(input.context.getIdentity()));
+        } else {
+            json.writeValue(generator, input.context.getIdentity());
+        }
+        Optional<QueryId> queryId = input.context.getQueryId();
+        if (queryId.isPresent()) {
+            generator.writeStringField("queryId", queryId.get().getId());
+        } else {
+            generator.writeNullField("queryId");
+        }
+        generator.writeEndObject();
+
+        generator.writeFieldName("action");
+        json.writeValue(generator, input.action);
+
+        generator.writeEndObject();
+    }
+
+    private byte[] toByteArray(ReusableByteArrayOutputStream buffer) {
+        byte[] bytes = buffer.toByteArray();
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            buffers.remove();
+        }
+        return bytes;
+    }
+
+    private SerializedString identityFragment(Identity identity) throws IOException {
+        IdentityFragment fragment = identityFragments.get(identity);
+        if (fragment != null && fragment.identity.get() == identity) {
+            return fragment.json;
+        }
+        SerializedString serialized = new SerializedString(json.writeValueAsString(identity));
+        identityFragments.put(identity, new IdentityFragment(identity, serialized));
+        return serialized;
+    }
+
+    private static class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+        ReusableByteArrayOutputStream() {
+            super(1024);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+
+    static class IdentitySerializer extends StdSerializer<Identity> {
+        private static final long serialVersionUID = 6226329396591441937L;
+
+        IdentitySerializer() {
+            super(Identity.class);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void serialize(Identity identity, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("user", identity.getUser());
+            writeStrings(generator, "groups", identity.getGroups());
+            Optional<Principal> principal = identity.getPrincipal();
+            if (principal.isPresent()) {
+                // Principal implementations vary, so leave them to the regular bean serializer
+                provider.defaultSerializeField("principal", principal.get(), generator);
+            } else {
+                generator.writeNullField("principal");
+            }
+            writeStrings(generator, "enabledRoles", identity.getEnabledRoles());
+            writeRoles(generator, "catalogRoles", identity.getCatalogRoles());
+            generator.writeObjectFieldStart("extraCredentials");
+            for (Map.Entry<String, String> credential : identity.getExtraCredentials().entrySet()) {
+                generator.writeStringField(credential.getKey(), credential.getValue());
+            }
+            generator.writeEndObject();
+            writeRoles(generator, "roles", identity.getRoles());
+            generator.writeEndObject();
+        }
+
+        private static void writeStrings(JsonGenerator generator, String fieldName, Iterable<String> values) throws IOException {
+            generator.writeArrayFieldStart(fieldName);
+            for (String value : values) {
+                generator.writeString(value);
+            }
+            generator.writeEndArray();
+        }
+
+        private static void writeRoles(JsonGenerator generator, String fieldName, Map<String, SelectedRole> roles) throws IOException {
+            generator.writeObjectFieldStart(fieldName);
+            for (Map.Entry<String, SelectedRole> role : roles.entrySet()) {
+                generator.writeObjectFieldStart(role.getKey());
+                generator.writeStringField("type", role.getValue().getType().name());
+                Optional<String> roleName = role.getValue().getRole();
+                if (roleName.isPresent()) {
+                    generator.writeStringField("role", roleName.get());
+                } else {
+                    generator.writeNullField("role");
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    static class CatalogSchemaTableNameSerializer extends StdSerializer<CatalogSchemaTableName> {
+        private static final long serialVersionUID = -5364525385128315096L;
+
+        CatalogSchemaTableNameSerializer() {
+            super(CatalogSchemaTableName.class);
+        }
+
+        @Override
+        public void serialize(CatalogSchemaTableName table, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            SchemaTableName schemaTable = table.getSchemaTableName();
+            generator.writeStartObject();
+            generator.writeStringField("catalog", table.getCatalogName());
+            generator.writeObjectFieldStart("schemaTable");
+            generator.writeStringField("schema", schemaTable.getSchemaName());
+            generator.writeStringField("table", schemaTable.getTableName());
+            generator.writeNumberField("retainedSizeInBytes", schemaTable.getRetainedSizeInBytes());
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+    }
+
+    static class CatalogSchemaNameSerializer extends StdSerializer<CatalogSchemaName> {
+        private static final long serialVersionUID = 2905389254016424447L;
+
+        CatalogSchemaNameSerializer() {
+            super(CatalogSchemaName.class);
+        }
+
+        @Override
+        public void serialize(CatalogSchemaName schema, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("catalogName", schema.getCatalogName());
+            generator.writeStringField("schemaName", schema.getSchemaName());
+            generator.writeEndObject();
+        }
+    }
+
+    static class TrinoPrincipalSerializer extends StdSerializer<TrinoPrincipal> {
+        private static final long serialVersionUID = -2118453915823713186L;
+
+        TrinoPrincipalSerializer() {
+            super(TrinoPrincipal.class);
+        }
+
+        @Override
+        public void serialize(TrinoPrincipal principal, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("type", principal.getType().name());
+            generator.writeStringField("name", principal.getName());
+            generator.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package tech.stackable.trino.opa;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the number of requests a transport has in flight, without blocking the calling thread
+ *
+ * A request gets a free slot right away or waits in a queue until a slot is released or its
+ * deadline passes. Released slots are handed to the next waiting request on the releasing thread,
+ * so the request must only be started there, never waited for.
+ *
+ * Requests that time out stay in the queue, done, and are skipped when a slot is handed on, so
+ * that a timeout does not need to search the queue.
+ */
+public class OpaRequestSlots {
+    private final int maxSlots;
+    // guarded by this
+    private int used;
+    // guarded by this, may hold requests that timed out
+    private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+
+    public OpaRequestSlots(int maxSlots) {
+        this.maxSlots = maxSlots;
+    }
+
+    /**
+     * Completes once the caller holds a slot, which it must give back with {@link #release}, or
+     * fails with {@link OpaQueryException.Rejected} when the deadline passes first
+     */
+    public CompletableFuture<Void> acquire(long deadlineNanos) {
+        CompletableFuture<Void> slot = new CompletableFuture<>();
+        synchronized (this) {
+            if (used < maxSlots) {
+                used++;
+                slot.complete(null);
+                return slot;
+            }
+            // so that timed out requests do not pile up while no slot is released
+            while (!waiting.isEmpty() && waiting.peek().isDone()) {
+                waiting.poll();
+            }
+            waiting.add(slot);
+        }
+        return slot.orTimeout(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS).handle((ignored, error) -> {
+            if (error != null) {
+                throw new OpaQueryException.Rejected("timed out waiting for a free OPA request slot");
+            }
+            return null;
+        });
+    }
+
+    public void release() {
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    used--;
+                    return;
+                }
+            }
+            if (next.complete(null)) {
+                return;
+            }
+            // timed out in the meantime, pass the slot on
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package tech.stackable.trino.opa;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+/**
+ * Predicate over the resource of a query, built from the residual queries that OPA's Compile API
+ * returns when input.action.resource is left unknown
+ *
+ * The residual is a disjunction of queries, each a conjunction of expressions. Only expressions
+ * that compare fields of input.action.resource with constants can be evaluated locally: equality
+ * (= and ==), inequality, startswith, endswith and membership in a set or array of constants, each
+ * possibly negated. Residuals with anything else, or with support rules, are rejected, in which
+ * case the resources have to be decided by OPA.
+ */
+public final class OpaResidualPredicate {
+    private static final List<String> RESOURCE_REF = List.of("action", "resource");
+    // orders numbers by value, other values are only told apart from each other
+    private static final Comparator<JsonNode> NUMERIC_EQUALITY = (a, b) -> {
+        if (a.isNumber() && b.isNumber()) {
+            return a.decimalValue().compareTo(b.decimalValue());
+        }
+        return a.equals(b) ? 0 : 1;
+    };
+
+    // empty if the policy denies everything, an empty query allows everything
+    private final List<List<Expression>> queries;
+
+    private OpaResidualPredicate(List<List<Expression>> queries) {
+        this.queries = queries;
+    }
+
+    private interface Operand {
+        // null if undefined
+        JsonNode value(JsonNode resource);
+    }
+
+    private interface Expression {
+        boolean test(JsonNode resource);
+    }
+
+    private static final class UnsupportedResidual extends Exception {
+        private static final long serialVersionUID = -5305425718950911265L;
+
+        UnsupportedResidual(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * Builds the predicate from the result of a Compile API response, or returns empty if the
+     * residual cannot be evaluated locally
+     */
+    public static Optional<OpaResidualPredicate> fromCompileResult(JsonNode result) {
+        if (result == null || result.isNull()) {
+            return Optional.empty();
+        }
+        JsonNode support = result.get("support");
+        if (support != null && support.size() > 0) {
+            return Optional.empty();
+        }
+        List<List<Expression>> queries = new ArrayList<>();
+        JsonNode residual = result.get("queries");
+        try {
+            if (residual != null) {
+                for (JsonNode query : residual) {
+                    List<Expression> expressions = new ArrayList<>();
+                    for (JsonNode expression : query) {
+                        expressions.add(parseExpression(expression));
+                    }
+                    queries.add(expressions);
+                }
+            }
+        } catch (UnsupportedResidual e) {
+            return Optional.empty();
+        }
+        return Optional.of(new OpaResidualPredicate(queries));
+    }
+
+    /**
+     * Returns whether the policy allows the resource, given as the JSON tree it would be sent as
+     */
+    public boolean test(JsonNode resource) {
+        for (List<Expression> query : queries) {
+            boolean allowed = true;
+            for (Expression expression : query) {
+                if (!expression.test(resource)) {
+                    allowed = false;
+                    break;
+                }
+            }
+            if (allowed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Expression parseExpression(JsonNode expression) throws UnsupportedResidual {
+        JsonNode with = expression.get("with");
+        if (with != null && with.size() > 0) {
+            throw new UnsupportedResidual("with modifier");
+        }
+        JsonNode terms = expression.get("terms");
+        if (terms == null) {
+            throw new UnsupportedResidual("expression without terms");
+        }
+        Expression parsed;
+        if (terms.isObject()) {
+            // a single term is true if it is defined and not false
+            Operand operand = parseOperand(terms);
+            parsed = resource -> {
+                JsonNode value = operand.value(resource);
+                return value != null && !(value.isBoolean() && !value.booleanValue());
+            };
+        } else {
+            parsed = parseCall(terms);
+        }
+        if (expression.path("negated").asBoolean(false)) {
+            // undefined expressions are false, so their negation is true
+            return resource -> !parsed.test(resource);
+        }
+        return parsed;
+    }
+
+    private static Expression parseCall(JsonNode terms) throws UnsupportedResidual {
+        if (terms.size() != 3) {
+            throw new UnsupportedResidual("call with " + terms.size() + " terms");
+        }
+        String operator = operatorName(terms.get(0));
+        Operand left = parseOperand(terms.get(1));
+        Operand right = parseOperand(terms.get(2));
+        switch (operator) {
+            case "eq":
+            case "equal":
+                return resource -> {
+                    JsonNode a = left.value(resource);
+                    JsonNode b = right.value(resource);
+                    return a != null && b != null && valuesEqual(a, b);
+                };
+            case "neq":
+                return resource -> {
+                    JsonNode a = left.value(resource);
+                    JsonNode b = right.value(resource);
+                    return a != null && b != null && !valuesEqual(a, b);
+                };
+            case "startswith":
+                return resource -> {
+                    JsonNode a = left.value(resource);
+                    JsonNode b = right.value(resource);
+                    return a != null && b != null && a.isTextual() && b.isTextual() && a.textValue().startsWith(b.textValue());
+                };
+            case "endswith":
+                return resource -> {
+                    JsonNode a = left.value(resource);
+                    JsonNode b = right.value(resource);
+                    return a != null && b != null && a.isTextual() && b.isTextual() && a.textValue().endsWith(b.textValue());
+                };
+            case "internal.member_2":
+                return resource -> {
+                    JsonNode element = left.value(resource);
+                    JsonNode collection = right.value(resource);
+                    if (element == null || collection == null || !collection.isArray()) {
+                        return false;
+                    }
+                    for (JsonNode member : collection) {
+                        if (valuesEqual(member, element)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            default:
+                throw new UnsupportedResidual("operator " + operator);
+        }
+    }
+
+    /**
+     * Compares values like Rego does, where numbers are equal if they have the same value, e.g. 1
+     * and 1.0, also within arrays and objects
+     */
+    static boolean valuesEqual(JsonNode a, JsonNode b) {
+        return a.equals(NUMERIC_EQUALITY, b);
+    }
+
+    private static String operatorName(JsonNode term) throws UnsupportedResidual {
+        if (!"ref".equals(term.path("type").asText())) {
+            throw new UnsupportedResidual("operator of type " + term.path("type").asText());
+        }
+        StringBuilder name = new StringBuilder();
+        for (JsonNode part : term.path("value")) {
+            String type = part.path("type").asText();
+            if (name.length() == 0 ? !"var".equals(type) : !"string".equals(type)) {
+                throw new UnsupportedResidual("operator reference with " + type);
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(part.path("value").asText());
+        }
+        return name.toString();
+    }
+
+    private static Operand parseOperand(JsonNode term) throws UnsupportedResidual {
+        String type = term.path("type").asText();
+        switch (type) {
+            case "string":
+            case "number":
+            case "boolean": {
+                JsonNode value = term.get("value");
+                return resource -> value;
+            }
+            case "null":
+                return resource -> NullNode.getInstance();
+            case "array":
+            case "set": {
+                ArrayNode values = JsonNodeFactory.instance.arrayNode();
+                for (JsonNode element : term.path("value")) {
+                    String elementType = element.path("type").asText();
+                    if (!elementType.equals("string") && !elementType.equals("number") && !elementType.equals("boolean")) {
+                        throw new UnsupportedResidual(type + " with " + elementType);
+                    }
+                    values.add(element.get("value"));
+                }
+                return resource -> values;
+            }
+            case "ref":
+                return parseResourceRef(term.path("value"));
+            default:
+                throw new UnsupportedResidual("term of type " + type);
+        }
+    }
+
+    /**
+     * Parses a reference to a field of input.action.resource, such as input.action.resource.table.tableName
+     */
+    private static Operand parseResourceRef(JsonNode ref) throws UnsupportedResidual {
+        if (ref.size() < RESOURCE_REF.size() + 1 || !"var".equals(ref.get(0).path("type").asText())
+                || !"input".equals(ref.get(0).path("value").asText())) {
+            throw new UnsupportedResidual("reference outside of input.action.resource");
+        }
+        List<String> path = new ArrayList<>();
+        for (int i = 1; i < ref.size(); i++) {
+            JsonNode part = ref.get(i);
+            if (!"string".equals(part.path("type").asText())) {
+                throw new UnsupportedResidual("reference with " + part.path("type").asText());
+            }
+            path.add(part.path("value").asText());
+        }
+        if (!path.subList(0, RESOURCE_REF.size()).equals(RESOURCE_REF)) {
+            throw new UnsupportedResidual("reference outside of input.action.resource");
+        }
+        List<String> fields = List.copyOf(path.subList(RESOURCE_REF.size(), path.size()));
+        return resource -> {
+            JsonNode node = resource;
+            for (String field : fields) {
+                node = node.get(field);
+                if (node == null || node.isNull()) {
+                    return null;
+                }
+            }
+            return node;
+        };
+    }
+}
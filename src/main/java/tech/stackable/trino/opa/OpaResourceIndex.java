@@ -0,0 +1,88 @@
+package tech.stackable.trino.opa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of cache keys by the catalog, schema and table they are about
+ *
+ * The keys are kept in a tree with one level per path element, so that all keys below a catalog,
+ * schema or table can be found without looking at the other keys. Keys without an object path
+ * are kept at the root and only found when everything is removed.
+ *
+ * Not thread-safe, callers must hold the lock of the cache the index belongs to.
+ */
+class OpaResourceIndex {
+    private static class Node {
+        final Map<String, Node> children = new HashMap<>();
+        final Set<OpaQueryKey> keys = new HashSet<>();
+
+        boolean isEmpty() {
+            return children.isEmpty() && keys.isEmpty();
+        }
+
+        void collect(List<OpaQueryKey> into) {
+            into.addAll(keys);
+            for (Node child : children.values()) {
+                child.collect(into);
+            }
+        }
+    }
+
+    private Node root = new Node();
+
+    void add(OpaQueryKey key) {
+        Node node = root;
+        for (String element : key.objectPath) {
+            node = node.children.computeIfAbsent(element, e -> new Node());
+        }
+        node.keys.add(key);
+    }
+
+    void remove(OpaQueryKey key) {
+        List<Node> nodes = new ArrayList<>(key.objectPath.size() + 1);
+        Node node = root;
+        nodes.add(node);
+        for (String element : key.objectPath) {
+            node = node.children.get(element);
+            if (node == null) {
+                return;
+            }
+            nodes.add(node);
+        }
+        node.keys.remove(key);
+        // drop the nodes that became empty, so that the tree does not keep every table ever seen
+        for (int i = nodes.size() - 1; i > 0 && nodes.get(i).isEmpty(); i--) {
+            nodes.get(i - 1).children.remove(key.objectPath.get(i - 1));
+        }
+    }
+
+    /**
+     * Removes and returns all keys whose object path starts with the prefix, an empty prefix
+     * removes all keys
+     */
+    List<OpaQueryKey> removePrefix(List<String> prefix) {
+        List<OpaQueryKey> removed = new ArrayList<>();
+        if (prefix.isEmpty()) {
+            root.collect(removed);
+            root = new Node();
+            return removed;
+        }
+        Node parent = root;
+        for (int i = 0; i < prefix.size() - 1; i++) {
+            parent = parent.children.get(prefix.get(i));
+            if (parent == null) {
+                return removed;
+            }
+        }
+        Node node = parent.children.remove(prefix.get(prefix.size() - 1));
+        if (node != null) {
+            node.collect(removed);
+        }
+        return removed;
+    }
+}
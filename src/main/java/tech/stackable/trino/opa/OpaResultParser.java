@@ -0,0 +1,94 @@
+package tech.stackable.trino.opa;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads the result out of the body of an OPA data API response
+ *
+ * OPA responds with {"result": ...}, plus fields such as decision_id and metrics when decision
+ * logging or metrics are enabled. The body is read with a streaming parser straight from the
+ * response bytes, other fields are skipped without being decoded, and parsing stops as soon as the
+ * result has been read.
+ */
+public class OpaResultParser {
+    private static final String RESULT_FIELD = "result";
+
+    private final ObjectMapper json;
+
+    public OpaResultParser(ObjectMapper json) {
+        this.json = json;
+    }
+
+    /**
+     * Returns the result as an allow/deny decision, or null if the rule is undefined
+     */
+    public Boolean readDecision(byte[] body) throws IOException {
+        OpaDecision decision = readDecisionWithDirectives(body);
+        return decision == null ? null : decision.allowed;
+    }
+
+    /**
+     * Returns the result as a decision, which is either a boolean or an object with the decision
+     * and cache directives (see {@link OpaDecision}), or null if the rule is undefined
+     */
+    public OpaDecision readDecisionWithDirectives(byte[] body) throws IOException {
+        try (JsonParser parser = json.getFactory().createParser(body)) {
+            if (!seekResult(parser)) {
+                return null;
+            }
+            switch (parser.currentToken()) {
+                case VALUE_TRUE:
+                    return OpaDecision.ALLOW;
+                case VALUE_FALSE:
+                    return OpaDecision.DENY;
+                case VALUE_NULL:
+                    return null;
+                case START_OBJECT:
+                    try {
+                        return OpaDecision.fromObject(json.readTree(parser));
+                    } catch (IllegalArgumentException e) {
+                        throw new JsonParseException(parser, e.getMessage(), e);
+                    }
+                default:
+                    Boolean allowed = json.readValue(parser, Boolean.class);
+                    return allowed == null ? null : OpaDecision.of(allowed);
+            }
+        }
+    }
+
+    /**
+     * Returns the result converted to the given type, or null if the rule is undefined
+     */
+    public <T> T readResult(byte[] body, JavaType type) throws IOException {
+        try (JsonParser parser = json.getFactory().createParser(body)) {
+            if (!seekResult(parser) || parser.currentToken() == JsonToken.VALUE_NULL) {
+                return null;
+            }
+            return json.readValue(parser, type);
+        }
+    }
+
+    /**
+     * Moves the parser to the value of the top-level result field, returns false if there is none
+     */
+    private static boolean seekResult(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected an object as OPA response");
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (RESULT_FIELD.equals(field)) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,85 @@
+package tech.stackable.trino.opa;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Histogram of the durations of the last minutes, so that percentiles follow the current latency
+ * instead of everything since startup
+ *
+ * Values are counted in slices of 15 seconds, each an {@link OpaLatencyHistogram}. The percentiles
+ * of a window are taken over the slices it covers including the current one, so the one minute
+ * window covers between 60 and 75 seconds. A slice is replaced by a new one once it is too old for
+ * the longest window.
+ */
+public class OpaRollingLatencyHistogram {
+    public static final Duration ONE_MINUTE = Duration.ofMinutes(1);
+    public static final Duration FIVE_MINUTES = Duration.ofMinutes(5);
+
+    private static final long SLICE_NANOS = TimeUnit.SECONDS.toNanos(15);
+    // the slices of the longest window and the current one
+    private static final int SLICES = (int) (FIVE_MINUTES.toNanos() / SLICE_NANOS) + 1;
+
+    private final LongSupplier ticker;
+    // slice of a time slot at the index of the slot modulo SLICES, null until something is recorded
+    private final AtomicReferenceArray<Slice> slices = new AtomicReferenceArray<>(SLICES);
+
+    public OpaRollingLatencyHistogram() {
+        this(System::nanoTime);
+    }
+
+    OpaRollingLatencyHistogram(LongSupplier ticker) {
+        this.ticker = ticker;
+    }
+
+    private static final class Slice {
+        final long slot;
+        final OpaLatencyHistogram histogram = new OpaLatencyHistogram();
+
+        Slice(long slot) {
+            this.slot = slot;
+        }
+    }
+
+    public void record(long nanos) {
+        long slot = Math.floorDiv(ticker.getAsLong(), SLICE_NANOS);
+        int index = (int) Math.floorMod(slot, SLICES);
+        Slice slice = slices.get(index);
+        while (slice == null || slice.slot != slot) {
+            if (slice != null && slice.slot > slot) {
+                // recorded so late that the slot has been reused already
+                return;
+            }
+            Slice next = new Slice(slot);
+            slice = slices.compareAndSet(index, slice, next) ? next : slices.get(index);
+        }
+        slice.histogram.record(nanos);
+    }
+
+    /**
+     * Returns the value below which the given fraction (0.0 to 1.0) of the values recorded within
+     * the window fall, in milliseconds, or NaN if nothing has been recorded within the window
+     */
+    public double getPercentileMillis(double fraction, Duration window) {
+        long currentSlot = Math.floorDiv(ticker.getAsLong(), SLICE_NANOS);
+        long oldestSlot = currentSlot - Math.min(window.toNanos() / SLICE_NANOS, SLICES - 1);
+        List<OpaLatencyHistogram> histograms = new ArrayList<>(SLICES);
+        for (int i = 0; i < SLICES; i++) {
+            Slice slice = slices.get(i);
+            if (slice != null && slice.slot >= oldestSlot && slice.slot <= currentSlot) {
+                histograms.add(slice.histogram);
+            }
+        }
+        return OpaLatencyHistogram.getPercentileMillis(histograms, fraction);
+    }
+
+    public void reset() {
+        for (int i = 0; i < SLICES; i++) {
+            slices.set(i, null);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package tech.stackable.trino.opa;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Collapses identical concurrent OPA queries into a single request
+ *
+ * While a query for a key is in flight, later callers with the same key share its result instead of
+ * starting a request of their own. The key is forgotten as soon as the query completes, so this
+ * never serves a result that is older than the request it was waiting for.
+ */
+public class OpaSingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder collapsed = new LongAdder();
+
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> query) {
+        CompletableFuture<V> shared = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, shared);
+        if (existing != null) {
+            collapsed.increment();
+            // every caller gets its own copy, so that one caller giving up cannot cancel the others
+            return existing.copy();
+        }
+        CompletableFuture<V> result;
+        try {
+            result = query.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((value, error) -> {
+            inFlight.remove(key, shared);
+            if (error != null) {
+                shared.completeExceptionally(error);
+            } else {
+                shared.complete(value);
+            }
+        });
+        return shared.copy();
+    }
+
+    /**
+     * Returns how many calls were answered by a query that was already in flight
+     */
+    public long getCollapsedCount() {
+        return collapsed.sum();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,33 @@
+package tech.stackable.trino.opa;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Evaluates an OPA query document against a policy and returns OPA's REST API response for it
+ *
+ * The authorizer only sees status codes and response bodies as the OPA REST API defines them, so
+ * the policy can be evaluated by an OPA server or in-process without any other changes.
+ */
+public interface OpaTransport {
+    class Response {
+        public final int statusCode;
+        public final byte[] body;
+
+        public Response(int statusCode, byte[] body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Evaluates a JSON query document ({"input": ...}) against the policy at the given URI
+     *
+     * Failures (including missing the deadline) complete the returned future exceptionally with an
+     * {@link OpaQueryException.QueryFailed}, or with an {@link OpaQueryException.Rejected} if the
+     * request was not sent for lack of local capacity.
+     *
+     * @param deadlineNanos the System.nanoTime() by which the response must have arrived
+     */
+    CompletableFuture<Response> send(URI policyUri, byte[] body, long deadlineNanos);
+}
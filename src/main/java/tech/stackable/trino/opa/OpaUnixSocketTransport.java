@@ -0,0 +1,306 @@
+package tech.stackable.trino.opa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends policy queries to an OPA on the same host over a Unix domain socket
+ *
+ * Policy URIs have the form unix:///run/opa/opa.sock/v1/data/trino/allow: the socket is the part
+ * of the path before /v1/, the rest is the path of the HTTP request. Requests are plain HTTP/1.1
+ * over blocking socket channels, run on an executor owned by the transport. Connections are kept
+ * open and reused, up to one idle connection per executor thread and socket.
+ *
+ * Like {@link OpaHttpTransport}, the number of requests in flight is bounded and each request
+ * fails once its deadline has passed, which closes its connection.
+ */
+public class OpaUnixSocketTransport implements OpaTransport {
+    public static final String SCHEME = "unix";
+    private static final String API_PATH = "/v1/";
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final ExecutorService executor;
+    private final OpaRequestSlots inFlightSlots;
+    private final int maxIdleConnections;
+    private final Map<Path, ConcurrentLinkedDeque<SocketChannel>> idleConnections = new ConcurrentHashMap<>();
+    private final AtomicInteger openedConnections = new AtomicInteger();
+
+    public OpaUnixSocketTransport(int executorThreads, int maxInFlightRequests) {
+        this.executor = Executors.newFixedThreadPool(executorThreads, runnable -> {
+            Thread thread = new Thread(runnable, "opa-authorizer-unix-socket");
+            // Trino does not tell access control plugins when it shuts down
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.inFlightSlots = new OpaRequestSlots(maxInFlightRequests);
+        this.maxIdleConnections = executorThreads;
+    }
+
+    /**
+     * Returns whether the URI points to a Unix domain socket
+     */
+    public static boolean isUnixSocketUri(URI uri) {
+        return SCHEME.equalsIgnoreCase(uri.getScheme());
+    }
+
+    @Override
+    public CompletableFuture<Response> send(URI policyUri, byte[] body, long deadlineNanos) {
+        int apiPathStart = policyUri.getPath() == null ? -1 : policyUri.getPath().indexOf(API_PATH);
+        if (!isUnixSocketUri(policyUri) || apiPathStart <= 0) {
+            return CompletableFuture.failedFuture(new OpaQueryException.QueryFailed(new IllegalArgumentException(
+                    "Not a policy on a Unix domain socket (unix:///path/to/opa.sock/v1/...): " + policyUri)));
+        }
+        Path socket = Path.of(policyUri.getPath().substring(0, apiPathStart));
+        String requestPath = policyUri.getRawPath().substring(policyUri.getRawPath().indexOf(API_PATH))
+                + (policyUri.getRawQuery() == null ? "" : "?" + policyUri.getRawQuery());
+        return inFlightSlots.acquire(deadlineNanos).thenCompose(ignored -> sendInSlot(socket, requestPath, body, deadlineNanos));
+    }
+
+    // must hold a slot, which is released once the exchange is over
+    private CompletableFuture<Response> sendInSlot(Path socket, String requestPath, byte[] body, long deadlineNanos) {
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        // connection of the running exchange, closed when the deadline passes to unblock it
+        AtomicReference<SocketChannel> connection = new AtomicReference<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    if (!response.isDone()) {
+                        response.complete(exchange(socket, requestPath, body, response, connection));
+                    }
+                } catch (Exception e) {
+                    response.completeExceptionally(e);
+                } finally {
+                    inFlightSlots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlightSlots.release();
+            return CompletableFuture.failedFuture(new OpaQueryException.QueryFailed(e));
+        }
+        return response.orTimeout(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS).handle((result, error) -> {
+            if (error != null) {
+                if (error instanceof TimeoutException) {
+                    closeQuietly(connection.get());
+                }
+                throw new OpaQueryException.QueryFailed(error);
+            }
+            return result;
+        });
+    }
+
+    private Response exchange(Path socket, String requestPath, byte[] body, CompletableFuture<Response> call,
+                              AtomicReference<SocketChannel> connection) throws IOException {
+        ConcurrentLinkedDeque<SocketChannel> idle = idleConnections.computeIfAbsent(socket, s -> new ConcurrentLinkedDeque<>());
+        SocketChannel channel = idle.pollFirst();
+        if (channel != null) {
+            try {
+                return exchange(channel, requestPath, body, call, connection, idle);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                if (call.isDone()) {
+                    throw e;
+                }
+                // the server may have closed the idle connection in the meantime, try once more on a new one
+            }
+        }
+        channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        openedConnections.incrementAndGet();
+        try {
+            return exchange(channel, requestPath, body, call, connection, idle);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private Response exchange(SocketChannel channel, String requestPath, byte[] body, CompletableFuture<Response> call,
+                              AtomicReference<SocketChannel> connection, ConcurrentLinkedDeque<SocketChannel> idle)
+            throws IOException {
+        connection.set(channel);
+        if (call.isDone()) {
+            // timed out before the connection was published, nobody else closes it
+            throw new IOException("OPA request timed out");
+        }
+        String head = "POST " + requestPath + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "\r\n";
+        ByteBuffer[] request = {ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII)), ByteBuffer.wrap(body)};
+        while (request[1].hasRemaining()) {
+            channel.write(request);
+        }
+
+        ResponseReader reader = new ResponseReader(channel);
+        String statusLine = reader.readLine();
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/1.")) {
+            throw new IOException("Invalid HTTP status line: " + statusLine);
+        }
+        int statusCode;
+        try {
+            statusCode = Integer.parseInt(status[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid HTTP status line: " + statusLine, e);
+        }
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean keepAlive = status[0].equals("HTTP/1.1");
+        for (String header = reader.readLine(); !header.isEmpty(); header = reader.readLine()) {
+            int colon = header.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = header.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+            String value = header.substring(colon + 1).trim();
+            switch (name) {
+                case "content-length":
+                    contentLength = Long.parseLong(value);
+                    break;
+                case "transfer-encoding":
+                    chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+                    break;
+                case "connection":
+                    keepAlive = value.equalsIgnoreCase("keep-alive") || keepAlive && !value.equalsIgnoreCase("close");
+                    break;
+                default:
+                    break;
+            }
+        }
+        byte[] responseBody;
+        if (chunked) {
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            for (int size = reader.readChunkSize(); size > 0; size = reader.readChunkSize()) {
+                chunks.write(reader.readBytes(size));
+                reader.readLine();
+            }
+            // trailers
+            while (!reader.readLine().isEmpty()) {
+                // ignored
+            }
+            responseBody = chunks.toByteArray();
+        } else if (contentLength >= 0) {
+            responseBody = reader.readBytes(Math.toIntExact(contentLength));
+        } else {
+            responseBody = reader.readToEnd();
+            keepAlive = false;
+        }
+        connection.set(null);
+        if (keepAlive && !reader.hasBufferedBytes() && idle.size() < maxIdleConnections) {
+            idle.addFirst(channel);
+        } else {
+            closeQuietly(channel);
+        }
+        return new Response(statusCode, responseBody);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+    /**
+     * Returns how many connections were opened, the rest of the requests reused one
+     */
+    public int getOpenedConnectionCount() {
+        return openedConnections.get();
+    }
+
+    private static class ResponseReader {
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+
+        ResponseReader(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private boolean fill() throws IOException {
+            buffer.compact();
+            int read = channel.read(buffer);
+            buffer.flip();
+            return read >= 0;
+        }
+
+        boolean hasBufferedBytes() {
+            return buffer.hasRemaining();
+        }
+
+        String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                while (buffer.hasRemaining()) {
+                    char c = (char) (buffer.get() & 0xff);
+                    if (c == '\n') {
+                        int length = line.length();
+                        if (length > 0 && line.charAt(length - 1) == '\r') {
+                            line.setLength(length - 1);
+                        }
+                        return line.toString();
+                    }
+                    line.append(c);
+                }
+                if (!fill()) {
+                    throw new EOFException("Connection closed before the end of the HTTP response");
+                }
+            }
+        }
+
+        int readChunkSize() throws IOException {
+            String line = readLine();
+            int extension = line.indexOf(';');
+            try {
+                return Integer.parseInt((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line, e);
+            }
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                if (!buffer.hasRemaining() && !fill()) {
+                    throw new EOFException("Connection closed before the end of the HTTP response");
+                }
+                int count = Math.min(buffer.remaining(), length - offset);
+                buffer.get(bytes, offset, count);
+                offset += count;
+            }
+            return bytes;
+        }
+
+        byte[] readToEnd() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            do {
+                bytes.write(buffer.array(), buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+            } while (fill());
+            return bytes.toByteArray();
+        }
+    }
+}
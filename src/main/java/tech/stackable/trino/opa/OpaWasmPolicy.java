@@ -0,0 +1,293 @@
+package tech.stackable.trino.opa;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import com.dylibso.chicory.runtime.ByteBufferMemory;
+import com.dylibso.chicory.runtime.ExportFunction;
+import com.dylibso.chicory.runtime.HostFunction;
+import com.dylibso.chicory.runtime.ImportMemory;
+import com.dylibso.chicory.runtime.ImportValues;
+import com.dylibso.chicory.runtime.Instance;
+import com.dylibso.chicory.runtime.Memory;
+import com.dylibso.chicory.wasm.ChicoryException;
+import com.dylibso.chicory.wasm.WasmModule;
+import com.dylibso.chicory.wasm.types.ExternalType;
+import com.dylibso.chicory.wasm.types.MemoryImport;
+import com.dylibso.chicory.wasm.types.MemoryLimits;
+import com.dylibso.chicory.wasm.types.ValueType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+
+/**
+ * One instance of a policy compiled with `opa build -t wasm`, implementing the host side of
+ * OPA's Wasm ABI (https://www.openpolicyagent.org/docs/latest/wasm/)
+ *
+ * Queries are evaluated with the single-call opa_eval export (ABI 1.2+). The input is written
+ * right behind the heap that holds the data document, and every evaluation starts over at the
+ * same heap pointer, so memory does not grow with the number of evaluations.
+ *
+ * Instances are not thread safe, {@link OpaWasmTransport} keeps a pool of them.
+ */
+public class OpaWasmPolicy {
+    // compiled patterns of regex.match, shared by all instances and cleared when full
+    private static final int MAX_PATTERNS = 1024;
+    private static final Map<String, Pattern> PATTERNS = new ConcurrentHashMap<>();
+
+    // builtins that OPA does not compile into the module, but expects the host to provide
+    private static final Map<String, Builtin> BUILTINS = Map.of(
+            "regex.match", args -> BooleanNode.valueOf(
+                    regexPattern(args.get(0).asText()).matcher(args.get(1).asText()).find()),
+            "time.now_ns", args -> {
+                Instant now = Instant.now();
+                return LongNode.valueOf(now.getEpochSecond() * 1_000_000_000L + now.getNano());
+            });
+
+    private final ObjectMapper json;
+    private final Instance instance;
+    private final Memory memory;
+    private final ExportFunction malloc;
+    private final ExportFunction jsonParse;
+    private final ExportFunction jsonDump;
+    private final ExportFunction heapPtrSet;
+    private final ExportFunction heapPtrGet;
+    private final ExportFunction eval;
+    private final Map<String, Integer> entrypoints;
+    private final Map<Integer, Builtin> builtinsById = new HashMap<>();
+    // heap pointer before any data document was loaded
+    private final int initialHeapPtr;
+    private int dataAddr;
+    // heap pointer after the data document, the input of each evaluation is written here
+    private int dataHeapPtr;
+
+    @FunctionalInterface
+    private interface Builtin {
+        JsonNode apply(List<JsonNode> args);
+    }
+
+    public OpaWasmPolicy(WasmModule module, ObjectMapper json) {
+        this.json = json;
+        this.instance = Instance.builder(module).withImportValues(imports(module)).build();
+        this.memory = instance.memory();
+        this.malloc = export("opa_malloc");
+        this.jsonParse = export("opa_json_parse");
+        this.jsonDump = export("opa_json_dump");
+        this.heapPtrSet = export("opa_heap_ptr_set");
+        this.heapPtrGet = export("opa_heap_ptr_get");
+        this.eval = export("opa_eval");
+
+        Map<String, Integer> entrypoints = new HashMap<>();
+        readJson(export("entrypoints").apply()[0]).fields()
+                .forEachRemaining(entrypoint -> entrypoints.put(entrypoint.getKey(), entrypoint.getValue().asInt()));
+        this.entrypoints = Collections.unmodifiableMap(entrypoints);
+
+        Iterator<Map.Entry<String, JsonNode>> builtins = readJson(export("builtins").apply()[0]).fields();
+        while (builtins.hasNext()) {
+            Map.Entry<String, JsonNode> builtin = builtins.next();
+            Builtin implementation = BUILTINS.get(builtin.getKey());
+            if (implementation == null) {
+                throw new IllegalArgumentException("Policy uses builtin " + builtin.getKey()
+                        + ", which is not supported when evaluating policies in-process");
+            }
+            builtinsById.put(builtin.getValue().asInt(), implementation);
+        }
+
+        this.initialHeapPtr = (int) heapPtrGet.apply()[0];
+        setData("{}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private ExportFunction export(String name) {
+        try {
+            return instance.export(name);
+        } catch (ChicoryException e) {
+            throw new IllegalArgumentException("Module does not export " + name
+                    + ", it must be built with `opa build -t wasm` (ABI version 1.2 or later)", e);
+        }
+    }
+
+    private ImportValues imports(WasmModule module) {
+        MemoryLimits limits = module.importSection().stream()
+                .filter(moduleImport -> moduleImport.importType() == ExternalType.MEMORY)
+                .map(moduleImport -> ((MemoryImport) moduleImport).limits())
+                .findFirst()
+                .orElse(new MemoryLimits(2));
+        ImportValues.Builder imports = ImportValues.builder()
+                .addMemory(new ImportMemory("env", "memory", new ByteBufferMemory(limits)))
+                .addFunction(new HostFunction("env", "opa_abort", List.of(ValueType.I32), List.of(),
+                        (instance, args) -> {
+                            throw new ChicoryException("Policy aborted: " + readCString((int) args[0]));
+                        }))
+                .addFunction(new HostFunction("env", "opa_println", List.of(ValueType.I32), List.of(),
+                        (instance, args) -> null));
+        for (int arity = 0; arity <= 4; arity++) {
+            List<ValueType> params = Collections.nCopies(arity + 2, ValueType.I32);
+            imports.addFunction(new HostFunction("env", "opa_builtin" + arity, params, List.of(ValueType.I32),
+                    (instance, args) -> new long[] {callBuiltin(args)}));
+        }
+        return imports.build();
+    }
+
+    /**
+     * Replaces the data document the policy is evaluated against
+     */
+    public void setData(byte[] data) {
+        heapPtrSet.apply(initialHeapPtr);
+        dataAddr = loadJson(data);
+        dataHeapPtr = (int) heapPtrGet.apply()[0];
+    }
+
+    /**
+     * Returns the id of the entrypoint with the given name (such as "trino/allow"), or -1 if the
+     * policy was not built with it
+     */
+    public int entrypoint(String name) {
+        return entrypoints.getOrDefault(name, -1);
+    }
+
+    /**
+     * Evaluates an entrypoint against an input document and returns the JSON result set, such as
+     * [{"result":true}], or [] if the result is undefined
+     */
+    public byte[] evaluate(int entrypoint, byte[] input, int inputOffset, int inputLength) {
+        long required = (long) dataHeapPtr + inputLength;
+        long available = (long) memory.pages() * Memory.PAGE_SIZE;
+        if (required > available) {
+            int pages = (int) ((required - available + Memory.PAGE_SIZE - 1) / Memory.PAGE_SIZE);
+            if (memory.grow(pages) < 0) {
+                throw new ChicoryException("Input of " + inputLength + " bytes does not fit into the policy's memory");
+            }
+        }
+        memory.write(dataHeapPtr, input, inputOffset, inputLength);
+        long resultAddr = eval.apply(0, entrypoint, dataAddr, dataHeapPtr, inputLength,
+                dataHeapPtr + inputLength, 0)[0];
+        return readCStringBytes((int) resultAddr);
+    }
+
+    /**
+     * Returns the compiled pattern of a regular expression of regex.match, throws
+     * IllegalArgumentException if it is invalid or uses a construct that OPA's RE2 syntax does not
+     * have
+     *
+     * Java patterns are a superset of RE2 for the most part. Backreferences, lookaround, atomic
+     * groups and possessive quantifiers are rejected, as OPA would reject them, and because they
+     * can make matching take exponential time.
+     */
+    static Pattern regexPattern(String regex) {
+        Pattern pattern = PATTERNS.get(regex);
+        if (pattern != null) {
+            return pattern;
+        }
+        checkRe2(regex);
+        pattern = Pattern.compile(regex);
+        if (PATTERNS.size() >= MAX_PATTERNS) {
+            PATTERNS.clear();
+        }
+        PATTERNS.put(regex, pattern);
+        return pattern;
+    }
+
+    private static void checkRe2(String regex) {
+        boolean inClass = false;
+        boolean afterQuantifier = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            boolean quantifier = false;
+            if (c == '\\' && i + 1 < regex.length()) {
+                char escaped = regex.charAt(++i);
+                if (escaped == 'Q') {
+                    // quoted up to \E or the end
+                    int end = regex.indexOf("\\E", i);
+                    i = end < 0 ? regex.length() : end + 1;
+                } else if (!inClass && (escaped >= '1' && escaped <= '9' || escaped == 'k')) {
+                    throw unsupportedRegex("backreferences", regex);
+                }
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+                // a ] right at the start of a class is a literal
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == '(' && regex.startsWith("?", i + 1)) {
+                if (regex.startsWith("?=", i + 1) || regex.startsWith("?!", i + 1)
+                        || regex.startsWith("?<=", i + 1) || regex.startsWith("?<!", i + 1)) {
+                    throw unsupportedRegex("lookaround", regex);
+                }
+                if (regex.startsWith("?>", i + 1)) {
+                    throw unsupportedRegex("atomic groups", regex);
+                }
+            } else if (c == '+' && afterQuantifier) {
+                throw unsupportedRegex("possessive quantifiers", regex);
+            } else {
+                quantifier = c == '*' || c == '+' || c == '?' || c == '}';
+            }
+            afterQuantifier = quantifier;
+        }
+    }
+
+    private static IllegalArgumentException unsupportedRegex(String construct, String regex) {
+        return new IllegalArgumentException("Regular expression uses " + construct + ", which RE2 does not support: " + regex);
+    }
+
+    private long callBuiltin(long[] args) {
+        Builtin builtin = builtinsById.get((int) args[0]);
+        if (builtin == null) {
+            throw new ChicoryException("Policy called unknown builtin " + args[0]);
+        }
+        // args[1] is the builtin context, which none of the supported builtins need
+        JsonNode[] values = new JsonNode[args.length - 2];
+        for (int i = 2; i < args.length; i++) {
+            values[i - 2] = readJson(args[i]);
+        }
+        try {
+            return loadJson(json.writeValueAsBytes(builtin.apply(List.of(values))));
+        } catch (IOException | RuntimeException e) {
+            throw new ChicoryException("Builtin " + args[0] + " failed", e);
+        }
+    }
+
+    private int loadJson(byte[] value) {
+        int addr = (int) malloc.apply(value.length)[0];
+        memory.write(addr, value);
+        int parsed = (int) jsonParse.apply(addr, value.length)[0];
+        if (parsed == 0) {
+            throw new ChicoryException("Policy failed to parse JSON document");
+        }
+        return parsed;
+    }
+
+    private JsonNode readJson(long valueAddr) {
+        byte[] dumped = readCStringBytes((int) jsonDump.apply(valueAddr)[0]);
+        try {
+            return json.readTree(dumped);
+        } catch (IOException e) {
+            throw new ChicoryException("Policy returned invalid JSON", e);
+        }
+    }
+
+    private String readCString(int addr) {
+        return new String(readCStringBytes(addr), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readCStringBytes(int addr) {
+        int end = addr;
+        while (memory.read(end) != 0) {
+            end++;
+        }
+        return memory.readBytes(addr, end - addr);
+    }
+}
@@ -0,0 +1,224 @@
+package tech.stackable.trino.opa;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.dylibso.chicory.wasm.Parser;
+import com.dylibso.chicory.wasm.WasmModule;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Evaluates queries in-process against a policy compiled with `opa build -t wasm`, instead of
+ * sending them to an OPA server
+ *
+ * The policy URI is mapped to an entrypoint the same way OPA maps it to a rule, e.g.
+ * /v1/data/trino/allow is evaluated with the entrypoint trino/allow (`opa build -e trino/allow`).
+ * Responses look like the ones of OPA's REST API, including a 404 for entrypoints the policy
+ * was not built with.
+ *
+ * Queries are evaluated on the calling thread by one of a fixed number of policy instances. The
+ * data document is read from a file, which is checked for changes at most once per refresh
+ * interval. Each instance picks up new data the next time it is used. If the file cannot be read
+ * or is not valid JSON, the previous data stays in use.
+ */
+public class OpaWasmTransport implements OpaTransport {
+    private static final String DATA_API_PREFIX = "/v1/data/";
+    private static final byte[] INPUT_PREFIX = "{\"input\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] UNDEFINED_RESULT = "{}".getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper json = new ObjectMapper();
+    private final WasmModule module;
+    private final BlockingQueue<PooledPolicy> pool;
+    private final Optional<Path> dataFile;
+    private final long dataRefreshIntervalNanos;
+    private volatile Data data;
+    private volatile long nextDataCheckNanos;
+
+    public OpaWasmTransport(Path policyFile, Optional<Path> dataFile, Duration dataRefreshInterval, int instances)
+            throws IOException {
+        this.module = Parser.parse(policyFile);
+        this.dataFile = dataFile;
+        this.dataRefreshIntervalNanos = dataRefreshInterval.toNanos();
+        this.data = new Data(0, null, "{}".getBytes(StandardCharsets.UTF_8));
+        if (dataFile.isPresent()) {
+            Data loaded = readData(dataFile.get(), 1);
+            if (loaded == null) {
+                throw new IOException("Data file " + dataFile.get() + " is not a valid JSON document");
+            }
+            this.data = loaded;
+        }
+        this.nextDataCheckNanos = System.nanoTime() + dataRefreshIntervalNanos;
+        this.pool = new ArrayBlockingQueue<>(instances);
+        for (int i = 0; i < instances; i++) {
+            pool.add(new PooledPolicy(new OpaWasmPolicy(module, json)));
+        }
+    }
+
+    private static class Data {
+        final long version;
+        final FileTime lastModified;
+        final byte[] document;
+
+        Data(long version, FileTime lastModified, byte[] document) {
+            this.version = version;
+            this.lastModified = lastModified;
+            this.document = document;
+        }
+    }
+
+    private static class PooledPolicy {
+        final OpaWasmPolicy policy;
+        long dataVersion = 0;
+
+        PooledPolicy(OpaWasmPolicy policy) {
+            this.policy = policy;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Response> send(URI policyUri, byte[] body, long deadlineNanos) {
+        String path = policyUri.getPath();
+        if (path == null || !path.startsWith(DATA_API_PREFIX)) {
+            return CompletableFuture.completedFuture(new Response(404, new byte[0]));
+        }
+        String entrypointName = path.substring(DATA_API_PREFIX.length());
+        refreshDataIfDue();
+
+        PooledPolicy pooled;
+        try {
+            pooled = pool.poll(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(new OpaQueryException.QueryFailed(e));
+        }
+        if (pooled == null) {
+            return CompletableFuture.failedFuture(new OpaQueryException.QueryFailed(
+                    new TimeoutException("Timed out waiting for a free policy instance")));
+        }
+        try {
+            int entrypoint = pooled.policy.entrypoint(entrypointName);
+            if (entrypoint < 0) {
+                return CompletableFuture.completedFuture(new Response(404, new byte[0]));
+            }
+            Data current = data;
+            if (pooled.dataVersion != current.version) {
+                pooled.policy.setData(current.document);
+                pooled.dataVersion = current.version;
+            }
+            byte[] resultSet = evaluate(pooled.policy, entrypoint, body);
+            return CompletableFuture.completedFuture(new Response(200, toResponseBody(resultSet)));
+        } catch (OpaQueryException e) {
+            return CompletableFuture.failedFuture(e);
+        } catch (Exception e) {
+            // the instance may be left in any state, start over with a fresh one
+            pooled = replace(pooled);
+            return CompletableFuture.failedFuture(new OpaQueryException.QueryFailed(e));
+        } finally {
+            pool.add(pooled);
+        }
+    }
+
+    private PooledPolicy replace(PooledPolicy broken) {
+        try {
+            return new PooledPolicy(new OpaWasmPolicy(module, json));
+        } catch (RuntimeException e) {
+            return broken;
+        }
+    }
+
+    private byte[] evaluate(OpaWasmPolicy policy, int entrypoint, byte[] body) throws IOException {
+        // the authorizer always sends {"input":...}, which can be passed on without parsing it
+        if (startsWith(body, INPUT_PREFIX) && body[body.length - 1] == '}') {
+            return policy.evaluate(entrypoint, body, INPUT_PREFIX.length, body.length - INPUT_PREFIX.length - 1);
+        }
+        JsonNode input = json.readTree(body).path("input");
+        byte[] inputBytes = json.writeValueAsBytes(input.isMissingNode() ? null : input);
+        return policy.evaluate(entrypoint, inputBytes, 0, inputBytes.length);
+    }
+
+    /**
+     * Turns a result set ([{"result":...}] or []) into the body OPA's REST API would respond with
+     */
+    private static byte[] toResponseBody(byte[] resultSet) {
+        int start = 0;
+        int end = resultSet.length;
+        while (start < end && Character.isWhitespace(resultSet[start])) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(resultSet[end - 1])) {
+            end--;
+        }
+        if (end - start < 2 || resultSet[start] != '[' || resultSet[end - 1] != ']') {
+            throw new OpaQueryException.DeserializeFailed(new IOException(
+                    "Policy returned an invalid result set: " + new String(resultSet, StandardCharsets.UTF_8)));
+        }
+        byte[] element = Arrays.copyOfRange(resultSet, start + 1, end - 1);
+        return isBlank(element) ? UNDEFINED_RESULT : element;
+    }
+
+    private void refreshDataIfDue() {
+        if (dataFile.isEmpty() || System.nanoTime() - nextDataCheckNanos < 0) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now - nextDataCheckNanos < 0) {
+                return;
+            }
+            nextDataCheckNanos = now + dataRefreshIntervalNanos;
+            Data current = data;
+            try {
+                if (Files.getLastModifiedTime(dataFile.get()).equals(current.lastModified)) {
+                    return;
+                }
+            } catch (IOException e) {
+                return;
+            }
+            Data loaded = readData(dataFile.get(), current.version + 1);
+            if (loaded != null) {
+                data = loaded;
+            }
+        }
+    }
+
+    /**
+     * Returns null if the file cannot be read or is not a valid JSON document
+     */
+    private Data readData(Path file, long version) {
+        try {
+            FileTime lastModified = Files.getLastModifiedTime(file);
+            byte[] document = Files.readAllBytes(file);
+            json.readTree(document);
+            return new Data(version, lastModified, document);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        return bytes.length > prefix.length
+                && Arrays.equals(bytes, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static boolean isBlank(byte[] bytes) {
+        for (byte b : bytes) {
+            if (!Character.isWhitespace(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,88 @@
+package tech.stackable.trino.opa;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import io.trino.spi.QueryId;
+import io.trino.spi.connector.CatalogSchemaTableName;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * End-to-end cost of a single checkCanSelectFromColumns call against an in-JVM stand-in OPA,
+ * including serialization, the HTTP round trip and parsing the response
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BenchmarkCheckCanSelectFromColumns {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+
+    @Param({"0", "1"})
+    public int opaLatencyMillis;
+
+    @Param({"false", "true"})
+    public boolean decisionCache;
+
+    @Param({"10", "500"})
+    public int groupCount;
+
+    private TestingOpaServer opaServer;
+    private OpaAuthorizer authorizer;
+    private SystemSecurityContext context;
+    private final CatalogSchemaTableName table = new CatalogSchemaTableName("hive", "sales", "orders");
+    private final Set<String> columns = Set.of("id", "customer", "total", "created_at");
+
+    @Setup
+    public void setup() throws Exception {
+        opaServer = new TestingOpaServer();
+        opaServer.setLatency(Duration.ofMillis(opaLatencyMillis));
+        opaServer.setPolicy(ALLOW_PATH, input -> true);
+        authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                .decisionCacheEnabled(decisionCache)
+                .build());
+        Identity identity = Identity.forUser("bob")
+                .withGroups(IntStream.range(0, groupCount).mapToObj(i -> "ldap-group-" + i).collect(Collectors.toSet()))
+                .build();
+        context = new SystemSecurityContext(identity, Optional.of(new QueryId("20230101_000000_00000_abcde")));
+    }
+
+    @TearDown
+    public void teardown() {
+        opaServer.close();
+    }
+
+    @Benchmark
+    public void checkCanSelectFromColumns() {
+        authorizer.checkCanSelectFromColumns(context, table, columns);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(".*" + BenchmarkCheckCanSelectFromColumns.class.getSimpleName() + ".*")
+                .build()).run();
+    }
+}
@@ -0,0 +1,105 @@
+package tech.stackable.trino.opa;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.trino.spi.connector.CatalogSchemaTableName;
+import io.trino.spi.connector.SchemaTableName;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures filterTables and filterColumns against an in-JVM stand-in OPA, one request per element
+ * versus a single batched request
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+public class BenchmarkOpaAuthorizerFilter {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final String BATCH_PATH = "/v1/data/trino/batch";
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean batched;
+
+    @Param({"0", "1"})
+    public int opaLatencyMillis;
+
+    private TestingOpaServer opaServer;
+    private OpaAuthorizer authorizer;
+    private SystemSecurityContext context;
+    private Set<SchemaTableName> tables;
+    private Set<String> columns;
+
+    @Setup
+    public void setup() throws Exception {
+        opaServer = new TestingOpaServer();
+        opaServer.setLatency(Duration.ofMillis(opaLatencyMillis));
+        opaServer.setPolicy(ALLOW_PATH, input -> input.toString().hashCode() % 2 == 0);
+        opaServer.setPolicy(BATCH_PATH, input -> {
+            JsonNode resources = input.at("/action/filterResources");
+            List<Integer> allowed = new ArrayList<>();
+            for (int i = 0; i < resources.size(); i += 2) {
+                allowed.add(i);
+            }
+            return allowed;
+        });
+        OpaAuthorizerConfig.Builder config = new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                .callTimeout(Duration.ofMinutes(10));
+        if (batched) {
+            config.opaBatchPolicyUri(opaServer.policyUri(BATCH_PATH));
+        }
+        authorizer = new OpaAuthorizer(config.build());
+        context = new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+        tables = IntStream.range(0, size).mapToObj(i -> new SchemaTableName("sales", "table_" + i)).collect(Collectors.toSet());
+        columns = IntStream.range(0, size).mapToObj(i -> "column_" + i).collect(Collectors.toSet());
+    }
+
+    @TearDown
+    public void teardown() {
+        opaServer.close();
+    }
+
+    @Benchmark
+    public Set<SchemaTableName> filterTables() {
+        return authorizer.filterTables(context, "hive", tables);
+    }
+
+    @Benchmark
+    public Set<String> filterColumns() {
+        return authorizer.filterColumns(context, new CatalogSchemaTableName("hive", "sales", "orders"), columns);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(".*" + BenchmarkOpaAuthorizerFilter.class.getSimpleName() + ".*")
+                .build()).run();
+    }
+}
@@ -0,0 +1,102 @@
+package tech.stackable.trino.opa;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures parsing of OPA responses, with and without the extra fields that OPA adds when decision
+ * logging is enabled, comparing {@link OpaResultParser} against binding the whole response
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BenchmarkOpaQueryResult {
+    private static final String DECISION_LOG_FIELDS = "\"decision_id\":\"b3d5f5a4-0b4e-4c8e-9d0e-2f1c8c6a1b7e\","
+            + "\"metrics\":{\"counter_server_query_cache_hit\":0,\"timer_rego_external_resolve_ns\":1200,"
+            + "\"timer_rego_input_parse_ns\":31000,\"timer_rego_query_eval_ns\":98000,\"timer_server_handler_ns\":170000},";
+
+    // same configuration as OpaAuthorizer uses for responses
+    private final ObjectMapper json = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final JavaType INDICES_TYPE = TypeFactory.defaultInstance().constructCollectionType(List.class, Integer.class);
+
+    // how responses were parsed before OpaResultParser
+    public static class QueryResult {
+        public Boolean result;
+    }
+
+    public static class BatchQueryResult {
+        public List<Integer> result;
+    }
+
+    private final OpaResultParser parser = new OpaResultParser(json);
+
+    @Param({"false", "true"})
+    public boolean decisionLogging;
+
+    @Param({"10", "10000"})
+    public int batchSize;
+
+    private byte[] decision;
+    private byte[] batchDecision;
+
+    @Setup
+    public void setup() {
+        String prefix = decisionLogging ? "{" + DECISION_LOG_FIELDS : "{";
+        decision = (prefix + "\"result\":true}").getBytes(StandardCharsets.UTF_8);
+        String indices = IntStream.range(0, batchSize).filter(i -> i % 2 == 0)
+                .mapToObj(Integer::toString).collect(Collectors.joining(","));
+        batchDecision = (prefix + "\"result\":[" + indices + "]}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object decision() throws Exception {
+        return parser.readDecision(decision);
+    }
+
+    @Benchmark
+    public Object decisionDataBind() throws Exception {
+        return json.readValue(decision, QueryResult.class).result;
+    }
+
+    @Benchmark
+    public Object batchDecision() throws Exception {
+        return parser.readResult(batchDecision, INDICES_TYPE);
+    }
+
+    @Benchmark
+    public Object batchDecisionDataBind() throws Exception {
+        return json.readValue(batchDecision, BatchQueryResult.class).result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(".*" + BenchmarkOpaQueryResult.class.getSimpleName() + ".*")
+                .build()).run();
+    }
+}
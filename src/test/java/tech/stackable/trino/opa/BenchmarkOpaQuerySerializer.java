@@ -0,0 +1,79 @@
+package tech.stackable.trino.opa;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import io.trino.spi.QueryId;
+import io.trino.spi.connector.CatalogSchemaTableName;
+import io.trino.spi.security.BasicPrincipal;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link OpaQuerySerializer} against serializing the query with a plain ObjectMapper
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BenchmarkOpaQuerySerializer {
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .registerModule(new Jdk8Module());
+    private final OpaQuerySerializer serializer = new OpaQuerySerializer();
+
+    @Param({"0", "10", "500"})
+    public int groupCount;
+
+    private OpaQueryInput input;
+
+    @Setup
+    public void setup() {
+        Identity identity = Identity.forUser("bob")
+                .withPrincipal(new BasicPrincipal("bob"))
+                .withGroups(IntStream.range(0, groupCount).mapToObj(i -> "ldap-group-" + i).collect(Collectors.toSet()))
+                .build();
+        SystemSecurityContext context = new SystemSecurityContext(identity, Optional.of(new QueryId("20230101_000000_00000_abcde")));
+        input = new OpaQueryInput(context, new OpaQueryInputAction("SelectFromColumns",
+                new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(
+                        new CatalogSchemaTableName("hive", "sales", "orders"), Set.of("id", "customer", "total"))).build()));
+    }
+
+    @Benchmark
+    public byte[] objectMapper() throws Exception {
+        return objectMapper.writeValueAsBytes(Map.of("input", input));
+    }
+
+    @Benchmark
+    public byte[] opaQuerySerializer() throws Exception {
+        return serializer.serialize(input);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(".*" + BenchmarkOpaQuerySerializer.class.getSimpleName() + ".*")
+                .build()).run();
+    }
+}
@@ -0,0 +1,83 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.trino.spi.connector.SchemaTableName;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaAuthorizerBatchTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final String BATCH_PATH = "/v1/data/trino/batch";
+
+    private TestingOpaServer opaServer;
+    private OpaAuthorizer authorizer;
+    private final SystemSecurityContext context =
+            new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+    private final Set<SchemaTableName> tables = Set.of(
+            new SchemaTableName("sales", "orders"),
+            new SchemaTableName("sales", "customers"),
+            new SchemaTableName("hr", "salaries"));
+
+    @BeforeEach
+    public void setup() throws IOException {
+        opaServer = new TestingOpaServer();
+        opaServer.setPolicy(ALLOW_PATH, input -> isAllowedTable(input.at("/action/resource")));
+        authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                .opaBatchPolicyUri(opaServer.policyUri(BATCH_PATH))
+                .build());
+    }
+
+    @AfterEach
+    public void teardown() {
+        opaServer.close();
+    }
+
+    private static boolean isAllowedTable(JsonNode resource) {
+        return resource.at("/table/schemaTableName/schema").asText().equals("sales");
+    }
+
+    @Test
+    public void testShouldFilterTablesInOneRequest() {
+        opaServer.setPolicy(BATCH_PATH, input -> {
+            List<Integer> allowed = new ArrayList<>();
+            JsonNode resources = input.at("/action/filterResources");
+            for (int i = 0; i < resources.size(); i++) {
+                if (isAllowedTable(resources.get(i))) {
+                    allowed.add(i);
+                }
+            }
+            return allowed;
+        });
+        assertEquals(
+                Set.of(new SchemaTableName("sales", "orders"), new SchemaTableName("sales", "customers")),
+                authorizer.filterTables(context, "hive", tables));
+        assertEquals(1, opaServer.getRequestCount(BATCH_PATH));
+        assertEquals(0, opaServer.getRequestCount(ALLOW_PATH));
+    }
+
+    @Test
+    public void testShouldFallBackToSingleRequestsIfBatchRuleIsUndefined() {
+        opaServer.setPolicy(BATCH_PATH, input -> null);
+        assertEquals(
+                Set.of(new SchemaTableName("sales", "orders"), new SchemaTableName("sales", "customers")),
+                authorizer.filterTables(context, "hive", tables));
+        assertEquals(1, opaServer.getRequestCount(BATCH_PATH));
+        assertEquals(3, opaServer.getRequestCount(ALLOW_PATH));
+
+        OpaOperationStats stats = authorizer.getOperationStats().get("FilterTables");
+        assertEquals(1, stats.getCalls());
+        assertEquals(2, stats.getAllowed());
+        assertEquals(1, stats.getDenied());
+        assertEquals(4, stats.getOpaRequests());
+    }
+}
@@ -0,0 +1,112 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.trino.spi.security.AccessDeniedException;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaAuthorizerCacheDirectivesTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final String MICRO_BATCH_PATH = "/v1/data/trino/microBatch";
+
+    private TestingOpaServer opaServer;
+    private OpaAuthorizer authorizer;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        opaServer = new TestingOpaServer();
+        opaServer.setPolicy(ALLOW_PATH, OpaAuthorizerCacheDirectivesTest::decide);
+        authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                .decisionCacheEnabled(true)
+                .build());
+    }
+
+    private static Object decide(JsonNode input) {
+        String operation = input.at("/action/operation").asText();
+        boolean analyst = false;
+        for (JsonNode group : input.at("/context/identity/groups")) {
+            analyst |= group.asText().equals("analysts");
+        }
+        switch (operation) {
+            case "AccessCatalog":
+                // every analyst may access catalogs
+                return analyst ? Map.of("allow", true, "cache_scope", "group", "cache_group", "analysts") : false;
+            case "ImpersonateUser":
+                return Map.of("allow", true, "no_cache", true);
+            default:
+                return false;
+        }
+    }
+
+    @AfterEach
+    public void teardown() {
+        opaServer.close();
+    }
+
+    private static SystemSecurityContext context(String user, Set<String> groups) {
+        return new SystemSecurityContext(Identity.forUser(user).withGroups(groups).build(), Optional.empty());
+    }
+
+    @Test
+    public void testShouldShareGroupScopedDecisions() {
+        authorizer.checkCanAccessCatalog(context("alice", Set.of("analysts")), "hive");
+        authorizer.checkCanAccessCatalog(context("bob", Set.of("analysts", "staff")), "hive");
+        assertEquals(1, opaServer.getRequestCount(ALLOW_PATH));
+
+        assertThrows(AccessDeniedException.class, () -> authorizer.checkCanAccessCatalog(context("carol", Set.of("staff")), "hive"));
+        assertEquals(2, opaServer.getRequestCount(ALLOW_PATH));
+    }
+
+    @Test
+    public void testShouldNotCacheDecisionsMarkedNoCache() {
+        SystemSecurityContext alice = context("alice", Set.of());
+        authorizer.checkCanImpersonateUser(alice, "bob");
+        authorizer.checkCanImpersonateUser(alice, "bob");
+        assertEquals(2, opaServer.getRequestCount(ALLOW_PATH));
+    }
+
+    @Test
+    public void testShouldKeepDirectivesOfMicroBatchedDecisions() {
+        opaServer.setPolicy(MICRO_BATCH_PATH, input -> {
+            List<Object> decisions = new ArrayList<>();
+            for (JsonNode query : input.get("queries")) {
+                decisions.add(decide(query));
+            }
+            return decisions;
+        });
+        OpaAuthorizer batching = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                .decisionCacheEnabled(true)
+                .opaMicroBatchPolicyUri(opaServer.policyUri(MICRO_BATCH_PATH))
+                .microBatchWindow(Duration.ofMinutes(1))
+                .microBatchMaxSize(2)
+                .build());
+        SystemSecurityContext alice = context("alice", Set.of());
+        Runnable impersonateTwice = () -> CompletableFuture.allOf(
+                CompletableFuture.runAsync(() -> batching.checkCanImpersonateUser(alice, "bob")),
+                CompletableFuture.runAsync(() -> batching.checkCanImpersonateUser(alice, "carol"))).join();
+        impersonateTwice.run();
+        impersonateTwice.run();
+        assertEquals(2, opaServer.getRequestCount(MICRO_BATCH_PATH));
+
+        // the queries sent one by one when the micro-batch rule is undefined keep their directives as well
+        opaServer.setPolicy(MICRO_BATCH_PATH, input -> null);
+        impersonateTwice.run();
+        impersonateTwice.run();
+        assertEquals(4, opaServer.getRequestCount(ALLOW_PATH));
+    }
+}
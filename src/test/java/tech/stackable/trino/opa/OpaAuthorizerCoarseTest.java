@@ -0,0 +1,92 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.trino.spi.connector.CatalogSchemaTableName;
+import io.trino.spi.connector.SchemaTableName;
+import io.trino.spi.security.AccessDeniedException;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaAuthorizerCoarseTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final String COARSE_PATH = "/v1/data/trino/coarse";
+
+    private TestingOpaServer opaServer;
+    private OpaAuthorizer authorizer;
+    private final SystemSecurityContext context =
+            new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+    private final CatalogSchemaTableName orders = new CatalogSchemaTableName("hive", "sales", "orders");
+    private final CatalogSchemaTableName salaries = new CatalogSchemaTableName("hive", "hr", "salaries");
+
+    @BeforeEach
+    public void setup() throws IOException {
+        opaServer = new TestingOpaServer();
+        // fine-grained rule: only the id columns and nothing in the hr schema
+        opaServer.setPolicy(ALLOW_PATH, input -> input.at("/action/resource/table/column").asText().equals("id")
+                || input.at("/action/resource/table/schemaTableName/schema").asText().equals("sales"));
+        // coarse rule: everything in the sales schema
+        opaServer.setPolicy(COARSE_PATH, input -> input.at("/action/resource/schema/catalogSchemaName/schemaName").asText().equals("sales")
+                || input.at("/action/resource/table/catalogSchemaTableName/schemaTable/schema").asText().equals("sales"));
+        authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                .opaCoarsePolicyUri(opaServer.policyUri(COARSE_PATH))
+                .build());
+    }
+
+    @AfterEach
+    public void teardown() {
+        opaServer.close();
+    }
+
+    @Test
+    public void testShouldSkipColumnChecksOfAllowedTable() {
+        Set<String> columns = Set.of("id", "customer", "total");
+        assertEquals(columns, authorizer.filterColumns(context, orders, columns));
+        assertEquals(1, opaServer.getRequestCount(COARSE_PATH));
+        assertEquals(0, opaServer.getRequestCount(ALLOW_PATH));
+
+        assertEquals(Set.of("id"), authorizer.filterColumns(context, salaries, Set.of("id", "amount")));
+        assertEquals(2, opaServer.getRequestCount(COARSE_PATH));
+        assertEquals(2, opaServer.getRequestCount(ALLOW_PATH));
+
+        OpaOperationStats stats = authorizer.getOperationStats().get("FilterColumns");
+        assertEquals(2, stats.getCalls());
+        assertEquals(4, stats.getAllowed());
+        assertEquals(1, stats.getDenied());
+    }
+
+    @Test
+    public void testShouldSkipTableChecksOfAllowedSchemas() {
+        Set<SchemaTableName> tables = Set.of(
+                new SchemaTableName("sales", "orders"),
+                new SchemaTableName("sales", "customers"),
+                new SchemaTableName("hr", "salaries"));
+        assertEquals(
+                Set.of(new SchemaTableName("sales", "orders"), new SchemaTableName("sales", "customers")),
+                authorizer.filterTables(context, "hive", tables));
+        // one coarse request per schema, and only the table of the other schema is checked by itself
+        assertEquals(2, opaServer.getRequestCount(COARSE_PATH));
+        assertEquals(1, opaServer.getRequestCount(ALLOW_PATH));
+    }
+
+    @Test
+    public void testShouldCheckColumnsIfCoarseRuleDoesNotAllowTable() {
+        authorizer.checkCanSelectFromColumns(context, orders, Set.of("customer"));
+        assertEquals(0, opaServer.getRequestCount(ALLOW_PATH));
+        assertThrows(AccessDeniedException.class,
+                () -> authorizer.checkCanSelectFromColumns(context, salaries, Set.of("amount")));
+        assertEquals(1, opaServer.getRequestCount(ALLOW_PATH));
+
+        // while the coarse rule is undefined every check goes to the fine-grained one
+        opaServer.setPolicy(COARSE_PATH, input -> null);
+        assertEquals(Set.of("id"), authorizer.filterColumns(context, salaries, Set.of("id", "amount")));
+        assertEquals(3, opaServer.getRequestCount(ALLOW_PATH));
+    }
+}
@@ -0,0 +1,144 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.trino.spi.connector.SchemaTableName;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaAuthorizerPartialEvaluationTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final String COMPILE_PATH = "/v1/compile";
+
+    private final ObjectMapper json = new ObjectMapper();
+    private TestingOpaServer opaServer;
+    private OpaAuthorizer authorizer;
+    private final SystemSecurityContext context =
+            new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+    private final Set<SchemaTableName> tables = Set.of(
+            new SchemaTableName("sales", "orders"),
+            new SchemaTableName("sales", "tmp_orders"),
+            new SchemaTableName("hr", "salaries"));
+
+    @BeforeEach
+    public void setup() throws IOException {
+        opaServer = new TestingOpaServer();
+        // the same rule as the residual below: tables in the sales schema that are not temporary
+        opaServer.setPolicy(ALLOW_PATH, input -> input.at("/action/resource/table/schemaTableName/schema").asText().equals("sales")
+                && !input.at("/action/resource/table/schemaTableName/table").asText().startsWith("tmp_"));
+        authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                .partialEvaluationEnabled(true)
+                .build());
+    }
+
+    @AfterEach
+    public void teardown() {
+        opaServer.close();
+    }
+
+    private static String ref(String... fields) {
+        StringBuilder ref = new StringBuilder("{\"type\":\"ref\",\"value\":[{\"type\":\"var\",\"value\":\"input\"}");
+        for (String field : fields) {
+            ref.append(",{\"type\":\"string\",\"value\":\"").append(field).append("\"}");
+        }
+        return ref.append("]}").toString();
+    }
+
+    private static String call(String operator, String left, String right) {
+        return "{\"terms\":[{\"type\":\"ref\",\"value\":[{\"type\":\"var\",\"value\":\"" + operator + "\"}]}," + left + "," + right + "]";
+    }
+
+    private static final String SCHEMA = ref("action", "resource", "table", "schemaTableName", "schema");
+    private static final String TABLE = ref("action", "resource", "table", "schemaTableName", "table");
+
+    private JsonNode salesResidual() throws IOException {
+        return json.readTree("{\"queries\":[["
+                + call("eq", "{\"type\":\"string\",\"value\":\"sales\"}", SCHEMA) + "},"
+                + call("startswith", TABLE, "{\"type\":\"string\",\"value\":\"tmp_\"}") + ",\"negated\":true}"
+                + "]]}");
+    }
+
+    @Test
+    public void testShouldFilterTablesLocally() throws IOException {
+        JsonNode residual = salesResidual();
+        opaServer.setPolicy(COMPILE_PATH, input -> {
+            assertEquals("FilterTables", input.at("/action/operation").asText());
+            assertTrue(input.at("/action/resource").isMissingNode());
+            return residual;
+        });
+        Set<SchemaTableName> expected = Set.of(new SchemaTableName("sales", "orders"));
+        assertEquals(expected, authorizer.filterTables(context, "hive", tables));
+        assertEquals(expected, authorizer.filterTables(context, "hive", tables));
+        assertEquals(1, opaServer.getRequestCount(COMPILE_PATH));
+        assertEquals(0, opaServer.getRequestCount(ALLOW_PATH));
+    }
+
+    @Test
+    public void testShouldFallBackToOpaForUnsupportedResidual() throws IOException {
+        // e.g. a comparison with a value computed by a support rule
+        JsonNode residual = json.readTree("{\"queries\":[[" + call("eq", SCHEMA,
+                "{\"type\":\"ref\",\"value\":[{\"type\":\"var\",\"value\":\"data\"},{\"type\":\"string\",\"value\":\"partial\"}]}")
+                + "}]],\"support\":[{\"package\":{\"path\":[]}}]}");
+        opaServer.setPolicy(COMPILE_PATH, input -> residual);
+        Set<SchemaTableName> expected = Set.of(new SchemaTableName("sales", "orders"));
+        assertEquals(expected, authorizer.filterTables(context, "hive", tables));
+        assertEquals(expected, authorizer.filterTables(context, "hive", tables));
+        assertEquals(1, opaServer.getRequestCount(COMPILE_PATH));
+        assertEquals(6, opaServer.getRequestCount(ALLOW_PATH));
+
+    }
+
+    @Test
+    public void testShouldFallBackToOpaWithoutCompileApi() {
+        // the testing server answers 404 for paths without a policy
+        Set<SchemaTableName> expected = Set.of(new SchemaTableName("sales", "orders"));
+        assertEquals(expected, authorizer.filterTables(context, "hive", tables));
+        assertEquals(expected, authorizer.filterTables(context, "hive", tables));
+        assertEquals(1, opaServer.getRequestCount(COMPILE_PATH));
+        assertEquals(6, opaServer.getRequestCount(ALLOW_PATH));
+    }
+
+    @Test
+    public void testShouldEvaluateResidualExpressions() throws IOException {
+        OpaResidualPredicate predicate = OpaResidualPredicate.fromCompileResult(json.readTree("{\"queries\":["
+                + "[" + call("internal.member_2", SCHEMA, "{\"type\":\"set\",\"value\":[{\"type\":\"string\",\"value\":\"hr\"}]}")
+                .replace("{\"type\":\"var\",\"value\":\"internal.member_2\"}",
+                        "{\"type\":\"var\",\"value\":\"internal\"},{\"type\":\"string\",\"value\":\"member_2\"}") + "}],"
+                + "[" + call("neq", TABLE, "{\"type\":\"string\",\"value\":\"orders\"}") + "}]"
+                + "]}")).orElseThrow();
+        SchemaTableName[] names = {new SchemaTableName("hr", "orders"), new SchemaTableName("sales", "orders"),
+                new SchemaTableName("sales", "customers")};
+        OpaQuerySerializer serializer = new OpaQuerySerializer();
+        List<Boolean> decisions = List.of(true, false, true);
+        for (int i = 0; i < names.length; i++) {
+            JsonNode resource = serializer.toTree(new OpaQueryInputResource.Builder()
+                    .table(new OpaQueryInputResource.Table("hive", names[i])).build());
+            assertEquals(decisions.get(i), predicate.test(resource), names[i].toString());
+        }
+
+        // no queries: the policy is never true, an empty query: always true
+        JsonNode anyResource = json.valueToTree(Map.of());
+        assertFalse(OpaResidualPredicate.fromCompileResult(json.readTree("{}")).orElseThrow().test(anyResource));
+        assertTrue(OpaResidualPredicate.fromCompileResult(json.readTree("{\"queries\":[[]]}")).orElseThrow().test(anyResource));
+    }
+
+    @Test
+    public void testShouldCompareNumbersByValue() throws IOException {
+        assertTrue(OpaResidualPredicate.valuesEqual(json.readTree("1"), json.readTree("1.0")));
+        assertTrue(OpaResidualPredicate.valuesEqual(json.readTree("[1, {\"a\": 2.50}]"), json.readTree("[1.0, {\"a\": 2.5}]")));
+        assertFalse(OpaResidualPredicate.valuesEqual(json.readTree("1"), json.readTree("1.5")));
+        assertFalse(OpaResidualPredicate.valuesEqual(json.readTree("1"), json.readTree("\"1\"")));
+    }
+}
@@ -0,0 +1,34 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.time.Duration;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class OpaAuthorizerPluginTest {
+    private static Duration duration(String value) {
+        return OpaAuthorizerPlugin.getDuration(Map.of(OpaAuthorizerPlugin.CONFIG_OPA_CACHE_TTL, value),
+                OpaAuthorizerPlugin.CONFIG_OPA_CACHE_TTL);
+    }
+
+    @Test
+    public void testShouldParseDurationsLikeTrino() {
+        assertEquals(Duration.ofNanos(500), duration("500ns"));
+        assertEquals(Duration.ofNanos(250_000), duration("250us"));
+        assertEquals(Duration.ofMillis(1500), duration("1.5s"));
+        assertEquals(Duration.ofMillis(100), duration(" 100 ms "));
+        assertEquals(Duration.ofSeconds(90), duration("1.5m"));
+        assertEquals(Duration.ofDays(2), duration("2d"));
+    }
+
+    @Test
+    public void testShouldRejectInvalidDurations() {
+        assertThrows(OpaConfigException.ValueInvalid.class, () -> duration("10"));
+        assertThrows(OpaConfigException.ValueInvalid.class, () -> duration(".5s"));
+        assertThrows(OpaConfigException.ValueInvalid.class, () -> duration("5w"));
+        // longer than the nanoseconds of a long
+        assertThrows(OpaConfigException.ValueInvalid.class, () -> duration("200000d"));
+        assertThrows(OpaConfigException.ValueInvalid.class, () -> duration("99999999999999999999s"));
+    }
+}
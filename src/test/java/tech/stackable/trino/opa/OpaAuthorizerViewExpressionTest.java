@@ -0,0 +1,93 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.trino.spi.connector.CatalogSchemaTableName;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+import io.trino.spi.security.ViewExpression;
+import io.trino.spi.type.VarcharType;
+
+public class OpaAuthorizerViewExpressionTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final String ROW_FILTERS_PATH = "/v1/data/trino/rowFilters";
+    private static final String COLUMN_MASKS_PATH = "/v1/data/trino/columnMasks";
+
+    private TestingOpaServer opaServer;
+    private OpaAuthorizer authorizer;
+    private final SystemSecurityContext context =
+            new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+    private final CatalogSchemaTableName orders = new CatalogSchemaTableName("hive", "sales", "orders");
+    private final CatalogSchemaTableName customers = new CatalogSchemaTableName("hive", "sales", "customers");
+
+    @BeforeEach
+    public void setup() throws IOException {
+        opaServer = new TestingOpaServer();
+        opaServer.setPolicy(ROW_FILTERS_PATH, input -> {
+            if (!input.at("/action/resource/table/catalogSchemaTableName/schemaTable/table").asText().equals("orders")) {
+                return null;
+            }
+            return List.of(
+                    Map.of("expression", "region = 'EU'"),
+                    Map.of("expression", "owner = current_user", "identity", "admin"));
+        });
+        opaServer.setPolicy(COLUMN_MASKS_PATH, input -> Map.of(
+                "customer", Map.of("expression", "'***'"),
+                "email", Map.of("expression", "regexp_replace(email, '.*@', '***@')")));
+        authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                .opaRowFiltersPolicyUri(opaServer.policyUri(ROW_FILTERS_PATH))
+                .opaColumnMasksPolicyUri(opaServer.policyUri(COLUMN_MASKS_PATH))
+                .decisionCacheEnabled(true)
+                .build());
+    }
+
+    @AfterEach
+    public void teardown() {
+        opaServer.close();
+    }
+
+    @Test
+    public void testShouldReturnRowFiltersFromPolicy() {
+        List<ViewExpression> filters = authorizer.getRowFilters(context, orders);
+        assertEquals(2, filters.size());
+        assertEquals("region = 'EU'", filters.get(0).getExpression());
+        assertEquals(Optional.empty(), filters.get(0).getSecurityIdentity());
+        assertEquals(Optional.of("hive"), filters.get(0).getCatalog());
+        assertEquals(Optional.of("sales"), filters.get(0).getSchema());
+        assertEquals(Optional.of("admin"), filters.get(1).getSecurityIdentity());
+        assertTrue(authorizer.getRowFilters(context, customers).isEmpty());
+
+        authorizer.getRowFilters(context, orders);
+        assertEquals(2, opaServer.getRequestCount(ROW_FILTERS_PATH));
+    }
+
+    @Test
+    public void testShouldFetchAllColumnMasksOfTableInOneRequest() {
+        assertEquals("'***'", authorizer.getColumnMask(context, orders, "customer", VarcharType.VARCHAR)
+                .map(ViewExpression::getExpression).orElseThrow());
+        assertTrue(authorizer.getColumnMask(context, orders, "email", VarcharType.VARCHAR).isPresent());
+        assertTrue(authorizer.getColumnMask(context, orders, "total", VarcharType.VARCHAR).isEmpty());
+        assertEquals(1, opaServer.getRequestCount(COLUMN_MASKS_PATH));
+
+        // other users get masks of their own
+        SystemSecurityContext alice = new SystemSecurityContext(Identity.ofUser("alice"), Optional.empty());
+        authorizer.getColumnMask(alice, orders, "customer", VarcharType.VARCHAR);
+        assertEquals(2, opaServer.getRequestCount(COLUMN_MASKS_PATH));
+    }
+
+    @Test
+    public void testShouldHaveNoExpressionsWithoutPolicy() {
+        OpaAuthorizer defaultAuthorizer = new OpaAuthorizer(opaServer.policyUri(ALLOW_PATH));
+        assertTrue(defaultAuthorizer.getRowFilters(context, orders).isEmpty());
+        assertTrue(defaultAuthorizer.getColumnMask(context, orders, "customer", VarcharType.VARCHAR).isEmpty());
+        assertEquals(0, opaServer.getRequestCount(ROW_FILTERS_PATH) + opaServer.getRequestCount(COLUMN_MASKS_PATH));
+    }
+}
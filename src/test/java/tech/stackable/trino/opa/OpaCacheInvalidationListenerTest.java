@@ -0,0 +1,45 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+public class OpaCacheInvalidationListenerTest {
+    private static List<List<String>> affected(String updateType, String statement) {
+        return OpaCacheInvalidationListener.affectedObjects(updateType, statement, Optional.of("hive"), Optional.of("sales"));
+    }
+
+    @Test
+    public void testShouldResolveObjectOfStatement() {
+        assertEquals(List.of(List.of("hive", "sales", "orders")),
+                affected("CREATE TABLE", "CREATE TABLE IF NOT EXISTS orders (id bigint)"));
+        assertEquals(List.of(List.of("iceberg", "hr", "salaries")),
+                affected("DROP TABLE", "drop table Iceberg.HR.\"Salaries\""));
+        assertEquals(List.of(List.of("hive", "sales", "orders")),
+                affected("ADD COLUMN", "ALTER TABLE orders ADD COLUMN total double"));
+        assertEquals(List.of(List.of("hive", "sales", "orders"), List.of("hive", "archive", "orders")),
+                affected("RENAME TABLE", "ALTER TABLE orders RENAME TO archive.orders"));
+        assertEquals(List.of(List.of("hive", "sales")),
+                affected("DROP SCHEMA", "DROP SCHEMA sales CASCADE"));
+        assertEquals(List.of(List.of("hive", "sales", "orders")),
+                affected("GRANT", "GRANT SELECT ON orders TO USER alice"));
+        assertEquals(List.of(List.of("hive", "hr")),
+                affected("REVOKE", "REVOKE SELECT ON SCHEMA hr FROM ROLE analyst"));
+    }
+
+    @Test
+    public void testShouldInvalidateEverythingIfObjectIsUnknown() {
+        assertEquals(List.of(List.of()), affected("CREATE ROLE", "CREATE ROLE analyst"));
+        assertEquals(List.of(List.of()), affected("DROP TABLE", "DROP TABLE a.b.c.d"));
+        assertEquals(List.of(List.of()), OpaCacheInvalidationListener.affectedObjects(
+                "DROP TABLE", "DROP TABLE orders", Optional.of("hive"), Optional.empty()));
+    }
+
+    @Test
+    public void testShouldIgnoreStatementsThatDoNotChangeObjects() {
+        assertEquals(List.of(), affected("INSERT", "INSERT INTO orders VALUES (1)"));
+        assertEquals(List.of(), affected("SET SESSION", "SET SESSION query_max_run_time = '1h'"));
+        assertEquals(List.of(), affected("SET ROLE", "SET ROLE analyst"));
+    }
+}
@@ -0,0 +1,104 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+import io.trino.spi.security.AccessDeniedException;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaCircuitBreakerTest {
+    private static final URI POLICY_URI = URI.create("http://localhost:8181/v1/data/trino/allow");
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger sent = new AtomicInteger();
+    private volatile int statusCode = 500;
+
+    private final OpaTransport backend = (policyUri, body, deadlineNanos) -> {
+        sent.incrementAndGet();
+        return CompletableFuture.completedFuture(new OpaTransport.Response(statusCode, new byte[0]));
+    };
+
+    private static int send(OpaTransport transport) {
+        return transport.send(POLICY_URI, new byte[0], Long.MAX_VALUE).join().statusCode;
+    }
+
+    @Test
+    public void testShouldOpenAfterFailuresInARowAndProbeForRecovery() {
+        OpaCircuitBreaker breaker = new OpaCircuitBreaker(backend, 3, Duration.ofSeconds(10), now::get);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(500, send(breaker));
+        }
+        assertEquals(OpaCircuitBreaker.State.OPEN, breaker.getState());
+        CompletionException rejected = assertThrows(CompletionException.class, () -> send(breaker));
+        assertInstanceOf(OpaQueryException.CircuitOpen.class, rejected.getCause());
+        assertEquals(3, sent.get());
+
+        // the probe fails, so the breaker stays open for another open duration
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        assertEquals(500, send(breaker));
+        assertThrows(CompletionException.class, () -> send(breaker));
+
+        statusCode = 200;
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        assertEquals(200, send(breaker));
+        assertEquals(OpaCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(200, send(breaker));
+        assertEquals(2, breaker.getTripCount());
+        assertEquals(2, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void testShouldNotCountLocalRejectionsAsFailures() {
+        OpaTransport overloaded = (policyUri, body, deadlineNanos) ->
+                CompletableFuture.failedFuture(new OpaQueryException.Rejected("queue is full"));
+        OpaCircuitBreaker breaker = new OpaCircuitBreaker(overloaded, 3, Duration.ofSeconds(10), now::get);
+        for (int i = 0; i < 5; i++) {
+            CompletionException rejected = assertThrows(CompletionException.class, () -> send(breaker));
+            assertInstanceOf(OpaQueryException.Rejected.class, rejected.getCause());
+        }
+        assertEquals(OpaCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getTripCount());
+    }
+
+    @Test
+    public void testShouldServeStaleDecisionsWhileOpen() throws IOException {
+        // also closed halfway through, to make OPA go away
+        TestingOpaServer opaServer = new TestingOpaServer();
+        try {
+            opaServer.setPolicy(POLICY_URI.getPath(), input -> true);
+            OpaAuthorizer authorizer = new OpaAuthorizer(
+                    new OpaAuthorizerConfig.Builder(opaServer.policyUri(POLICY_URI.getPath()))
+                            .decisionCacheEnabled(true)
+                            .decisionCacheAllowTtl(Duration.ofMillis(1))
+                            .decisionCacheStaleGrace(Duration.ofMinutes(1))
+                            .circuitBreakerEnabled(true)
+                            .circuitBreakerFailureThreshold(1)
+                            .circuitBreakerOpenDuration(Duration.ofMinutes(1))
+                            .build(), now::get);
+            SystemSecurityContext context = new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+            authorizer.checkCanAccessCatalog(context, "hive");
+            now.addAndGet(Duration.ofSeconds(1).toNanos());
+
+            // OPA goes away, the first failure opens the breaker
+            opaServer.close();
+            assertThrows(OpaQueryException.QueryFailed.class, () -> authorizer.checkCanAccessCatalog(context, "hive"));
+
+            authorizer.checkCanAccessCatalog(context, "hive");
+            // fail closed for decisions that were never cached
+            assertThrows(AccessDeniedException.class, () -> authorizer.checkCanAccessCatalog(context, "system"));
+        } finally {
+            opaServer.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.trino.spi.connector.CatalogSchemaTableName;
+import io.trino.spi.security.AccessDeniedException;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaColumnDecisionStoreTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+
+    private final AtomicLong now = new AtomicLong();
+
+    private static OpaQueryKey key(String user, String table) {
+        return new OpaQueryKey("", user, "SelectFromColumns " + table, List.of("hive", "sales", table));
+    }
+
+    private static Map<String, OpaDecision> decisions(Collection<String> allowed, Collection<String> denied) {
+        Map<String, OpaDecision> decisions = new HashMap<>();
+        allowed.forEach(column -> decisions.put(column, OpaDecision.ALLOW));
+        denied.forEach(column -> decisions.put(column, OpaDecision.DENY));
+        return decisions;
+    }
+
+    @Test
+    public void testShouldDecideColumnsBeyondFirstWord() {
+        OpaColumnDecisionStore store = new OpaColumnDecisionStore(10, Duration.ofSeconds(10), Duration.ofSeconds(10), now::get);
+        List<String> columns = IntStream.range(0, 200).mapToObj(i -> "c" + i).collect(Collectors.toList());
+        store.put(key("bob", "orders"), decisions(columns.subList(0, 150), List.of("c199")));
+        store.putAllowed(key("bob", "orders"), columns.subList(0, 150), OpaDecision.ALLOW);
+
+        assertEquals(Optional.of(true), store.allowsAll(key("bob", "orders"), Set.of("c0", "c63", "c64", "c149")));
+        assertEquals(Optional.of(false), store.allowsAll(key("bob", "orders"), Set.of("c0", "c199")));
+        assertEquals(Optional.empty(), store.allowsAll(key("bob", "orders"), Set.of("c0", "c150")));
+        // the column numbers are shared, the decisions are not
+        assertEquals(Optional.empty(), store.allowsAll(key("alice", "orders"), Set.of("c0")));
+
+        List<String> undecided = new ArrayList<>();
+        assertEquals(Set.of("c1", "c100"), store.filter(key("bob", "orders"), List.of("c1", "c100", "c199", "c180"), undecided));
+        assertEquals(List.of("c180"), undecided);
+    }
+
+    @Test
+    public void testShouldExpireAndInvalidateTables() {
+        OpaColumnDecisionStore store = new OpaColumnDecisionStore(10, Duration.ofSeconds(10), Duration.ofSeconds(10), now::get);
+        store.putAllowed(key("bob", "orders"), List.of("id"), OpaDecision.ALLOW);
+        store.putAllowed(key("bob", "customers"), List.of("id"), OpaDecision.ALLOW);
+        store.invalidate(List.of("hive", "sales", "orders"));
+        assertEquals(Optional.empty(), store.allowsAll(key("bob", "orders"), Set.of("id")));
+        assertEquals(Optional.of(true), store.allowsAll(key("bob", "customers"), Set.of("id")));
+
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        assertEquals(Optional.empty(), store.allowsAll(key("bob", "customers"), Set.of("id")));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testShouldDropDecisionsAskedForBeforeInvalidation() {
+        OpaColumnDecisionStore store = new OpaColumnDecisionStore(10, Duration.ofSeconds(10), Duration.ofSeconds(10), now::get);
+        long stamp = store.currentStamp();
+        // e.g. a GRANT completing while OPA decides
+        store.invalidate(List.of("hive", "sales", "customers"));
+        store.putAllowed(key("bob", "orders"), List.of("id"), OpaDecision.ALLOW, stamp);
+        store.put(key("bob", "orders"), decisions(List.of(), List.of("ssn")), stamp);
+        assertEquals(Optional.empty(), store.allowsAll(key("bob", "orders"), Set.of("id")));
+        assertEquals(Optional.empty(), store.allowsAll(key("bob", "orders"), Set.of("ssn")));
+
+        store.putAllowed(key("bob", "orders"), List.of("id"), OpaDecision.ALLOW, store.currentStamp());
+        assertEquals(Optional.of(true), store.allowsAll(key("bob", "orders"), Set.of("id")));
+    }
+
+    @Test
+    public void testShouldExpireAllowedAndDeniedColumnsSeparately() {
+        OpaColumnDecisionStore store = new OpaColumnDecisionStore(10, Duration.ofSeconds(10), Duration.ofSeconds(1), now::get);
+        store.putAllowed(key("bob", "orders"), List.of("id"), OpaDecision.ALLOW);
+        store.put(key("bob", "orders"), decisions(List.of(), List.of("ssn")));
+        now.addAndGet(Duration.ofSeconds(2).toNanos());
+        assertEquals(Optional.of(true), store.allowsAll(key("bob", "orders"), Set.of("id")));
+        assertEquals(Optional.empty(), store.allowsAll(key("bob", "orders"), Set.of("ssn")));
+
+        // denials are never kept with a deny TTL of zero, and directives of the policy are followed
+        OpaColumnDecisionStore noDenials = new OpaColumnDecisionStore(10, Duration.ofSeconds(10), Duration.ZERO, now::get);
+        noDenials.put(key("bob", "orders"), Map.of(
+                "id", OpaDecision.ALLOW,
+                "ssn", OpaDecision.DENY,
+                "name", new OpaDecision(true, Optional.empty(), OpaDecision.CacheScope.IDENTITY, Optional.empty(), true),
+                "email", new OpaDecision(true, Optional.of(Duration.ofSeconds(1)), OpaDecision.CacheScope.IDENTITY, Optional.empty(), false)));
+        List<String> undecided = new ArrayList<>();
+        assertEquals(Set.of("id", "email"), noDenials.filter(key("bob", "orders"), List.of("id", "email", "ssn", "name"), undecided));
+        assertEquals(List.of("ssn", "name"), undecided);
+        now.addAndGet(Duration.ofSeconds(1).toNanos());
+        undecided.clear();
+        assertEquals(Set.of(), noDenials.filter(key("bob", "orders"), List.of("id"), undecided));
+        assertEquals(List.of("id"), undecided);
+    }
+
+    @Test
+    public void testShouldAnswerColumnChecksFromStore() throws IOException {
+        try (TestingOpaServer opaServer = new TestingOpaServer()) {
+            opaServer.setPolicy(ALLOW_PATH, input -> {
+                for (JsonNode column : input.at("/action/resource/table/columns")) {
+                    if (column.asText().equals("ssn")) {
+                        return false;
+                    }
+                }
+                return !input.at("/action/resource/table/column").asText().equals("ssn");
+            });
+            OpaAuthorizer authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                    .decisionCacheEnabled(true)
+                    .columnDecisionStoreEnabled(true)
+                    .build());
+            SystemSecurityContext bob = new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+            CatalogSchemaTableName table = new CatalogSchemaTableName("hive", "sales", "customers");
+
+            assertEquals(Set.of("id", "name"), authorizer.filterColumns(bob, table, Set.of("id", "name", "ssn")));
+            assertEquals(3, opaServer.getRequestCount(ALLOW_PATH));
+            assertEquals(Set.of("id", "name"), authorizer.filterColumns(bob, table, Set.of("id", "name", "ssn")));
+            assertEquals(3, opaServer.getRequestCount(ALLOW_PATH));
+
+            authorizer.checkCanSelectFromColumns(bob, table, Set.of("id", "name"));
+            authorizer.checkCanSelectFromColumns(bob, table, Set.of("id"));
+            assertThrows(AccessDeniedException.class, () -> authorizer.checkCanSelectFromColumns(bob, table, Set.of("ssn")));
+            assertThrows(AccessDeniedException.class, () -> authorizer.checkCanSelectFromColumns(bob, table, Set.of("name", "ssn")));
+            assertEquals(5, opaServer.getRequestCount(ALLOW_PATH));
+
+            // only subsets of a single allowed set are allowed without asking OPA
+            authorizer.checkCanSelectFromColumns(bob, table, Set.of("id", "email"));
+            authorizer.checkCanSelectFromColumns(bob, table, Set.of("name", "email"));
+            assertEquals(7, opaServer.getRequestCount(ALLOW_PATH));
+            // none of the column decisions took up an entry of the decision cache
+            assertEquals(0, authorizer.getDecisionCacheStats().get().size);
+        }
+    }
+}
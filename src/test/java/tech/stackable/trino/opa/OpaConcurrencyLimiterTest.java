@@ -0,0 +1,108 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class OpaConcurrencyLimiterTest {
+    private static final URI POLICY_URI = URI.create("http://localhost:8181/v1/data/trino/allow");
+
+    private final AtomicLong now = new AtomicLong();
+    // requests sent to the backend, completed by the test
+    private final List<CompletableFuture<OpaTransport.Response>> sent = new CopyOnWriteArrayList<>();
+
+    private final OpaTransport backend = (policyUri, body, deadlineNanos) -> {
+        CompletableFuture<OpaTransport.Response> response = new CompletableFuture<>();
+        sent.add(response);
+        return response;
+    };
+
+    private static CompletableFuture<OpaTransport.Response> send(OpaTransport transport) {
+        return transport.send(POLICY_URI, new byte[0], Long.MAX_VALUE);
+    }
+
+    private static void respond(CompletableFuture<OpaTransport.Response> request) {
+        request.complete(new OpaTransport.Response(200, new byte[0]));
+    }
+
+    @Test
+    public void testShouldQueueRequestsOverTheLimit() {
+        OpaConcurrencyLimiter limiter = new OpaConcurrencyLimiter(backend, 2, 1, 2, 1, Duration.ofMinutes(1), now::get, Runnable::run);
+        CompletableFuture<OpaTransport.Response> first = send(limiter);
+        send(limiter);
+        CompletableFuture<OpaTransport.Response> queued = send(limiter);
+        assertEquals(2, sent.size());
+        assertEquals(1, limiter.getQueueDepth());
+
+        CompletionException rejected = assertThrows(CompletionException.class, () -> send(limiter).join());
+        assertInstanceOf(OpaQueryException.Rejected.class, rejected.getCause());
+        assertEquals(1, limiter.getRejectedCount());
+
+        respond(sent.get(0));
+        assertEquals(200, first.join().statusCode);
+        assertEquals(3, sent.size());
+        assertEquals(0, limiter.getQueueDepth());
+        respond(sent.get(2));
+        assertEquals(200, queued.join().statusCode);
+        assertEquals(1, limiter.getInFlightCount());
+    }
+
+    @Test
+    public void testShouldGiveUpWaitingAfterMaxQueueWait() {
+        OpaConcurrencyLimiter limiter = new OpaConcurrencyLimiter(backend, 1, 1, 1, 10, Duration.ofMillis(50), now::get, Runnable::run);
+        send(limiter);
+        CompletableFuture<OpaTransport.Response> queued = send(limiter);
+        CompletionException timedOut = assertThrows(CompletionException.class, queued::join);
+        assertInstanceOf(OpaQueryException.Rejected.class, timedOut.getCause());
+        assertEquals(0, limiter.getQueueDepth());
+        assertEquals(1, limiter.getRejectedCount());
+
+        // the slot of the request that gave up is not lost
+        respond(sent.get(0));
+        CompletableFuture<OpaTransport.Response> next = send(limiter);
+        assertEquals(2, sent.size());
+        respond(sent.get(1));
+        assertEquals(200, next.join().statusCode);
+    }
+
+    @Test
+    public void testShouldAdaptLimitToRoundTripTime() {
+        OpaConcurrencyLimiter limiter = new OpaConcurrencyLimiter(backend, 10, 2, 100, 1000, Duration.ofMinutes(1), now::get, Runnable::run);
+        // fast responses while the limit is used grow it
+        for (int round = 0; round < 5; round++) {
+            List<CompletableFuture<OpaTransport.Response>> batch = new ArrayList<>();
+            for (int i = 0; i < limiter.getLimit(); i++) {
+                send(limiter);
+                batch.add(sent.get(sent.size() - 1));
+            }
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+            batch.forEach(OpaConcurrencyLimiterTest::respond);
+        }
+        int grown = limiter.getLimit();
+        assertTrue(grown > 10, "limit " + grown);
+
+        // responses that take much longer than the minimum shrink it, at most once per round trip
+        for (int round = 0; round < 5; round++) {
+            send(limiter);
+            CompletableFuture<OpaTransport.Response> slow = sent.get(sent.size() - 1);
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+            respond(slow);
+        }
+        int shrunk = limiter.getLimit();
+        assertTrue(shrunk < grown, "limit " + shrunk);
+        assertFalse(shrunk < 2);
+        assertEquals(0, limiter.getInFlightCount());
+    }
+}
@@ -0,0 +1,185 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.trino.spi.security.AccessDeniedException;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaDecisionCacheSnapshotTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final String REVISION_PATH = "/v1/data/system/bundles/trino/manifest/revision";
+    private static final long NOW_MILLIS = 1_700_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    private static OpaQueryKey key(String user, String table) {
+        return new OpaQueryKey("", OpaQueryKey.digestIdentity("{\"user\":\"" + user + "\"}"), "{\"operation\":\"SelectFromColumns\",\"table\":\"" + table + "\"}",
+                List.of("hive", "sales", table));
+    }
+
+    private static OpaDecisionCache newCache() {
+        return new OpaDecisionCache(100, Duration.ofMinutes(10), Duration.ofMinutes(1));
+    }
+
+    @Test
+    public void testShouldRestoreDecisionsOfSameRevision() throws IOException {
+        Path file = directory.resolve("decisions.bin");
+        OpaDecisionCache cache = newCache();
+        cache.put(key("alice", "orders"), true);
+        cache.put(key("bob", "orders"), false);
+        cache.put(key("alice", "customers"), true);
+        OpaDecisionCacheSnapshot.write(file, "rev-1", cache.snapshot(), NOW_MILLIS);
+
+        OpaDecisionCache restored = newCache();
+        assertEquals(3, OpaDecisionCacheSnapshot.load(file, "rev-1", restored, NOW_MILLIS + 1000));
+        assertEquals(Optional.of(true), restored.get(key("alice", "orders")));
+        assertEquals(Optional.of(false), restored.get(key("bob", "orders")));
+        // the object paths come back too, so that invalidation still works
+        restored.invalidate(List.of("hive", "sales", "orders"));
+        assertEquals(1, restored.size());
+
+        OpaDecisionCache otherRevision = newCache();
+        assertEquals(0, OpaDecisionCacheSnapshot.load(file, "rev-2", otherRevision, NOW_MILLIS + 1000));
+        assertEquals(0, otherRevision.size());
+        assertEquals(0, OpaDecisionCacheSnapshot.load(directory.resolve("missing.bin"), "rev-1", otherRevision));
+    }
+
+    @Test
+    public void testShouldCountDowntimeAgainstTtl() throws IOException {
+        Path file = directory.resolve("decisions.bin");
+        OpaDecisionCache cache = newCache();
+        cache.put(key("alice", "orders"), true);
+        cache.put(key("bob", "orders"), false);
+        OpaDecisionCacheSnapshot.write(file, "rev-1", cache.snapshot(), NOW_MILLIS);
+
+        // down for two minutes, longer than the deny TTL
+        OpaDecisionCache restored = newCache();
+        OpaDecisionCacheSnapshot.load(file, "rev-1", restored, NOW_MILLIS + Duration.ofMinutes(2).toMillis());
+        assertEquals(Optional.of(true), restored.get(key("alice", "orders")));
+        assertEquals(Optional.empty(), restored.get(key("bob", "orders")));
+    }
+
+    @Test
+    public void testShouldNotWriteRawIdentities() throws IOException {
+        Path file = directory.resolve("decisions.bin");
+        OpaDecisionCache cache = newCache();
+        cache.put(key("alice", "orders"), true);
+        cache.put(new OpaQueryKey("", "{\"user\":\"bob\",\"extraCredentials\":{\"token\":\"secret\"}}",
+                "{\"operation\":\"ExecuteQuery\"}", List.of()), true);
+        OpaDecisionCacheSnapshot.write(file, "rev-1", cache.snapshot(), NOW_MILLIS);
+
+        assertFalse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).contains("secret"));
+        assertEquals(1, OpaDecisionCacheSnapshot.load(file, "rev-1", newCache(), NOW_MILLIS));
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file));
+        }
+    }
+
+    @Test
+    public void testShouldRejectTruncatedSnapshot() throws IOException {
+        Path file = directory.resolve("decisions.bin");
+        OpaDecisionCache cache = newCache();
+        cache.put(key("alice", "orders"), true);
+        OpaDecisionCacheSnapshot.write(file, "rev-1", cache.snapshot(), NOW_MILLIS);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 5));
+
+        OpaDecisionCache restored = newCache();
+        assertThrows(IOException.class, () -> OpaDecisionCacheSnapshot.load(file, "rev-1", restored));
+        assertEquals(0, restored.size());
+    }
+
+    @Test
+    public void testShouldStartWithDecisionsOfPreviousAuthorizer() throws IOException {
+        Path file = directory.resolve("decisions.bin");
+        AtomicReference<String> revision = new AtomicReference<>("rev-1");
+        try (TestingOpaServer opaServer = new TestingOpaServer()) {
+            opaServer.setPolicy(ALLOW_PATH, input -> input.at("/context/identity/user").asText().equals("alice"));
+            opaServer.setPolicy(REVISION_PATH, input -> revision.get());
+            OpaAuthorizerConfig config = new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                    .decisionCacheEnabled(true)
+                    .decisionCacheSnapshotFile(file)
+                    .decisionCacheSnapshotInterval(Duration.ofHours(1))
+                    .opaRevisionPolicyUri(opaServer.policyUri(REVISION_PATH))
+                    .build();
+            SystemSecurityContext alice = new SystemSecurityContext(Identity.ofUser("alice"), Optional.empty());
+            SystemSecurityContext bob = new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+
+            OpaAuthorizer authorizer = new OpaAuthorizer(config);
+            authorizer.checkCanExecuteQuery(alice);
+            assertThrows(AccessDeniedException.class, () -> authorizer.checkCanExecuteQuery(bob));
+            authorizer.snapshotNow();
+            authorizer.shutdown();
+            assertEquals(2, opaServer.getRequestCount(ALLOW_PATH));
+
+            OpaAuthorizer restarted = new OpaAuthorizer(config);
+            restarted.checkCanExecuteQuery(alice);
+            assertThrows(AccessDeniedException.class, () -> restarted.checkCanExecuteQuery(bob));
+            assertEquals(2, opaServer.getRequestCount(ALLOW_PATH));
+            restarted.shutdown();
+
+            // a new policy bundle makes the snapshot worthless
+            revision.set("rev-2");
+            OpaAuthorizer afterDeployment = new OpaAuthorizer(config);
+            afterDeployment.checkCanExecuteQuery(alice);
+            assertEquals(3, opaServer.getRequestCount(ALLOW_PATH));
+            afterDeployment.shutdown();
+        }
+    }
+
+    @Test
+    public void testShouldKeepDecisionsIfRevisionWasUnknownOnStartup() throws IOException {
+        Path file = directory.resolve("decisions.bin");
+        AtomicReference<String> revision = new AtomicReference<>();
+        try (TestingOpaServer opaServer = new TestingOpaServer()) {
+            opaServer.setPolicy(ALLOW_PATH, input -> true);
+            opaServer.setPolicy(REVISION_PATH, input -> revision.get());
+            OpaAuthorizer authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                    .decisionCacheEnabled(true)
+                    .decisionCacheSnapshotFile(file)
+                    .decisionCacheSnapshotInterval(Duration.ofHours(1))
+                    .opaRevisionPolicyUri(opaServer.policyUri(REVISION_PATH))
+                    .build());
+            SystemSecurityContext alice = new SystemSecurityContext(Identity.ofUser("alice"), Optional.empty());
+            authorizer.checkCanExecuteQuery(alice);
+
+            // the first revision is adopted, not taken for a new deployment
+            revision.set("rev-1");
+            authorizer.snapshotNow();
+            authorizer.checkCanExecuteQuery(alice);
+            assertEquals(1, opaServer.getRequestCount(ALLOW_PATH));
+
+            revision.set("rev-2");
+            authorizer.snapshotNow();
+            authorizer.checkCanExecuteQuery(alice);
+            assertEquals(2, opaServer.getRequestCount(ALLOW_PATH));
+            authorizer.shutdown();
+        }
+    }
+
+    @Test
+    public void testShouldRequireRevisionForSnapshots() {
+        OpaAuthorizerConfig config = new OpaAuthorizerConfig.Builder(URI.create("http://localhost:8181/v1/data/trino/allow"))
+                .decisionCacheEnabled(true)
+                .decisionCacheSnapshotFile(directory.resolve("decisions.bin"))
+                .build();
+        assertThrows(OpaConfigException.RevisionUriRequired.class, () -> new OpaAuthorizer(config));
+    }
+}
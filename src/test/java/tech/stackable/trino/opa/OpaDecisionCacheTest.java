@@ -0,0 +1,186 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class OpaDecisionCacheTest {
+    private final AtomicLong now = new AtomicLong();
+
+    private static OpaQueryKey key(String user, String operation) {
+        return new OpaQueryKey("{\"user\":\"" + user + "\"}", "{\"operation\":\"" + operation + "\"}");
+    }
+
+    @Test
+    public void testShouldExpireAllowAndDenyDecisionsSeparately() {
+        OpaDecisionCache cache = new OpaDecisionCache(10, Duration.ofSeconds(10), Duration.ofSeconds(1), now::get);
+        cache.put(key("bob", "AccessCatalog"), true);
+        cache.put(key("bob", "DropCatalog"), false);
+        assertEquals(Optional.of(true), cache.get(key("bob", "AccessCatalog")));
+        assertEquals(Optional.of(false), cache.get(key("bob", "DropCatalog")));
+
+        now.addAndGet(Duration.ofSeconds(2).toNanos());
+        assertEquals(Optional.of(true), cache.get(key("bob", "AccessCatalog")));
+        assertEquals(Optional.empty(), cache.get(key("bob", "DropCatalog")));
+
+        OpaDecisionCache.Stats stats = cache.getStats();
+        assertEquals(3, stats.hitCount);
+        assertEquals(1, stats.missCount);
+        assertEquals(1, stats.expirationCount);
+        assertEquals(1, stats.size);
+    }
+
+    @Test
+    public void testShouldNotCacheDecisionsWithZeroTtl() {
+        OpaDecisionCache cache = new OpaDecisionCache(10, Duration.ofSeconds(10), Duration.ZERO, now::get);
+        cache.put(key("bob", "DropCatalog"), false);
+        assertEquals(Optional.empty(), cache.get(key("bob", "DropCatalog")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testShouldEvictLeastRecentlyUsedEntry() {
+        OpaDecisionCache cache = new OpaDecisionCache(2, Duration.ofSeconds(10), Duration.ofSeconds(10), now::get);
+        cache.put(key("alice", "ExecuteQuery"), true);
+        cache.put(key("bob", "ExecuteQuery"), true);
+        // touch alice, so that bob becomes the least recently used entry
+        cache.get(key("alice", "ExecuteQuery"));
+        cache.put(key("carol", "ExecuteQuery"), true);
+
+        assertEquals(Optional.of(true), cache.get(key("alice", "ExecuteQuery")));
+        assertEquals(Optional.empty(), cache.get(key("bob", "ExecuteQuery")));
+        assertEquals(Optional.of(true), cache.get(key("carol", "ExecuteQuery")));
+        assertEquals(1, cache.getStats().evictionCount);
+    }
+
+    @Test
+    public void testShouldKeepExpiredDecisionsForStaleGrace() {
+        OpaDecisionCache cache = new OpaDecisionCache(10, Duration.ofSeconds(10), Duration.ofSeconds(10),
+                Duration.ofMinutes(1), now::get);
+        cache.put(key("bob", "AccessCatalog"), true);
+        cache.put(key("bob", "ShowSchemas"), new OpaDecision(true, Optional.empty(), OpaDecision.CacheScope.GROUP,
+                Optional.of("analysts"), false), Set.of("analysts"));
+
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+        assertEquals(Optional.empty(), cache.get(key("bob", "AccessCatalog")));
+        assertEquals(Optional.of(true), cache.getStale(key("bob", "AccessCatalog")));
+        // decisions shared with a group are used for its other members too
+        assertEquals(Optional.of(true), cache.getStale(key("alice", "ShowSchemas"), Set.of("analysts")));
+        assertEquals(Optional.empty(), cache.getStale(key("alice", "ShowSchemas"), Set.of("staff")));
+
+        now.addAndGet(Duration.ofMinutes(1).toNanos());
+        assertEquals(Optional.empty(), cache.getStale(key("bob", "AccessCatalog")));
+        assertEquals(Optional.empty(), cache.get(key("bob", "AccessCatalog")));
+        assertEquals(Optional.empty(), cache.get(key("alice", "ShowSchemas"), Set.of("analysts")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testShouldInvalidateDecisionsBelowObject() {
+        OpaDecisionCache cache = new OpaDecisionCache(10, Duration.ofSeconds(10), Duration.ofSeconds(10), now::get);
+        OpaQueryKey catalog = new OpaQueryKey("", "bob", "AccessCatalog", List.of("hive"));
+        OpaQueryKey orders = new OpaQueryKey("", "bob", "SelectFromColumns orders", List.of("hive", "sales", "orders"));
+        OpaQueryKey customers = new OpaQueryKey("", "bob", "SelectFromColumns customers", List.of("hive", "sales", "customers"));
+        OpaQueryKey salaries = new OpaQueryKey("", "bob", "SelectFromColumns salaries", List.of("hive", "hr", "salaries"));
+        OpaQueryKey query = new OpaQueryKey("", "bob", "ExecuteQuery", List.of());
+        for (OpaQueryKey key : List.of(catalog, orders, customers, salaries, query)) {
+            cache.put(key, true);
+        }
+
+        cache.invalidate(List.of("hive", "sales", "orders"));
+        assertEquals(Optional.empty(), cache.get(orders));
+        assertEquals(Optional.of(true), cache.get(customers));
+
+        cache.invalidate(List.of("hive", "sales"));
+        assertEquals(Optional.empty(), cache.get(customers));
+        assertEquals(Optional.of(true), cache.get(salaries));
+        assertEquals(Optional.of(true), cache.get(catalog));
+
+        cache.invalidate(List.of("hive", "unknown"));
+        cache.invalidate(List.of("hive"));
+        assertEquals(1, cache.size());
+        cache.invalidate(List.of());
+        assertEquals(0, cache.size());
+        assertEquals(5, cache.getInvalidationCount());
+    }
+
+    @Test
+    public void testShouldDropDecisionsAskedForBeforeInvalidation() {
+        OpaDecisionCache cache = new OpaDecisionCache(10, Duration.ofSeconds(10), Duration.ofSeconds(10), now::get);
+        OpaQueryKey bob = new OpaQueryKey("", "bob", "AccessCatalog hive", List.of("hive"));
+        long stamp = cache.currentStamp();
+        // e.g. a GRANT completing while OPA decides
+        cache.invalidate(List.of("iceberg"));
+        cache.put(bob, OpaDecision.ALLOW, Set.of(), stamp);
+        assertEquals(Optional.empty(), cache.get(bob));
+
+        cache.put(bob, OpaDecision.ALLOW, Set.of(), cache.currentStamp());
+        assertEquals(Optional.of(true), cache.get(bob));
+    }
+
+    private static OpaDecision decision(String json) throws Exception {
+        return OpaDecision.fromObject(new ObjectMapper().readTree(json));
+    }
+
+    @Test
+    public void testShouldLimitTtlOfPolicy() throws Exception {
+        assertEquals(Optional.of(Duration.ofMillis(1500)), decision("{\"allow\": true, \"ttl_seconds\": 1.5}").ttl);
+        assertEquals(Optional.of(OpaDecision.MAX_TTL.minusSeconds(1)),
+                decision("{\"allow\": true, \"ttl_seconds\": " + (OpaDecision.MAX_TTL.toSeconds() - 1) + "}").ttl);
+        assertEquals(Optional.of(OpaDecision.MAX_TTL),
+                decision("{\"allow\": true, \"ttl_seconds\": " + OpaDecision.MAX_TTL.toSeconds() + "}").ttl);
+        assertEquals(Optional.of(OpaDecision.MAX_TTL), decision("{\"allow\": true, \"ttl_seconds\": 1e10}").ttl);
+        assertEquals(Optional.of(OpaDecision.MAX_TTL), decision("{\"allow\": true, \"ttl_seconds\": 1e300}").ttl);
+        assertThrows(IllegalArgumentException.class, () -> decision("{\"allow\": true, \"ttl_seconds\": -1}"));
+
+        // a clock far from zero must not overflow the deadline of the decision and its stale grace
+        now.set(Long.MAX_VALUE - Duration.ofDays(1).toNanos());
+        OpaDecisionCache cache = new OpaDecisionCache(10, Duration.ofSeconds(10), Duration.ofSeconds(10), Duration.ofHours(1), now::get);
+        OpaQueryKey bob = new OpaQueryKey("", "bob", "AccessCatalog hive", List.of("hive"));
+        cache.put(bob, decision("{\"allow\": true, \"ttl_seconds\": 1e10}"), Set.of());
+        now.addAndGet(OpaDecision.MAX_TTL.minusSeconds(1).toNanos());
+        assertEquals(Optional.of(true), cache.get(bob));
+        now.addAndGet(Duration.ofSeconds(1).toNanos());
+        assertEquals(Optional.empty(), cache.get(bob));
+    }
+
+    @Test
+    public void testShouldFollowCacheDirectivesOfPolicy() {
+        OpaDecisionCache cache = new OpaDecisionCache(10, Duration.ofSeconds(10), Duration.ofSeconds(10), now::get);
+        OpaQueryKey bob = new OpaQueryKey("", "bob", "AccessCatalog hive", List.of("hive"));
+        OpaQueryKey alice = bob.withIdentity("alice");
+        OpaQueryKey carol = bob.withIdentity("carol");
+
+        cache.put(bob, new OpaDecision(true, Optional.of(Duration.ofHours(1)), OpaDecision.CacheScope.GROUP,
+                Optional.of("analysts"), false), Set.of("analysts", "staff"));
+        assertEquals(Optional.of(true), cache.get(alice, Set.of("analysts")));
+        assertEquals(Optional.empty(), cache.get(carol, Set.of("staff")));
+
+        // conflicting group decisions are not used
+        cache.put(carol, new OpaDecision(false, Optional.empty(), OpaDecision.CacheScope.GROUP, Optional.of("contractors"), false),
+                Set.of("contractors"));
+        assertEquals(Optional.empty(), cache.get(carol, Set.of("analysts", "contractors")));
+
+        cache.put(bob.withIdentity("dave"), new OpaDecision(false, Optional.empty(), OpaDecision.CacheScope.IDENTITY, Optional.empty(), true),
+                Set.of());
+        assertEquals(Optional.empty(), cache.get(bob.withIdentity("dave")));
+
+        // the group decision outlives the TTL of the cache
+        now.addAndGet(Duration.ofMinutes(30).toNanos());
+        assertEquals(Optional.of(true), cache.get(alice, Set.of("analysts")));
+        assertEquals(Optional.empty(), cache.get(carol, Set.of("contractors")));
+
+        OpaQueryKey drop = new OpaQueryKey("", "bob", "DropCatalog hive", List.of("hive"));
+        cache.put(drop, new OpaDecision(false, Optional.empty(), OpaDecision.CacheScope.GLOBAL, Optional.empty(), false), Set.of());
+        assertEquals(Optional.of(false), cache.get(drop.withIdentity("erin"), Set.of()));
+        cache.invalidate(List.of("hive"));
+        assertEquals(Optional.empty(), cache.get(drop.withIdentity("erin"), Set.of()));
+    }
+}
@@ -0,0 +1,70 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class OpaHttpTransportTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final byte[] QUERY = "{\"input\":{}}".getBytes(StandardCharsets.UTF_8);
+
+    private TestingOpaServer opaServer;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        opaServer = new TestingOpaServer();
+        opaServer.setPolicy(ALLOW_PATH, input -> true);
+    }
+
+    @AfterEach
+    public void teardown() {
+        opaServer.close();
+    }
+
+    private static long deadlineIn(Duration timeout) {
+        return System.nanoTime() + timeout.toNanos();
+    }
+
+    @Test
+    public void testShouldReturnResponse() throws Exception {
+        OpaHttpTransport transport = new OpaHttpTransport(1, 1);
+        OpaTransport.Response response =
+                transport.send(opaServer.policyUri(ALLOW_PATH), QUERY, deadlineIn(Duration.ofSeconds(10))).get();
+        assertEquals(200, response.statusCode);
+        assertEquals("{\"result\":true}", new String(response.body, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testShouldFailRequestsThatMissTheDeadline() {
+        opaServer.setLatency(Duration.ofSeconds(2));
+        OpaHttpTransport transport = new OpaHttpTransport(1, 1);
+        ExecutionException error = assertThrows(ExecutionException.class, () ->
+                transport.send(opaServer.policyUri(ALLOW_PATH), QUERY, deadlineIn(Duration.ofMillis(200))).get());
+        assertInstanceOf(OpaQueryException.QueryFailed.class, error.getCause());
+    }
+
+    @Test
+    public void testShouldNotExceedMaxInFlightRequests() {
+        opaServer.setLatency(Duration.ofSeconds(1));
+        OpaHttpTransport transport = new OpaHttpTransport(2, 1);
+        CompletableFuture<OpaTransport.Response> first =
+                transport.send(opaServer.policyUri(ALLOW_PATH), QUERY, deadlineIn(Duration.ofSeconds(10)));
+        // the only slot is taken by the first request, so the second cannot start before its deadline
+        CompletableFuture<OpaTransport.Response> second =
+                transport.send(opaServer.policyUri(ALLOW_PATH), QUERY, deadlineIn(Duration.ofMillis(200)));
+        // waiting for the slot does not block the caller
+        assertFalse(second.isDone());
+        ExecutionException error = assertThrows(ExecutionException.class, second::get);
+        assertInstanceOf(OpaQueryException.Rejected.class, error.getCause());
+        assertEquals(200, first.join().statusCode);
+    }
+}
@@ -0,0 +1,88 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+import io.trino.spi.QueryId;
+import io.trino.spi.connector.CatalogSchemaTableName;
+import io.trino.spi.connector.SchemaTableName;
+import io.trino.spi.security.BasicPrincipal;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaInputProjectionTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+
+    private static SystemSecurityContext context(String user, Set<String> groups) {
+        return new SystemSecurityContext(Identity.forUser(user)
+                .withGroups(groups)
+                .withPrincipal(new BasicPrincipal(user + "@EXAMPLE.COM"))
+                .build(), Optional.of(new QueryId("20230101_000000_00000_abcde")));
+    }
+
+    private static String serialize(OpaQuerySerializer serializer, OpaQueryInput input) throws IOException {
+        return new String(serializer.serialize(input), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testShouldOnlySerializeSelectedFields() throws IOException {
+        OpaQuerySerializer serializer = new OpaQuerySerializer(OpaInputProjection.of(Map.of(
+                "SelectFromColumns", List.of("context.identity.user", "action.resource.table.catalogSchemaTableName"),
+                "FilterTables", List.of("context.identity.groups", "action.filterResources.table.schemaTableName.table"))));
+        SystemSecurityContext context = context("bob", Set.of("analysts"));
+        CatalogSchemaTableName table = new CatalogSchemaTableName("hive", "sales", "orders");
+
+        assertEquals("{\"input\":{\"context\":{\"identity\":{\"user\":\"bob\"}},\"action\":{\"operation\":\"SelectFromColumns\","
+                        + "\"resource\":{\"table\":{\"catalogSchemaTableName\":{\"catalog\":\"hive\",\"schemaTable\":"
+                        + "{\"schema\":\"sales\",\"table\":\"orders\",\"retainedSizeInBytes\":" + table.getSchemaTableName().getRetainedSizeInBytes() + "}}}}}}}",
+                serialize(serializer, new OpaQueryInput(context, new OpaQueryInputAction("SelectFromColumns",
+                        new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(table, Set.of("id", "total"))).build()))));
+        assertEquals("{\"input\":{\"context\":{\"identity\":{\"groups\":[\"analysts\"]}},\"action\":{\"operation\":\"FilterTables\","
+                        + "\"filterResources\":[{\"table\":{\"schemaTableName\":{\"table\":\"orders\"}}},"
+                        + "{\"table\":{\"schemaTableName\":{\"table\":\"customers\"}}}]}}}",
+                serialize(serializer, new OpaQueryInput(context, new OpaQueryInputAction("FilterTables", List.of(
+                        new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table("hive", new SchemaTableName("sales", "orders"))).build(),
+                        new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table("hive", new SchemaTableName("sales", "customers"))).build())))));
+    }
+
+    @Test
+    public void testShouldUseDefaultFieldsForOtherOperations() throws IOException {
+        OpaQuerySerializer projected = new OpaQuerySerializer(OpaInputProjection.of(Map.of(
+                OpaInputProjection.DEFAULT_OPERATION, List.of("context.identity.user"))));
+        OpaQueryInput input = new OpaQueryInput(context("bob", Set.of("analysts")), new OpaQueryInputAction("ExecuteQuery"));
+        assertEquals("{\"input\":{\"context\":{\"identity\":{\"user\":\"bob\"}},\"action\":{\"operation\":\"ExecuteQuery\"}}}",
+                serialize(projected, input));
+        // without a projection, the input is sent in full
+        assertEquals(serialize(new OpaQuerySerializer(), input),
+                serialize(new OpaQuerySerializer(OpaInputProjection.of(Map.of("SelectFromColumns", List.of("context")))), input));
+    }
+
+    @Test
+    public void testShouldRejectFieldsOutsideOfInput() {
+        assertThrows(IllegalArgumentException.class, () -> OpaInputProjection.of(Map.of("ExecuteQuery", List.of("identity.user"))));
+        assertThrows(IllegalArgumentException.class, () -> OpaInputProjection.of(Map.of("ExecuteQuery", List.of("context..user"))));
+    }
+
+    @Test
+    public void testShouldShareCachedDecisionsOfInputsThatOnlyDifferInUnsentFields() throws IOException {
+        try (TestingOpaServer opaServer = new TestingOpaServer()) {
+            opaServer.setPolicy(ALLOW_PATH, input -> input.at("/context/identity/user").asText().equals("bob")
+                    && input.at("/context/identity/groups").isMissingNode());
+            OpaAuthorizer authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                    .decisionCacheEnabled(true)
+                    .inputProjection("ExecuteQuery", List.of("context.identity.user"))
+                    .build());
+
+            authorizer.checkCanExecuteQuery(context("bob", Set.of("analysts")));
+            authorizer.checkCanExecuteQuery(context("bob", Set.of("admins", "staff")));
+            assertEquals(1, opaServer.getRequestCount(ALLOW_PATH));
+        }
+    }
+}
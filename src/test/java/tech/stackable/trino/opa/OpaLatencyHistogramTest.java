@@ -0,0 +1,45 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class OpaLatencyHistogramTest {
+    @Test
+    public void testShouldReportPercentilesWithinBucketPrecision() {
+        OpaLatencyHistogram histogram = new OpaLatencyHistogram();
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertWithin(500, histogram.getPercentileMillis(0.5));
+        assertWithin(990, histogram.getPercentileMillis(0.99));
+        assertWithin(999, histogram.getPercentileMillis(0.999));
+    }
+
+    @Test
+    public void testShouldStartOverAfterReset() {
+        OpaLatencyHistogram histogram = new OpaLatencyHistogram();
+        assertTrue(Double.isNaN(histogram.getPercentileMillis(0.5)));
+        histogram.record(TimeUnit.SECONDS.toNanos(5));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(2));
+        assertWithin(2, histogram.getPercentileMillis(0.999));
+    }
+
+    @Test
+    public void testShouldCoverWholeValueRange() {
+        for (long value : new long[] {0, 1, 15, 16, 17, 1_000_000, Long.MAX_VALUE}) {
+            int index = OpaLatencyHistogram.bucketIndex(value);
+            double midpoint = OpaLatencyHistogram.bucketMidpoint(index);
+            assertTrue(Math.abs(midpoint - value) <= Math.max(value / 16.0, 0.5), value + " -> " + midpoint);
+        }
+    }
+
+    private static void assertWithin(double expectedMillis, double actualMillis) {
+        assertTrue(Math.abs(actualMillis - expectedMillis) <= expectedMillis * 0.07,
+                "expected ~" + expectedMillis + "ms but got " + actualMillis + "ms");
+    }
+}
@@ -0,0 +1,137 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class OpaLoadBalancedTransportTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final byte[] QUERY = "{\"input\":{}}".getBytes(StandardCharsets.UTF_8);
+
+    private TestingOpaServer first;
+    private TestingOpaServer second;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        first = new TestingOpaServer();
+        first.setPolicy(ALLOW_PATH, input -> true);
+        second = new TestingOpaServer();
+        second.setPolicy(ALLOW_PATH, input -> true);
+    }
+
+    @AfterEach
+    public void teardown() {
+        first.close();
+        second.close();
+    }
+
+    private static URI baseUri(TestingOpaServer server) {
+        return server.policyUri("");
+    }
+
+    private static URI unusedEndpoint() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return URI.create("http://127.0.0.1:" + socket.getLocalPort());
+        }
+    }
+
+    private static OpaLoadBalancedTransport transport(List<URI> endpoints, boolean hedging) {
+        return new OpaLoadBalancedTransport(new OpaHttpTransport(4, 64), endpoints, 2, Duration.ofMinutes(1),
+                hedging, 95, Duration.ofMillis(50));
+    }
+
+    private static CompletableFuture<OpaTransport.Response> send(OpaTransport transport) {
+        // the host of the policy URI is replaced by the endpoint's
+        return transport.send(URI.create("http://opa.invalid" + ALLOW_PATH), QUERY,
+                System.nanoTime() + Duration.ofSeconds(10).toNanos());
+    }
+
+    @Test
+    public void testShouldSpreadRequestsOverEndpoints() {
+        OpaLoadBalancedTransport transport = transport(List.of(baseUri(first), baseUri(second)), false);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(200, send(transport).join().statusCode);
+        }
+        assertEquals(20, first.getRequestCount(ALLOW_PATH) + second.getRequestCount(ALLOW_PATH));
+        assertTrue(first.getRequestCount(ALLOW_PATH) > 0);
+        assertTrue(second.getRequestCount(ALLOW_PATH) > 0);
+    }
+
+    @Test
+    public void testShouldLimitEachEndpointSeparately() {
+        List<OpaConcurrencyLimiter> limiters = new ArrayList<>();
+        OpaLoadBalancedTransport transport = new OpaLoadBalancedTransport(new OpaHttpTransport(4, 64), delegate -> {
+            OpaConcurrencyLimiter limiter = new OpaConcurrencyLimiter(delegate, 1, 1, 1, 0, Duration.ZERO);
+            limiters.add(limiter);
+            return limiter;
+        }, List.of(baseUri(first), baseUri(second)), 2, Duration.ofMinutes(1), false, 95, Duration.ofMillis(50));
+        assertEquals(2, limiters.size());
+
+        // the second request goes to the other endpoint, whose limiter has a slot of its own
+        first.setLatency(Duration.ofMillis(200));
+        second.setLatency(Duration.ofMillis(200));
+        CompletableFuture<OpaTransport.Response> one = send(transport);
+        CompletableFuture<OpaTransport.Response> two = send(transport);
+        assertEquals(200, one.join().statusCode);
+        assertEquals(200, two.join().statusCode);
+        assertEquals(1, first.getRequestCount(ALLOW_PATH));
+        assertEquals(1, second.getRequestCount(ALLOW_PATH));
+    }
+
+    @Test
+    public void testShouldEjectFailingEndpoint() throws IOException {
+        OpaLoadBalancedTransport transport = transport(List.of(baseUri(first), unusedEndpoint()), false);
+        int failures = 0;
+        for (int i = 0; i < 20; i++) {
+            try {
+                send(transport).join();
+            } catch (CompletionException e) {
+                failures++;
+            }
+        }
+        // two failures in a row eject the endpoint for the rest of the test
+        assertEquals(2, failures);
+        assertEquals(1, transport.getEjectionCount());
+        assertEquals(18, first.getRequestCount(ALLOW_PATH));
+    }
+
+    @Test
+    public void testShouldNotEjectEndpointsForLocalRejections() {
+        OpaTransport overloaded = (policyUri, body, deadlineNanos) ->
+                CompletableFuture.failedFuture(new OpaQueryException.Rejected("queue is full"));
+        OpaLoadBalancedTransport transport = new OpaLoadBalancedTransport(overloaded, List.of(baseUri(first), baseUri(second)),
+                2, Duration.ofMinutes(1), false, 95, Duration.ofMillis(50));
+        for (int i = 0; i < 10; i++) {
+            assertThrows(CompletionException.class, () -> send(transport).join());
+        }
+        assertEquals(0, transport.getEjectionCount());
+    }
+
+    @Test
+    public void testShouldHedgeSlowRequests() {
+        first.setLatency(Duration.ofSeconds(2));
+        OpaLoadBalancedTransport transport = transport(List.of(baseUri(first), baseUri(second)), true);
+        long start = System.nanoTime();
+        List<CompletableFuture<OpaTransport.Response>> responses = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            responses.add(send(transport));
+        }
+        for (CompletableFuture<OpaTransport.Response> response : responses) {
+            assertEquals(200, response.join().statusCode);
+        }
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(1)) < 0);
+        assertTrue(transport.getHedgedRequestCount() > 0);
+    }
+}
@@ -0,0 +1,111 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaMicroBatcherTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final String MICRO_BATCH_PATH = "/v1/data/trino/microBatch";
+
+    private final List<List<Integer>> sentBatches = new CopyOnWriteArrayList<>();
+
+    // allows even numbers
+    private CompletableFuture<List<Boolean>> send(List<Integer> queries, long deadlineNanos) {
+        sentBatches.add(queries);
+        return CompletableFuture.completedFuture(queries.stream().map(query -> query % 2 == 0).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testShouldSendQueriesOfWindowTogether() {
+        OpaMicroBatcher<Integer, Boolean> batcher = new OpaMicroBatcher<>(Duration.ofMillis(100), 64, this::send);
+        List<CompletableFuture<Boolean>> decisions = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            decisions.add(batcher.submit(i, Long.MAX_VALUE));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i % 2 == 0, decisions.get(i).join());
+        }
+        assertEquals(List.of(List.of(0, 1, 2, 3, 4)), sentBatches);
+    }
+
+    @Test
+    public void testShouldSendFullBatchRightAway() {
+        OpaMicroBatcher<Integer, Boolean> batcher = new OpaMicroBatcher<>(Duration.ofMinutes(1), 2, this::send);
+        CompletableFuture<Boolean> first = batcher.submit(1, Long.MAX_VALUE);
+        assertFalse(first.isDone());
+        CompletableFuture<Boolean> second = batcher.submit(2, Long.MAX_VALUE);
+        assertFalse(first.join());
+        assertTrue(second.join());
+        assertEquals(1, batcher.getBatchCount());
+        assertEquals(2, batcher.getBatchedQueryCount());
+    }
+
+    private static boolean isAllowedCatalog(JsonNode query) {
+        return query.at("/action/resource/catalog/name").asText().startsWith("allowed");
+    }
+
+    @Test
+    public void testShouldDecideConcurrentQueriesWithOneRequest() throws IOException {
+        try (TestingOpaServer opaServer = new TestingOpaServer()) {
+            opaServer.setPolicy(ALLOW_PATH, OpaMicroBatcherTest::isAllowedCatalog);
+            opaServer.setPolicy(MICRO_BATCH_PATH, input -> {
+                List<Integer> allowed = new ArrayList<>();
+                JsonNode queries = input.get("queries");
+                for (int i = 0; i < queries.size(); i++) {
+                    if (isAllowedCatalog(queries.get(i))) {
+                        allowed.add(i);
+                    }
+                }
+                return allowed;
+            });
+            OpaAuthorizer authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                    .opaMicroBatchPolicyUri(opaServer.policyUri(MICRO_BATCH_PATH))
+                    .microBatchWindow(Duration.ofMillis(100))
+                    .build());
+            SystemSecurityContext context = new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+            Set<String> catalogs = Set.of("allowed_hive", "allowed_iceberg", "system", "tpch");
+            assertEquals(Set.of("allowed_hive", "allowed_iceberg"), authorizer.filterCatalogs(context, catalogs));
+            assertEquals(1, opaServer.getRequestCount(MICRO_BATCH_PATH));
+            assertEquals(0, opaServer.getRequestCount(ALLOW_PATH));
+
+            // an undefined micro-batch rule falls back to one request per query
+            opaServer.setPolicy(MICRO_BATCH_PATH, input -> null);
+            assertEquals(Set.of("allowed_hive", "allowed_iceberg"), authorizer.filterCatalogs(context, catalogs));
+            assertEquals(2, opaServer.getRequestCount(MICRO_BATCH_PATH));
+            assertEquals(4, opaServer.getRequestCount(ALLOW_PATH));
+        }
+    }
+
+    @Test
+    public void testShouldStopBatchingWhileMicroBatchPolicyDoesNotExist() throws IOException {
+        try (TestingOpaServer opaServer = new TestingOpaServer()) {
+            opaServer.setPolicy(ALLOW_PATH, OpaMicroBatcherTest::isAllowedCatalog);
+            OpaAuthorizer authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                    .opaMicroBatchPolicyUri(opaServer.policyUri(MICRO_BATCH_PATH))
+                    .microBatchWindow(Duration.ofMillis(100))
+                    .decisionCacheEnabled(false)
+                    .build());
+            SystemSecurityContext context = new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+            Set<String> catalogs = Set.of("allowed_hive", "allowed_iceberg", "system", "tpch");
+            assertEquals(Set.of("allowed_hive", "allowed_iceberg"), authorizer.filterCatalogs(context, catalogs));
+            assertEquals(Set.of("allowed_hive", "allowed_iceberg"), authorizer.filterCatalogs(context, catalogs));
+            assertEquals(1, opaServer.getRequestCount(MICRO_BATCH_PATH));
+            assertEquals(8, opaServer.getRequestCount(ALLOW_PATH));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class OpaOffHeapDecisionCacheTest {
+    private final AtomicLong now = new AtomicLong();
+
+    private static OpaQueryKey key(String user, String schema, String table) {
+        return new OpaQueryKey("", "{\"user\":\"" + user + "\"}", "SelectFromColumns " + schema + "." + table,
+                List.of("hive", schema, table));
+    }
+
+    @Test
+    public void testShouldExpireAndInvalidateDecisions() {
+        OpaOffHeapDecisionCache cache = new OpaOffHeapDecisionCache(100);
+        cache.put(key("bob", "sales", "orders"), true, 10, 0);
+        cache.put(key("bob", "sales", "customers"), false, 10, 0);
+        cache.put(key("bob", "hr", "salaries"), true, 20, 0);
+        assertEquals(true, cache.get(key("bob", "sales", "orders"), 5));
+        assertEquals(false, cache.get(key("bob", "sales", "customers"), 5));
+        assertNull(cache.get(key("alice", "sales", "orders"), 5));
+        assertNull(cache.get(key("bob", "sales", "orders"), 10));
+        assertEquals(2, cache.size());
+
+        cache.invalidate(List.of("hive", "sales"));
+        assertNull(cache.get(key("bob", "sales", "customers"), 5));
+        assertEquals(true, cache.get(key("bob", "hr", "salaries"), 5));
+        // invalidated decisions are dropped when they are next looked at
+        assertEquals(1, cache.size());
+        cache.invalidate(List.of());
+        assertNull(cache.get(key("bob", "hr", "salaries"), 5));
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getInvalidationCount());
+
+        // decisions read before an invalidation are not put back
+        long stamp = cache.currentStamp();
+        cache.invalidate(List.of("hive", "hr", "salaries"));
+        cache.put(key("bob", "hr", "salaries"), true, 20, 0, stamp);
+        assertNull(cache.get(key("bob", "hr", "salaries"), 5));
+        cache.put(key("bob", "hr", "salaries"), true, 20, 0);
+        assertEquals(true, cache.get(key("bob", "hr", "salaries"), 5));
+    }
+
+    @Test
+    public void testShouldDropDecisionThatExpiresFirstWhenFull() {
+        OpaOffHeapDecisionCache cache = new OpaOffHeapDecisionCache(8);
+        assertEquals(8, cache.capacity());
+        for (int i = 0; i < 9; i++) {
+            cache.put(key("bob", "sales", "t" + i), true, 100 + i, 0);
+        }
+        assertEquals(8, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(key("bob", "sales", "t0"), 0));
+        assertEquals(true, cache.get(key("bob", "sales", "t8"), 0));
+    }
+
+    @Test
+    public void testShouldServeDecisionsEvictedFromHeap() {
+        OpaOffHeapDecisionCache offHeap = new OpaOffHeapDecisionCache(1000);
+        OpaDecisionCache cache = new OpaDecisionCache(2, Duration.ofSeconds(10), Duration.ofSeconds(10), Duration.ZERO,
+                offHeap, now::get);
+        for (int i = 0; i < 5; i++) {
+            cache.put(key("bob", "sales", "t" + i), i % 2 == 0);
+        }
+        assertEquals(2, cache.size());
+        assertEquals(3, offHeap.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Optional.of(i % 2 == 0), cache.get(key("bob", "sales", "t" + i)));
+        }
+        assertTrue(offHeap.getHitCount() >= 3);
+
+        cache.invalidate(List.of("hive", "sales", "t0"));
+        assertEquals(Optional.empty(), cache.get(key("bob", "sales", "t0")));
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        assertEquals(Optional.empty(), cache.get(key("bob", "sales", "t1")));
+    }
+}
@@ -0,0 +1,177 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.trino.spi.connector.CatalogSchemaTableName;
+import io.trino.spi.connector.SchemaTableName;
+import io.trino.spi.eventlistener.EventListener;
+import io.trino.spi.eventlistener.QueryCompletedEvent;
+import io.trino.spi.eventlistener.QueryContext;
+import io.trino.spi.eventlistener.QueryIOMetadata;
+import io.trino.spi.eventlistener.QueryMetadata;
+import io.trino.spi.eventlistener.QueryStatistics;
+import io.trino.spi.security.AccessDeniedException;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+import io.trino.spi.session.ResourceEstimates;
+
+public class OpaPermissionSnapshotTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final String PERMISSIONS_PATH = "/v1/data/trino/permissions";
+
+    private static final Map<String, Object> SNAPSHOT = Map.of(
+            "catalogs", List.of("hive", "system"),
+            "tables", List.of(
+                    Map.of("catalog", "hive", "schema", "sales", "table", "*"),
+                    Map.of("catalog", "*", "schema", "information_schema", "table", "*"),
+                    Map.of("catalog", "hive", "schema", "hr", "table", "departments")),
+            "column_denials", List.of(
+                    Map.of("catalog", "hive", "schema", "sales", "table", "customers", "columns", List.of("ssn")),
+                    Map.of("catalog", "*", "schema", "*", "table", "*", "columns", List.of("password"))));
+
+    private static OpaPermissionSnapshot snapshot(Object result) {
+        return OpaPermissionSnapshot.fromResult(new ObjectMapper().valueToTree(result));
+    }
+
+    private static QueryCompletedEvent completedStatement(String updateType, String statement) {
+        QueryMetadata metadata = new QueryMetadata("20230101_000000_00001_abcde", Optional.empty(), statement,
+                Optional.of(updateType), Optional.empty(), "FINISHED", List.of(), List.of(), URI.create("http://localhost"),
+                Optional.empty(), Optional.empty(), Optional.empty());
+        QueryStatistics statistics = new QueryStatistics(Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO,
+                Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(),
+                Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(),
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                List.of(), 0, true, List.of(), List.of(), List.of(), List.of(), Optional.empty());
+        QueryContext context = new QueryContext("admin", Optional.empty(), Set.of(), Optional.empty(), Optional.empty(),
+                Optional.empty(), Optional.empty(), Set.of(), Set.of(), Optional.empty(), Optional.of("hive"),
+                Optional.of("sales"), Optional.empty(), Map.of(),
+                new ResourceEstimates(Optional.empty(), Optional.empty(), Optional.empty()),
+                "localhost", "414", "test", Optional.empty(), "coordinator");
+        Instant now = Instant.now();
+        return new QueryCompletedEvent(metadata, statistics, context, new QueryIOMetadata(List.of(), Optional.empty()),
+                Optional.empty(), List.of(), now, now, now);
+    }
+
+    @Test
+    public void testShouldMatchGrantsAndDenialsWithWildcards() {
+        OpaPermissionSnapshot snapshot = snapshot(SNAPSHOT);
+        assertTrue(snapshot.canAccessCatalog("hive"));
+        assertFalse(snapshot.canAccessCatalog("iceberg"));
+        assertTrue(snapshot.canAccessSchema("hive", "hr"));
+        assertTrue(snapshot.canAccessSchema("iceberg", "information_schema"));
+        assertFalse(snapshot.canAccessSchema("hive", "finance"));
+        assertTrue(snapshot.canAccessTable("hive", "sales", "orders"));
+        assertTrue(snapshot.canAccessTable("hive", "hr", "departments"));
+        assertFalse(snapshot.canAccessTable("hive", "hr", "salaries"));
+
+        assertTrue(snapshot.canSelectFromColumns("hive", "sales", "customers", Set.of("id", "name")));
+        assertFalse(snapshot.canSelectFromColumns("hive", "sales", "customers", Set.of("id", "ssn")));
+        assertFalse(snapshot.canSelectFromColumns("hive", "sales", "orders", Set.of("password")));
+        assertFalse(snapshot.canSelectFromColumns("hive", "hr", "salaries", Set.of("id")));
+    }
+
+    @Test
+    public void testShouldRejectMalformedSnapshot() {
+        assertThrows(IllegalArgumentException.class, () -> snapshot(List.of("hive")));
+        assertThrows(IllegalArgumentException.class, () -> snapshot(Map.of("catalogs", "hive")));
+        assertThrows(IllegalArgumentException.class, () -> snapshot(Map.of("tables", List.of(Map.of("catalog", "hive")))));
+    }
+
+    @Test
+    public void testShouldDecideChecksOfQueryFromSnapshot() throws IOException {
+        try (TestingOpaServer opaServer = new TestingOpaServer()) {
+            opaServer.setPolicy(ALLOW_PATH, input -> true);
+            opaServer.setPolicy(PERMISSIONS_PATH, input -> input.at("/context/identity/user").asText().equals("bob") ? SNAPSHOT : null);
+            OpaAuthorizer authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                    .opaPermissionsPolicyUri(opaServer.policyUri(PERMISSIONS_PATH))
+                    .build());
+            SystemSecurityContext bob = new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+
+            authorizer.checkCanExecuteQuery(bob);
+            authorizer.checkCanAccessCatalog(bob, "hive");
+            assertThrows(AccessDeniedException.class, () -> authorizer.checkCanAccessCatalog(bob, "iceberg"));
+            assertEquals(Set.of("sales"), authorizer.filterSchemas(bob, "hive", Set.of("sales", "finance")));
+            assertEquals(Set.of(new SchemaTableName("sales", "orders")), authorizer.filterTables(bob, "hive",
+                    Set.of(new SchemaTableName("sales", "orders"), new SchemaTableName("hr", "salaries"))));
+            assertThrows(AccessDeniedException.class, () -> authorizer.checkCanSelectFromColumns(bob,
+                    new CatalogSchemaTableName("hive", "sales", "customers"), Set.of("ssn")));
+            authorizer.checkCanExecuteQuery(bob);
+            assertEquals(1, opaServer.getRequestCount(PERMISSIONS_PATH));
+            assertEquals(2, opaServer.getRequestCount(ALLOW_PATH));
+
+            // without a snapshot, OPA decides
+            SystemSecurityContext alice = new SystemSecurityContext(Identity.ofUser("alice"), Optional.empty());
+            authorizer.checkCanExecuteQuery(alice);
+            authorizer.checkCanAccessCatalog(alice, "iceberg");
+            assertEquals(2, opaServer.getRequestCount(PERMISSIONS_PATH));
+            assertEquals(4, opaServer.getRequestCount(ALLOW_PATH));
+        }
+    }
+
+    @Test
+    public void testShouldDropSnapshotsAfterChangingStatement() throws IOException {
+        try (TestingOpaServer opaServer = new TestingOpaServer()) {
+            opaServer.setPolicy(ALLOW_PATH, input -> true);
+            opaServer.setPolicy(PERMISSIONS_PATH, input -> SNAPSHOT);
+            // without the decision cache, only the snapshots are cached
+            OpaAuthorizer authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                    .opaPermissionsPolicyUri(opaServer.policyUri(PERMISSIONS_PATH))
+                    .decisionCacheEnabled(false)
+                    .build());
+            SystemSecurityContext bob = new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+
+            authorizer.checkCanExecuteQuery(bob);
+            authorizer.checkCanExecuteQuery(bob);
+            assertEquals(1, opaServer.getRequestCount(PERMISSIONS_PATH));
+
+            // what Trino does when a statement completes
+            for (EventListener listener : authorizer.getEventListeners()) {
+                listener.queryCompleted(completedStatement("GRANT", "GRANT SELECT ON orders TO USER bob"));
+            }
+            authorizer.checkCanExecuteQuery(bob);
+            assertEquals(2, opaServer.getRequestCount(PERMISSIONS_PATH));
+        }
+    }
+
+    @Test
+    public void testShouldNotCacheSnapshotInvalidatedWhileFetching() throws IOException {
+        try (TestingOpaServer opaServer = new TestingOpaServer()) {
+            AtomicReference<OpaAuthorizer> authorizer = new AtomicReference<>();
+            AtomicBoolean invalidate = new AtomicBoolean(true);
+            opaServer.setPolicy(ALLOW_PATH, input -> true);
+            opaServer.setPolicy(PERMISSIONS_PATH, input -> {
+                if (invalidate.getAndSet(false)) {
+                    // a statement that completes while OPA builds the snapshot
+                    authorizer.get().invalidateCaches(List.of());
+                }
+                return SNAPSHOT;
+            });
+            authorizer.set(new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                    .opaPermissionsPolicyUri(opaServer.policyUri(PERMISSIONS_PATH))
+                    .build()));
+            SystemSecurityContext bob = new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+
+            authorizer.get().checkCanExecuteQuery(bob);
+            authorizer.get().checkCanExecuteQuery(bob);
+            assertEquals(2, opaServer.getRequestCount(PERMISSIONS_PATH));
+            authorizer.get().checkCanExecuteQuery(bob);
+            assertEquals(2, opaServer.getRequestCount(PERMISSIONS_PATH));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+import io.trino.spi.QueryId;
+import io.trino.spi.connector.CatalogSchemaTableName;
+import io.trino.spi.eventlistener.EventListener;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaQueryMemoTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+
+    private static OpaQueryKey key(String operation) {
+        return new OpaQueryKey("{\"user\":\"bob\"}", "{\"operation\":\"" + operation + "\"}");
+    }
+
+    @Test
+    public void testShouldBoundEntriesPerQueryAndNumberOfQueries() {
+        OpaQueryMemo memo = new OpaQueryMemo(2, 2);
+        memo.put("q1", key("AccessCatalog"), true);
+        memo.put("q1", key("ExecuteQuery"), true);
+        memo.get("q1", key("AccessCatalog"));
+        memo.put("q1", key("DropCatalog"), false);
+        assertEquals(Optional.of(true), memo.get("q1", key("AccessCatalog")));
+        assertEquals(Optional.empty(), memo.get("q1", key("ExecuteQuery")));
+        assertEquals(Optional.of(false), memo.get("q1", key("DropCatalog")));
+        // decisions are not shared between queries
+        assertEquals(Optional.empty(), memo.get("q2", key("AccessCatalog")));
+
+        memo.put("q2", key("AccessCatalog"), true);
+        memo.put("q3", key("AccessCatalog"), true);
+        assertEquals(2, memo.getQueryCount());
+        assertEquals(Optional.empty(), memo.get("q1", key("AccessCatalog")));
+
+        memo.release("q2");
+        assertEquals(1, memo.getQueryCount());
+        assertEquals(Optional.empty(), memo.get("q2", key("AccessCatalog")));
+
+        // a decision that arrives after the query completed is not kept
+        memo.put("q2", key("AccessCatalog"), true);
+        assertEquals(1, memo.getQueryCount());
+        assertEquals(Optional.empty(), memo.get("q2", key("AccessCatalog")));
+    }
+
+    @Test
+    public void testShouldAnswerRepeatedChecksOfQueryFromMemo() throws IOException {
+        try (TestingOpaServer opaServer = new TestingOpaServer()) {
+            opaServer.setPolicy(ALLOW_PATH, input -> true);
+            OpaAuthorizer authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.policyUri(ALLOW_PATH))
+                    .queryMemoEnabled(true)
+                    .build());
+            SystemSecurityContext first = new SystemSecurityContext(Identity.ofUser("bob"),
+                    Optional.of(new QueryId("20230101_000000_00001_abcde")));
+            SystemSecurityContext second = new SystemSecurityContext(Identity.ofUser("bob"),
+                    Optional.of(new QueryId("20230101_000000_00002_abcde")));
+            CatalogSchemaTableName table = new CatalogSchemaTableName("hive", "sales", "orders");
+
+            for (int i = 0; i < 5; i++) {
+                authorizer.checkCanAccessCatalog(first, "hive");
+                authorizer.checkCanSelectFromColumns(first, table, Set.of("id"));
+            }
+            assertEquals(2, opaServer.getRequestCount(ALLOW_PATH));
+            authorizer.checkCanAccessCatalog(second, "hive");
+            assertEquals(3, opaServer.getRequestCount(ALLOW_PATH));
+
+            // what Trino does when the query completes
+            EventListener listener = authorizer.getEventListeners().iterator().next();
+            assertTrue(listener instanceof OpaQueryMemo);
+            ((OpaQueryMemo) listener).release("20230101_000000_00001_abcde");
+            authorizer.checkCanAccessCatalog(first, "hive");
+            assertEquals(4, opaServer.getRequestCount(ALLOW_PATH));
+        }
+    }
+}
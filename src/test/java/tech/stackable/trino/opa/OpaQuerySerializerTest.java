@@ -0,0 +1,86 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import io.trino.spi.QueryId;
+import io.trino.spi.connector.CatalogSchemaName;
+import io.trino.spi.connector.CatalogSchemaTableName;
+import io.trino.spi.connector.SchemaTableName;
+import io.trino.spi.security.BasicPrincipal;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.PrincipalType;
+import io.trino.spi.security.Privilege;
+import io.trino.spi.security.SelectedRole;
+import io.trino.spi.security.SystemSecurityContext;
+import io.trino.spi.security.TrinoPrincipal;
+
+public class OpaQuerySerializerTest {
+    // the way queries were serialized before OpaQuerySerializer existed
+    private static final ObjectMapper REFERENCE_JSON = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .registerModule(new Jdk8Module());
+
+    private final OpaQuerySerializer serializer = new OpaQuerySerializer();
+
+    private static Identity richIdentity(Map<String, String> extraCredentials) {
+        return Identity.forUser("bob")
+                .withGroups(Set.of("analysts", "admins", "staff"))
+                .withPrincipal(new BasicPrincipal("bob@EXAMPLE.COM"))
+                .withEnabledRoles(Set.of("reader"))
+                .withConnectorRole("hive", new SelectedRole(SelectedRole.Type.ROLE, Optional.of("hive_reader")))
+                .withConnectorRole("iceberg", new SelectedRole(SelectedRole.Type.ALL, Optional.empty()))
+                .withExtraCredentials(extraCredentials)
+                .build();
+    }
+
+    private void assertSameAsReference(OpaQueryInput input) throws Exception {
+        String expected = REFERENCE_JSON.writeValueAsString(Map.of("input", input));
+        assertEquals(expected, new String(serializer.serialize(input), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testShouldMatchObjectMapperOutput() throws Exception {
+        SystemSecurityContext context = new SystemSecurityContext(richIdentity(Map.of("token", "secret")),
+                Optional.of(new QueryId("20230101_000000_00000_abcde")));
+        CatalogSchemaTableName table = new CatalogSchemaTableName("hive", "sales", "orders");
+        TrinoPrincipal principal = new TrinoPrincipal(PrincipalType.ROLE, "auditors");
+
+        assertSameAsReference(new OpaQueryInput(context, new OpaQueryInputAction("ExecuteQuery")));
+        assertSameAsReference(new OpaQueryInput(context, new OpaQueryInputAction("SetTableAuthorization",
+                new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(table, principal)).build())));
+        assertSameAsReference(new OpaQueryInput(context, new OpaQueryInputAction("SelectFromColumns",
+                new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table(table, Set.of("id", "total"))).build())));
+        assertSameAsReference(new OpaQueryInput(context, new OpaQueryInputAction("GrantSchemaPrivilege",
+                new OpaQueryInputResource.Builder().authorization(new OpaQueryInputResource.Authorization(
+                        Privilege.SELECT, new CatalogSchemaName("hive", "sales"), principal, true)).build())));
+        assertSameAsReference(new OpaQueryInput(context, new OpaQueryInputAction("FilterTables", List.of(
+                new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table("hive", new SchemaTableName("sales", "orders"))).build(),
+                new OpaQueryInputResource.Builder().table(new OpaQueryInputResource.Table("hive", new SchemaTableName("sales", "customers"))).build()))));
+    }
+
+    @Test
+    public void testShouldMatchObjectMapperOutputForMinimalIdentity() throws Exception {
+        SystemSecurityContext context = new SystemSecurityContext(Identity.ofUser("alice"), Optional.empty());
+        assertSameAsReference(new OpaQueryInput(context, new OpaQueryInputAction("AccessCatalog",
+                new OpaQueryInputResource.Builder().catalog(new OpaQueryInputResource.Catalog("system")).build())));
+    }
+
+    @Test
+    public void testShouldNotReuseIdentityOfEqualInstance() throws Exception {
+        // Identity.equals ignores extra credentials, the spliced identity must not
+        Identity first = richIdentity(Map.of("token", "first"));
+        Identity second = richIdentity(Map.of("token", "second"));
+        OpaQueryInputAction action = new OpaQueryInputAction("ExecuteQuery");
+        assertSameAsReference(new OpaQueryInput(new SystemSecurityContext(first, Optional.empty()), action));
+        assertSameAsReference(new OpaQueryInput(new SystemSecurityContext(second, Optional.empty()), action));
+    }
+}
@@ -0,0 +1,38 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class OpaRequestSlotsTest {
+    @Test
+    public void testShouldHandSlotPastTimedOutRequests() {
+        OpaRequestSlots slots = new OpaRequestSlots(1);
+        assertTrue(slots.acquire(System.nanoTime()).isDone());
+
+        List<CompletableFuture<Void>> timedOut = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            timedOut.add(slots.acquire(System.nanoTime()));
+        }
+        for (CompletableFuture<Void> request : timedOut) {
+            CompletionException error = assertThrows(CompletionException.class, request::join);
+            assertInstanceOf(OpaQueryException.Rejected.class, error.getCause());
+        }
+
+        CompletableFuture<Void> waiting = slots.acquire(System.nanoTime() + TimeUnit.MINUTES.toNanos(1));
+        assertFalse(waiting.isDone());
+        slots.release();
+        waiting.join();
+
+        // the slot is held by the last request, and free again once it is released
+        slots.release();
+        assertTrue(slots.acquire(System.nanoTime()).isDone());
+    }
+}
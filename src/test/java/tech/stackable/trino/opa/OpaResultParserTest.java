@@ -0,0 +1,72 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+
+public class OpaResultParserTest {
+    private final OpaResultParser parser = new OpaResultParser(new ObjectMapper());
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testShouldSkipDecisionLogFields() throws Exception {
+        String fields = "\"decision_id\":\"b3d5f5a4\",\"metrics\":{\"timer_rego_query_eval_ns\":98000,\"nested\":[1,{\"a\":2}]}";
+        assertEquals(true, parser.readDecision(bytes("{" + fields + ",\"result\":true}")));
+        assertEquals(false, parser.readDecision(bytes("{\"result\":false," + fields + "}")));
+        assertEquals(List.of(0, 2), parser.readResult(bytes("{" + fields + ",\"result\":[0,2]}"),
+                TypeFactory.defaultInstance().constructCollectionType(List.class, Integer.class)));
+    }
+
+    @Test
+    public void testShouldReturnNullForUndefinedResult() throws Exception {
+        assertNull(parser.readDecision(bytes("{}")));
+        assertNull(parser.readDecision(bytes("{\"decision_id\":\"b3d5f5a4\"}")));
+        assertNull(parser.readResult(bytes("{\"result\":null}"), TypeFactory.defaultInstance().constructType(String.class)));
+    }
+
+    @Test
+    public void testShouldStopAfterResult() throws Exception {
+        // anything after the result is not looked at, not even whether it is valid JSON
+        assertEquals(true, parser.readDecision(bytes("{\"result\":true,\"metrics\":{")));
+        assertThrows(Exception.class, () -> parser.readDecision(bytes("[true]")));
+    }
+
+    @Test
+    public void testShouldReadCacheDirectives() throws Exception {
+        OpaDecision decision = parser.readDecisionWithDirectives(bytes(
+                "{\"result\":{\"allow\":true,\"ttl_seconds\":3600,\"cache_scope\":\"group\",\"cache_group\":\"analysts\"}}"));
+        assertTrue(decision.allowed);
+        assertEquals(Optional.of(Duration.ofHours(1)), decision.ttl);
+        assertEquals(OpaDecision.CacheScope.GROUP, decision.cacheScope);
+        assertEquals(Optional.of("analysts"), decision.cacheGroup);
+
+        assertTrue(parser.readDecisionWithDirectives(bytes("{\"result\":{\"allow\":false,\"no_cache\":true}}")).noCache);
+        // a plain decision object is the same as a boolean
+        assertSame(OpaDecision.DENY, parser.readDecisionWithDirectives(bytes("{\"result\":{\"allow\":false}}")));
+        assertEquals(true, parser.readDecision(bytes("{\"result\":{\"allow\":true,\"cache_scope\":\"global\"}}")));
+        assertThrows(Exception.class, () -> parser.readDecision(bytes("{\"result\":{\"ttl_seconds\":10}}")));
+        assertThrows(Exception.class, () -> parser.readDecision(bytes("{\"result\":{\"allow\":true,\"cache_scope\":\"team\"}}")));
+    }
+
+    @Test
+    public void testShouldDecodeServerErrorBodyOnlyInMessage() {
+        byte[] body = bytes("x".repeat(5000));
+        OpaQueryException.OpaServerError error = new OpaQueryException.OpaServerError("policy", 500, body);
+        assertEquals(500, error.getStatusCode());
+        assertTrue(error.getMessage().startsWith("OPA server returned status 500 when processing policy policy: xxx"));
+        assertTrue(error.getMessage().endsWith("..."));
+    }
+}
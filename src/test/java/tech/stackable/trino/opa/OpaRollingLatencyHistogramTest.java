@@ -0,0 +1,55 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class OpaRollingLatencyHistogramTest {
+    private final AtomicLong now = new AtomicLong();
+
+    private static void recordMillis(OpaRollingLatencyHistogram histogram, int count, long millis) {
+        for (int i = 0; i < count; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+
+    @Test
+    public void testShouldOnlyReportRecentValues() {
+        OpaRollingLatencyHistogram histogram = new OpaRollingLatencyHistogram(now::get);
+        // a slow OPA at startup
+        recordMillis(histogram, 100, 500);
+        now.addAndGet(Duration.ofMinutes(2).toNanos());
+        recordMillis(histogram, 900, 2);
+
+        assertWithin(2, histogram.getPercentileMillis(0.99, OpaRollingLatencyHistogram.ONE_MINUTE));
+        assertWithin(2, histogram.getPercentileMillis(0.5, OpaRollingLatencyHistogram.FIVE_MINUTES));
+        assertWithin(500, histogram.getPercentileMillis(0.99, OpaRollingLatencyHistogram.FIVE_MINUTES));
+
+        now.addAndGet(Duration.ofMinutes(4).toNanos());
+        assertWithin(2, histogram.getPercentileMillis(0.99, OpaRollingLatencyHistogram.FIVE_MINUTES));
+        assertTrue(Double.isNaN(histogram.getPercentileMillis(0.5, OpaRollingLatencyHistogram.ONE_MINUTE)));
+
+        // the slots of the first values are reused
+        recordMillis(histogram, 10, 50);
+        assertWithin(50, histogram.getPercentileMillis(0.99, OpaRollingLatencyHistogram.FIVE_MINUTES));
+        histogram.reset();
+        assertTrue(Double.isNaN(histogram.getPercentileMillis(0.5, OpaRollingLatencyHistogram.FIVE_MINUTES)));
+    }
+
+    @Test
+    public void testShouldHandleNegativeTicker() {
+        now.set(-Duration.ofSeconds(20).toNanos());
+        OpaRollingLatencyHistogram histogram = new OpaRollingLatencyHistogram(now::get);
+        recordMillis(histogram, 10, 5);
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+        recordMillis(histogram, 10, 5);
+        assertWithin(5, histogram.getPercentileMillis(0.5, OpaRollingLatencyHistogram.ONE_MINUTE));
+    }
+
+    private static void assertWithin(double expectedMillis, double actualMillis) {
+        assertTrue(Math.abs(actualMillis - expectedMillis) <= expectedMillis * 0.07,
+                "expected ~" + expectedMillis + "ms but got " + actualMillis + "ms");
+    }
+}
@@ -0,0 +1,53 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class OpaSingleFlightTest {
+    @Test
+    public void testShouldShareInFlightQuery() {
+        OpaSingleFlight<String, Boolean> singleFlight = new OpaSingleFlight<>();
+        CompletableFuture<Boolean> response = new CompletableFuture<>();
+        AtomicInteger queries = new AtomicInteger();
+
+        CompletableFuture<Boolean> first = singleFlight.execute("bob", () -> {
+            queries.incrementAndGet();
+            return response;
+        });
+        CompletableFuture<Boolean> second = singleFlight.execute("bob", () -> {
+            queries.incrementAndGet();
+            return response;
+        });
+        assertEquals(1, queries.get());
+        assertEquals(1, singleFlight.getCollapsedCount());
+
+        response.complete(true);
+        assertTrue(first.join());
+        assertTrue(second.join());
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    @Test
+    public void testShouldQueryAgainOnceCompleted() {
+        OpaSingleFlight<String, Boolean> singleFlight = new OpaSingleFlight<>();
+        assertTrue(singleFlight.execute("bob", () -> CompletableFuture.completedFuture(true)).join());
+        assertFalse(singleFlight.execute("bob", () -> CompletableFuture.completedFuture(false)).join());
+        assertEquals(0, singleFlight.getCollapsedCount());
+    }
+
+    @Test
+    public void testShouldNotCancelOtherCallers() {
+        OpaSingleFlight<String, Boolean> singleFlight = new OpaSingleFlight<>();
+        CompletableFuture<Boolean> response = new CompletableFuture<>();
+        CompletableFuture<Boolean> first = singleFlight.execute("bob", () -> response);
+        CompletableFuture<Boolean> second = singleFlight.execute("bob", () -> response);
+
+        first.cancel(false);
+        response.complete(true);
+        assertTrue(second.join());
+    }
+}
@@ -0,0 +1,113 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.trino.spi.connector.SchemaTableName;
+import io.trino.spi.security.AccessDeniedException;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaUnixSocketTransportTest {
+    private static final String ALLOW_PATH = "/v1/data/trino/allow";
+    private static final byte[] QUERY = "{\"input\":{}}".getBytes(StandardCharsets.UTF_8);
+
+    private Path socketDirectory;
+    private TestingOpaServer opaServer;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        // socket paths are limited to about 100 characters, so do not use the build directory
+        socketDirectory = Files.createTempDirectory("opa");
+        opaServer = new TestingOpaServer();
+        opaServer.listenOnUnixSocket(socketDirectory.resolve("opa.sock"));
+        opaServer.setPolicy(ALLOW_PATH, input -> input.at("/context/identity/user").asText().equals("alice")
+                || input.at("/action/resource/table/schemaTableName/table").asText().startsWith("public"));
+    }
+
+    @AfterEach
+    public void teardown() throws IOException {
+        opaServer.close();
+        Files.deleteIfExists(socketDirectory);
+    }
+
+    private static long deadlineIn(Duration timeout) {
+        return System.nanoTime() + timeout.toNanos();
+    }
+
+    @Test
+    public void testShouldAuthorizeOverUnixSocket() {
+        OpaAuthorizer authorizer = new OpaAuthorizer(opaServer.unixPolicyUri(ALLOW_PATH));
+        authorizer.checkCanExecuteQuery(new SystemSecurityContext(Identity.ofUser("alice"), Optional.empty()));
+        SystemSecurityContext bob = new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+        assertThrows(AccessDeniedException.class, () -> authorizer.checkCanExecuteQuery(bob));
+
+        Set<SchemaTableName> tables = IntStream.range(0, 50)
+                .mapToObj(i -> new SchemaTableName("sales", (i % 2 == 0 ? "public_" : "private_") + i))
+                .collect(Collectors.toSet());
+        Set<SchemaTableName> allowed = authorizer.filterTables(bob, "hive", tables);
+        assertEquals(25, allowed.size());
+        assertEquals(52, opaServer.getRequestCount(ALLOW_PATH));
+        // connections are kept open, there are never more than the default 8 executor threads
+        assertTrue(opaServer.getUnixConnectionCount() <= 8, "connections: " + opaServer.getUnixConnectionCount());
+    }
+
+    @Test
+    public void testShouldSendEachPolicyOverTheTransportOfItsScheme() {
+        String batchPath = "/v1/data/trino/batch";
+        opaServer.setPolicy(batchPath, input -> List.of(0));
+        OpaAuthorizer authorizer = new OpaAuthorizer(new OpaAuthorizerConfig.Builder(opaServer.unixPolicyUri(ALLOW_PATH))
+                .opaBatchPolicyUri(opaServer.policyUri(batchPath))
+                .build());
+        SystemSecurityContext alice = new SystemSecurityContext(Identity.ofUser("alice"), Optional.empty());
+        assertEquals(1, authorizer.filterCatalogs(alice, Set.of("hive")).size());
+        assertEquals(1, opaServer.getRequestCount(batchPath));
+        assertEquals(0, opaServer.getUnixConnectionCount());
+
+        authorizer.checkCanExecuteQuery(alice);
+        assertEquals(1, opaServer.getRequestCount(ALLOW_PATH));
+        assertEquals(1, opaServer.getUnixConnectionCount());
+    }
+
+    @Test
+    public void testShouldReturnErrorResponses() throws Exception {
+        OpaUnixSocketTransport transport = new OpaUnixSocketTransport(1, 1);
+        OpaTransport.Response response = transport.send(opaServer.unixPolicyUri("/v1/data/trino/missing"), QUERY,
+                deadlineIn(Duration.ofSeconds(10))).get();
+        assertEquals(404, response.statusCode);
+        response = transport.send(opaServer.unixPolicyUri(ALLOW_PATH), QUERY, deadlineIn(Duration.ofSeconds(10))).get();
+        assertEquals(200, response.statusCode);
+        assertEquals("{\"result\":false}", new String(response.body, StandardCharsets.UTF_8));
+        assertEquals(1, transport.getOpenedConnectionCount());
+    }
+
+    @Test
+    public void testShouldFailRequestsThatMissTheDeadline() throws Exception {
+        opaServer.setLatency(Duration.ofSeconds(2));
+        OpaUnixSocketTransport transport = new OpaUnixSocketTransport(1, 1);
+        ExecutionException error = assertThrows(ExecutionException.class, () ->
+                transport.send(opaServer.unixPolicyUri(ALLOW_PATH), QUERY, deadlineIn(Duration.ofMillis(200))).get());
+        assertInstanceOf(OpaQueryException.QueryFailed.class, error.getCause());
+
+        // the connection of the request that timed out is not reused
+        opaServer.setLatency(Duration.ZERO);
+        assertEquals(200, transport.send(opaServer.unixPolicyUri(ALLOW_PATH), QUERY, deadlineIn(Duration.ofSeconds(10))).get().statusCode);
+        assertEquals(2, transport.getOpenedConnectionCount());
+    }
+}
@@ -0,0 +1,167 @@
+package tech.stackable.trino.opa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.dylibso.chicory.wabt.Wat2Wasm;
+import io.trino.spi.security.AccessDeniedException;
+import io.trino.spi.security.Identity;
+import io.trino.spi.security.SystemSecurityContext;
+
+public class OpaWasmTransportTest {
+    private static final String ENTRYPOINTS = "{\"trino/allow\":0,\"trino/batch\":1,\"trino/echo\":2}";
+    private static final String RESULT_PREFIX = "[{\"result\":";
+    private static final String RESULT_SUFFIX = "}]";
+
+    // Stand-in for a module built with `opa build -t wasm`. It implements the exports of OPA's ABI
+    // that the host uses, but instead of evaluating Rego, trino/allow returns the data document,
+    // trino/batch is always undefined and trino/echo returns the input document. JSON values are
+    // kept as length-prefixed copies of their text.
+    private static final String FAKE_POLICY = String.join("\n",
+            "(module",
+            "  (import \"env\" \"memory\" (memory 2))",
+            "  (import \"env\" \"opa_abort\" (func $abort (param i32)))",
+            "  (global $heap (mut i32) (i32.const 4096))",
+            "  (data (i32.const 16) \"" + ENTRYPOINTS.replace("\"", "\\\"") + "\")",
+            "  (data (i32.const 128) \"{}\")",
+            "  (data (i32.const 144) \"" + RESULT_PREFIX.replace("\"", "\\\"") + "\")",
+            "  (data (i32.const 160) \"" + RESULT_SUFFIX + "\")",
+            "  (data (i32.const 176) \"[]\")",
+            "  (func $malloc (export \"opa_malloc\") (param $size i32) (result i32)",
+            "    (local $ptr i32)",
+            "    (local.set $ptr (global.get $heap))",
+            "    (global.set $heap (i32.add (local.get $ptr) (local.get $size)))",
+            "    (if (i32.gt_u (global.get $heap) (i32.mul (memory.size) (i32.const 65536)))",
+            "      (then (drop (memory.grow (i32.add (i32.div_u (i32.sub (global.get $heap)",
+            "        (i32.mul (memory.size) (i32.const 65536))) (i32.const 65536)) (i32.const 1))))))",
+            "    (local.get $ptr))",
+            "  (func (export \"opa_heap_ptr_get\") (result i32) (global.get $heap))",
+            "  (func (export \"opa_heap_ptr_set\") (param i32) (global.set $heap (local.get 0)))",
+            "  (func $value (param $addr i32) (param $len i32) (result i32)",
+            "    (local $ptr i32)",
+            "    (local.set $ptr (call $malloc (i32.add (local.get $len) (i32.const 4))))",
+            "    (i32.store (local.get $ptr) (local.get $len))",
+            "    (memory.copy (i32.add (local.get $ptr) (i32.const 4)) (local.get $addr) (local.get $len))",
+            "    (local.get $ptr))",
+            "  (func (export \"opa_json_parse\") (param i32 i32) (result i32)",
+            "    (call $value (local.get 0) (local.get 1)))",
+            "  (func (export \"opa_json_dump\") (param $value i32) (result i32)",
+            "    (call $concat (i32.const 0) (i32.const 0) (i32.add (local.get $value) (i32.const 4))",
+            "      (i32.load (local.get $value)) (i32.const 0) (i32.const 0)))",
+            "  (func (export \"entrypoints\") (result i32)",
+            "    (call $value (i32.const 16) (i32.const " + ENTRYPOINTS.length() + ")))",
+            "  (func (export \"builtins\") (result i32) (call $value (i32.const 128) (i32.const 2)))",
+            "  (func $concat (param $a i32) (param $alen i32) (param $b i32) (param $blen i32)",
+            "                (param $c i32) (param $clen i32) (result i32)",
+            "    (local $ptr i32)",
+            "    (local.set $ptr (call $malloc (i32.add (i32.add (i32.add (local.get $alen) (local.get $blen))",
+            "      (local.get $clen)) (i32.const 1))))",
+            "    (memory.copy (local.get $ptr) (local.get $a) (local.get $alen))",
+            "    (memory.copy (i32.add (local.get $ptr) (local.get $alen)) (local.get $b) (local.get $blen))",
+            "    (memory.copy (i32.add (i32.add (local.get $ptr) (local.get $alen)) (local.get $blen))",
+            "      (local.get $c) (local.get $clen))",
+            "    (i32.store8 (i32.add (i32.add (i32.add (local.get $ptr) (local.get $alen)) (local.get $blen))",
+            "      (local.get $clen)) (i32.const 0))",
+            "    (local.get $ptr))",
+            "  (func (export \"opa_eval\") (param $reserved i32) (param $entrypoint i32) (param $data i32)",
+            "        (param $input i32) (param $inputLen i32) (param $heapPtr i32) (param $format i32) (result i32)",
+            "    (global.set $heap (local.get $heapPtr))",
+            "    (if (i32.eq (local.get $entrypoint) (i32.const 0)) (then",
+            "      (return (call $concat (i32.const 144) (i32.const " + RESULT_PREFIX.length() + ")",
+            "        (i32.add (local.get $data) (i32.const 4)) (i32.load (local.get $data))",
+            "        (i32.const 160) (i32.const " + RESULT_SUFFIX.length() + ")))))",
+            "    (if (i32.eq (local.get $entrypoint) (i32.const 2)) (then",
+            "      (return (call $concat (i32.const 144) (i32.const " + RESULT_PREFIX.length() + ")",
+            "        (local.get $input) (local.get $inputLen)",
+            "        (i32.const 160) (i32.const " + RESULT_SUFFIX.length() + ")))))",
+            "    (call $concat (i32.const 176) (i32.const 2) (i32.const 0) (i32.const 0) (i32.const 0) (i32.const 0))))");
+
+    @TempDir
+    Path tempDir;
+    private Path policyFile;
+    private Path dataFile;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        policyFile = tempDir.resolve("policy.wasm");
+        Files.write(policyFile, Wat2Wasm.parse(FAKE_POLICY));
+        dataFile = tempDir.resolve("data.json");
+    }
+
+    private static long deadlineIn(Duration timeout) {
+        return System.nanoTime() + timeout.toNanos();
+    }
+
+    private static String send(OpaTransport transport, String path, String body) {
+        OpaTransport.Response response = transport.send(URI.create("http://localhost:8181" + path),
+                body.getBytes(StandardCharsets.UTF_8), deadlineIn(Duration.ofSeconds(10))).join();
+        return response.statusCode + " " + new String(response.body, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testShouldRespondLikeOpaRestApi() throws Exception {
+        OpaWasmTransport transport = new OpaWasmTransport(policyFile, Optional.empty(), Duration.ofSeconds(10), 2);
+        String input = "{\"context\":{\"identity\":{\"user\":\"bob\"}},\"action\":{\"operation\":\"ExecuteQuery\"}}";
+        assertEquals("200 {\"result\":" + input + "}", send(transport, "/v1/data/trino/echo", "{\"input\":" + input + "}"));
+        assertEquals("200 {\"result\":" + input + "}", send(transport, "/v1/data/trino/echo", "{ \"input\" : " + input + " }"));
+        assertEquals("200 {}", send(transport, "/v1/data/trino/batch", "{\"input\":{}}"));
+        assertEquals("404 ", send(transport, "/v1/data/trino/unknown", "{\"input\":{}}"));
+    }
+
+    @Test
+    public void testShouldReloadDataFileWhenItChanges() throws Exception {
+        Files.writeString(dataFile, "true");
+        OpaWasmTransport transport = new OpaWasmTransport(policyFile, Optional.of(dataFile), Duration.ZERO, 1);
+        assertEquals("200 {\"result\":true}", send(transport, "/v1/data/trino/allow", "{\"input\":{}}"));
+
+        Files.writeString(dataFile, "false");
+        Files.setLastModifiedTime(dataFile, FileTime.from(Instant.now().plusSeconds(1)));
+        assertEquals("200 {\"result\":false}", send(transport, "/v1/data/trino/allow", "{\"input\":{}}"));
+
+        // a broken data file must not replace the data that is in use
+        Files.writeString(dataFile, "{not json");
+        Files.setLastModifiedTime(dataFile, FileTime.from(Instant.now().plusSeconds(2)));
+        assertEquals("200 {\"result\":false}", send(transport, "/v1/data/trino/allow", "{\"input\":{}}"));
+    }
+
+    @Test
+    public void testShouldOnlyAcceptRe2Regexes() {
+        assertTrue(OpaWasmPolicy.regexPattern("^sales_[a-z]+$").matcher("sales_orders").find());
+        assertSame(OpaWasmPolicy.regexPattern("^sales_[a-z]+$"), OpaWasmPolicy.regexPattern("^sales_[a-z]+$"));
+        assertTrue(OpaWasmPolicy.regexPattern("[(?=]\\Q(?=\\E(a+)??").matcher("=(?=").find());
+        for (String regex : List.of("(a)\\1", "(?<n>a)\\k<n>", "a(?=b)", "(?<!a)b", "(?>a+)b", "a++b", "a{2}+")) {
+            assertThrows(IllegalArgumentException.class, () -> OpaWasmPolicy.regexPattern(regex), regex);
+        }
+    }
+
+    @Test
+    public void testShouldAuthorizeWithWasmPolicy() throws Exception {
+        Files.writeString(dataFile, "false");
+        OpaAuthorizer authorizer = new OpaAuthorizer(
+                new OpaAuthorizerConfig.Builder(URI.create("http://localhost:8181/v1/data/trino/allow"))
+                        .opaBatchPolicyUri(URI.create("http://localhost:8181/v1/data/trino/batch"))
+                        .wasmPolicyFile(policyFile)
+                        .wasmDataFile(dataFile)
+                        .build());
+        SystemSecurityContext context = new SystemSecurityContext(Identity.ofUser("bob"), Optional.empty());
+        assertThrows(AccessDeniedException.class, () -> authorizer.checkCanExecuteQuery(context));
+        // the batch rule is undefined, so each catalog is checked by itself
+        assertTrue(authorizer.filterCatalogs(context, Set.of("hive", "system")).isEmpty());
+        assertEquals(3, authorizer.getOperationStats().get("FilterCatalogs").getOpaRequests());
+    }
+}
@@ -0,0 +1,225 @@
+package tech.stackable.trino.opa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-JVM stand-in for the OPA REST API, for tests that do not need a real `opa` binary
+ *
+ * Each policy path is answered by a function from the request's `input` document to the value of
+ * the `result` field of the response, returning null leaves the result undefined.
+ */
+public class TestingOpaServer implements AutoCloseable {
+    static {
+        // without this the JDK server waits for delayed ACKs, adding ~40ms to every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final ObjectMapper json = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Function<JsonNode, Object>> policies = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    private volatile Duration latency = Duration.ZERO;
+    private final AtomicInteger unixConnections = new AtomicInteger();
+    private volatile Path unixSocket;
+    private volatile ServerSocketChannel unixServerChannel;
+
+    public TestingOpaServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            byte[] request;
+            try (InputStream body = exchange.getRequestBody()) {
+                request = body.readAllBytes();
+            }
+            Reply reply = handle(exchange.getRequestURI().getPath(), request);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(reply.status, reply.body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(reply.body);
+            }
+        });
+        server.start();
+    }
+
+    private static class Reply {
+        final int status;
+        final byte[] body;
+
+        Reply(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private Reply handle(String path, byte[] request) throws IOException {
+        requestCounts.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+        if (!latency.isZero()) {
+            try {
+                Thread.sleep(latency.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Function<JsonNode, Object> policy = policies.get(path);
+        if (policy == null) {
+            return new Reply(404, "{\"code\":\"resource_not_found\"}".getBytes(StandardCharsets.UTF_8));
+        }
+        Object result = policy.apply(json.readTree(request).get("input"));
+        return new Reply(200, result == null
+                ? "{}".getBytes(StandardCharsets.UTF_8)
+                : json.writeValueAsBytes(Map.of("result", result)));
+    }
+
+    /**
+     * Also serves the policies over HTTP/1.1 on a Unix domain socket at the given path, see
+     * {@link #unixPolicyUri(String)}
+     *
+     * Successful responses are sent with chunked transfer encoding and errors with a content
+     * length, like OPA does for larger and smaller responses.
+     */
+    public void listenOnUnixSocket(Path socket) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannel.bind(UnixDomainSocketAddress.of(socket));
+        unixSocket = socket;
+        unixServerChannel = serverChannel;
+        executor.execute(() -> {
+            while (serverChannel.isOpen()) {
+                try {
+                    SocketChannel connection = serverChannel.accept();
+                    unixConnections.incrementAndGet();
+                    executor.execute(() -> serveUnixConnection(connection));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    private void serveUnixConnection(SocketChannel connection) {
+        try (connection; InputStream in = Channels.newInputStream(connection); OutputStream out = Channels.newOutputStream(connection)) {
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                int contentLength = 0;
+                for (String header = readLine(in); header != null && !header.isEmpty(); header = readLine(in)) {
+                    if (header.toLowerCase(Locale.ENGLISH).startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(header.indexOf(':') + 1).trim());
+                    }
+                }
+                Reply reply = handle(URI.create(requestLine.split(" ")[1]).getPath(), in.readNBytes(contentLength));
+                StringBuilder head = new StringBuilder("HTTP/1.1 " + reply.status + " X\r\nContent-Type: application/json\r\n");
+                if (reply.status == 200) {
+                    int half = reply.body.length / 2;
+                    head.append("Transfer-Encoding: chunked\r\n\r\n");
+                    out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+                    writeChunk(out, reply.body, 0, half);
+                    writeChunk(out, reply.body, half, reply.body.length - half);
+                    out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                } else {
+                    head.append("Content-Length: ").append(reply.body.length).append("\r\n\r\n");
+                    out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+                    out.write(reply.body);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    private static void writeChunk(OutputStream out, byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        out.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes, offset, length);
+        out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // returns null at the end of the stream
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                return null;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    public URI unixPolicyUri(String path) {
+        return URI.create("unix://" + unixSocket + path);
+    }
+
+    public int getUnixConnectionCount() {
+        return unixConnections.get();
+    }
+
+    public URI policyUri(String path) {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    public void setPolicy(String path, Function<JsonNode, Object> policy) {
+        policies.put(path, policy);
+    }
+
+    /**
+     * Delays every response by the given duration, to simulate a slow or overloaded OPA
+     */
+    public void setLatency(Duration latency) {
+        this.latency = latency;
+    }
+
+    public int getRequestCount(String path) {
+        AtomicInteger count = requestCounts.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    public void resetRequestCounts() {
+        requestCounts.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        if (unixServerChannel != null) {
+            try {
+                unixServerChannel.close();
+                Files.deleteIfExists(unixSocket);
+            } catch (IOException e) {
+                // best effort
+            }
+        }
+        executor.shutdownNow();
+    }
+}